@@ -84,4 +84,44 @@ public interface Attribute {
 			this.type = type;
 		}
 	}
+
+	/**
+	 * Describes how the value of a numeric expression is represented at run
+	 * time, as determined by the type checker. Since <code>int</code> is a
+	 * subtype of <code>real</code>, an expression of type <code>real</code>
+	 * may evaluate to either an integer or a real value. Arithmetic on two
+	 * integers produces an integer, whilst arithmetic involving a real
+	 * produces a real.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Numeric implements Attribute {
+		public enum Kind {
+			/**
+			 * The expression always evaluates to an integer.
+			 */
+			INT,
+			/**
+			 * The expression always evaluates to a real.
+			 */
+			REAL,
+			/**
+			 * The expression may evaluate to either an integer or a real.
+			 */
+			EITHER
+		}
+
+		public final Kind kind;
+
+		/**
+		 * Construct a new numeric attribute which can be attached to a given
+		 * AST node.
+		 *
+		 * @param kind
+		 */
+		public Numeric(Kind kind) {
+			this.kind = kind;
+		}
+	}
 }
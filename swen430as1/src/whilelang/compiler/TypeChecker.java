@@ -49,11 +49,23 @@ public class TypeChecker {
 	private WhileFile.MethodDecl method;
 	private HashMap<String,WhileFile.MethodDecl> methods;
 	private HashMap<String,WhileFile.TypeDecl> types;
+	/**
+	 * Every numeric expression checked, in the order they were checked.
+	 */
+	private ArrayList<Expr> numerics;
+	/**
+	 * Set when some arithmetic with an int left operand and a real right
+	 * operand is found. Such arithmetic has type int but may evaluate to a
+	 * real, and so then a value of type int may be a real.
+	 */
+	private boolean mixed;
 
 	public void check(WhileFile wf) {
 		this.file = wf;
 		this.methods = new HashMap<String,WhileFile.MethodDecl>();
 		this.types = new HashMap<String,WhileFile.TypeDecl>();
+		this.numerics = new ArrayList<Expr>();
+		this.mixed = false;
 
 		for(WhileFile.Decl declaration : wf.declarations) {
 			if(declaration instanceof WhileFile.MethodDecl) {
@@ -72,6 +84,18 @@ public class TypeChecker {
 				check((WhileFile.MethodDecl) declaration);
 			}
 		}
+
+		if (mixed) {
+			// Values of type int may be reals, so the representation of each
+			// numeric expression must be determined again. Since operands are
+			// checked before the expressions using them, each is redone after
+			// its operands.
+			for (Expr expr : numerics) {
+				Attribute.Type type = expr.attribute(Attribute.Type.class);
+				expr.attributes().remove(expr.attribute(Attribute.Numeric.class));
+				expr.attributes().add(new Attribute.Numeric(numericKind(expr, type.type)));
+			}
+		}
 	}
 
 	public void check(WhileFile.TypeDecl td) {
@@ -304,6 +328,11 @@ public class TypeChecker {
 		// Save the type attribute so that subsequent compiler stages can use it
 		// without having to recalculate it from scratch.
 		expr.attributes().add(new Attribute.Type(type));
+		Attribute.Numeric.Kind kind = numericKind(expr, type);
+		if (kind != null) {
+			expr.attributes().add(new Attribute.Numeric(kind));
+			numerics.add(expr);
+		}
 
 		return type;
 	}
@@ -327,6 +356,11 @@ public class TypeChecker {
 			// Check arguments have int type
 			checkInstanceOf(leftType,expr.getLhs(),Type.Int.class,Type.Real.class);
 			checkInstanceOf(rightType,expr.getRhs(),Type.Int.class,Type.Real.class);
+			if (numericKind(leftType) == Attribute.Numeric.Kind.INT
+					&& numericKind(rightType) == Attribute.Numeric.Kind.EITHER) {
+				// This has type int, but may evaluate to a real
+				mixed = true;
+			}
 			return leftType;
 		case EQ:
 		case NEQ:
@@ -454,6 +488,72 @@ public class TypeChecker {
 		return type;
 	}
 
+	/**
+	 * Determine how the value of an expression with a given type is
+	 * represented at run time, or <code>null</code> if it is not numeric. The
+	 * representation is determined structurally where possible, since this is
+	 * more precise than the type. For example, <code>x + 1.0</code> always
+	 * evaluates to a real, even when <code>x</code> has type <code>real</code>.
+	 *
+	 * @param expr
+	 * @param type
+	 * @return
+	 */
+	private Attribute.Numeric.Kind numericKind(Expr expr, Type type) {
+		Attribute.Numeric.Kind kind = numericKind(type);
+		if (kind == null) {
+			return null;
+		} else if (expr instanceof Expr.Literal) {
+			Object value = ((Expr.Literal) expr).getValue();
+			if (value instanceof Integer) {
+				return Attribute.Numeric.Kind.INT;
+			} else if (value instanceof Double) {
+				return Attribute.Numeric.Kind.REAL;
+			}
+			// Characters have type int, but are not represented as integers
+			return null;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			Attribute.Numeric.Kind lhs = numericKind(e.getLhs());
+			Attribute.Numeric.Kind rhs = numericKind(e.getRhs());
+			if (lhs == Attribute.Numeric.Kind.REAL || rhs == Attribute.Numeric.Kind.REAL) {
+				return Attribute.Numeric.Kind.REAL;
+			} else if (lhs == Attribute.Numeric.Kind.INT && rhs == Attribute.Numeric.Kind.INT) {
+				return Attribute.Numeric.Kind.INT;
+			}
+			return Attribute.Numeric.Kind.EITHER;
+		} else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NEG) {
+			Attribute.Numeric.Kind operand = numericKind(((Expr.Unary) expr).getExpr());
+			return operand == null ? Attribute.Numeric.Kind.EITHER : operand;
+		}
+		return kind;
+	}
+
+	private static Attribute.Numeric.Kind numericKind(Expr expr) {
+		Attribute.Numeric attr = expr.attribute(Attribute.Numeric.class);
+		return attr == null ? null : attr.kind;
+	}
+
+	/**
+	 * Determine how values of a given type are represented at run time, or
+	 * <code>null</code> if it is not numeric. Named types are expanded. Values
+	 * of type int are only known to be integers when no arithmetic in the file
+	 * mixes an int with a real.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Attribute.Numeric.Kind numericKind(Type type) {
+		if (type instanceof Type.Named && types.containsKey(((Type.Named) type).getName())) {
+			return numericKind(types.get(((Type.Named) type).getName()).getType());
+		} else if (type instanceof Type.Int) {
+			return mixed ? Attribute.Numeric.Kind.EITHER : Attribute.Numeric.Kind.INT;
+		} else if (type instanceof Type.Real) {
+			return Attribute.Numeric.Kind.EITHER;
+		}
+		return null;
+	}
+
 	/**
 	 * Determine the type of a constant value
 	 *
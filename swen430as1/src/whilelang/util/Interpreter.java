@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
 import whilelang.ast.Stmt;
 import whilelang.ast.Type;
@@ -445,79 +446,157 @@ public class Interpreter {
 		}
 	}
 
-	private Object doNumberOperation(Object lhs, Object rhs,Expr.BOp operation){
-		Number lhs_number = (Number) lhs;
-		Number rhs_number = (Number) rhs;
-		if(lhs instanceof Double || rhs instanceof Double){
-			return doOperator(lhs_number.doubleValue(), rhs_number.doubleValue(), operation);
-		}else {
-			return doOperator(lhs_number.intValue(), rhs_number.intValue(), operation);
-		}
+	/**
+	 * Get the run-time representation of a numeric expression, as determined
+	 * by the type checker.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static Attribute.Numeric.Kind kindOf(Expr expr) {
+		Attribute.Numeric attr = expr.attribute(Attribute.Numeric.class);
+		return attr == null ? Attribute.Numeric.Kind.EITHER : attr.kind;
 	}
 
-	private Object doOperator(Number lhs, Number rhs, Expr.BOp expr){
-		//Assume both are of same class
-		boolean isDouble = false;
-		if(lhs instanceof Double){
-			isDouble = true;
-		}
-
-		switch (expr) {
+	/**
+	 * Execute an expression which is known to evaluate to an integer, without
+	 * boxing any intermediate values.
+	 *
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private int executeInt(Expr expr, HashMap<String,Object> frame) {
+		if(expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			int lhs = executeInt(e.getLhs(),frame);
+			int rhs = executeInt(e.getRhs(),frame);
+			switch (e.getOp()) {
 			case ADD:
-				if(isDouble){
-					return ((Double)lhs) + ((Double)rhs);
-				}
-				return ((Integer)lhs) + ((Integer)rhs);
+				return lhs + rhs;
 			case SUB:
-				if(isDouble){
-					return ((Double)lhs) - ((Double)rhs);
-				}
-				return ((Integer)lhs) - ((Integer)rhs);
+				return lhs - rhs;
 			case MUL:
-				if(isDouble){
-					return ((Double)lhs) * ((Double)rhs);
-				}
-				return ((Integer)lhs) * ((Integer)rhs);
+				return lhs * rhs;
 			case DIV:
-				if(isDouble){
-					return ((Double)lhs) / ((Double)rhs);
-				}
-				return ((Integer)lhs) / ((Integer)rhs);
+				return lhs / rhs;
 			case REM:
-				if(isDouble){
-					return ((Double)lhs) % ((Double)rhs);
-				}
-				return ((Integer)lhs) % ((Integer)rhs);
-			case EQ:
-				if(isDouble){
-					return ((Double)lhs).compareTo((Double)rhs) == 0;
-				}
-				return ((Integer)lhs).compareTo((Integer)rhs) == 0;
-			case NEQ:
-				if(isDouble){
-					return ((Double)lhs).compareTo((Double)rhs) != 0;
-				}
-				return ((Integer)lhs).compareTo((Integer)rhs) != 0;
-			case LT:
-				if(isDouble){
-					return ((Double)lhs) < ((Double)rhs);
-				}
-				return ((Integer)lhs) < ((Integer)rhs);
-			case LTEQ:
-				if(isDouble){
-					return ((Double)lhs) <= ((Double)rhs);
-				}
-				return ((Integer)lhs) <= ((Integer)rhs);
-			case GT:
-				if(isDouble){
-					return ((Double)lhs) > ((Double)rhs);
-				}
-				return ((Integer)lhs) > ((Integer)rhs);
-			case GTEQ:
-				if(isDouble){
-					return ((Double)lhs) >= ((Double)rhs);
+				return lhs % rhs;
+			}
+		} else if(expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NEG) {
+			return -executeInt(((Expr.Unary) expr).getExpr(),frame);
+		}
+		return (Integer) execute(expr,frame);
+	}
+
+	/**
+	 * Execute a numeric expression whose value is required as a real, without
+	 * boxing any intermediate values which are known to be reals. Integer
+	 * values are promoted.
+	 *
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private double executeReal(Expr expr, HashMap<String,Object> frame) {
+		switch(kindOf(expr)) {
+		case INT:
+			return executeInt(expr,frame);
+		case REAL:
+			if(expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				double lhs = executeReal(e.getLhs(),frame);
+				double rhs = executeReal(e.getRhs(),frame);
+				switch (e.getOp()) {
+				case ADD:
+					return lhs + rhs;
+				case SUB:
+					return lhs - rhs;
+				case MUL:
+					return lhs * rhs;
+				case DIV:
+					return lhs / rhs;
+				case REM:
+					return lhs % rhs;
 				}
-				return ((Integer)lhs) >= ((Integer)rhs);
+			} else if(expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NEG) {
+				return -executeReal(((Expr.Unary) expr).getExpr(),frame);
+			}
+			break;
+		}
+		return ((Number) execute(expr,frame)).doubleValue();
+	}
+
+	/**
+	 * Apply an arithmetic or comparison operator to two numbers, whose
+	 * representation was not known in advance. If either is a real, then both
+	 * are treated as reals.
+	 *
+	 * @param op
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private static Object apply(Expr.BOp op, Object lhs, Object rhs) {
+		if(lhs instanceof Double || rhs instanceof Double) {
+			return apply(op, ((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+		}
+		return apply(op, ((Integer) lhs).intValue(), ((Integer) rhs).intValue());
+	}
+
+	private static Object apply(Expr.BOp op, int lhs, int rhs) {
+		switch (op) {
+		case ADD:
+			return lhs + rhs;
+		case SUB:
+			return lhs - rhs;
+		case MUL:
+			return lhs * rhs;
+		case DIV:
+			return lhs / rhs;
+		case REM:
+			return lhs % rhs;
+		case EQ:
+			return lhs == rhs;
+		case NEQ:
+			return lhs != rhs;
+		case LT:
+			return lhs < rhs;
+		case LTEQ:
+			return lhs <= rhs;
+		case GT:
+			return lhs > rhs;
+		case GTEQ:
+			return lhs >= rhs;
+		}
+		return null;
+	}
+
+	private static Object apply(Expr.BOp op, double lhs, double rhs) {
+		switch (op) {
+		case ADD:
+			return lhs + rhs;
+		case SUB:
+			return lhs - rhs;
+		case MUL:
+			return lhs * rhs;
+		case DIV:
+			return lhs / rhs;
+		case REM:
+			return lhs % rhs;
+		case EQ:
+			// NOTE: compare as Double.equals() does, such that NaN == NaN
+			return Double.compare(lhs, rhs) == 0;
+		case NEQ:
+			return Double.compare(lhs, rhs) != 0;
+		case LT:
+			return lhs < rhs;
+		case LTEQ:
+			return lhs <= rhs;
+		case GT:
+			return lhs > rhs;
+		case GTEQ:
+			return lhs >= rhs;
 		}
 		return null;
 	}
@@ -526,7 +605,7 @@ public class Interpreter {
 		boolean equal = true;
 
 		if(lhs instanceof Number){//for real and int type
-			return doNumberOperation(lhs,rhs, Expr.BOp.EQ);
+			return apply(Expr.BOp.EQ,lhs,rhs);
 		}else if(lhs instanceof Boolean){//for Bool type
 			return lhs.equals(rhs);
 		}else if( lhs instanceof HashMap){
@@ -581,7 +660,36 @@ public class Interpreter {
 	}
 
 	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
-		// First, deal with the short-circuiting operators first
+		// First, use the representation determined by the type checker to
+		// select a specialised evaluator, where possible.
+		switch (expr.getOp()) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+			switch (kindOf(expr)) {
+			case INT:
+				return executeInt(expr,frame);
+			case REAL:
+				return executeReal(expr,frame);
+			}
+			break;
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			Attribute.Numeric.Kind lk = kindOf(expr.getLhs());
+			Attribute.Numeric.Kind rk = kindOf(expr.getRhs());
+			if(lk == Attribute.Numeric.Kind.INT && rk == Attribute.Numeric.Kind.INT) {
+				return apply(expr.getOp(),executeInt(expr.getLhs(),frame),executeInt(expr.getRhs(),frame));
+			} else if(lk == Attribute.Numeric.Kind.REAL || rk == Attribute.Numeric.Kind.REAL) {
+				return apply(expr.getOp(),executeReal(expr.getLhs(),frame),executeReal(expr.getRhs(),frame));
+			}
+			break;
+		}
+
+		// Second, deal with the short-circuiting operators
 		Object lhs = execute(expr.getLhs(), frame);
 
 		switch (expr.getOp()) {
@@ -591,7 +699,7 @@ public class Interpreter {
 			return ((Boolean)lhs) || ((Boolean)execute(expr.getRhs(), frame));
 		}
 
-		// Second, deal the rest.
+		// Third, deal the rest.
 		Object rhs = execute(expr.getRhs(), frame);
 
 
@@ -602,7 +710,7 @@ public class Interpreter {
 			case NEQ:
 				return !(Boolean)checkEqual(lhs,rhs);
 		}
-		Object returnVal = doNumberOperation(lhs,rhs,expr.getOp());
+		Object returnVal = apply(expr.getOp(),lhs,rhs);
 		if(returnVal !=null) {
 			return returnVal;
 		}
@@ -18,7 +18,19 @@
 
 package whilelang;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeWriter;
 import whilelang.compiler.WhileCompiler;
 import whilelang.util.*;
 
@@ -32,6 +44,7 @@ public class Main {
 	 */
 	private enum Target {
 		INTERPRETER,
+		VM,
 		JVM,
 		X86
 	}
@@ -45,6 +58,10 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		boolean verbose = false;
+		boolean closures = false;
+		boolean memoize = false;
+		boolean profile = false;
+		int jobs = 1;
 		Target target = Target.INTERPRETER;
 		int fileArgsBegin = 0;
 
@@ -59,6 +76,16 @@ public class Main {
 					System.exit(0);
 				} else if (arg.equals("-verbose")) {
 					verbose = true;
+				} else if (arg.equals("-closures")) {
+					closures = true;
+				} else if (arg.equals("-memoize")) {
+					memoize = true;
+				} else if (arg.equals("-profile")) {
+					profile = true;
+				} else if (arg.equals("-jobs") && i + 1 < args.length) {
+					jobs = Integer.parseInt(args[++i]);
+				} else if(arg.equals("-vm")) {
+				    target = Target.VM;
 				} else if(arg.equals("-jvm")) {
 				    target = Target.JVM;
 				} else if(arg.equals("-x86")) {
@@ -71,14 +98,94 @@ public class Main {
 			}
 		}
 
+		if (memoize && target != Target.INTERPRETER) {
+			throw new RuntimeException("Option -memoize is only supported by the interpreter");
+		}
+		if (profile && target != Target.INTERPRETER) {
+			throw new RuntimeException("Option -profile is only supported by the interpreter");
+		}
+
+		if (jobs > 1) {
+			String[] filenames = Arrays.copyOfRange(args, fileArgsBegin, args.length);
+			if (!compileAndExecute(filenames, jobs, verbose, closures, memoize, profile, target)) {
+				System.exit(-1);
+			}
+			return;
+		}
+
 		for (int i = fileArgsBegin; i != args.length; ++i) {
 			String filename = args[i];
-			if(!compileAndExecute(filename,verbose,target)) {
+			if(!compileAndExecute(filename,verbose,closures,memoize,profile,target,System.out,System.err)) {
 				System.exit(-1);
 			}
 		}
 	}
 
+	/**
+	 * Compile and execute a batch of while source files in parallel. The output
+	 * of each file is buffered, and then written out in the order the files
+	 * were given. Thus, the output is exactly that of compiling and executing
+	 * each file in turn, stopping at the first which fails.
+	 *
+	 * @param filenames Filenames of the while source files to be compiled.
+	 * @param jobs      The number of threads to use.
+	 * @return
+	 * @throws Exception
+	 */
+	private static boolean compileAndExecute(String[] filenames, int jobs, final boolean verbose,
+			final boolean closures, final boolean memoize, final boolean profile, final Target target)
+			throws Exception {
+		ExecutorService pool = Executors.newWorkStealingPool(jobs);
+		try {
+			ArrayList<Future<Job>> results = new ArrayList<Future<Job>>();
+			for (final String filename : filenames) {
+				results.add(pool.submit(new Callable<Job>() {
+					@Override
+					public Job call() {
+						Job job = new Job();
+						job.success = compileAndExecute(filename, verbose, closures, memoize, profile, target,
+								job.out, job.err);
+						return job;
+					}
+				}));
+			}
+			for (Future<Job> result : results) {
+				Job job;
+				try {
+					job = result.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw e;
+				}
+				job.out.flush();
+				job.err.flush();
+				job.stdout.writeTo(System.out);
+				System.out.flush();
+				job.stderr.writeTo(System.err);
+				System.err.flush();
+				if (!job.success) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The buffered output of compiling and executing one file of a batch.
+	 */
+	private static final class Job {
+		private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		private final PrintStream out = new PrintStream(stdout);
+		private final PrintStream err = new PrintStream(stderr);
+		private boolean success;
+	}
+
 	/**
 	 * Compile and execute a given while source file. This will return true if the
 	 * program compiled and executed correctly, otherwise will return false.
@@ -86,10 +193,19 @@ public class Main {
 	 * @param filename Filename of while source file to be compiled.
 	 * @param verbose  Flag indicating whether or not to print out detailed
 	 *                 information when an error occurs.
+	 * @param closures Flag indicating whether or not the interpreter should
+	 *                 first compile each method into a tree of closures.
+	 * @param memoize  Flag indicating whether or not the interpreter should
+	 *                 cache the results of pure methods.
+	 * @param profile  Flag indicating whether or not the interpreter should
+	 *                 record where execution spends its time.
 	 * @param target   The target environment to generate code for.
+	 * @param out      The stream to which the program writes its output.
+	 * @param err      The stream to which errors are reported.
 	 * @return
 	 */
-    public static boolean compileAndExecute(String filename, boolean verbose, Target target) {
+    public static boolean compileAndExecute(String filename, boolean verbose, boolean closures, boolean memoize,
+			boolean profile, Target target, PrintStream out, PrintStream err) {
 		try {
 			WhileCompiler compiler = new WhileCompiler(filename);
 
@@ -99,8 +215,28 @@ public class Main {
 			// Second, execute it!
 			switch(target) {
 			case INTERPRETER:
-			    new Interpreter().run(ast);
+				Memoizer memoizer = memoize ? new Memoizer() : null;
+				Profiler profiler = profile ? new Profiler(filename) : null;
+				try {
+					if (closures) {
+						new ClosureInterpreter(memoizer, profiler, out).run(ast);
+					} else {
+						new Interpreter(memoizer, profiler, out).run(ast);
+					}
+				} finally {
+					if (memoizer != null) {
+						memoizer.report(err);
+					}
+					if (profiler != null) {
+						profiler.unwind();
+						profiler.report(err);
+						profiler.writeCollapsedStacks(new File(stacksFile(filename)));
+					}
+				}
 			    break;
+			case VM:
+				new VirtualMachine(out).run(new BytecodeWriter().write(ast));
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown target : " + target);
 			}
@@ -109,18 +245,18 @@ public class Main {
 			// Catch a syntax error which has occurred during one of the
 			// compiler stages, such as parsing or type checking.
 			if (e.filename() != null) {
-				e.outputSourceError(System.out);
+				e.outputSourceError(out);
 			} else {
-				System.err.println("syntax error (" + e.getMessage() + ").");
+				err.println("syntax error (" + e.getMessage() + ").");
 			}
 			if (verbose) {
-				e.printStackTrace();
+				e.printStackTrace(err);
 			}
 			return false;
 		} catch (Exception e) {
-			System.err.println("Error: " + e.getMessage());
+			err.println("Error: " + e.getMessage());
 			if (verbose) {
-				e.printStackTrace();
+				e.printStackTrace(err);
 			}
 			return false;
 		}
@@ -128,6 +264,20 @@ public class Main {
 		return true;
 	}
 
+	/**
+	 * Determine the file to which the collapsed call stacks recorded when
+	 * profiling a given source file are written.
+	 *
+	 * @param filename
+	 * @return
+	 */
+	private static String stacksFile(String filename) {
+		if (filename.endsWith(".while")) {
+			filename = filename.substring(0, filename.length() - ".while".length());
+		}
+		return filename + ".folded";
+	}
+
 	/**
 	 * Print out information regarding command-line arguments
 	 *
@@ -135,7 +285,12 @@ public class Main {
 	public static void usage() {
 		String[][] info = {
 				{ "version", "Print version information" },
-				{ "verbose", "Print detailed information on what the compiler is doing" }
+				{ "verbose", "Print detailed information on what the compiler is doing" },
+				{ "closures", "Compile methods into closure trees before interpreting them" },
+				{ "jobs <n>", "Compile and execute source files in parallel using n threads" },
+				{ "memoize", "Cache the results of methods which do not print (interpreter only)" },
+				{ "profile", "Report where the interpreter spends its time, and write call stacks to a .folded file" },
+				{ "vm", "Execute programs as register bytecode on the virtual machine" }
 				};
 
 		System.out.println("usage: wlc <options> <source-files>");
@@ -84,4 +84,110 @@ public interface Attribute {
 			this.type = type;
 		}
 	}
+
+	/**
+	 * Represents the stack frame slot allocated to a given variable, as
+	 * determined by name resolution. This is attached to every variable
+	 * declaration, parameter and variable access, and allows a variable to be
+	 * located in its enclosing frame without searching for it by name.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Slot implements Attribute {
+
+		/**
+		 * The index of the slot within the enclosing stack frame.
+		 */
+		public final int index;
+
+		/**
+		 * Construct a new slot attribute which can be attached to a given AST node.
+		 *
+		 * @param index
+		 */
+		public Slot(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String toString() {
+			return "$" + index;
+		}
+	}
+
+	/**
+	 * Represents the number of stack frame slots required to execute a given
+	 * method declaration, as determined by name resolution.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Frame implements Attribute {
+
+		/**
+		 * The number of slots required, which includes one slot for every
+		 * parameter.
+		 */
+		public final int size;
+
+		/**
+		 * Construct a new frame attribute which can be attached to a given method
+		 * declaration.
+		 *
+		 * @param size
+		 */
+		public Frame(int size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Represents the method declaration which a given invocation refers to, as
+	 * determined by name resolution.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Target implements Attribute {
+
+		/**
+		 * The method being invoked.
+		 */
+		public final WhileFile.MethodDecl method;
+
+		/**
+		 * Construct a new target attribute which can be attached to a given
+		 * invocation.
+		 *
+		 * @param method
+		 */
+		public Target(WhileFile.MethodDecl method) {
+			this.method = method;
+		}
+	}
+
+	/**
+	 * Marks an invocation which is the operand of a return statement, and
+	 * whose result is therefore the result of the enclosing method. Such an
+	 * invocation can reuse the stack frame of its caller. This is only attached
+	 * when the invoked method cannot return <code>null</code>, as returning
+	 * <code>null</code> does not complete the enclosing method.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class TailCall implements Attribute {
+	}
+
+	/**
+	 * Marks a method declaration which is pure, meaning it neither contains
+	 * nor (transitively) invokes a method which contains a print statement.
+	 * The result of such a method depends only on its arguments.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Pure implements Attribute {
+	}
 }
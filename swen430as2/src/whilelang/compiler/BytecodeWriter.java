@@ -0,0 +1,916 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import static whilelang.util.BytecodeFile.*;
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.BytecodeFile;
+import whilelang.util.Interpreter;
+import whilelang.util.Pair;
+import whilelang.util.RecordValue;
+import whilelang.util.SwitchTable;
+import whilelang.util.TypeMatcher;
+
+/**
+ * <p>
+ * Responsible for lowering a typed While source file into register-based
+ * bytecode, as described by <code>BytecodeFile</code>. Every local variable is
+ * held in the register given by its frame slot, as determined by name
+ * resolution, and temporary values are allocated registers above these.
+ * </p>
+ * <p>
+ * The inferred types attached by the type checker are used to select
+ * specialised instructions. For example, arithmetic and comparisons operate
+ * directly on integers; conditions are compiled into fused compare-and-branch
+ * instructions rather than materialising boolean values; and assignments of
+ * values which cannot contain arrays or records are not copied. The
+ * resulting code exhibits exactly the same behaviour as the
+ * <code>Interpreter</code>.
+ * </p>
+ */
+public class BytecodeWriter {
+	/**
+	 * The source file being translated.
+	 */
+	private WhileFile file;
+
+	/**
+	 * Maps the name of every declaration in the file to its declaration.
+	 */
+	private HashMap<String, WhileFile.Decl> declarations;
+
+	/**
+	 * Maps every method declaration to its index in the function table.
+	 */
+	private IdentityHashMap<WhileFile.MethodDecl, Integer> functions;
+
+	/**
+	 * The constant pool being constructed, along with the index of each
+	 * constant already allocated.
+	 */
+	private ArrayList<Object> constants;
+	private HashMap<Object, Integer> constantIndices;
+
+	/**
+	 * The matcher compiled for each distinct type tested, indexed by its
+	 * string form.
+	 */
+	private HashMap<String, TypeMatcher> matchers;
+
+	/**
+	 * The instructions of the function currently being translated.
+	 */
+	private int[] code;
+	private int pc;
+
+	/**
+	 * The number of registers occupied by local variables in the current
+	 * function, the next free temporary register and the total number of
+	 * registers required so far.
+	 */
+	private int locals;
+	private int registers;
+	private int maxRegisters;
+
+	/**
+	 * The position assigned to each label in the current function, along with
+	 * the location of every branch operand which refers to a label.
+	 */
+	private int[] labels;
+	private int nlabels;
+	private ArrayList<Integer> fixups;
+
+	/**
+	 * The labels targeted by <code>break</code> and <code>continue</code>
+	 * statements within the innermost enclosing loop or switch.
+	 */
+	private int breakLabel = -1;
+	private int continueLabel = -1;
+
+	/**
+	 * Translate a given source file into bytecode.
+	 *
+	 * @param wf
+	 *            The source file to be translated.
+	 * @return
+	 */
+	public BytecodeFile write(WhileFile wf) {
+		this.file = wf;
+		this.declarations = new HashMap<String, WhileFile.Decl>();
+		this.functions = new IdentityHashMap<WhileFile.MethodDecl, Integer>();
+		this.constants = new ArrayList<Object>();
+		this.constantIndices = new HashMap<Object, Integer>();
+		this.matchers = new HashMap<String, TypeMatcher>();
+
+		ArrayList<WhileFile.MethodDecl> methods = new ArrayList<WhileFile.MethodDecl>();
+		for (WhileFile.Decl decl : wf.declarations) {
+			declarations.put(decl.name(), decl);
+			if (decl instanceof WhileFile.MethodDecl) {
+				functions.put((WhileFile.MethodDecl) decl, methods.size());
+				methods.add((WhileFile.MethodDecl) decl);
+			}
+		}
+
+		BytecodeFile.Function[] fs = new BytecodeFile.Function[methods.size()];
+		for (int i = 0; i != fs.length; ++i) {
+			fs[i] = write(methods.get(i));
+		}
+
+		return new BytecodeFile(wf.filename, fs, constants.toArray());
+	}
+
+	private BytecodeFile.Function write(WhileFile.MethodDecl md) {
+		this.code = new int[64];
+		this.pc = 0;
+		this.locals = md.attribute(Attribute.Frame.class).size;
+		this.registers = locals;
+		this.maxRegisters = locals;
+		this.labels = new int[16];
+		this.nlabels = 0;
+		this.fixups = new ArrayList<Integer>();
+
+		translate(md.getBody());
+
+		// Falling off the end of a method returns nothing at all, which is
+		// distinct from an explicit return statement.
+		int target = allocate();
+		emit(CONST, target, constant(null));
+		emit(RETURN, target);
+
+		// Resolve all branch targets
+		for (int fixup : fixups) {
+			code[fixup] = labels[code[fixup]];
+		}
+
+		return new BytecodeFile.Function(md.getName(), md.getParameters().size(), maxRegisters,
+				Arrays.copyOf(code, pc));
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	private void translate(List<Stmt> block) {
+		for (Stmt s : block) {
+			translate(s);
+		}
+	}
+
+	private void translate(Stmt stmt) {
+		// Temporaries never live beyond the statement which created them
+		registers = locals;
+
+		if (stmt instanceof Stmt.Assert) {
+			translate((Stmt.Assert) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			translate((Stmt.Print) stmt);
+		} else if (stmt instanceof Stmt.Assign) {
+			translate((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			translate((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			translate((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			translate((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			branch(GOTO, breakLabel);
+		} else if (stmt instanceof Stmt.Continue) {
+			branch(GOTO, continueLabel);
+		} else if (stmt instanceof Stmt.IfElse) {
+			translate((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			translate((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			translate((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			// The result of an invocation used as a statement is treated as
+			// the result of the enclosing method, provided it is not null.
+			int target = allocate();
+			translate((Expr.Invoke) stmt, target);
+			emit(RETURNNZ, target);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	private void translate(Stmt.Assert stmt) {
+		emit(ASSERT, operand(stmt.getExpr()));
+	}
+
+	private void translate(Stmt.Print stmt) {
+		emit(PRINT, operand(stmt.getExpr()));
+	}
+
+	private void translate(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		if (lhs instanceof Expr.Variable) {
+			assign(slotOf(lhs), stmt.getRhs());
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			int src = lvalOperand(ra.getSource());
+			int rhs = clonedOperand(stmt.getRhs());
+			emit(SETFIELD, src, constant(accessor(ra)), rhs);
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			int src = lvalOperand(io.getSource());
+			int idx = operand(io.getIndex());
+			int rhs = clonedOperand(stmt.getRhs());
+			emit(SETINDEX, src, idx, rhs);
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+		}
+	}
+
+	private void translate(Stmt.For stmt) {
+		int body = label();
+		int increment = label();
+		int condition = label();
+		int exit = label();
+
+		translate(stmt.getDeclaration());
+		branch(GOTO, condition);
+		place(body);
+		translateLoopBody(stmt.getBody(), exit, increment);
+		place(increment);
+		translate(stmt.getIncrement());
+		place(condition);
+		registers = locals;
+		condition(stmt.getCondition(), true, body);
+		place(exit);
+	}
+
+	private void translate(Stmt.While stmt) {
+		int body = label();
+		int condition = label();
+		int exit = label();
+
+		branch(GOTO, condition);
+		place(body);
+		translateLoopBody(stmt.getBody(), exit, condition);
+		place(condition);
+		registers = locals;
+		condition(stmt.getCondition(), true, body);
+		place(exit);
+	}
+
+	private void translateLoopBody(List<Stmt> body, int exit, int next) {
+		int oldBreak = breakLabel;
+		int oldContinue = continueLabel;
+		breakLabel = exit;
+		continueLabel = next;
+		translate(body);
+		breakLabel = oldBreak;
+		continueLabel = oldContinue;
+	}
+
+	private void translate(Stmt.IfElse stmt) {
+		int falseBranch = label();
+		int exit = label();
+
+		condition(stmt.getCondition(), false, falseBranch);
+		translate(stmt.getTrueBranch());
+		if (!stmt.getFalseBranch().isEmpty()) {
+			branch(GOTO, exit);
+			place(falseBranch);
+			translate(stmt.getFalseBranch());
+		} else {
+			place(falseBranch);
+		}
+		place(exit);
+	}
+
+	private void translate(Stmt.Switch stmt) {
+		List<Stmt.Case> cases = stmt.getCases();
+		int value = operand(stmt.getExpr());
+		int exit = label();
+		int[] bodies = new int[cases.size()];
+		for (int i = 0; i != bodies.length; ++i) {
+			bodies[i] = label();
+		}
+
+		// First, dispatch through a table of branches, with one for each case
+		// followed by one for when no case is entered.
+		emit(SWITCH, value, constant(SwitchTable.compile(stmt)));
+		for (int i = 0; i != bodies.length; ++i) {
+			branch(GOTO, bodies[i]);
+		}
+		branch(GOTO, exit);
+
+		// Second, lay out the case bodies in order so that control falls
+		// through from one to the next.
+		int oldBreak = breakLabel;
+		breakLabel = exit;
+		for (int i = 0; i != bodies.length; ++i) {
+			place(bodies[i]);
+			translate(cases.get(i).getBody());
+		}
+		breakLabel = oldBreak;
+		place(exit);
+	}
+
+	private void translate(Stmt.Return stmt) {
+		Expr re = stmt.getExpr();
+		if (re == null) {
+			emit(RETURNV);
+		} else if (re.attribute(Attribute.TailCall.class) != null) {
+			Expr.Invoke ie = (Expr.Invoke) re;
+			List<Expr> arguments = ie.getArguments();
+			int first = operands(arguments, true);
+			int function = functions.get(ie.attribute(Attribute.Target.class).method);
+			emit(TAILCALL, function, arguments.size(), first);
+		} else if (canBeNull(typeOf(re))) {
+			// Returning null is indistinguishable from not returning at all.
+			emit(RETURNNZ, operand(re));
+		} else {
+			emit(RETURN, operand(re));
+		}
+	}
+
+	private void translate(Stmt.VariableDeclaration stmt) {
+		Expr re = stmt.getExpr();
+		if (re != null) {
+			assign(slotOf(stmt), re);
+		} else {
+			emit(CONST, slotOf(stmt), constant(Collections.EMPTY_SET));
+		}
+	}
+
+	/**
+	 * Assign the value of a given expression to a given local variable,
+	 * cloning it only when this is necessary to preserve value semantics.
+	 *
+	 * @param slot
+	 * @param rhs
+	 */
+	private void assign(int slot, Expr rhs) {
+		boolean clone = requiresClone(rhs);
+		if (rhs instanceof Expr.Variable) {
+			emit(clone ? CLONE : MOVE, slot, slotOf(rhs));
+		} else if (isBranching(rhs)) {
+			// Cannot translate directly into the variable, since it may be
+			// written before the expression has finished reading it.
+			emit(clone ? CLONE : MOVE, slot, operand(rhs));
+		} else {
+			translate(rhs, slot);
+			if (clone) {
+				emit(CLONE, slot, slot);
+			}
+		}
+	}
+
+	// =========================================================================
+	// Conditions
+	// =========================================================================
+
+	/**
+	 * Translate a given condition into a sequence of branches, such that
+	 * control transfers to the given label if the condition evaluates to the
+	 * given sense, and otherwise falls through.
+	 *
+	 * @param expr
+	 * @param sense
+	 * @param target
+	 */
+	private void condition(Expr expr, boolean sense, int target) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			switch (e.getOp()) {
+			case AND:
+				if (sense) {
+					int exit = label();
+					condition(e.getLhs(), false, exit);
+					condition(e.getRhs(), true, target);
+					place(exit);
+				} else {
+					condition(e.getLhs(), false, target);
+					condition(e.getRhs(), false, target);
+				}
+				return;
+			case OR:
+				if (sense) {
+					condition(e.getLhs(), true, target);
+					condition(e.getRhs(), true, target);
+				} else {
+					int exit = label();
+					condition(e.getLhs(), true, exit);
+					condition(e.getRhs(), false, target);
+					place(exit);
+				}
+				return;
+			case LT:
+				compare(e, sense ? IFILT : IFIGE, target);
+				return;
+			case LTEQ:
+				compare(e, sense ? IFILE : IFIGT, target);
+				return;
+			case GT:
+				compare(e, sense ? IFIGT : IFILE, target);
+				return;
+			case GTEQ:
+				compare(e, sense ? IFIGE : IFILT, target);
+				return;
+			case EQ:
+				compare(e, sense ? IFEQ : IFNE, target);
+				return;
+			case NEQ:
+				compare(e, sense ? IFNE : IFEQ, target);
+				return;
+			default:
+				break;
+			}
+		} else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NOT) {
+			condition(((Expr.Unary) expr).getExpr(), !sense, target);
+			return;
+		}
+		branch(sense ? IFTRUE : IFFALSE, operand(expr), target);
+	}
+
+	private void compare(Expr.Binary e, int opcode, int target) {
+		int lhs = operand(e.getLhs());
+		int rhs = operand(e.getRhs());
+		branch(opcode, lhs, rhs, target);
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	/**
+	 * Translate a given expression such that its value is written into the
+	 * given register. Unless the expression is branching, the target register
+	 * is written only by the final instruction.
+	 *
+	 * @param expr
+	 * @param target
+	 */
+	private void translate(Expr expr, int target) {
+		if (expr instanceof Expr.Binary) {
+			translate((Expr.Binary) expr, target);
+		} else if (expr instanceof Expr.Literal) {
+			translate((Expr.Literal) expr, target);
+		} else if (expr instanceof Expr.Invoke) {
+			translate((Expr.Invoke) expr, target);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			int src = operand(e.getSource());
+			int idx = operand(e.getIndex());
+			emit(INDEX, target, src, idx);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			int value = operand(e.getValue());
+			int size = operand(e.getSize());
+			emit(GENARRAY, target, value, size);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			List<Expr> es = ((Expr.ArrayInitialiser) expr).getArguments();
+			int first = operands(es, false);
+			Type type = typeOf(expr);
+			boolean primitive = type instanceof Type.Array && isPrimitive(((Type.Array) type).getElement());
+			emit(primitive ? PACK : NEWARRAY, target, es.size(), first);
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			emit(FIELD, target, operand(e.getSource()), constant(accessor(e)));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			translate((Expr.RecordConstructor) expr, target);
+		} else if (expr instanceof Expr.Unary) {
+			translate((Expr.Unary) expr, target);
+		} else if (expr instanceof Expr.Variable) {
+			emit(MOVE, target, slotOf(expr));
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			emit(CAST, target, operand(e.getExpr()), constant(matcher(e.getCastType())));
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			emit(IS, target, operand(e.getExpr()), constant(matcher(e.getIsType())));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	private void translate(Expr.Binary expr, int target) {
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			int exit = label();
+			translate(expr.getLhs(), target);
+			branch(expr.getOp() == Expr.BOp.AND ? IFFALSE : IFTRUE, target, exit);
+			translate(expr.getRhs(), target);
+			place(exit);
+			return;
+		}
+		case ADD:
+		case SUB:
+			// Adding a constant is common enough to warrant its own
+			// instruction.
+			if (expr.getRhs() instanceof Expr.Literal) {
+				Object v = ((Expr.Literal) expr.getRhs()).getValue();
+				if (v instanceof Integer) {
+					int imm = (Integer) v;
+					emit(IADDI, target, operand(expr.getLhs()), expr.getOp() == Expr.BOp.ADD ? imm : -imm);
+					return;
+				}
+			}
+			break;
+		default:
+			break;
+		}
+
+		int lhs = operand(expr.getLhs());
+		int rhs = operand(expr.getRhs());
+		switch (expr.getOp()) {
+		case ADD:
+			emit(IADD, target, lhs, rhs);
+			break;
+		case SUB:
+			emit(ISUB, target, lhs, rhs);
+			break;
+		case MUL:
+			emit(IMUL, target, lhs, rhs);
+			break;
+		case DIV:
+			emit(IDIV, target, lhs, rhs);
+			break;
+		case REM:
+			emit(IREM, target, lhs, rhs);
+			break;
+		case EQ:
+			emit(EQ, target, lhs, rhs);
+			break;
+		case NEQ:
+			emit(NE, target, lhs, rhs);
+			break;
+		case LT:
+			emit(ILT, target, lhs, rhs);
+			break;
+		case LTEQ:
+			emit(ILE, target, lhs, rhs);
+			break;
+		case GT:
+			emit(IGT, target, lhs, rhs);
+			break;
+		case GTEQ:
+			emit(IGE, target, lhs, rhs);
+			break;
+		default:
+			internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	private void translate(Expr.Literal expr, int target) {
+		Object o = expr.getValue();
+		if (o instanceof String) {
+			// Strings are mutable arrays, so a fresh copy is required each time
+			emit(STRING, target, constant(o));
+		} else {
+			emit(CONST, target, constant(Interpreter.valueOf(o)));
+		}
+	}
+
+	private void translate(Expr.Invoke expr, int target) {
+		List<Expr> arguments = expr.getArguments();
+		int first = operands(arguments, true);
+		int function = functions.get(expr.attribute(Attribute.Target.class).method);
+		emit(CALL, target, function, arguments.size(), first);
+	}
+
+	private void translate(Expr.RecordConstructor expr, int target) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		String[] names = new String[fields.size()];
+		ArrayList<Expr> values = new ArrayList<Expr>();
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			values.add(fields.get(i).second());
+		}
+		int first = operands(values, false);
+		emit(NEWRECORD, target, constant(new RecordValue.Template(names)), first);
+	}
+
+	/**
+	 * Get the matcher for a given type, such that every test of the same type
+	 * shares one matcher.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private TypeMatcher matcher(Type type) {
+		TypeMatcher m = matchers.get(type.toString());
+		if (m == null) {
+			m = TypeMatcher.compile(type, declarations);
+			matchers.put(type.toString(), m);
+		}
+		return m;
+	}
+
+	/**
+	 * Construct an accessor for the field read or written by a given record
+	 * access. Every access has its own accessor, which expects records of the
+	 * shape given by the static type of its source.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private RecordValue.Accessor accessor(Expr.RecordAccess expr) {
+		RecordValue.Shape shape = Interpreter.shapeOf(typeOf(expr.getSource()), declarations);
+		return new RecordValue.Accessor(expr.getName(), shape);
+	}
+
+	private void translate(Expr.Unary expr, int target) {
+		int value = operand(expr.getExpr());
+		switch (expr.getOp()) {
+		case NOT:
+			emit(NOT, target, value);
+			break;
+		case NEG:
+			emit(INEG, target, value);
+			break;
+		case LENGTHOF:
+			emit(LENGTH, target, value);
+			break;
+		default:
+			internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	/**
+	 * Determine a register holding the value of a given expression. Variables
+	 * are read directly from their own register, whilst anything else is
+	 * evaluated into a fresh temporary.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int operand(Expr expr) {
+		if (expr instanceof Expr.Variable) {
+			return slotOf(expr);
+		}
+		int target = allocate();
+		translate(expr, target);
+		return target;
+	}
+
+	/**
+	 * Determine a register holding the value of the source of an lval, which
+	 * can be updated in place without affecting any other value.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int lvalOperand(Expr expr) {
+		if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			int src = lvalOperand(e.getSource());
+			int target = allocate();
+			emit(FIELDREF, target, src, constant(accessor(e)));
+			return target;
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			int src = lvalOperand(e.getSource());
+			int idx = operand(e.getIndex());
+			int target = allocate();
+			emit(INDEXREF, target, src, idx);
+			return target;
+		}
+		return operand(expr);
+	}
+
+	/**
+	 * Determine a register holding the value of a given expression, which may
+	 * safely be stored elsewhere without breaking value semantics.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int clonedOperand(Expr expr) {
+		int r = operand(expr);
+		if (requiresClone(expr)) {
+			int target = r < locals ? allocate() : r;
+			emit(CLONE, target, r);
+			return target;
+		}
+		return r;
+	}
+
+	/**
+	 * Evaluate a list of expressions into consecutive temporary registers,
+	 * returning the first such register.
+	 *
+	 * @param exprs
+	 * @param clone
+	 *            Whether or not each value must be cloned.
+	 * @return
+	 */
+	private int operands(List<Expr> exprs, boolean clone) {
+		int first = registers;
+		for (int i = 0; i != exprs.size(); ++i) {
+			allocate();
+		}
+		for (int i = 0; i != exprs.size(); ++i) {
+			Expr e = exprs.get(i);
+			translate(e, first + i);
+			if (clone && requiresClone(e)) {
+				emit(CLONE, first + i, first + i);
+			}
+		}
+		return first;
+	}
+
+	// =========================================================================
+	// Types
+	// =========================================================================
+
+	/**
+	 * Determine whether or not the value of a given expression must be cloned
+	 * before it is stored elsewhere. This is unnecessary if the value cannot
+	 * contain an array or record, or if it is freshly constructed.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean requiresClone(Expr expr) {
+		return !isPrimitive(typeOf(expr)) && !isFresh(expr);
+	}
+
+	/**
+	 * Determine whether a given expression always produces a value which is not
+	 * shared with any other. Array generators are not considered fresh unless
+	 * their elements are primitive, since every element refers to the same
+	 * value.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isFresh(Expr expr) {
+		if (expr instanceof Expr.Literal || expr instanceof Expr.Binary || expr instanceof Expr.Unary
+				|| expr instanceof Expr.Is) {
+			return true;
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				if (requiresClone(e)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> f : ((Expr.RecordConstructor) expr).getFields()) {
+				if (requiresClone(f.second())) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			return isPrimitive(typeOf(((Expr.ArrayGenerator) expr).getValue()));
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether every value of a given type is immutable, meaning it
+	 * contains no arrays or records.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean isPrimitive(Type type) {
+		if (type instanceof Type.Int || type instanceof Type.Bool || type instanceof Type.Null
+				|| type instanceof Type.Void) {
+			return true;
+		} else if (type instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) type).getName());
+			return decl instanceof WhileFile.TypeDecl && isPrimitive(((WhileFile.TypeDecl) decl).getType());
+		} else if (type instanceof Type.Union) {
+			for (Type t : ((Type.Union) type).getType_list()) {
+				if (!isPrimitive(t)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether a given type may include <code>null</code>.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean canBeNull(Type type) {
+		if (type instanceof Type.Null || type == null) {
+			return true;
+		} else if (type instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) type).getName());
+			return !(decl instanceof WhileFile.TypeDecl) || canBeNull(((WhileFile.TypeDecl) decl).getType());
+		} else if (type instanceof Type.Union) {
+			for (Type t : ((Type.Union) type).getType_list()) {
+				if (canBeNull(t)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static Type typeOf(Expr expr) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		return attr == null ? null : attr.type;
+	}
+
+	/**
+	 * Determine whether a given expression writes its target register more
+	 * than once, as happens for the short-circuiting logical operators.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private static boolean isBranching(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.BOp op = ((Expr.Binary) expr).getOp();
+			return op == Expr.BOp.AND || op == Expr.BOp.OR;
+		}
+		return false;
+	}
+
+	private static int slotOf(whilelang.util.SyntacticElement elem) {
+		return elem.attribute(Attribute.Slot.class).index;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+
+	private int allocate() {
+		int r = registers++;
+		maxRegisters = Math.max(maxRegisters, registers);
+		return r;
+	}
+
+	private int constant(Object value) {
+		Integer index = constantIndices.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndices.put(value, index);
+		}
+		return index;
+	}
+
+	private int label() {
+		if (nlabels == labels.length) {
+			labels = Arrays.copyOf(labels, nlabels * 2);
+		}
+		return nlabels++;
+	}
+
+	private void place(int label) {
+		labels[label] = pc;
+	}
+
+	/**
+	 * Emit a branching instruction, whose final operand is the given label.
+	 *
+	 * @param opcode
+	 * @param operands
+	 */
+	private void branch(int opcode, int... operands) {
+		emit(opcode, operands);
+		fixups.add(pc - 1);
+	}
+
+	private void emit(int opcode, int... operands) {
+		if (pc + operands.length + 1 > code.length) {
+			code = Arrays.copyOf(code, (code.length + operands.length + 1) * 2);
+		}
+		code[pc++] = opcode;
+		for (int operand : operands) {
+			code[pc++] = operand;
+		}
+	}
+}
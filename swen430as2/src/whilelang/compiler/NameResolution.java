@@ -0,0 +1,305 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for resolving every name used within a method body. Each
+ * parameter and local variable is allocated a numeric slot within the stack
+ * frame of its enclosing method, and every invocation is linked to the method
+ * declaration it refers to. The results are recorded as
+ * <code>Attribute.Slot</code>, <code>Attribute.Frame</code> and
+ * <code>Attribute.Target</code> attributes, so that subsequent stages need not
+ * look anything up by name. Invocations in tail position are additionally
+ * marked with <code>Attribute.TailCall</code>.
+ * </p>
+ * <p>
+ * Parameters always occupy the first slots of a frame, in declaration order.
+ * Every distinct variable name within a method is then given its own slot, in
+ * the order in which it is first declared. This pass assumes the file has
+ * already passed type checking and definite assignment.
+ * </p>
+ */
+public class NameResolution {
+	/**
+	 * The source file being resolved.
+	 */
+	private WhileFile file;
+
+	/**
+	 * Maps the name of each declared method to its declaration.
+	 */
+	private HashMap<String, WhileFile.MethodDecl> methods;
+
+	/**
+	 * Maps the name of each declared type to its declaration.
+	 */
+	private HashMap<String, WhileFile.TypeDecl> types;
+
+	/**
+	 * Maps each variable name in the current method to its allocated slot.
+	 */
+	private HashMap<String, Integer> slots;
+
+	/**
+	 * Resolve a given source file.
+	 *
+	 * @param wf
+	 *            The source file to be resolved.
+	 */
+	public void resolve(WhileFile wf) {
+		this.file = wf;
+		this.methods = new HashMap<String, WhileFile.MethodDecl>();
+		this.types = new HashMap<String, WhileFile.TypeDecl>();
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) declaration;
+				methods.put(md.name(), md);
+			} else if (declaration instanceof WhileFile.TypeDecl) {
+				types.put(declaration.name(), (WhileFile.TypeDecl) declaration);
+			}
+		}
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				resolve((WhileFile.MethodDecl) declaration);
+			}
+		}
+	}
+
+	public void resolve(WhileFile.MethodDecl fd) {
+		this.slots = new HashMap<String, Integer>();
+		// First, allocate the parameters so they occupy the initial slots
+		for (WhileFile.Parameter p : fd.getParameters()) {
+			p.attributes().add(new Attribute.Slot(declare(p.getName())));
+		}
+		// Second, allocate all locals declared within the method body
+		resolve(fd.getBody());
+		// Finally, record how large a frame this method requires
+		fd.attributes().add(new Attribute.Frame(slots.size()));
+	}
+
+	public void resolve(List<Stmt> statements) {
+		for (Stmt s : statements) {
+			resolve(s);
+		}
+	}
+
+	public void resolve(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			resolve(((Stmt.Assert) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Assign) {
+			resolve((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return r = (Stmt.Return) stmt;
+			if (r.getExpr() != null) {
+				resolve(r.getExpr());
+				if (r.getExpr() instanceof Expr.Invoke) {
+					resolveTailCall((Expr.Invoke) r.getExpr());
+				}
+			}
+		} else if (stmt instanceof Stmt.Break) {
+			// nothing to do
+		} else if (stmt instanceof Stmt.Continue) {
+			// nothing to do
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			resolve((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			resolve((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			resolve((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			resolve((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			resolve((Stmt.Switch) stmt);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	public void resolve(Stmt.Assign stmt) {
+		resolve(stmt.getRhs());
+		resolve(stmt.getLhs());
+	}
+
+	public void resolve(Stmt.VariableDeclaration stmt) {
+		// The initialiser is resolved first, although it cannot refer to the
+		// variable being declared.
+		if (stmt.getExpr() != null) {
+			resolve(stmt.getExpr());
+		}
+		stmt.attributes().add(new Attribute.Slot(declare(stmt.getName())));
+	}
+
+	public void resolve(Stmt.IfElse stmt) {
+		resolve(stmt.getCondition());
+		resolve(stmt.getTrueBranch());
+		resolve(stmt.getFalseBranch());
+	}
+
+	public void resolve(Stmt.For stmt) {
+		resolve(stmt.getDeclaration());
+		resolve(stmt.getCondition());
+		resolve(stmt.getIncrement());
+		resolve(stmt.getBody());
+	}
+
+	public void resolve(Stmt.While stmt) {
+		resolve(stmt.getCondition());
+		resolve(stmt.getBody());
+	}
+
+	public void resolve(Stmt.Switch stmt) {
+		resolve(stmt.getExpr());
+		for (Stmt.Case c : stmt.getCases()) {
+			resolve(c.getBody());
+		}
+	}
+
+	public void resolve(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs());
+			resolve(e.getRhs());
+		} else if (expr instanceof Expr.Literal) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource());
+			resolve(e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			resolve(e.getValue());
+			resolve(e.getSize());
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr arg : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				resolve(arg);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> field : ((Expr.RecordConstructor) expr).getFields()) {
+				resolve(field.second());
+			}
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.Variable) {
+			resolve((Expr.Variable) expr);
+		} else if (expr instanceof Expr.Cast) {
+			resolve(((Expr.Cast) expr).getExpr());
+		} else if (expr instanceof Expr.Is) {
+			resolve(((Expr.Is) expr).getExpr());
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	public void resolve(Expr.Invoke expr) {
+		for (Expr arg : expr.getArguments()) {
+			resolve(arg);
+		}
+		WhileFile.MethodDecl target = methods.get(expr.getName());
+		if (target == null) {
+			internalFailure("unknown method encountered (" + expr.getName() + ")", file.filename, expr);
+		}
+		expr.attributes().add(new Attribute.Target(target));
+	}
+
+	/**
+	 * Mark an invocation being returned as a tail call, provided the method it
+	 * invokes cannot return <code>null</code>.
+	 *
+	 * @param expr
+	 */
+	public void resolveTailCall(Expr.Invoke expr) {
+		WhileFile.MethodDecl target = expr.attribute(Attribute.Target.class).method;
+		if (!canBeNull(target.getRet())) {
+			expr.attributes().add(new Attribute.TailCall());
+		}
+	}
+
+	public void resolve(Expr.Variable expr) {
+		Integer slot = slots.get(expr.getName());
+		if (slot == null) {
+			// Definite assignment should already have ruled this out
+			internalFailure("unknown variable encountered (" + expr.getName() + ")", file.filename, expr);
+		}
+		expr.attributes().add(new Attribute.Slot(slot));
+	}
+
+	/**
+	 * Determine whether a given type may include <code>null</code>.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private boolean canBeNull(Type type) {
+		if (type instanceof Type.Null) {
+			return true;
+		} else if (type instanceof Type.Named) {
+			WhileFile.TypeDecl decl = types.get(((Type.Named) type).getName());
+			return decl == null || canBeNull(decl.getType());
+		} else if (type instanceof Type.Union) {
+			for (Type t : ((Type.Union) type).getType_list()) {
+				if (canBeNull(t)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Allocate a slot for a given variable name, or return the existing slot if
+	 * that name has already been declared in the current method. Reusing the
+	 * slot in this way matches the original name-keyed frames, where distinct
+	 * declarations of the same name (e.g. in sibling loop bodies) shared an
+	 * entry.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private int declare(String name) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return slot;
+	}
+}
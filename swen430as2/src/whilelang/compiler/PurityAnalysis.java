@@ -0,0 +1,220 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for determining which methods are pure. A method is pure if
+ * neither it, nor any method it (transitively) invokes, contains a
+ * <code>print</code> statement. Since While has value semantics, a method
+ * cannot otherwise affect its caller, and so the result of a pure method
+ * depends only on its arguments. Pure methods are marked with an
+ * <code>Attribute.Pure</code> attribute.
+ * </p>
+ * <p>
+ * This pass must run after name resolution, since it relies on the
+ * <code>Attribute.Target</code> of every invocation.
+ * </p>
+ */
+public class PurityAnalysis {
+	private WhileFile file;
+
+	/**
+	 * Maps each method to the methods it directly invokes, or to
+	 * <code>null</code> if it directly contains a print statement.
+	 */
+	private IdentityHashMap<WhileFile.MethodDecl, List<WhileFile.MethodDecl>> callees;
+
+	public void check(WhileFile wf) {
+		this.file = wf;
+		this.callees = new IdentityHashMap<WhileFile.MethodDecl, List<WhileFile.MethodDecl>>();
+
+		// First, determine the direct effects of every method
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) declaration;
+				ArrayList<WhileFile.MethodDecl> calls = new ArrayList<WhileFile.MethodDecl>();
+				callees.put(md, check(md.getBody(), calls) ? calls : null);
+			}
+		}
+
+		// Second, propagate impurity from callees to callers until nothing
+		// changes. Methods are assumed pure until shown otherwise.
+		HashSet<WhileFile.MethodDecl> impure = new HashSet<WhileFile.MethodDecl>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (WhileFile.MethodDecl md : callees.keySet()) {
+				if (!impure.contains(md) && !isPure(md, impure)) {
+					impure.add(md);
+					changed = true;
+				}
+			}
+		}
+
+		// Finally, mark the pure methods
+		for (WhileFile.MethodDecl md : callees.keySet()) {
+			if (!impure.contains(md)) {
+				md.attributes().add(new Attribute.Pure());
+			}
+		}
+	}
+
+	private boolean isPure(WhileFile.MethodDecl md, HashSet<WhileFile.MethodDecl> impure) {
+		List<WhileFile.MethodDecl> calls = callees.get(md);
+		if (calls == null) {
+			return false;
+		}
+		for (WhileFile.MethodDecl callee : calls) {
+			if (impure.contains(callee)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check a list of statements, accumulating the methods they invoke. This
+	 * returns false if any of the statements is a print statement.
+	 *
+	 * @param statements
+	 * @param calls
+	 * @return
+	 */
+	private boolean check(List<Stmt> statements, List<WhileFile.MethodDecl> calls) {
+		for (Stmt s : statements) {
+			if (!check(s, calls)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean check(Stmt stmt, List<WhileFile.MethodDecl> calls) {
+		if (stmt instanceof Stmt.Print) {
+			return false;
+		} else if (stmt instanceof Stmt.Assert) {
+			check(((Stmt.Assert) stmt).getExpr(), calls);
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			check(s.getLhs(), calls);
+			check(s.getRhs(), calls);
+		} else if (stmt instanceof Stmt.Return) {
+			Stmt.Return s = (Stmt.Return) stmt;
+			if (s.getExpr() != null) {
+				check(s.getExpr(), calls);
+			}
+		} else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			// nothing to do
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			if (s.getExpr() != null) {
+				check(s.getExpr(), calls);
+			}
+		} else if (stmt instanceof Expr.Invoke) {
+			check((Expr) stmt, calls);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			check(s.getCondition(), calls);
+			return check(s.getTrueBranch(), calls) && check(s.getFalseBranch(), calls);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			check(s.getCondition(), calls);
+			return check(s.getDeclaration(), calls) && check(s.getIncrement(), calls)
+					&& check(s.getBody(), calls);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			check(s.getCondition(), calls);
+			return check(s.getBody(), calls);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			check(s.getExpr(), calls);
+			for (Stmt.Case c : s.getCases()) {
+				if (!check(c.getBody(), calls)) {
+					return false;
+				}
+			}
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+		return true;
+	}
+
+	/**
+	 * Accumulate the methods invoked by a given expression. Expressions cannot
+	 * contain print statements.
+	 *
+	 * @param expr
+	 * @param calls
+	 */
+	private void check(Expr expr, List<WhileFile.MethodDecl> calls) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			check(e.getLhs(), calls);
+			check(e.getRhs(), calls);
+		} else if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+			// nothing to do
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			check(e.getSource(), calls);
+			check(e.getIndex(), calls);
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			for (Expr arg : e.getArguments()) {
+				check(arg, calls);
+			}
+			calls.add(e.attribute(Attribute.Target.class).method);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			check(e.getValue(), calls);
+			check(e.getSize(), calls);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr arg : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				check(arg, calls);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			check(((Expr.RecordAccess) expr).getSource(), calls);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> field : ((Expr.RecordConstructor) expr).getFields()) {
+				check(field.second(), calls);
+			}
+		} else if (expr instanceof Expr.Unary) {
+			check(((Expr.Unary) expr).getExpr(), calls);
+		} else if (expr instanceof Expr.Cast) {
+			check(((Expr.Cast) expr).getExpr(), calls);
+		} else if (expr instanceof Expr.Is) {
+			check(((Expr.Is) expr).getExpr(), calls);
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+}
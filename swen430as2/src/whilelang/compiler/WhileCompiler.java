@@ -49,6 +49,10 @@ public class WhileCompiler {
 		new UnreachableCode().check(ast);
 		// Fourth, definite assignment
 		new DefiniteAssignment().check(ast);
+		// Fifth, name resolution
+		new NameResolution().resolve(ast);
+		// Sixth, purity analysis
+		new PurityAnalysis().check(ast);
 		
 		// Done
 		return ast;
@@ -0,0 +1,463 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The runtime representation of a While array. Arrays have value semantics,
+ * meaning that assigning an array to a variable (or passing it as an argument)
+ * must behave as though the whole array were copied. Rather than copying
+ * eagerly, an array may share its underlying storage with others, and a
+ * physical copy is made only when an array whose storage is shared is first
+ * updated. Hence, <code>copy()</code> is a constant time operation.
+ * </p>
+ * <p>
+ * Arrays nested within an array are copied lazily in the same manner. To
+ * update a nested array in place, it must be obtained through
+ * <code>getMutable()</code>, which ensures the enclosing array has storage of
+ * its own.
+ * </p>
+ * <p>
+ * Arrays whose elements are all integers, booleans or characters are held
+ * unboxed in an <code>int[]</code>, <code>boolean[]</code> or
+ * <code>char[]</code> respectively. Storing any other kind of element into
+ * such an array converts its storage into a general <code>Object[]</code>.
+ * Elements are always boxed when read through <code>get()</code>, hence the
+ * choice of storage is not observable.
+ * </p>
+ */
+public final class ArrayValue {
+	private static final int OBJECTS = 0;
+	private static final int INTS = 1;
+	private static final int BOOLS = 2;
+	private static final int CHARS = 3;
+
+	/**
+	 * Identifies which of the following arrays holds the elements. All others
+	 * are <code>null</code>.
+	 */
+	private int kind;
+	private Object[] objects;
+	private int[] ints;
+	private boolean[] bools;
+	private char[] chars;
+
+	/**
+	 * Indicates whether the storage of this array may be shared with another
+	 * array, or contains compound values which may be shared with another
+	 * value. Once set, this is only cleared by making a physical copy.
+	 */
+	private boolean shared;
+
+	/**
+	 * The last matcher which this array was found to satisfy, or
+	 * <code>null</code>. This is cleared whenever the array may be updated.
+	 */
+	private TypeMatcher matched;
+
+	/**
+	 * Construct an array from a given set of elements. The elements array is
+	 * not copied, and must not be modified by the caller afterwards.
+	 *
+	 * @param elements
+	 */
+	public ArrayValue(Object[] elements) {
+		this.kind = OBJECTS;
+		this.objects = elements;
+		this.shared = containsCompound(elements);
+	}
+
+	/**
+	 * Construct an array of integers. The elements array is not copied, and
+	 * must not be modified by the caller afterwards.
+	 *
+	 * @param elements
+	 */
+	public ArrayValue(int[] elements) {
+		this.kind = INTS;
+		this.ints = elements;
+	}
+
+	/**
+	 * Construct an array of booleans. The elements array is not copied, and
+	 * must not be modified by the caller afterwards.
+	 *
+	 * @param elements
+	 */
+	public ArrayValue(boolean[] elements) {
+		this.kind = BOOLS;
+		this.bools = elements;
+	}
+
+	/**
+	 * Construct an array of characters. The elements array is not copied, and
+	 * must not be modified by the caller afterwards.
+	 *
+	 * @param elements
+	 */
+	public ArrayValue(char[] elements) {
+		this.kind = CHARS;
+		this.chars = elements;
+	}
+
+	private ArrayValue(ArrayValue a) {
+		this.kind = a.kind;
+		this.objects = a.objects;
+		this.ints = a.ints;
+		this.bools = a.bools;
+		this.chars = a.chars;
+		this.shared = true;
+		this.matched = a.matched;
+	}
+
+	/**
+	 * Construct an array from a given set of elements, using unboxed storage if
+	 * every element has the same primitive type. This is intended for arrays
+	 * whose static element type is primitive. The elements array is not copied,
+	 * and must not be modified by the caller afterwards.
+	 *
+	 * @param elements
+	 * @return
+	 */
+	public static ArrayValue pack(Object[] elements) {
+		if (elements.length == 0) {
+			return new ArrayValue(new int[0]);
+		}
+		Object first = elements[0];
+		if (first instanceof Integer) {
+			int[] ints = new int[elements.length];
+			for (int i = 0; i != ints.length; ++i) {
+				if (!(elements[i] instanceof Integer)) {
+					return new ArrayValue(elements);
+				}
+				ints[i] = (Integer) elements[i];
+			}
+			return new ArrayValue(ints);
+		} else if (first instanceof Boolean) {
+			boolean[] bools = new boolean[elements.length];
+			for (int i = 0; i != bools.length; ++i) {
+				if (!(elements[i] instanceof Boolean)) {
+					return new ArrayValue(elements);
+				}
+				bools[i] = (Boolean) elements[i];
+			}
+			return new ArrayValue(bools);
+		} else if (first instanceof Character) {
+			char[] chars = new char[elements.length];
+			for (int i = 0; i != chars.length; ++i) {
+				if (!(elements[i] instanceof Character)) {
+					return new ArrayValue(elements);
+				}
+				chars[i] = (Character) elements[i];
+			}
+			return new ArrayValue(chars);
+		}
+		return new ArrayValue(elements);
+	}
+
+	/**
+	 * Construct an array consisting of a given number of copies of the same
+	 * value. Primitive values are held unboxed.
+	 *
+	 * @param value
+	 * @param size
+	 * @return
+	 */
+	public static ArrayValue generate(Object value, int size) {
+		size = Math.max(size, 0);
+		if (value instanceof Integer) {
+			int[] ints = new int[size];
+			Arrays.fill(ints, (Integer) value);
+			return new ArrayValue(ints);
+		} else if (value instanceof Boolean) {
+			boolean[] bools = new boolean[size];
+			Arrays.fill(bools, (Boolean) value);
+			return new ArrayValue(bools);
+		} else if (value instanceof Character) {
+			char[] chars = new char[size];
+			Arrays.fill(chars, (Character) value);
+			return new ArrayValue(chars);
+		}
+		Object[] objects = new Object[size];
+		Arrays.fill(objects, value);
+		return new ArrayValue(objects);
+	}
+
+	public int size() {
+		switch (kind) {
+		case INTS:
+			return ints.length;
+		case BOOLS:
+			return bools.length;
+		case CHARS:
+			return chars.length;
+		default:
+			return objects.length;
+		}
+	}
+
+	public Object get(int index) {
+		switch (kind) {
+		case INTS:
+			return ints[index];
+		case BOOLS:
+			return bools[index];
+		case CHARS:
+			return chars[index];
+		default:
+			return objects[index];
+		}
+	}
+
+	/**
+	 * Get an element of this array which is expected to be an integer, without
+	 * boxing it when possible.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int getInt(int index) {
+		if (kind == INTS) {
+			return ints[index];
+		}
+		return (Integer) get(index);
+	}
+
+	/**
+	 * Get the class of every element of this array, if this is known from its
+	 * storage without visiting the elements. Otherwise, returns
+	 * <code>null</code>.
+	 *
+	 * @return
+	 */
+	public Class<?> elementClass() {
+		switch (kind) {
+		case INTS:
+			return Integer.class;
+		case BOOLS:
+			return Boolean.class;
+		case CHARS:
+			return Character.class;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get the last matcher which this array was found to satisfy, or
+	 * <code>null</code> if it has been updated since.
+	 *
+	 * @return
+	 */
+	TypeMatcher matched() {
+		return matched;
+	}
+
+	void setMatched(TypeMatcher matcher) {
+		this.matched = matcher;
+	}
+
+	/**
+	 * Update an element of this array, first copying its storage if this is
+	 * shared.
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void set(int index, Object value) {
+		ensureUnique();
+		matched = null;
+		if (kind == INTS && value instanceof Integer) {
+			ints[index] = (Integer) value;
+		} else if (kind == BOOLS && value instanceof Boolean) {
+			bools[index] = (Boolean) value;
+		} else if (kind == CHARS && value instanceof Character) {
+			chars[index] = (Character) value;
+		} else {
+			if (kind != OBJECTS) {
+				// Bounds check before giving up the unboxed storage
+				get(index);
+				generalise();
+			}
+			objects[index] = value;
+		}
+	}
+
+	/**
+	 * Get an element of this array, such that it can be safely updated in
+	 * place without affecting any other value.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Object getMutable(int index) {
+		ensureUnique();
+		matched = null;
+		return get(index);
+	}
+
+	/**
+	 * Determine whether this array should be printed as a string, which is the
+	 * case when every element is a printable character code.
+	 *
+	 * @return
+	 */
+	public boolean isString() {
+		switch (kind) {
+		case INTS:
+			for (int c : ints) {
+				if (c <= 31 || c >= 127) {
+					return false;
+				}
+			}
+			return true;
+		case OBJECTS:
+			for (Object x : objects) {
+				if (!(x instanceof Integer && (Integer) x > 31 && (Integer) x < 127)) {
+					return false;
+				}
+			}
+			return true;
+		default:
+			return size() == 0;
+		}
+	}
+
+	/**
+	 * Return a copy of this array in constant time, by sharing its storage.
+	 *
+	 * @return
+	 */
+	public ArrayValue copy() {
+		this.shared = true;
+		return new ArrayValue(this);
+	}
+
+	private void ensureUnique() {
+		if (shared) {
+			switch (kind) {
+			case INTS:
+				ints = ints.clone();
+				break;
+			case BOOLS:
+				bools = bools.clone();
+				break;
+			case CHARS:
+				chars = chars.clone();
+				break;
+			default:
+				Object[] nobjects = new Object[objects.length];
+				for (int i = 0; i != nobjects.length; ++i) {
+					nobjects[i] = Interpreter.copy(objects[i]);
+				}
+				objects = nobjects;
+			}
+			shared = false;
+		}
+	}
+
+	/**
+	 * Convert the storage of this array into a general array of objects. This
+	 * array must already have storage of its own.
+	 */
+	private void generalise() {
+		Object[] nobjects = new Object[size()];
+		for (int i = 0; i != nobjects.length; ++i) {
+			nobjects[i] = get(i);
+		}
+		kind = OBJECTS;
+		objects = nobjects;
+		ints = null;
+		bools = null;
+		chars = null;
+	}
+
+	private static boolean containsCompound(Object[] elements) {
+		for (Object e : elements) {
+			if (e instanceof ArrayValue || e instanceof RecordValue) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ArrayValue)) {
+			return false;
+		}
+		ArrayValue a = (ArrayValue) o;
+		if (kind == a.kind) {
+			switch (kind) {
+			case INTS:
+				return Arrays.equals(ints, a.ints);
+			case BOOLS:
+				return Arrays.equals(bools, a.bools);
+			case CHARS:
+				return Arrays.equals(chars, a.chars);
+			default:
+				return Arrays.equals(objects, a.objects);
+			}
+		}
+		// Different storage, so compare the boxed elements
+		int n = size();
+		if (n != a.size()) {
+			return false;
+		}
+		for (int i = 0; i != n; ++i) {
+			Object l = get(i);
+			Object r = a.get(i);
+			if (l == null ? r != null : !l.equals(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		// NOTE: these agree with one another for equal elements
+		switch (kind) {
+		case INTS:
+			return Arrays.hashCode(ints);
+		case BOOLS:
+			return Arrays.hashCode(bools);
+		case CHARS:
+			return Arrays.hashCode(chars);
+		default:
+			return Arrays.hashCode(objects);
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case INTS:
+			return Arrays.toString(ints);
+		case BOOLS:
+			return Arrays.toString(bools);
+		case CHARS:
+			return Arrays.toString(chars);
+		default:
+			return Arrays.toString(objects);
+		}
+	}
+}
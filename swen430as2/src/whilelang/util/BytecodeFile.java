@@ -0,0 +1,252 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+/**
+ * <p>
+ * Represents a While source file which has been lowered into register-based
+ * bytecode, ready to be executed by the <code>VirtualMachine</code>. Each
+ * function consists of a flat <code>int[]</code> array of instructions which
+ * operate over a fixed number of registers. Constants which cannot be encoded
+ * directly as operands are held in a constant pool shared by every function in
+ * the file.
+ * </p>
+ * <p>
+ * Every instruction occupies one word for its opcode, followed by a fixed
+ * number of operand words. Unless otherwise stated, operands identify
+ * registers. The first registers of every function hold its local variables
+ * (starting with its parameters), and the remainder are used for temporary
+ * values. Branch targets are absolute offsets into the code array of the
+ * enclosing function.
+ * </p>
+ */
+public class BytecodeFile {
+
+	// =========================================================================
+	// Opcodes
+	// =========================================================================
+
+	/** <code>CONST d k</code>: load constant <code>k</code> into register <code>d</code>. */
+	public static final int CONST = 0;
+	/** <code>MOVE d s</code>: copy register <code>s</code> into register <code>d</code>. */
+	public static final int MOVE = 1;
+	/** <code>CLONE d s</code>: copy the value in register <code>s</code> into register <code>d</code>, preserving value semantics. */
+	public static final int CLONE = 2;
+	/** <code>IADD d a b</code>: integer addition. */
+	public static final int IADD = 3;
+	/** <code>ISUB d a b</code>: integer subtraction. */
+	public static final int ISUB = 4;
+	/** <code>IMUL d a b</code>: integer multiplication. */
+	public static final int IMUL = 5;
+	/** <code>IDIV d a b</code>: integer division. */
+	public static final int IDIV = 6;
+	/** <code>IREM d a b</code>: integer remainder. */
+	public static final int IREM = 7;
+	/** <code>IADDI d a i</code>: integer addition of the immediate value <code>i</code>. */
+	public static final int IADDI = 8;
+	/** <code>INEG d a</code>: integer negation. */
+	public static final int INEG = 9;
+	/** <code>ILT d a b</code>: integer less-than. */
+	public static final int ILT = 10;
+	/** <code>ILE d a b</code>: integer less-than-or-equal. */
+	public static final int ILE = 11;
+	/** <code>IGT d a b</code>: integer greater-than. */
+	public static final int IGT = 12;
+	/** <code>IGE d a b</code>: integer greater-than-or-equal. */
+	public static final int IGE = 13;
+	/** <code>EQ d a b</code>: equality between arbitrary values. */
+	public static final int EQ = 14;
+	/** <code>NE d a b</code>: inequality between arbitrary values. */
+	public static final int NE = 15;
+	/** <code>NOT d a</code>: logical not. */
+	public static final int NOT = 16;
+	/** <code>IS d a k</code>: test register <code>a</code> against the type matcher held in constant <code>k</code>. */
+	public static final int IS = 17;
+	/** <code>CAST d a k</code>: cast register <code>a</code> to the type matched by constant <code>k</code>. */
+	public static final int CAST = 18;
+	/** <code>LENGTH d a</code>: array length. */
+	public static final int LENGTH = 19;
+	/** <code>INDEX d a i</code>: array element load. */
+	public static final int INDEX = 20;
+	/** <code>SETINDEX a i s</code>: array element store. */
+	public static final int SETINDEX = 21;
+	/** <code>FIELD d a k</code>: load the field identified by the <code>RecordValue.Accessor</code> in constant <code>k</code>. */
+	public static final int FIELD = 22;
+	/** <code>SETFIELD a k s</code>: store the field identified by the <code>RecordValue.Accessor</code> in constant <code>k</code>. */
+	public static final int SETFIELD = 23;
+	/** <code>NEWARRAY d n f</code>: construct an array from registers <code>f</code> .. <code>f+n-1</code>. */
+	public static final int NEWARRAY = 24;
+	/** <code>GENARRAY d v n</code>: construct an array of <code>n</code> copies of register <code>v</code>. */
+	public static final int GENARRAY = 25;
+	/** <code>NEWRECORD d k f</code>: construct a record from the <code>RecordValue.Template</code> in constant <code>k</code> and consecutive registers starting at <code>f</code>. */
+	public static final int NEWRECORD = 26;
+	/** <code>STRING d k</code>: construct a fresh array from the string held in constant <code>k</code>. */
+	public static final int STRING = 27;
+	/** <code>CALL d m n f</code>: invoke function <code>m</code> with arguments in registers <code>f</code> .. <code>f+n-1</code>. */
+	public static final int CALL = 28;
+	/** <code>RETURN a</code>: return register <code>a</code> from the function. */
+	public static final int RETURN = 29;
+	/** <code>RETURNV</code>: return from a function without a value. */
+	public static final int RETURNV = 30;
+	/** <code>RETURNNZ a</code>: return register <code>a</code> if it is not <code>null</code>. */
+	public static final int RETURNNZ = 31;
+	/** <code>GOTO t</code>: unconditional branch. */
+	public static final int GOTO = 32;
+	/** <code>IFTRUE a t</code>: branch if register <code>a</code> holds <code>true</code>. */
+	public static final int IFTRUE = 33;
+	/** <code>IFFALSE a t</code>: branch if register <code>a</code> holds <code>false</code>. */
+	public static final int IFFALSE = 34;
+	/** <code>IFILT a b t</code>: branch if <code>a &lt; b</code>. */
+	public static final int IFILT = 35;
+	/** <code>IFILE a b t</code>: branch if <code>a &lt;= b</code>. */
+	public static final int IFILE = 36;
+	/** <code>IFIGT a b t</code>: branch if <code>a &gt; b</code>. */
+	public static final int IFIGT = 37;
+	/** <code>IFIGE a b t</code>: branch if <code>a &gt;= b</code>. */
+	public static final int IFIGE = 38;
+	/** <code>IFEQ a b t</code>: branch if <code>a == b</code>. */
+	public static final int IFEQ = 39;
+	/** <code>IFNE a b t</code>: branch if <code>a != b</code>. */
+	public static final int IFNE = 40;
+	/** <code>SWITCH a k</code>: skip to the <code>GOTO</code> chosen for register <code>a</code> by the <code>SwitchTable</code> in constant <code>k</code>, from those which follow. */
+	public static final int SWITCH = 41;
+	/** <code>PRINT a</code>: print register <code>a</code>. */
+	public static final int PRINT = 42;
+	/** <code>ASSERT a</code>: fail unless register <code>a</code> holds <code>true</code>. */
+	public static final int ASSERT = 43;
+	/** <code>INDEXREF d a i</code>: array element load, for an element which is about to be updated in place. */
+	public static final int INDEXREF = 44;
+	/** <code>FIELDREF d a k</code>: as for <code>FIELD</code>, but for a field which is about to be updated in place. */
+	public static final int FIELDREF = 45;
+	/** <code>PACK d n f</code>: as for <code>NEWARRAY</code>, but for an array whose static element type is primitive. */
+	public static final int PACK = 46;
+	/** <code>TAILCALL m n f</code>: return the result of invoking function <code>m</code> with arguments in registers <code>f</code> .. <code>f+n-1</code>, reusing the current activation. */
+	public static final int TAILCALL = 47;
+
+	/**
+	 * The number of operand words following each opcode, indexed by opcode.
+	 */
+	public static final int[] OPERANDS = {
+			2, 2, 2, 3, 3, 3, 3, 3, 3, 2, // CONST .. INEG
+			3, 3, 3, 3, 3, 3, 2, 3, 3, 2, // ILT .. LENGTH
+			3, 3, 3, 3, 3, 3, 3, 2, 4, 1, // INDEX .. RETURN
+			0, 1, 1, 2, 2, 3, 3, 3, 3, 3, // RETURNV .. IFEQ
+			3, 2, 1, 1, 3, 3, 3, 3 // IFNE .. TAILCALL
+	};
+
+	/**
+	 * The mnemonic of each opcode, indexed by opcode.
+	 */
+	public static final String[] MNEMONICS = {
+			"const", "move", "clone", "iadd", "isub", "imul", "idiv", "irem", "iaddi", "ineg",
+			"ilt", "ile", "igt", "ige", "eq", "ne", "not", "is", "cast", "length",
+			"index", "setindex", "field", "setfield", "newarray", "genarray", "newrecord", "string", "call", "return",
+			"returnv", "returnnz", "goto", "iftrue", "iffalse", "ifilt", "ifile", "ifigt", "ifige", "ifeq",
+			"ifne", "switch", "print", "assert", "indexref", "fieldref", "pack", "tailcall"
+	};
+
+	// =========================================================================
+	// Contents
+	// =========================================================================
+
+	/**
+	 * The name of the originating source file.
+	 */
+	public final String filename;
+
+	/**
+	 * The functions making up this file. Call instructions identify their
+	 * target by its index in this array.
+	 */
+	public final Function[] functions;
+
+	/**
+	 * The constant pool shared by all functions in this file.
+	 */
+	public final Object[] constants;
+
+	public BytecodeFile(String filename, Function[] functions, Object[] constants) {
+		this.filename = filename;
+		this.functions = functions;
+		this.constants = constants;
+	}
+
+	/**
+	 * Get the function with a given name, or <code>null</code> if there is no
+	 * such function.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Function function(String name) {
+		for (Function f : functions) {
+			if (f.name.equals(name)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Represents a single function lowered into bytecode.
+	 */
+	public static final class Function {
+		/**
+		 * The name of the function.
+		 */
+		public final String name;
+		/**
+		 * The number of parameters, which occupy the first registers.
+		 */
+		public final int arity;
+		/**
+		 * The total number of registers required.
+		 */
+		public final int registers;
+		/**
+		 * The instructions making up the function body.
+		 */
+		public final int[] code;
+
+		public Function(String name, int arity, int registers, int[] code) {
+			this.name = name;
+			this.arity = arity;
+			this.registers = registers;
+			this.code = code;
+		}
+
+		/**
+		 * Produce a human-readable listing of this function's instructions,
+		 * which is useful for debugging.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder r = new StringBuilder();
+			r.append(name + "(" + arity + "/" + registers + "):\n");
+			for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+				r.append(String.format("%5d  %-9s", pc, MNEMONICS[code[pc]]));
+				for (int i = 1; i <= OPERANDS[code[pc]]; ++i) {
+					r.append(" " + code[pc + i]);
+				}
+				r.append("\n");
+			}
+			return r.toString();
+		}
+	}
+}
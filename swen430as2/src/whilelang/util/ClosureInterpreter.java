@@ -0,0 +1,1332 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * An alternative execution engine for WhileLang programs which, rather than
+ * walking the Abstract Syntax Tree directly, first compiles every method into
+ * a tree of executable nodes. Each node knows exactly which operation it
+ * performs, and has its children and invocation targets linked in advance.
+ * Thus, no <code>instanceof</code> dispatch or name lookup is required at run
+ * time.
+ * </p>
+ * <p>
+ * Nodes are specialised using the type information attached by the type
+ * checker. For example, an integer addition is compiled to a node which
+ * operates directly on <code>int</code> values. Where the static type is not
+ * precise enough, nodes specialise themselves on the values they observe
+ * (e.g. equality). The observable behaviour is identical to that of
+ * <code>Interpreter</code>.
+ * </p>
+ */
+public class ClosureInterpreter {
+	/**
+	 * The program being executed, or <code>null</code> if this interpreter is
+	 * not bound to any program. Each run of a program compiles it afresh into
+	 * an interpreter of its own, so the same program can be run many times at
+	 * once.
+	 */
+	private final Program program;
+	private final WhileFile file;
+	private final IdentityHashMap<WhileFile.MethodDecl, Function> functions;
+
+	/**
+	 * Caches the results of pure methods, or <code>null</code> if results
+	 * should not be cached.
+	 */
+	private final Memoizer memoizer;
+
+	/**
+	 * Records where execution spends its time, or <code>null</code> if
+	 * execution is not being profiled.
+	 */
+	private final Profiler profiler;
+
+	/**
+	 * The stream to which print statements write.
+	 */
+	private final PrintStream out;
+
+	public ClosureInterpreter() {
+		this(null, null, System.out);
+	}
+
+	public ClosureInterpreter(Memoizer memoizer) {
+		this(memoizer, null);
+	}
+
+	public ClosureInterpreter(Memoizer memoizer, Profiler profiler) {
+		this(memoizer, profiler, System.out);
+	}
+
+	public ClosureInterpreter(Memoizer memoizer, Profiler profiler, PrintStream out) {
+		this.program = null;
+		this.file = null;
+		this.functions = null;
+		this.memoizer = memoizer;
+		this.profiler = profiler;
+		this.out = out;
+	}
+
+	private ClosureInterpreter(Program program, ClosureInterpreter config) {
+		this.program = program;
+		this.file = program.file;
+		this.memoizer = config.memoizer;
+		this.profiler = config.profiler;
+		this.out = config.out;
+
+		// Compile every method. All functions are created before any body is
+		// compiled, so that invocations can be linked directly to their
+		// targets (including recursive ones).
+		this.functions = new IdentityHashMap<WhileFile.MethodDecl, Function>();
+		for (WhileFile.Decl decl : file.declarations) {
+			if (decl instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) decl;
+				boolean pure = md.attribute(Attribute.Pure.class) != null;
+				functions.put(md, new Function(md, pure ? memoizer : null, profiler));
+			}
+		}
+		for (Function f : functions.values()) {
+			f.body = compile(f.declaration.getBody());
+		}
+	}
+
+	public void run(WhileFile wf) {
+		run(Program.link(wf));
+	}
+
+	public void run(Program program) {
+		// Pick the main method (if one exits) and execute it
+		WhileFile.MethodDecl main = program.main();
+		if (main != null) {
+			new ClosureInterpreter(program, this).functions.get(main).execute();
+		} else {
+			out.println("Cannot find a main() function");
+		}
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	/**
+	 * Compile a given block of statements into an executable node. When
+	 * profiling, each statement is wrapped in a node which counts its
+	 * executions; otherwise, no counting code is present at all.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private Code compile(List<Stmt> block) {
+		Code[] stmts = new Code[block.size()];
+		for (int i = 0; i != stmts.length; ++i) {
+			stmts[i] = compile(block.get(i));
+			if (profiler != null) {
+				stmts[i] = new Counted(profiler.counter(block.get(i)), stmts[i]);
+			}
+		}
+		return new Block(stmts);
+	}
+
+	/**
+	 * Compile a given statement into an executable node.
+	 *
+	 * @param stmt
+	 *            Statement to compile.
+	 * @return
+	 */
+	private Code compile(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			return new Assert(compile(((Stmt.Assert) stmt).getExpr()));
+		} else if (stmt instanceof Stmt.Print) {
+			return new Print(compile(((Stmt.Print) stmt).getExpr()), out);
+		} else if (stmt instanceof Stmt.Assign) {
+			return compile((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			return new For(compile(s.getDeclaration()), compile(s.getCondition()), compile(s.getIncrement()),
+					compile(s.getBody()));
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return new While(compile(s.getCondition()), compile(s.getBody()));
+		} else if (stmt instanceof Stmt.Switch) {
+			return compile((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			return new Signal(BREAK_CONSTANT);
+		} else if (stmt instanceof Stmt.Continue) {
+			return new Signal(CONTINUE_CONSTANT);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return new IfElse(compile(s.getCondition()), compile(s.getTrueBranch()), compile(s.getFalseBranch()));
+		} else if (stmt instanceof Stmt.Return) {
+			Expr re = ((Stmt.Return) stmt).getExpr();
+			if (re != null && re.attribute(Attribute.TailCall.class) != null) {
+				Expr.Invoke ie = (Expr.Invoke) re;
+				WhileFile.MethodDecl target = ie.attribute(Attribute.Target.class).method;
+				return new TailInvoke(functions.get(target), compileAll(ie.getArguments()));
+			} else if (re != null) {
+				return new Return(compile(re));
+			} else {
+				// used to indicate a function has returned
+				return new Signal(Collections.EMPTY_SET);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			// A declaration without an initialiser stores a marker value
+			// indicating the variable has been declared.
+			Value init = s.getExpr() != null ? compile(s.getExpr()) : new Constant(Collections.EMPTY_SET);
+			return new Store(Interpreter.slotOf(s), init);
+		} else if (stmt instanceof Expr.Invoke) {
+			// NOTE: the result of the invocation is passed back up, exactly as
+			// the tree-walking interpreter does.
+			return new Evaluate(compile((Expr) stmt));
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private Code compile(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		Value rhs = compile(stmt.getRhs());
+		if (lhs instanceof Expr.Variable) {
+			return new Store(Interpreter.slotOf(lhs), rhs);
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			return new StoreField(compileLVal(ra.getSource()), accessor(ra), rhs);
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			return new StoreElement(compileLVal(io.getSource()), compile(io.getIndex()), rhs);
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	/**
+	 * Compile the source of an lval, such that the value it produces can be
+	 * updated in place without affecting any other value.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private Value compileLVal(Expr expr) {
+		if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) expr;
+			return new MutableRecordAccess(compileLVal(ra.getSource()), accessor(ra));
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) expr;
+			return new MutableIndexOf(compileLVal(io.getSource()), compile(io.getIndex()));
+		} else {
+			return compile(expr);
+		}
+	}
+
+	private Code compile(Stmt.Switch stmt) {
+		List<Stmt.Case> cases = stmt.getCases();
+		Code[] bodies = new Code[cases.size()];
+		for (int i = 0; i != bodies.length; ++i) {
+			bodies[i] = compile(cases.get(i).getBody());
+		}
+		return new Switch(compile(stmt.getExpr()), program.switchTable(stmt), bodies);
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	/**
+	 * Compile a given expression into an executable node.
+	 *
+	 * @param expr
+	 *            Expression to compile.
+	 * @return
+	 */
+	private Value compile(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return compile((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Literal) {
+			return compile((Expr.Literal) expr);
+		} else if (expr instanceof Expr.Invoke) {
+			return compile((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new IndexOf(compile(e.getSource()), compile(e.getIndex()));
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			return new ArrayGenerator(compile(e.getValue()), compile(e.getSize()));
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			return new ArrayInitialiser(compileAll(((Expr.ArrayInitialiser) expr).getArguments()),
+					Interpreter.hasPrimitiveElements(expr, program.declarations()));
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new RecordAccess(compile(e.getSource()), accessor(e));
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return compile((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return compile((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			return new Load(Interpreter.slotOf(expr));
+		} else if (expr instanceof Expr.Cast) {
+			Expr.Cast e = (Expr.Cast) expr;
+			return new Cast(program.matcher(e.getCastType()), compile(e.getExpr()));
+		} else if (expr instanceof Expr.Is) {
+			Expr.Is e = (Expr.Is) expr;
+			return new Is(program.matcher(e.getIsType()), compile(e.getExpr()));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	private Value[] compileAll(List<Expr> exprs) {
+		Value[] values = new Value[exprs.size()];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = compile(exprs.get(i));
+		}
+		return values;
+	}
+
+	private Value compile(Expr.Binary expr) {
+		Value lhs = compile(expr.getLhs());
+		Value rhs = compile(expr.getRhs());
+		switch (expr.getOp()) {
+		case AND:
+			return new And(lhs, rhs);
+		case OR:
+			return new Or(lhs, rhs);
+		case EQ:
+			return new Equals(lhs, rhs, false);
+		case NEQ:
+			return new Equals(lhs, rhs, true);
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+			// The type checker guarantees both operands are integers
+			return new IntArithmetic(expr.getOp(), lhs, rhs);
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			return new IntComparison(expr.getOp(), lhs, rhs);
+		}
+		internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	private Value compile(Expr.Literal expr) {
+		Object o = expr.getValue();
+		if (o instanceof Integer) {
+			return new IntConstant((Integer) o);
+		} else if (o instanceof String) {
+			// Strings are represented as arrays of integers, and each
+			// evaluation must produce a fresh array.
+			String s = (String) o;
+			int[] chars = new int[s.length()];
+			for (int i = 0; i != chars.length; ++i) {
+				chars[i] = s.charAt(i);
+			}
+			return new StringConstant(chars);
+		} else {
+			return new Constant(Interpreter.valueOf(o));
+		}
+	}
+
+	private Value compile(Expr.Invoke expr) {
+		WhileFile.MethodDecl target = expr.attribute(Attribute.Target.class).method;
+		return new Invoke(functions.get(target), compileAll(expr.getArguments()));
+	}
+
+	private Value compile(Expr.RecordConstructor expr) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		String[] names = new String[fields.size()];
+		Value[] values = new Value[fields.size()];
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			values[i] = compile(fields.get(i).second());
+		}
+		return new RecordConstructor(new RecordValue.Template(names), values);
+	}
+
+	/**
+	 * Construct an accessor for the field read or written by a given record
+	 * access, which expects records of the shape given by the static type of
+	 * its source.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private RecordValue.Accessor accessor(Expr.RecordAccess expr) {
+		Attribute.Type attr = expr.getSource().attribute(Attribute.Type.class);
+		RecordValue.Shape shape = attr == null ? null : Interpreter.shapeOf(attr.type, program.declarations());
+		return new RecordValue.Accessor(expr.getName(), shape);
+	}
+
+	private Value compile(Expr.Unary expr) {
+		Value operand = compile(expr.getExpr());
+		switch (expr.getOp()) {
+		case NOT:
+			return new Not(operand);
+		case NEG:
+			return new Negate(operand);
+		case LENGTHOF:
+			return new LengthOf(operand);
+		}
+		internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	// =========================================================================
+	// Executable Nodes
+	// =========================================================================
+
+	/**
+	 * A compiled method, which may be invoked directly.
+	 */
+	private static final class Function {
+		private final WhileFile.MethodDecl declaration;
+		private final int arity;
+		private final int frameSize;
+		private final Memoizer memoizer;
+		private final Profiler profiler;
+		private Code body;
+
+		public Function(WhileFile.MethodDecl declaration, Memoizer memoizer, Profiler profiler) {
+			this.declaration = declaration;
+			this.arity = declaration.getParameters().size();
+			this.frameSize = declaration.attribute(Attribute.Frame.class).size;
+			this.memoizer = memoizer;
+			this.profiler = profiler;
+		}
+
+		public Object execute(Object... arguments) {
+			if (memoizer != null) {
+				// Reuse the result of a previous invocation with equal
+				// arguments
+				Memoizer.Key key = memoizer.key(this, arguments);
+				Object r = memoizer.get(key);
+				if (r == Memoizer.MISS) {
+					r = invoke(arguments);
+					memoizer.put(key, r);
+				}
+				return r;
+			}
+			return invoke(arguments);
+		}
+
+		private Object invoke(Object[] arguments) {
+			// First, sanity check the number of arguments
+			if (arity != arguments.length) {
+				throw new RuntimeException("invalid number of arguments supplied to execution of function \""
+						+ declaration.getName() + "\"");
+			}
+			if (profiler != null) {
+				profiler.enter(declaration.getName());
+				try {
+					return executeBody(arguments);
+				} finally {
+					profiler.exit();
+				}
+			}
+			return executeBody(arguments);
+		}
+
+		private Object executeBody(Object[] arguments) {
+			// Second, construct the stack frame in which this function will
+			// execute. Parameters always occupy the first slots of the frame.
+			Object[] frame = new Object[frameSize];
+			System.arraycopy(arguments, 0, frame, 0, arguments.length);
+			// Third, execute the function body! A tail call replaces this
+			// function's frame with that of its target, rather than growing
+			// the stack.
+			Function function = this;
+			while (true) {
+				Object r = function.body.execute(frame);
+				if (!(r instanceof TailCall)) {
+					return r;
+				}
+				TailCall call = (TailCall) r;
+				function = call.target;
+				if (function.profiler != null) {
+					function.profiler.exit();
+					function.profiler.enter(function.declaration.getName());
+				}
+				frame = new Object[function.frameSize];
+				System.arraycopy(call.arguments, 0, frame, 0, call.arguments.length);
+			}
+		}
+	}
+
+	/**
+	 * Signals that the enclosing function should be replaced by an invocation
+	 * of another, as the result of executing a tail call.
+	 */
+	private static final class TailCall {
+		private final Function target;
+		private final Object[] arguments;
+
+		public TailCall(Function target, Object[] arguments) {
+			this.target = target;
+			this.arguments = arguments;
+		}
+	}
+
+	/**
+	 * A compiled statement. Executing a statement returns <code>null</code> if
+	 * control should continue with the next statement; otherwise, it returns
+	 * either a break or continue signal, or the value being returned from the
+	 * enclosing method.
+	 */
+	private static abstract class Code {
+		public abstract Object execute(Object[] frame);
+	}
+
+	/**
+	 * A compiled expression. Nodes which produce primitive values override the
+	 * corresponding specialised method, allowing their parents to avoid boxing
+	 * altogether.
+	 */
+	private static abstract class Value {
+		public abstract Object evaluate(Object[] frame);
+
+		public int evaluateInt(Object[] frame) {
+			return (Integer) evaluate(frame);
+		}
+
+		public boolean evaluateBool(Object[] frame) {
+			return (Boolean) evaluate(frame);
+		}
+	}
+
+	private static final class Block extends Code {
+		private final Code[] stmts;
+
+		public Block(Code[] stmts) {
+			this.stmts = stmts;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			for (int i = 0; i != stmts.length; ++i) {
+				Object r = stmts[i].execute(frame);
+				if (r != null) {
+					return r;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Counts the executions of a statement, when profiling.
+	 */
+	private static final class Counted extends Code {
+		private final Profiler.Counter counter;
+		private final Code stmt;
+
+		public Counted(Profiler.Counter counter, Code stmt) {
+			this.counter = counter;
+			this.stmt = stmt;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			counter.count++;
+			return stmt.execute(frame);
+		}
+	}
+
+	private static final class Assert extends Code {
+		private final Value condition;
+
+		public Assert(Value condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			if (!condition.evaluateBool(frame)) {
+				throw new RuntimeException("assertion failure");
+			}
+			return null;
+		}
+	}
+
+	private static final class Print extends Code {
+		private final Value operand;
+		private final PrintStream out;
+
+		public Print(Value operand, PrintStream out) {
+			this.operand = operand;
+			this.out = out;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			out.println(Interpreter.toString(operand.evaluate(frame)));
+			return null;
+		}
+	}
+
+	/**
+	 * Assigns a variable. A copy is performed here to ensure the value
+	 * semantics used in While are preserved.
+	 */
+	private static final class Store extends Code {
+		private final int slot;
+		private final Value rhs;
+
+		public Store(int slot, Value rhs) {
+			this.slot = slot;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			frame[slot] = Interpreter.copy(rhs.evaluate(frame));
+			return null;
+		}
+	}
+
+	private static final class StoreField extends Code {
+		private final Value source;
+		private final RecordValue.Accessor field;
+		private final Value rhs;
+
+		public StoreField(Value source, RecordValue.Accessor field, Value rhs) {
+			this.source = source;
+			this.field = field;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			RecordValue src = (RecordValue) source.evaluate(frame);
+			Object value = rhs.evaluate(frame);
+			field.put(src, Interpreter.copy(value));
+			return null;
+		}
+	}
+
+	private static final class StoreElement extends Code {
+		private final Value source;
+		private final Value index;
+		private final Value rhs;
+
+		public StoreElement(Value source, Value index, Value rhs) {
+			this.source = source;
+			this.index = index;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			ArrayValue src = (ArrayValue) source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			Object value = rhs.evaluate(frame);
+			src.set(idx, Interpreter.copy(value));
+			return null;
+		}
+	}
+
+	private static final class For extends Code {
+		private final Code declaration;
+		private final Value condition;
+		private final Code increment;
+		private final Code body;
+
+		public For(Code declaration, Value condition, Code increment, Code body) {
+			this.declaration = declaration;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			declaration.execute(frame);
+			while (condition.evaluateBool(frame)) {
+				Object ret = body.execute(frame);
+				if (ret == BREAK_CONSTANT) {
+					break;
+				} else if (ret != null && ret != CONTINUE_CONSTANT) {
+					return ret;
+				}
+				increment.execute(frame);
+			}
+			return null;
+		}
+	}
+
+	private static final class While extends Code {
+		private final Value condition;
+		private final Code body;
+
+		public While(Value condition, Code body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			while (condition.evaluateBool(frame)) {
+				Object ret = body.execute(frame);
+				if (ret == BREAK_CONSTANT) {
+					break;
+				} else if (ret != null && ret != CONTINUE_CONSTANT) {
+					return ret;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class IfElse extends Code {
+		private final Value condition;
+		private final Code trueBranch;
+		private final Code falseBranch;
+
+		public IfElse(Value condition, Code trueBranch, Code falseBranch) {
+			this.condition = condition;
+			this.trueBranch = trueBranch;
+			this.falseBranch = falseBranch;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			if (condition.evaluateBool(frame)) {
+				return trueBranch.execute(frame);
+			} else {
+				return falseBranch.execute(frame);
+			}
+		}
+	}
+
+	private static final class Switch extends Code {
+		private final Value expr;
+		private final SwitchTable table;
+		private final Code[] bodies;
+
+		public Switch(Value expr, SwitchTable table, Code[] bodies) {
+			this.expr = expr;
+			this.table = table;
+			this.bodies = bodies;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			Object value = expr.evaluate(frame);
+			// Enter at the matching case, and then fall through the remainder
+			for (int i = table.lookup(value); i < bodies.length; ++i) {
+				Object ret = bodies[i].execute(frame);
+				if (ret == BREAK_CONSTANT) {
+					break;
+				} else if (ret != null) {
+					return ret;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Return extends Code {
+		private final Value operand;
+
+		public Return(Value operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			return operand.evaluate(frame);
+		}
+	}
+
+	/**
+	 * A statement which simply passes a given signal back up to its enclosing
+	 * loop or method (e.g. <code>break</code>).
+	 */
+	private static final class Signal extends Code {
+		private final Object signal;
+
+		public Signal(Object signal) {
+			this.signal = signal;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			return signal;
+		}
+	}
+
+	private static final class Evaluate extends Code {
+		private final Value operand;
+
+		public Evaluate(Value operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			return operand.evaluate(frame);
+		}
+	}
+
+	private static final class Constant extends Value {
+		private final Object value;
+
+		public Constant(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return value;
+		}
+	}
+
+	private static final class IntConstant extends Value {
+		private final int value;
+		private final Integer boxed;
+
+		public IntConstant(int value) {
+			this.value = value;
+			this.boxed = value;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return boxed;
+		}
+
+		@Override
+		public int evaluateInt(Object[] frame) {
+			return value;
+		}
+	}
+
+	private static final class Load extends Value {
+		private final int slot;
+
+		public Load(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return frame[slot];
+		}
+	}
+
+	private static final class And extends Value {
+		private final Value lhs;
+		private final Value rhs;
+
+		public And(Value lhs, Value rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateBool(frame) && rhs.evaluateBool(frame);
+		}
+	}
+
+	private static final class Or extends Value {
+		private final Value lhs;
+		private final Value rhs;
+
+		public Or(Value lhs, Value rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		public boolean evaluateBool(Object[] frame) {
+			return lhs.evaluateBool(frame) || rhs.evaluateBool(frame);
+		}
+	}
+
+	private static final class Not extends Value {
+		private final Value operand;
+
+		public Not(Value operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		public boolean evaluateBool(Object[] frame) {
+			return !operand.evaluateBool(frame);
+		}
+	}
+
+	private static final class Negate extends Value {
+		private final Value operand;
+
+		public Negate(Value operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateInt(frame);
+		}
+
+		@Override
+		public int evaluateInt(Object[] frame) {
+			return -operand.evaluateInt(frame);
+		}
+	}
+
+	private static final class IntArithmetic extends Value {
+		private final Expr.BOp op;
+		private final Value lhs;
+		private final Value rhs;
+
+		public IntArithmetic(Expr.BOp op, Value lhs, Value rhs) {
+			this.op = op;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateInt(frame);
+		}
+
+		@Override
+		@SuppressWarnings("incomplete-switch")
+		public int evaluateInt(Object[] frame) {
+			int l = lhs.evaluateInt(frame);
+			int r = rhs.evaluateInt(frame);
+			switch (op) {
+			case ADD:
+				return l + r;
+			case SUB:
+				return l - r;
+			case MUL:
+				return l * r;
+			case DIV:
+				return l / r;
+			case REM:
+				return l % r;
+			}
+			throw new IllegalStateException("unknown arithmetic operator " + op);
+		}
+	}
+
+	private static final class IntComparison extends Value {
+		private final Expr.BOp op;
+		private final Value lhs;
+		private final Value rhs;
+
+		public IntComparison(Expr.BOp op, Value lhs, Value rhs) {
+			this.op = op;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		@SuppressWarnings("incomplete-switch")
+		public boolean evaluateBool(Object[] frame) {
+			int l = lhs.evaluateInt(frame);
+			int r = rhs.evaluateInt(frame);
+			switch (op) {
+			case LT:
+				return l < r;
+			case LTEQ:
+				return l <= r;
+			case GT:
+				return l > r;
+			case GTEQ:
+				return l >= r;
+			}
+			throw new IllegalStateException("unknown comparison operator " + op);
+		}
+	}
+
+	/**
+	 * Equality (or inequality) between two arbitrary values. This node
+	 * specialises itself on the first pair of operands it sees: if both are
+	 * integers (or both booleans) it remains on a fast path which compares
+	 * primitive values directly, until some other kind of value is observed.
+	 * At that point, it permanently reverts to the general case.
+	 */
+	private static final class Equals extends Value {
+		private static final int UNINITIALISED = 0;
+		private static final int INT = 1;
+		private static final int BOOL = 2;
+		private static final int GENERIC = 3;
+
+		private final Value lhs;
+		private final Value rhs;
+		private final boolean negated;
+		private int state = UNINITIALISED;
+
+		public Equals(Value lhs, Value rhs, boolean negated) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+			this.negated = negated;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		public boolean evaluateBool(Object[] frame) {
+			Object l = lhs.evaluate(frame);
+			Object r = rhs.evaluate(frame);
+			switch (state) {
+			case INT:
+				if (l instanceof Integer && r instanceof Integer) {
+					return (((Integer) l).intValue() == ((Integer) r).intValue()) != negated;
+				}
+				break;
+			case BOOL:
+				if (l instanceof Boolean && r instanceof Boolean) {
+					return (((Boolean) l).booleanValue() == ((Boolean) r).booleanValue()) != negated;
+				}
+				break;
+			case GENERIC:
+				return equals(l, r) != negated;
+			}
+			// Either this node is uninitialised, or the specialisation failed.
+			state = specialise(state, l, r);
+			return equals(l, r) != negated;
+		}
+
+		private static int specialise(int state, Object l, Object r) {
+			if (state == UNINITIALISED && l instanceof Integer && r instanceof Integer) {
+				return INT;
+			} else if (state == UNINITIALISED && l instanceof Boolean && r instanceof Boolean) {
+				return BOOL;
+			} else {
+				return GENERIC;
+			}
+		}
+
+		private static boolean equals(Object l, Object r) {
+			if (l == null || r == null) {
+				return l == null && r == null;
+			}
+			return l.equals(r);
+		}
+	}
+
+	/**
+	 * Returns the result of an invocation in tail position, by passing the
+	 * invocation back up to the enclosing function rather than performing it.
+	 */
+	private static final class TailInvoke extends Code {
+		private final Function target;
+		private final Value[] arguments;
+
+		public TailInvoke(Function target, Value[] arguments) {
+			this.target = target;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public Object execute(Object[] frame) {
+			Object[] values = new Object[arguments.length];
+			for (int i = 0; i != values.length; ++i) {
+				// We need to perform a copy here to ensure the value
+				// semantics used in While are preserved.
+				values[i] = Interpreter.copy(arguments[i].evaluate(frame));
+			}
+			return new TailCall(target, values);
+		}
+	}
+
+	private static final class Invoke extends Value {
+		private final Function target;
+		private final Value[] arguments;
+
+		public Invoke(Function target, Value[] arguments) {
+			this.target = target;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object[] values = new Object[arguments.length];
+			for (int i = 0; i != values.length; ++i) {
+				// We need to perform a copy here to ensure the value
+				// semantics used in While are preserved.
+				values[i] = Interpreter.copy(arguments[i].evaluate(frame));
+			}
+			return target.execute(values);
+		}
+	}
+
+	private static final class IndexOf extends Value {
+		private final Value source;
+		private final Value index;
+
+		public IndexOf(Value source, Value index) {
+			this.source = source;
+			this.index = index;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object _src = source.evaluate(frame);
+			int idx = index.evaluateInt(frame);
+			if (_src instanceof String) {
+				return ((String) _src).charAt(idx);
+			} else {
+				return ((ArrayValue) _src).get(idx);
+			}
+		}
+
+		@Override
+		public int evaluateInt(Object[] frame) {
+			ArrayValue src = (ArrayValue) source.evaluate(frame);
+			return src.getInt(index.evaluateInt(frame));
+		}
+	}
+
+	/**
+	 * Loads an element of an lval source, such that it can be updated in place
+	 * without affecting any other value.
+	 */
+	private static final class MutableIndexOf extends Value {
+		private final Value source;
+		private final Value index;
+
+		public MutableIndexOf(Value source, Value index) {
+			this.source = source;
+			this.index = index;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			ArrayValue src = (ArrayValue) source.evaluate(frame);
+			return src.getMutable(index.evaluateInt(frame));
+		}
+	}
+
+	private static final class ArrayGenerator extends Value {
+		private final Value value;
+		private final Value size;
+
+		public ArrayGenerator(Value value, Value size) {
+			this.value = value;
+			this.size = size;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object v = value.evaluate(frame);
+			int n = size.evaluateInt(frame);
+			return ArrayValue.generate(v, n);
+		}
+	}
+
+	private static final class ArrayInitialiser extends Value {
+		private final Value[] elements;
+		/**
+		 * Indicates the static element type is primitive, so the elements may
+		 * be held unboxed.
+		 */
+		private final boolean primitive;
+
+		public ArrayInitialiser(Value[] elements, boolean primitive) {
+			this.elements = elements;
+			this.primitive = primitive;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object[] ls = new Object[elements.length];
+			for (int i = 0; i != elements.length; ++i) {
+				ls[i] = elements[i].evaluate(frame);
+			}
+			return primitive ? ArrayValue.pack(ls) : new ArrayValue(ls);
+		}
+	}
+
+	/**
+	 * Strings are represented as arrays of integers, and each evaluation must
+	 * produce a fresh array.
+	 */
+	private static final class StringConstant extends Value {
+		private final int[] chars;
+
+		public StringConstant(int[] chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return new ArrayValue(chars.clone());
+		}
+	}
+
+	private static final class LengthOf extends Value {
+		private final Value operand;
+
+		public LengthOf(Value operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateInt(frame);
+		}
+
+		@Override
+		public int evaluateInt(Object[] frame) {
+			return ((ArrayValue) operand.evaluate(frame)).size();
+		}
+	}
+
+	private static final class RecordAccess extends Value {
+		private final Value source;
+		private final RecordValue.Accessor field;
+
+		public RecordAccess(Value source, RecordValue.Accessor field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return field.get((RecordValue) source.evaluate(frame));
+		}
+	}
+
+	/**
+	 * Loads a field of an lval source, such that it can be updated in place
+	 * without affecting any other value.
+	 */
+	private static final class MutableRecordAccess extends Value {
+		private final Value source;
+		private final RecordValue.Accessor field;
+
+		public MutableRecordAccess(Value source, RecordValue.Accessor field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return field.getMutable((RecordValue) source.evaluate(frame));
+		}
+	}
+
+	private static final class RecordConstructor extends Value {
+		private final RecordValue.Template template;
+		private final Value[] values;
+
+		public RecordConstructor(RecordValue.Template template, Value[] values) {
+			this.template = template;
+			this.values = values;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object[] rs = new Object[values.length];
+			for (int i = 0; i != values.length; ++i) {
+				rs[template.slot(i)] = values[i].evaluate(frame);
+			}
+			return new RecordValue(template.shape, rs);
+		}
+	}
+
+	private static final class Cast extends Value {
+		private final TypeMatcher type;
+		private final Value operand;
+
+		public Cast(TypeMatcher type, Value operand) {
+			this.type = type;
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			Object o = operand.evaluate(frame);
+			if (type.matches(o)) {
+				return o;
+			}
+			throw new RuntimeException("cannot cast: " + o + " to" + type);
+		}
+	}
+
+	private static final class Is extends Value {
+		private final TypeMatcher type;
+		private final Value operand;
+
+		public Is(TypeMatcher type, Value operand) {
+			this.type = type;
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(Object[] frame) {
+			return evaluateBool(frame);
+		}
+
+		@Override
+		public boolean evaluateBool(Object[] frame) {
+			return type.matches(operand.evaluate(frame));
+		}
+	}
+
+	private static final Object BREAK_CONSTANT = new Object() {};
+	private static final Object CONTINUE_CONSTANT = new Object() {};
+}
@@ -20,12 +20,12 @@ package whilelang.util;
 
 import static whilelang.util.SyntaxError.internalFailure;
 
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
 import whilelang.ast.Stmt;
 import whilelang.ast.Type;
@@ -41,24 +41,71 @@ import whilelang.ast.WhileFile;
  *
  */
 public class Interpreter {
-	private HashMap<String, WhileFile.Decl> declarations;
-	private WhileFile file;
+	/**
+	 * The program being executed, or <code>null</code> if this interpreter is
+	 * not bound to any program. An interpreter is never modified once
+	 * constructed, so the same interpreter can run many programs, and the
+	 * same program can be run by many interpreters, at once.
+	 */
+	private final Program program;
+	private final WhileFile file;
+
+	/**
+	 * Caches the results of pure methods, or <code>null</code> if results
+	 * should not be cached.
+	 */
+	private final Memoizer memoizer;
+
+	/**
+	 * Records where execution spends its time, or <code>null</code> if
+	 * execution is not being profiled.
+	 */
+	private final Profiler profiler;
+
+	/**
+	 * The stream to which print statements write.
+	 */
+	private final PrintStream out;
+
+	public Interpreter() {
+		this(null, null, System.out);
+	}
+
+	public Interpreter(Memoizer memoizer) {
+		this(memoizer, null);
+	}
+
+	public Interpreter(Memoizer memoizer, Profiler profiler) {
+		this(memoizer, profiler, System.out);
+	}
+
+	public Interpreter(Memoizer memoizer, Profiler profiler, PrintStream out) {
+		this.program = null;
+		this.file = null;
+		this.memoizer = memoizer;
+		this.profiler = profiler;
+		this.out = out;
+	}
+
+	private Interpreter(Program program, Interpreter config) {
+		this.program = program;
+		this.file = program.file;
+		this.memoizer = config.memoizer;
+		this.profiler = config.profiler;
+		this.out = config.out;
+	}
 
 	public void run(WhileFile wf) {
-		// First, initialise the map of declaration names to their bodies.
-		declarations = new HashMap<String,WhileFile.Decl>();
-		for(WhileFile.Decl decl : wf.declarations) {
-			declarations.put(decl.name(), decl);
-		}
-		this.file = wf;
-
-		// Second, pick the main method (if one exits) and execute it
-		WhileFile.Decl main = declarations.get("main");
-		if(main instanceof WhileFile.MethodDecl) {
-			WhileFile.MethodDecl fd = (WhileFile.MethodDecl) main;
-			execute(fd);
+		run(Program.link(wf));
+	}
+
+	public void run(Program program) {
+		// Pick the main method (if one exits) and execute it
+		WhileFile.MethodDecl main = program.main();
+		if(main != null) {
+			new Interpreter(program, this).execute(main);
 		} else {
-			System.out.println("Cannot find a main() function");
+			out.println("Cannot find a main() function");
 		}
 	}
 
@@ -72,6 +119,20 @@ public class Interpreter {
 	 *            Array of argument values.
 	 */
 	private Object execute(WhileFile.MethodDecl function, Object... arguments) {
+		if(memoizer != null && function.attribute(Attribute.Pure.class) != null) {
+			// Reuse the result of a previous invocation with equal arguments
+			Memoizer.Key key = memoizer.key(function, arguments);
+			Object r = memoizer.get(key);
+			if(r == Memoizer.MISS) {
+				r = invoke(function, arguments);
+				memoizer.put(key, r);
+			}
+			return r;
+		}
+		return invoke(function, arguments);
+	}
+
+	private Object invoke(WhileFile.MethodDecl function, Object[] arguments) {
 
 		// First, sanity check the number of arguments
 		if(function.getParameters().size() != arguments.length){
@@ -80,19 +141,45 @@ public class Interpreter {
 							+ function.getName() + "\"");
 		}
 
-		// Second, construct the stack frame in which this function will
-		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
-		for(int i=0;i!=arguments.length;++i) {
-			WhileFile.Parameter parameter = function.getParameters().get(i);
-			frame.put(parameter.getName(),arguments[i]);
+		if(profiler != null) {
+			profiler.enter(function.getName());
+			try {
+				return executeBody(function, arguments);
+			} finally {
+				profiler.exit();
+			}
 		}
+		return executeBody(function, arguments);
+	}
+
+	private Object executeBody(WhileFile.MethodDecl function, Object[] arguments) {
+		while(true) {
+			// Second, construct the stack frame in which this function will
+			// execute. Parameters always occupy the first slots of the frame.
+			Object[] frame = new Object[function.attribute(Attribute.Frame.class).size];
+			System.arraycopy(arguments, 0, frame, 0, arguments.length);
 
-		// Third, execute the function body!
-		return execute(function.getBody(),frame);
+			// Third, execute the function body!
+			Object r = execute(function.getBody(),frame);
+			if(!(r instanceof TailCall)) {
+				return r;
+			}
+			// Finally, a tail call replaces this function's frame rather
+			// than growing the stack.
+			TailCall call = (TailCall) r;
+			function = call.function;
+			arguments = call.arguments;
+			if(profiler != null) {
+				profiler.exit();
+				profiler.enter(function.getName());
+			}
+		}
 	}
 
-	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+	private Object execute(List<Stmt> block, Object[] frame) {
+		if(profiler != null) {
+			return executeCounted(block, frame);
+		}
 		for(int i=0;i!=block.size();i=i+1) {
 			Object r = execute(block.get(i),frame);
 			if(r != null) {
@@ -102,16 +189,36 @@ public class Interpreter {
 		return null;
 	}
 
+	/**
+	 * Execute a given block whilst profiling, counting each statement as it is
+	 * executed. This is kept apart from the loop above so that, when not
+	 * profiling, the only cost is a single check per block.
+	 *
+	 * @param block
+	 * @param frame
+	 * @return
+	 */
+	private Object executeCounted(List<Stmt> block, Object[] frame) {
+		for(int i=0;i!=block.size();i=i+1) {
+			profiler.count(block.get(i));
+			Object r = execute(block.get(i),frame);
+			if(r != null) {
+				return r;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Execute a given statement in a given stack frame.
 	 *
 	 * @param stmt
 	 *            Statement to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Stmt stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt stmt, Object[] frame) {
 		if(stmt instanceof Stmt.Assert) {
 			return execute((Stmt.Assert) stmt,frame);
 		} else if(stmt instanceof Stmt.Print) {
@@ -142,7 +249,7 @@ public class Interpreter {
 		}
 	}
 
-	private Object execute(Stmt.Assert stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Assert stmt, Object[] frame) {
 		boolean b = (Boolean) execute(stmt.getExpr(),frame);
 		if(!b) {
 			throw new RuntimeException("assertion failure");
@@ -150,35 +257,34 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Stmt.Print stmt, HashMap<String,Object> frame) {
-		System.out.println(toString(execute(stmt.getExpr(),frame)));
+	private Object execute(Stmt.Print stmt, Object[] frame) {
+		out.println(toString(execute(stmt.getExpr(),frame)));
 		return null;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object execute(Stmt.Assign stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Assign stmt, Object[] frame) {
 		Expr lhs = stmt.getLhs();
 		if(lhs instanceof Expr.Variable) {
 			Expr.Variable ev = (Expr.Variable) lhs;
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
+			// We need to perform a copy here to ensure the value
 			// semantics used in While are preserved.
-			frame.put(ev.getName(),deepClone(rhs));
+			frame[slotOf(ev)] = copy(rhs);
 		} else if(lhs instanceof Expr.RecordAccess) {
 			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
-			Map<String,Object> src = (Map<String, Object>) execute(ra.getSource(),frame);
+			RecordValue src = (RecordValue) executeLVal(ra.getSource(),frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
+			// We need to perform a copy here to ensure the value
 			// semantics used in While are preserved.
-			src.put(ra.getName(), deepClone(rhs));
+			src.put(ra.getName(), copy(rhs));
 		} else if(lhs instanceof Expr.IndexOf) {
 			Expr.IndexOf io = (Expr.IndexOf) lhs;
-			ArrayList<Object> src = (ArrayList<Object>) execute(io.getSource(),frame);
+			ArrayValue src = (ArrayValue) executeLVal(io.getSource(),frame);
 			Integer idx = (Integer) execute(io.getIndex(),frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
+			// We need to perform a copy here to ensure the value
 			// semantics used in While are preserved.
-			src.set(idx,deepClone(rhs));
+			src.set(idx,copy(rhs));
 		} else {
 			internalFailure("unknown lval encountered (" + lhs + ")", file.filename,stmt);
 		}
@@ -186,7 +292,33 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
+	/**
+	 * Execute the source of an lval, producing a value which can be updated in
+	 * place. Any compound values along the way are first given storage of
+	 * their own, so the update cannot affect any other value which shares it.
+	 *
+	 * @param expr
+	 *            Expression to execute.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable slot.
+	 * @return
+	 */
+	private Object executeLVal(Expr expr, Object[] frame) {
+		if(expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) expr;
+			RecordValue src = (RecordValue) executeLVal(ra.getSource(),frame);
+			return src.getMutable(ra.getName());
+		} else if(expr instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) expr;
+			ArrayValue src = (ArrayValue) executeLVal(io.getSource(),frame);
+			int idx = (Integer) execute(io.getIndex(),frame);
+			return src.getMutable(idx);
+		} else {
+			return execute(expr,frame);
+		}
+	}
+
+	private Object execute(Stmt.For stmt, Object[] frame) {
 		execute(stmt.getDeclaration(),frame);
 		while((Boolean) execute(stmt.getCondition(),frame)) {
 			Object ret = execute(stmt.getBody(),frame);
@@ -202,7 +334,7 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.While stmt, Object[] frame) {
 		while((Boolean) execute(stmt.getCondition(),frame)) {
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret == BREAK_CONSTANT) {
@@ -216,7 +348,7 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Stmt.IfElse stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.IfElse stmt, Object[] frame) {
 		boolean condition = (Boolean) execute(stmt.getCondition(),frame);
 		if(condition) {
 			return execute(stmt.getTrueBranch(),frame);
@@ -225,43 +357,43 @@ public class Interpreter {
 		}
 	}
 
-	private Object execute(Stmt.Break stmt, HashMap<String, Object> frame) {
+	private Object execute(Stmt.Break stmt, Object[] frame) {
 		return BREAK_CONSTANT;
 	}
 
-	private Object execute(Stmt.Continue stmt, HashMap<String, Object> frame) {
+	private Object execute(Stmt.Continue stmt, Object[] frame) {
 		return CONTINUE_CONSTANT;
 	}
 
-	private Object execute(Stmt.Switch stmt, HashMap<String, Object> frame) {
-		boolean fallThru = false;
+	private Object execute(Stmt.Switch stmt, Object[] frame) {
 		Object value = execute(stmt.getExpr(), frame);
-		for (Stmt.Case c : stmt.getCases()) {
-			Expr e = c.getValue();
-			if (fallThru || e == null || value.equals(execute(e, frame))) {
-				Object ret = execute(c.getBody(), frame);
-				if(ret == BREAK_CONSTANT) {
-					break;
-				} else if(ret != null) {
-					return ret;
-				}
-				fallThru = true;
+		List<Stmt.Case> cases = stmt.getCases();
+		// Enter at the matching case, and then fall through the remainder
+		for (int i = program.switchTable(stmt).lookup(value); i < cases.size(); ++i) {
+			Object ret = execute(cases.get(i).getBody(), frame);
+			if(ret == BREAK_CONSTANT) {
+				break;
+			} else if(ret != null) {
+				return ret;
 			}
 		}
 		return null;
 	}
 
-	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
+	private Object execute(Stmt.Return stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
-		if(re != null) {
+		if(re != null && re.attribute(Attribute.TailCall.class) != null) {
+			// Defer the invocation to the enclosing function
+			Expr.Invoke ie = (Expr.Invoke) re;
+			return new TailCall(ie.attribute(Attribute.Target.class).method, arguments(ie, frame));
+		} else if(re != null) {
 			return execute(re,frame);
 		} else {
 			return Collections.EMPTY_SET; // used to indicate a function has returned
 		}
 	}
 
-	private Object execute(Stmt.VariableDeclaration stmt,
-			HashMap<String, Object> frame) {
+	private Object execute(Stmt.VariableDeclaration stmt, Object[] frame) {
 		Expr re = stmt.getExpr();
 		Object value;
 		if (re != null) {
@@ -270,9 +402,9 @@ public class Interpreter {
 			value = Collections.EMPTY_SET; // used to indicate a variable has
 											// been declared
 		}
-		// We need to perform a deep clone here to ensure the value
+		// We need to perform a copy here to ensure the value
 		// semantics used in While are preserved.
-		frame.put(stmt.getName(), deepClone(value));
+		frame[slotOf(stmt)] = copy(value);
 		return null;
 	}
 
@@ -282,10 +414,10 @@ public class Interpreter {
 	 * @param expr
 	 *            Expression to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable slot.
 	 * @return
 	 */
-	private Object execute(Expr expr, HashMap<String,Object> frame) {
+	private Object execute(Expr expr, Object[] frame) {
 		if(expr instanceof Expr.Binary) {
 			return execute((Expr.Binary) expr,frame);
 		} else if(expr instanceof Expr.Literal) {
@@ -317,7 +449,7 @@ public class Interpreter {
 	}
 
 	@SuppressWarnings("incomplete-switch")
-	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Binary expr, Object[] frame) {
 		// First, deal with the short-circuiting operators first
 		Object lhs = execute(expr.getLhs(), frame);
 
@@ -367,89 +499,90 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Literal expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Literal expr, Object[] frame) {
 		Object o = expr.getValue();
 		// Check whether any coercions required
 		if(o instanceof Character) {
 			char c = ((Character)o);
 			return c;
 		} else if(o instanceof String) {
-			ArrayList<Integer> list = new ArrayList<>();
 			String s = ((String)o);
-			for (char c : s.toCharArray()) {
-				list.add((int) c);
+			int[] list = new int[s.length()];
+			for (int i = 0; i != list.length; ++i) {
+				list[i] = s.charAt(i);
 			}
-			return list;
+			return new ArrayValue(list);
 		}
 		// Done
-		return o;
+		return valueOf(o);
+	}
+
+	private Object execute(Expr.Invoke expr, Object[] frame) {
+		WhileFile.MethodDecl fun = expr.attribute(Attribute.Target.class).method;
+		return execute(fun, arguments(expr, frame));
 	}
 
-	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
+	private Object[] arguments(Expr.Invoke expr, Object[] frame) {
 		List<Expr> arguments = expr.getArguments();
 		Object[] values = new Object[arguments.size()];
 		for (int i = 0; i != values.length; ++i) {
-			// We need to perform a deep clone here to ensure the value
+			// We need to perform a copy here to ensure the value
 			// semantics used in While are preserved.
-			values[i] = deepClone(execute(arguments.get(i), frame));
+			values[i] = copy(execute(arguments.get(i), frame));
 		}
-		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(expr
-				.getName());
-		return execute(fun, values);
+		return values;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object execute(Expr.IndexOf expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.IndexOf expr, Object[] frame) {
 		Object _src = execute(expr.getSource(),frame);
 		int idx = (Integer) execute(expr.getIndex(),frame);
 		if(_src instanceof String) {
 			String src = (String) _src;
 			return src.charAt(idx);
 		} else {
-			ArrayList<Object> src = (ArrayList<Object>) _src;
+			ArrayValue src = (ArrayValue) _src;
 			return src.get(idx);
 		}
 	}
 
-	private Object execute(Expr.ArrayGenerator expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.ArrayGenerator expr, Object[] frame) {
 		Object value = execute(expr.getValue(),frame);
 		int size = (Integer) execute(expr.getSize(),frame);
-		ArrayList<Object> ls = new ArrayList<Object>();
-		for (int i = 0; i < size; ++i) {
-			ls.add(value);
-		}
-		return ls;
+		return ArrayValue.generate(value, size);
 	}
 
-	private Object execute(Expr.ArrayInitialiser expr,
-			HashMap<String, Object> frame) {
+	private Object execute(Expr.ArrayInitialiser expr, Object[] frame) {
 		List<Expr> es = expr.getArguments();
-		ArrayList<Object> ls = new ArrayList<Object>();
+		Object[] ls = new Object[es.size()];
 		for (int i = 0; i != es.size(); ++i) {
-			ls.add(execute(es.get(i), frame));
+			ls[i] = execute(es.get(i), frame);
 		}
-		return ls;
+		if(hasPrimitiveElements(expr,program.declarations())) {
+			return ArrayValue.pack(ls);
+		}
+		return new ArrayValue(ls);
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object execute(Expr.RecordAccess expr, HashMap<String, Object> frame) {
-		HashMap<String, Object> src = (HashMap<String, Object>) execute(expr.getSource(), frame);
+	private Object execute(Expr.RecordAccess expr, Object[] frame) {
+		RecordValue src = (RecordValue) execute(expr.getSource(), frame);
 		return src.get(expr.getName());
 	}
 
-	private Object execute(Expr.RecordConstructor expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.RecordConstructor expr, Object[] frame) {
 		List<Pair<String,Expr>> es = expr.getFields();
-		HashMap<String,Object> rs = new HashMap<String,Object>();
+		String[] names = new String[es.size()];
+		Object[] values = new Object[es.size()];
 
-		for(Pair<String,Expr> e : es) {
-			rs.put(e.first(),execute(e.second(),frame));
+		for(int i=0;i!=names.length;++i) {
+			Pair<String,Expr> e = es.get(i);
+			names[i] = e.first();
+			values[i] = execute(e.second(),frame);
 		}
 
-		return rs;
+		return new RecordValue.Template(names).create(values,0);
 	}
 
-	@SuppressWarnings("unchecked")
-	private Object execute(Expr.Unary expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Unary expr, Object[] frame) {
 		Object value = execute(expr.getExpr(), frame);
 		switch (expr.getOp()) {
 		case NOT:
@@ -457,7 +590,7 @@ public class Interpreter {
 		case NEG:
 			return -((Integer) value);
 		case LENGTHOF:
-			return ((ArrayList<Object>) value).size();
+			return ((ArrayValue) value).size();
 		}
 
 		internalFailure("unknown unary expression encountered (" + expr + ")",
@@ -465,117 +598,157 @@ public class Interpreter {
 		return null;
 	}
 
-	private Object execute(Expr.Variable expr, HashMap<String,Object> frame) {
-		return frame.get(expr.getName());
+	private Object execute(Expr.Variable expr, Object[] frame) {
+		return frame[slotOf(expr)];
 	}
 
-	private Object execute(Expr.Cast expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Cast expr, Object[] frame) {
 		Object o = execute(expr.getExpr(),frame);
-		if(checkInstance(expr.getCastType(),o)){
+		if(program.matcher(expr.getCastType()).matches(o)){
 			return o;
 		}
 		throw new RuntimeException("cannot cast: "+o+" to"+ expr.getCastType());
 	}
 
-	private Object execute(Expr.Is expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Is expr, Object[] frame) {
 		Object o = execute(expr.getExpr(),frame);
-		if(checkInstance(expr.getIsType(),o)){
-			return true;
-		}
-		return false;
+		return program.matcher(expr.getIsType()).matches(o);
 	}
 
 
-	private boolean checkInstance(Type t,Object o){
-		if(t instanceof Type.Void) {
-			return o == null;
-		}else if(t instanceof Type.Null) {
-			return o == null;
-		}else if(t instanceof Type.Bool) {
-			return o instanceof Boolean;
-		}else if(t instanceof Type.Int) {
-			return o instanceof Integer;
-		}else if(t instanceof Type.Named) {
-			Type.Named n = (Type.Named)t;
-			WhileFile.Decl declaration = this.declarations.get(n.getName());
-			if(declaration instanceof WhileFile.TypeDecl){
-				return checkInstance(((WhileFile.TypeDecl) declaration).getType(),o);
-			}
-			return false;
-		}else if(t instanceof Type.Array) {
-			if(!(o instanceof ArrayList)){
-				return false;
-			}
-			for(Object o1:(ArrayList)o) {
-				if(!checkInstance(((Type.Array) t).getElement(), o1)) {
+	/**
+	 * Determine whether the static type of a given array expression has a
+	 * primitive element type, such that its elements may be held unboxed.
+	 *
+	 * @param expr
+	 * @param declarations
+	 *            Maps the name of every declaration in the file to its body.
+	 * @return
+	 */
+	static boolean hasPrimitiveElements(Expr expr, Map<String, WhileFile.Decl> declarations) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		Type t = attr == null ? null : expand(attr.type, declarations);
+		return t instanceof Type.Array && isPrimitive(((Type.Array) t).getElement(), declarations);
+	}
+
+	/**
+	 * Determine whether every value of a given type is a boolean, integer or
+	 * null.
+	 *
+	 * @param t
+	 * @param declarations
+	 * @return
+	 */
+	private static boolean isPrimitive(Type t, Map<String, WhileFile.Decl> declarations) {
+		t = expand(t, declarations);
+		if (t instanceof Type.Int || t instanceof Type.Bool || t instanceof Type.Null) {
+			return true;
+		} else if (t instanceof Type.Union) {
+			for (Type b : ((Type.Union) t).getType_list()) {
+				if (!isPrimitive(b, declarations)) {
 					return false;
 				}
 			}
 			return true;
-		}else if(t instanceof Type.Record) {
-			//convert t to map
-			HashMap<String,Type> recordMap = new HashMap<>();
-			for(Pair<Type,String> p:((Type.Record) t).getFields()){
-				recordMap.put(p.second(),p.first());
-			}
-
-			if(o instanceof HashMap){
-				HashMap<String,Object> objectHashMap = (HashMap<String, Object>)o;
+		}
+		return false;
+	}
 
-				for (Map.Entry<String, Type> entry : recordMap.entrySet()) {
-					String key = entry.getKey();
-					Type value = entry.getValue();
-					Object o1 = objectHashMap.get(key);
-					if (!checkInstance(value, o1)) {
-						return false;
-					}
-				}
-				return true;
+	/**
+	 * Determine the shape of records of a given type, or <code>null</code> if
+	 * the type does not describe records of a single shape. Since records are
+	 * subject to width subtyping, a value of the type may still have a
+	 * different shape.
+	 *
+	 * @param t
+	 * @param declarations
+	 * @return
+	 */
+	public static RecordValue.Shape shapeOf(Type t, Map<String, WhileFile.Decl> declarations) {
+		t = t == null ? null : expand(t, declarations);
+		if (t instanceof Type.Record) {
+			List<Pair<Type, String>> fields = ((Type.Record) t).getFields();
+			String[] names = new String[fields.size()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).second();
 			}
+			return RecordValue.Shape.of(names);
+		}
+		return null;
+	}
 
-			return false;
-		}else if(t instanceof Type.Union) {
-			Type.Union u = (Type.Union)t;
-			for(Type union_type:u.getType_list()){
-				if(checkInstance(union_type,o)){
-					return true;
-				}
+	private static Type expand(Type t, Map<String, WhileFile.Decl> declarations) {
+		while (t instanceof Type.Named) {
+			WhileFile.Decl decl = declarations.get(((Type.Named) t).getName());
+			if (!(decl instanceof WhileFile.TypeDecl)) {
+				return null;
 			}
-			return false;
+			t = ((WhileFile.TypeDecl) decl).getType();
 		}
-		throw new RuntimeException("unknown cast type");
+		return t;
 	}
 
+	/**
+	 * Determine the frame slot allocated to a given variable declaration or
+	 * access by name resolution.
+	 *
+	 * @param elem
+	 * @return
+	 */
+	static int slotOf(SyntacticElement elem) {
+		return elem.attribute(Attribute.Slot.class).index;
+	}
 
+	/**
+	 * Copy the given object value. This is either a <code>Boolean</code>,
+	 * <code>Integer</code>, <code>Character</code>, <code>String</code>,
+	 * <code>ArrayValue</code> (for arrays) or <code>RecordValue</code> (for
+	 * records). Only the latter two need to be copied, since the others are
+	 * immutable. Copying these takes constant time, as their storage is shared
+	 * until one of them is updated.
+	 *
+	 * @param o
+	 * @return
+	 */
+	static Object copy(Object o) {
+		if (o instanceof ArrayValue) {
+			return ((ArrayValue) o).copy();
+		} else if (o instanceof RecordValue) {
+			return ((RecordValue) o).copy();
+		} else {
+			// other cases can be ignored
+			return o;
+		}
+	}
 
 	/**
-	 * Perform a deep clone of the given object value. This is either a
-	 * <code>Boolean</code>, <code>Integer</code>, , <code>Character</code>,
-	 * <code>String</code>, <code>ArrayList</code> (for lists) or
-	 * <code>HaspMap</code> (for records). Only the latter two need to be
-	 * cloned, since the others are immutable.
+	 * Convert a constant, as produced by the parser for the value of a case, to
+	 * its runtime representation. Constant arrays and records are represented
+	 * as <code>List</code> and <code>Map</code> respectively, and must be
+	 * converted recursively.
 	 *
 	 * @param o
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
-	private Object deepClone(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList<Object>) o;
-			ArrayList<Object> n = new ArrayList<Object>();
-			for (int i = 0; i != l.size(); ++i) {
-				n.add(deepClone(l.get(i)));
+	public static Object valueOf(Object o) {
+		if (o instanceof List) {
+			List<?> l = (List<?>) o;
+			Object[] elements = new Object[l.size()];
+			for (int i = 0; i != elements.length; ++i) {
+				elements[i] = valueOf(l.get(i));
 			}
-			return n;
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap<String, Object>) o;
-			HashMap<String, Object> n = new HashMap<String, Object>();
-			for (String field : m.keySet()) {
-				n.put(field, deepClone(m.get(field)));
+			return new ArrayValue(elements);
+		} else if (o instanceof Map) {
+			Map<?, ?> m = (Map<?, ?>) o;
+			String[] names = new String[m.size()];
+			Object[] values = new Object[m.size()];
+			int i = 0;
+			for (Map.Entry<?, ?> e : m.entrySet()) {
+				names[i] = (String) e.getKey();
+				values[i++] = valueOf(e.getValue());
 			}
-			return n;
+			return new RecordValue.Template(names).create(values, 0);
 		} else {
-			// other cases can be ignored
 			return o;
 		}
 	}
@@ -583,26 +756,25 @@ public class Interpreter {
 	/**
 	 * Convert the given object value to a string. This is either a
 	 * <code>Boolean</code>, <code>Integer</code>, <code>Character</code>,
-	 * <code>String</code>, <code>ArrayList</code> (for lists) or
-	 * <code>HaspMap</code> (for records). The latter two must be treated
+	 * <code>String</code>, <code>ArrayValue</code> (for arrays) or
+	 * <code>RecordValue</code> (for records). The latter two must be treated
 	 * recursively.
 	 *
 	 * @param o
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
-	private String toString(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList<Object>) o;
-			
-			if (l.stream().allMatch((x) -> x instanceof Integer && (Integer) x > 31 && (Integer) x < 127)) {
+	static String toString(Object o) {
+		if (o instanceof ArrayValue) {
+			ArrayValue l = (ArrayValue) o;
+
+			if (l.isString()) {
 				char[] cs = new char[l.size()];
 				for (int i = 0; i < cs.length; ++i) {
-					cs[i] = (char) (int) (Integer) l.get(i);
+					cs[i] = (char) l.getInt(i);
 				}
 				return String.copyValueOf(cs);
 			}
-			
+
 			String r = "[";
 			for (int i = 0; i != l.size(); ++i) {
 				if(i != 0) {
@@ -611,13 +783,12 @@ public class Interpreter {
 				r += toString(l.get(i));
 			}
 			return r + "]";
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap<String, Object>) o;
+		} else if (o instanceof RecordValue) {
+			RecordValue m = (RecordValue) o;
 			String r = "{";
 			boolean firstTime = true;
-			ArrayList<String> fields = new ArrayList<String>(m.keySet());
-			Collections.sort(fields);
-			for (String field : fields) {
+			// NOTE: fields are held in sorted order
+			for (String field : m.fields()) {
 				if(!firstTime) {
 					r += ",";
 				}
@@ -635,4 +806,18 @@ public class Interpreter {
 
 	private Object BREAK_CONSTANT = new Object() {};
 	private Object CONTINUE_CONSTANT = new Object() {};
+
+	/**
+	 * Signals that the enclosing function should be replaced by an invocation
+	 * of another, as the result of executing a tail call.
+	 */
+	private static final class TailCall {
+		private final WhileFile.MethodDecl function;
+		private final Object[] arguments;
+
+		public TailCall(WhileFile.MethodDecl function, Object[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+	}
 }
@@ -0,0 +1,144 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of invoking pure methods, keyed by the method and the
+ * values of its arguments. Since values are compared structurally, two
+ * invocations with equal arguments share the same entry. The cache holds a
+ * bounded number of entries, discarding the least recently used entry when
+ * full.
+ */
+public class Memoizer {
+	/**
+	 * The default number of entries held in a cache.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Returned from a lookup which found no entry. This is distinct from every
+	 * While value, including <code>null</code>.
+	 */
+	public static final Object MISS = new Object();
+
+	private final LinkedHashMap<Key, Object> cache;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public Memoizer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public Memoizer(final int capacity) {
+		this.cache = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Construct the key for an invocation of a given method. This takes a copy
+	 * of each argument, so later updates to the arguments do not affect the
+	 * key.
+	 *
+	 * @param method
+	 * @param arguments
+	 * @return
+	 */
+	public Key key(Object method, Object[] arguments) {
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = Interpreter.copy(arguments[i]);
+		}
+		return new Key(method, values);
+	}
+
+	/**
+	 * Get the cached result of a given invocation, or <code>MISS</code> if
+	 * there is none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized Object get(Key key) {
+		if (cache.containsKey(key)) {
+			hits++;
+			return Interpreter.copy(cache.get(key));
+		}
+		misses++;
+		return MISS;
+	}
+
+	public synchronized void put(Key key, Object result) {
+		cache.put(key, Interpreter.copy(result));
+	}
+
+	/**
+	 * Print a summary of how effective this cache has been.
+	 *
+	 * @param out
+	 */
+	public synchronized void report(PrintStream out) {
+		long total = hits + misses;
+		double rate = total == 0 ? 0 : (100.0 * hits) / total;
+		out.println(String.format("memoize: %d hits, %d misses, %d evictions (%.1f%% hit rate)", hits, misses,
+				evictions, rate));
+	}
+
+	/**
+	 * Identifies an invocation by its target and argument values.
+	 */
+	public static final class Key {
+		private final Object method;
+		private final Object[] arguments;
+		private final int hash;
+
+		private Key(Object method, Object[] arguments) {
+			this.method = method;
+			this.arguments = arguments;
+			this.hash = System.identityHashCode(method) ^ Arrays.hashCode(arguments);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return method == k.method && hash == k.hash && Arrays.equals(arguments, k.arguments);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
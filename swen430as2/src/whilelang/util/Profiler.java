@@ -0,0 +1,327 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import whilelang.ast.Attribute;
+
+/**
+ * <p>
+ * Records where the execution of a While program spends its time. For every
+ * method, this counts the number of invocations and measures both the
+ * inclusive time (i.e. including that spent in the methods it invokes) and
+ * the exclusive time. For every statement, it counts the number of times the
+ * statement was executed, which is reported against its line in the source
+ * file.
+ * </p>
+ * <p>
+ * Time is also attributed to every distinct call stack, which can be written
+ * out in the "collapsed stack" format understood by flame graph tools (i.e.
+ * one line per stack, consisting of the method names separated by semicolons
+ * followed by a sample count). The count given for each stack is its exclusive
+ * time in microseconds.
+ * </p>
+ */
+public class Profiler {
+	private final String filename;
+
+	/**
+	 * The statistics gathered for each method, indexed by name.
+	 */
+	private final HashMap<String, Method> methods = new HashMap<String, Method>();
+
+	/**
+	 * The execution counter of each statement.
+	 */
+	private final IdentityHashMap<SyntacticElement, Counter> counters = new IdentityHashMap<SyntacticElement, Counter>();
+
+	/**
+	 * The root of the tree of all call stacks observed.
+	 */
+	private final Node root = new Node(null);
+
+	/**
+	 * The activations currently in progress, innermost last.
+	 */
+	private final ArrayList<Activation> stack = new ArrayList<Activation>();
+
+	/**
+	 * @param filename
+	 *            Name of the source file being profiled, which is used to
+	 *            determine the line of each statement.
+	 */
+	public Profiler(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Get the execution counter of a given statement.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	public Counter counter(SyntacticElement stmt) {
+		Counter c = counters.get(stmt);
+		if (c == null) {
+			c = new Counter();
+			counters.put(stmt, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Record that a given statement is being executed.
+	 *
+	 * @param stmt
+	 */
+	public void count(SyntacticElement stmt) {
+		counter(stmt).count++;
+	}
+
+	/**
+	 * Record that a given method has been entered.
+	 *
+	 * @param name
+	 */
+	public void enter(String name) {
+		Method m = methods.get(name);
+		if (m == null) {
+			m = new Method(name);
+			methods.put(name, m);
+		}
+		m.invocations++;
+		Node parent = stack.isEmpty() ? root : stack.get(stack.size() - 1).node;
+		stack.add(new Activation(m, parent.child(name), System.nanoTime()));
+	}
+
+	/**
+	 * Record that the innermost method entered has now been exited.
+	 */
+	public void exit() {
+		Activation a = stack.remove(stack.size() - 1);
+		long elapsed = System.nanoTime() - a.start;
+		long exclusive = elapsed - a.children;
+		a.method.inclusive += elapsed;
+		a.method.exclusive += exclusive;
+		a.node.exclusive += exclusive;
+		if (!stack.isEmpty()) {
+			stack.get(stack.size() - 1).children += elapsed;
+		}
+	}
+
+	/**
+	 * Record that any methods which have been entered, but not exited, have
+	 * terminated abruptly (e.g. because of an assertion failure).
+	 */
+	public void unwind() {
+		while (!stack.isEmpty()) {
+			exit();
+		}
+	}
+
+	/**
+	 * Print a report of the methods sorted by exclusive time, followed by the
+	 * source lines sorted by the number of statements executed.
+	 *
+	 * @param out
+	 */
+	public void report(PrintStream out) {
+		ArrayList<Method> ms = new ArrayList<Method>(methods.values());
+		Collections.sort(ms, new Comparator<Method>() {
+			@Override
+			public int compare(Method m1, Method m2) {
+				return Long.compare(m2.exclusive, m1.exclusive);
+			}
+		});
+		out.println(String.format("%12s %12s %12s  %s", "calls", "incl (ms)", "excl (ms)", "method"));
+		for (Method m : ms) {
+			out.println(String.format("%12d %12.3f %12.3f  %s", m.invocations, m.inclusive / 1e6, m.exclusive / 1e6,
+					m.name));
+		}
+
+		ArrayList<Map.Entry<Integer, Long>> ls = new ArrayList<Map.Entry<Integer, Long>>(lines().entrySet());
+		Collections.sort(ls, new Comparator<Map.Entry<Integer, Long>>() {
+			@Override
+			public int compare(Map.Entry<Integer, Long> e1, Map.Entry<Integer, Long> e2) {
+				return Long.compare(e2.getValue(), e1.getValue());
+			}
+		});
+		out.println();
+		out.println(String.format("%12s  %s", "count", "line"));
+		for (Map.Entry<Integer, Long> e : ls) {
+			out.println(String.format("%12d  %s:%d", e.getValue(), filename, e.getKey()));
+		}
+	}
+
+	/**
+	 * Write the time spent in each call stack in collapsed stack format.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeCollapsedStacks(File file) throws IOException {
+		PrintStream out = new PrintStream(file);
+		try {
+			for (Node child : root.children.values()) {
+				child.write("", out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Total the execution counts of all statements on each line.
+	 *
+	 * @return
+	 */
+	private TreeMap<Integer, Long> lines() {
+		int[] starts = lineStarts();
+		TreeMap<Integer, Long> lines = new TreeMap<Integer, Long>();
+		for (Map.Entry<SyntacticElement, Counter> e : counters.entrySet()) {
+			Attribute.Source src = e.getKey().attribute(Attribute.Source.class);
+			if (src != null && e.getValue().count > 0) {
+				int line = lineOf(starts, src.start);
+				Long n = lines.get(line);
+				lines.put(line, (n == null ? 0 : n) + e.getValue().count);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Determine the offset at which each line of the source file begins.
+	 *
+	 * @return
+	 */
+	private int[] lineStarts() {
+		String text;
+		try {
+			text = new String(Files.readAllBytes(new File(filename).toPath()));
+		} catch (IOException e) {
+			text = "";
+		}
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		for (int i = 0; i != text.length(); ++i) {
+			if (text.charAt(i) == '\n') {
+				starts.add(i + 1);
+			}
+		}
+		int[] r = new int[starts.size()];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = starts.get(i);
+		}
+		return r;
+	}
+
+	private static int lineOf(int[] starts, int offset) {
+		int lo = 0;
+		int hi = starts.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo + 1;
+	}
+
+	/**
+	 * Counts the number of times a given statement has been executed.
+	 */
+	public static final class Counter {
+		public long count;
+	}
+
+	private static final class Method {
+		private final String name;
+		private long invocations;
+		private long inclusive;
+		private long exclusive;
+
+		public Method(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final class Activation {
+		private final Method method;
+		private final Node node;
+		private final long start;
+		/**
+		 * Total time spent in methods invoked by this activation.
+		 */
+		private long children;
+
+		public Activation(Method method, Node node, long start) {
+			this.method = method;
+			this.node = node;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * A node in the tree of call stacks, identified by the path of method
+	 * names from the root.
+	 */
+	private static final class Node {
+		private final String name;
+		private final TreeMap<String, Node> children = new TreeMap<String, Node>();
+		private long exclusive;
+
+		public Node(String name) {
+			this.name = name;
+		}
+
+		public Node child(String name) {
+			Node n = children.get(name);
+			if (n == null) {
+				n = new Node(name);
+				children.put(name, n);
+			}
+			return n;
+		}
+
+		public void write(String prefix, PrintStream out) {
+			String path = prefix + name;
+			long micros = exclusive / 1000;
+			if (micros > 0) {
+				out.println(path + " " + micros);
+			}
+			for (Node child : children.values()) {
+				child.write(path + ";", out);
+			}
+		}
+	}
+}
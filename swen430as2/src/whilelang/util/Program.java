@@ -0,0 +1,140 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+
+/**
+ * A compiled While file which has been linked for execution, such that every
+ * declaration can be found by name. A program is immutable once linked, and
+ * interpretation never modifies the underlying AST. Hence, a single program
+ * may be executed by any number of threads at once. The matchers used for
+ * runtime type tests, and the tables used to dispatch switch statements, are
+ * compiled on demand and shared by all executions.
+ */
+public final class Program {
+	/**
+	 * The file from which this program was linked.
+	 */
+	public final WhileFile file;
+
+	/**
+	 * Maps the name of every declaration in the file to its body.
+	 */
+	private final Map<String, WhileFile.Decl> declarations;
+
+	/**
+	 * The matcher compiled for each type tested, indexed both by the type
+	 * itself and by its string form (since types are not otherwise comparable).
+	 */
+	private final ConcurrentHashMap<Type, TypeMatcher> matchers = new ConcurrentHashMap<Type, TypeMatcher>();
+	private final ConcurrentHashMap<String, TypeMatcher> matchersByName = new ConcurrentHashMap<String, TypeMatcher>();
+
+	/**
+	 * The table compiled for each switch statement executed.
+	 */
+	private final ConcurrentHashMap<Stmt.Switch, SwitchTable> switches = new ConcurrentHashMap<Stmt.Switch, SwitchTable>();
+
+	private Program(WhileFile file, Map<String, WhileFile.Decl> declarations) {
+		this.file = file;
+		this.declarations = declarations;
+	}
+
+	/**
+	 * Link a given (type checked and resolved) While file into a program.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public static Program link(WhileFile wf) {
+		HashMap<String, WhileFile.Decl> declarations = new HashMap<String, WhileFile.Decl>();
+		for (WhileFile.Decl decl : wf.declarations) {
+			declarations.put(decl.name(), decl);
+		}
+		return new Program(wf, Collections.unmodifiableMap(declarations));
+	}
+
+	/**
+	 * Get the map of declaration names to their bodies, which cannot be
+	 * modified.
+	 *
+	 * @return
+	 */
+	public Map<String, WhileFile.Decl> declarations() {
+		return declarations;
+	}
+
+	/**
+	 * Get the method from which execution begins, or <code>null</code> if
+	 * there is no such method.
+	 *
+	 * @return
+	 */
+	public WhileFile.MethodDecl main() {
+		WhileFile.Decl main = declarations.get("main");
+		return main instanceof WhileFile.MethodDecl ? (WhileFile.MethodDecl) main : null;
+	}
+
+	/**
+	 * Get the matcher for a given type, compiling it if this has not already
+	 * been done.
+	 *
+	 * @param t
+	 * @return
+	 */
+	public TypeMatcher matcher(Type t) {
+		TypeMatcher m = matchers.get(t);
+		if (m == null) {
+			String name = t.toString();
+			m = matchersByName.get(name);
+			if (m == null) {
+				m = TypeMatcher.compile(t, declarations);
+				TypeMatcher existing = matchersByName.putIfAbsent(name, m);
+				if (existing != null) {
+					m = existing;
+				}
+			}
+			matchers.put(t, m);
+		}
+		return m;
+	}
+
+	/**
+	 * Get the dispatch table for a given switch statement, compiling it if
+	 * this has not already been done.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	public SwitchTable switchTable(Stmt.Switch stmt) {
+		SwitchTable t = switches.get(stmt);
+		if (t == null) {
+			t = SwitchTable.compile(stmt);
+			switches.put(stmt, t);
+		}
+		return t;
+	}
+}
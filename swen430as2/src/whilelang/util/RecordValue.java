@@ -0,0 +1,386 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The runtime representation of a While record. As for
+ * <code>ArrayValue</code>, records have value semantics which are implemented
+ * by sharing storage between copies, and only making a physical copy when a
+ * record whose storage is shared is first updated.
+ * </p>
+ * <p>
+ * A record holds its field values in a flat array, laid out according to its
+ * <code>Shape</code>. Shapes are interned, such that every record with the
+ * same set of fields shares the same shape. Hence, once the shape of a record
+ * is known, a field can be located by a simple pointer comparison rather than
+ * a lookup. An <code>Accessor</code> exploits this by caching the slot of its
+ * field for the last shape it encountered.
+ * </p>
+ */
+public final class RecordValue {
+	private Shape shape;
+	private Object[] values;
+
+	/**
+	 * Indicates whether the storage of this record may be shared with another
+	 * record, or contains compound values which may be shared with another
+	 * value. Once set, this is only cleared by making a physical copy.
+	 */
+	private boolean shared;
+
+	/**
+	 * Construct a record of a given shape. The values array is not copied, and
+	 * must not be modified by the caller afterwards.
+	 *
+	 * @param shape
+	 * @param values
+	 *            Field values, in the order given by the shape.
+	 */
+	public RecordValue(Shape shape, Object[] values) {
+		this.shape = shape;
+		this.values = values;
+		this.shared = containsCompound(values);
+	}
+
+	private RecordValue(RecordValue r) {
+		this.shape = r.shape;
+		this.values = r.values;
+		this.shared = true;
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	/**
+	 * Get the names of all fields in this record, in sorted order.
+	 *
+	 * @return
+	 */
+	public List<String> fields() {
+		return Arrays.asList(shape.fields);
+	}
+
+	/**
+	 * Get the value of a given field, or <code>null</code> if this record has
+	 * no such field.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public Object get(String field) {
+		int slot = shape.indexOf(field);
+		return slot < 0 ? null : values[slot];
+	}
+
+	/**
+	 * Update a field of this record, first copying its storage if this is
+	 * shared.
+	 *
+	 * @param field
+	 * @param value
+	 */
+	public void put(String field, Object value) {
+		ensureUnique();
+		int slot = shape.indexOf(field);
+		if (slot >= 0) {
+			values[slot] = value;
+		} else {
+			add(field, value);
+		}
+	}
+
+	/**
+	 * Get a field of this record, such that it can be safely updated in place
+	 * without affecting any other value.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public Object getMutable(String field) {
+		ensureUnique();
+		return get(field);
+	}
+
+	/**
+	 * Return a copy of this record in constant time, by sharing its storage.
+	 *
+	 * @return
+	 */
+	public RecordValue copy() {
+		this.shared = true;
+		return new RecordValue(this);
+	}
+
+	private void ensureUnique() {
+		if (shared) {
+			Object[] nvalues = new Object[values.length];
+			for (int i = 0; i != nvalues.length; ++i) {
+				nvalues[i] = Interpreter.copy(values[i]);
+			}
+			values = nvalues;
+			shared = false;
+		}
+	}
+
+	/**
+	 * Add a field which this record does not already have, thereby changing
+	 * its shape. This record must already have storage of its own.
+	 *
+	 * @param field
+	 * @param value
+	 */
+	private void add(String field, Object value) {
+		String[] nfields = Arrays.copyOf(shape.fields, shape.fields.length + 1);
+		nfields[shape.fields.length] = field;
+		Shape nshape = Shape.of(nfields);
+		Object[] nvalues = new Object[values.length + 1];
+		for (int i = 0; i != values.length; ++i) {
+			nvalues[nshape.indexOf(shape.fields[i])] = values[i];
+		}
+		nvalues[nshape.indexOf(field)] = value;
+		shape = nshape;
+		values = nvalues;
+	}
+
+	private static boolean containsCompound(Object[] values) {
+		for (Object e : values) {
+			if (e instanceof ArrayValue || e instanceof RecordValue) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof RecordValue) {
+			RecordValue r = (RecordValue) o;
+			// NOTE: shapes are interned
+			return shape == r.shape && (values == r.values || Arrays.equals(values, r.values));
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return shape.hashCode() ^ Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		for (int i = 0; i != values.length; ++i) {
+			map.put(shape.fields[i], values[i]);
+		}
+		return map.toString();
+	}
+
+	/**
+	 * Describes the layout of a record, which is determined by its (sorted)
+	 * field names. Shapes are interned, and can therefore be compared by
+	 * reference.
+	 */
+	public static final class Shape {
+		private static final ConcurrentHashMap<List<String>, Shape> shapes = new ConcurrentHashMap<List<String>, Shape>();
+
+		private final String[] fields;
+		private final int hash;
+
+		private Shape(String[] fields) {
+			this.fields = fields;
+			this.hash = Arrays.hashCode(fields);
+		}
+
+		/**
+		 * Get the shape of records with a given set of fields, which may be in
+		 * any order.
+		 *
+		 * @param fields
+		 * @return
+		 */
+		public static Shape of(String... fields) {
+			String[] sorted = fields.clone();
+			Arrays.sort(sorted);
+			List<String> key = Arrays.asList(sorted);
+			Shape shape = shapes.get(key);
+			if (shape == null) {
+				Shape s = new Shape(sorted);
+				shape = shapes.putIfAbsent(key, s);
+				if (shape == null) {
+					shape = s;
+				}
+			}
+			return shape;
+		}
+
+		public int size() {
+			return fields.length;
+		}
+
+		/**
+		 * Determine the slot holding a given field in records of this shape, or
+		 * <code>-1</code> if they have no such field.
+		 *
+		 * @param field
+		 * @return
+		 */
+		public int indexOf(String field) {
+			int slot = Arrays.binarySearch(fields, field);
+			return slot < 0 ? -1 : slot;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(fields);
+		}
+	}
+
+	/**
+	 * Constructs records whose field values are given in some fixed order
+	 * (e.g. that of a record constructor), rather than in slot order.
+	 */
+	public static final class Template {
+		public final Shape shape;
+		/**
+		 * Maps the position of each field value to its slot.
+		 */
+		private final int[] slots;
+
+		public Template(String... fields) {
+			this.shape = Shape.of(fields);
+			this.slots = new int[fields.length];
+			for (int i = 0; i != fields.length; ++i) {
+				slots[i] = shape.indexOf(fields[i]);
+			}
+		}
+
+		/**
+		 * Construct a record from consecutive field values in a given array.
+		 *
+		 * @param source
+		 * @param offset
+		 *            Position of the value of the first field.
+		 * @return
+		 */
+		public RecordValue create(Object[] source, int offset) {
+			Object[] values = new Object[slots.length];
+			for (int i = 0; i != slots.length; ++i) {
+				values[slots[i]] = source[offset + i];
+			}
+			return new RecordValue(shape, values);
+		}
+
+		/**
+		 * Determine the slot of the ith field.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public int slot(int i) {
+			return slots[i];
+		}
+	}
+
+	/**
+	 * Accesses a given field of records. This remembers the slot of its field
+	 * for the last shape encountered, and may be seeded with the shape implied
+	 * by the static type of the record being accessed. Thus, for any record of
+	 * the expected shape, the field is loaded from a constant offset. Records
+	 * of other shapes (e.g. those flowing from a union type) are handled by
+	 * looking up the field and updating the cache. Since each cache entry is
+	 * immutable, an accessor may safely be shared between threads: a racing
+	 * update can only replace one valid entry with another.
+	 */
+	public static final class Accessor {
+		public final String field;
+		private Site site;
+
+		/**
+		 * @param field
+		 *            Name of the field to access.
+		 * @param expected
+		 *            Shape of the records expected, or <code>null</code> if
+		 *            unknown.
+		 */
+		public Accessor(String field, Shape expected) {
+			this.field = field;
+			this.site = new Site(expected, expected == null ? -1 : expected.indexOf(field));
+		}
+
+		private int slot(RecordValue r) {
+			Site s = site;
+			if (s.shape != r.shape) {
+				s = new Site(r.shape, r.shape.indexOf(field));
+				site = s;
+			}
+			return s.slot;
+		}
+
+		public Object get(RecordValue r) {
+			int slot = slot(r);
+			return slot < 0 ? null : r.values[slot];
+		}
+
+		public Object getMutable(RecordValue r) {
+			r.ensureUnique();
+			return get(r);
+		}
+
+		public void put(RecordValue r, Object value) {
+			r.ensureUnique();
+			int slot = slot(r);
+			if (slot >= 0) {
+				r.values[slot] = value;
+			} else {
+				r.add(field, value);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return field;
+		}
+	}
+
+	/**
+	 * A cached association between a shape and the slot of some field. This is
+	 * immutable, so that a cache can be safely updated by a single write.
+	 */
+	private static final class Site {
+		private final Shape shape;
+		private final int slot;
+
+		private Site(Shape shape, int slot) {
+			this.shape = shape;
+			this.slot = slot;
+		}
+	}
+}
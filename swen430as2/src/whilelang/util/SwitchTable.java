@@ -0,0 +1,167 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+
+/**
+ * <p>
+ * Determines the case at which control enters a switch statement for a given
+ * value. Control enters at the first case whose value equals the given value,
+ * unless a <code>default</code> case comes before it, and then falls through
+ * the remaining cases in order. When no case matches, control enters at the
+ * <code>default</code> case or, if there is none, skips the switch entirely.
+ * </p>
+ * <p>
+ * Since case values are always literals, the table is computed once from the
+ * statement. When every case value is an integer, and they are densely packed,
+ * the table is an array indexed by value. Otherwise, it is a hash table (which
+ * agrees with the <code>equals()</code> test used before, since every runtime
+ * value has a consistent <code>hashCode()</code>).
+ * </p>
+ */
+public final class SwitchTable {
+	/**
+	 * The largest number of entries permitted in a dense table, for each case
+	 * value it holds.
+	 */
+	private static final int DENSITY = 4;
+
+	/**
+	 * The case at which control enters when no case value matches. This is
+	 * the first <code>default</code> case, or the number of cases if there is
+	 * none.
+	 */
+	private final int otherwise;
+
+	/**
+	 * The smallest case value, when the table is dense.
+	 */
+	private final int min;
+
+	/**
+	 * The case at which control enters for each integer value from
+	 * <code>min</code>, or <code>null</code> if the table is not dense.
+	 */
+	private final int[] dense;
+
+	/**
+	 * The case at which control enters for each case value, when the table is
+	 * not dense.
+	 */
+	private final HashMap<Object, Integer> hashed;
+
+	private SwitchTable(int otherwise, int min, int[] dense, HashMap<Object, Integer> hashed) {
+		this.otherwise = otherwise;
+		this.min = min;
+		this.dense = dense;
+		this.hashed = hashed;
+	}
+
+	/**
+	 * Determine the index of the case at which control enters for a given
+	 * value. This is the number of cases when no case is entered.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public int lookup(Object value) {
+		if (dense != null) {
+			if (value instanceof Integer) {
+				long offset = (long) (Integer) value - min;
+				if (offset >= 0 && offset < dense.length) {
+					return dense[(int) offset];
+				}
+			}
+			return otherwise;
+		}
+		Integer index = hashed.get(value);
+		return index == null ? otherwise : index;
+	}
+
+	/**
+	 * Compute the table for a given switch statement.
+	 *
+	 * @param stmt
+	 * @return
+	 */
+	public static SwitchTable compile(Stmt.Switch stmt) {
+		List<Stmt.Case> cases = stmt.getCases();
+		int otherwise = cases.size();
+		for (int i = 0; i != cases.size(); ++i) {
+			if (cases.get(i).isDefault()) {
+				otherwise = i;
+				break;
+			}
+		}
+		// NOTE: only cases before the default can be entered directly, and
+		// only the first of any with the same value.
+		HashMap<Object, Integer> hashed = new HashMap<Object, Integer>();
+		boolean integers = true;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int i = 0; i != otherwise; ++i) {
+			Object value = valueOf(cases.get(i).getValue());
+			if (!hashed.containsKey(value)) {
+				hashed.put(value, i);
+				if (value instanceof Integer) {
+					min = Math.min(min, (Integer) value);
+					max = Math.max(max, (Integer) value);
+				} else {
+					integers = false;
+				}
+			}
+		}
+		if (hashed.isEmpty() || !integers || max - min >= (long) DENSITY * hashed.size()) {
+			return new SwitchTable(otherwise, 0, null, hashed);
+		}
+		int[] dense = new int[(int) (max - min + 1)];
+		for (int i = 0; i != dense.length; ++i) {
+			dense[i] = otherwise;
+		}
+		for (Map.Entry<Object, Integer> e : hashed.entrySet()) {
+			dense[(int) ((Integer) e.getKey() - min)] = e.getValue();
+		}
+		return new SwitchTable(otherwise, (int) min, dense, null);
+	}
+
+	/**
+	 * Determine the runtime value of a case literal.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private static Object valueOf(Expr.Literal e) {
+		Object o = e.getValue();
+		if (o instanceof String) {
+			String s = (String) o;
+			int[] chars = new int[s.length()];
+			for (int i = 0; i != chars.length; ++i) {
+				chars[i] = s.charAt(i);
+			}
+			return new ArrayValue(chars);
+		}
+		return Interpreter.valueOf(o);
+	}
+}
@@ -0,0 +1,300 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * Decides whether runtime values are instances of a given type, as required
+ * by <code>is</code> tests and casts. A matcher is compiled once from its
+ * type, such that named types are already expanded and record fields are
+ * found through inline caches rather than by name.
+ * </p>
+ * <p>
+ * Most tests avoid visiting the elements of arrays. An array whose elements
+ * are held unboxed is known to contain only integers (or booleans, or
+ * characters), which decides any element type at once. Otherwise, an array
+ * remembers the last matcher it was found to satisfy, until it is next
+ * updated, so repeated tests of the same array are constant time.
+ * </p>
+ */
+public abstract class TypeMatcher {
+	private final Type type;
+
+	private TypeMatcher(Type type) {
+		this.type = type;
+	}
+
+	/**
+	 * Determine whether a given value is an instance of this matcher's type.
+	 *
+	 * @param o
+	 * @return
+	 */
+	public abstract boolean matches(Object o);
+
+	/**
+	 * Determine whether every value of a given primitive class (e.g.
+	 * <code>Integer</code> or <code>Boolean</code>) is an instance of this
+	 * matcher's type. Since there are no refinements of the primitive types,
+	 * either every value of the class matches, or none does.
+	 *
+	 * @param c
+	 * @return
+	 */
+	protected abstract boolean accepts(Class<?> c);
+
+	/**
+	 * Get the type which this matcher tests for.
+	 *
+	 * @return
+	 */
+	public Type type() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return type.toString();
+	}
+
+	/**
+	 * Compile a matcher for a given type. Named types are expanded using the
+	 * given map of declarations, and may be recursive.
+	 *
+	 * @param t
+	 * @param declarations
+	 *            Maps the name of every declaration in the file to its body.
+	 * @return
+	 */
+	public static TypeMatcher compile(Type t, Map<String, WhileFile.Decl> declarations) {
+		return compile(t, declarations, new HashMap<String, Named>());
+	}
+
+	private static TypeMatcher compile(Type t, Map<String, WhileFile.Decl> declarations,
+			HashMap<String, Named> named) {
+		if (t instanceof Type.Void || t instanceof Type.Null) {
+			return new Null(t);
+		} else if (t instanceof Type.Bool) {
+			return new Primitive(t, Boolean.class);
+		} else if (t instanceof Type.Int) {
+			return new Primitive(t, Integer.class);
+		} else if (t instanceof Type.Named) {
+			String name = ((Type.Named) t).getName();
+			Named m = named.get(name);
+			if (m == null) {
+				// NOTE: register before compiling the body, since it may
+				// refer back to this type.
+				m = new Named(t);
+				named.put(name, m);
+				WhileFile.Decl declaration = declarations.get(name);
+				if (declaration instanceof WhileFile.TypeDecl) {
+					m.body = compile(((WhileFile.TypeDecl) declaration).getType(), declarations, named);
+				}
+			}
+			return m;
+		} else if (t instanceof Type.Array) {
+			return new Array(t, compile(((Type.Array) t).getElement(), declarations, named));
+		} else if (t instanceof Type.Record) {
+			List<Pair<Type, String>> fields = ((Type.Record) t).getFields();
+			RecordValue.Accessor[] accessors = new RecordValue.Accessor[fields.size()];
+			TypeMatcher[] matchers = new TypeMatcher[fields.size()];
+			RecordValue.Shape shape = Interpreter.shapeOf(t, declarations);
+			for (int i = 0; i != matchers.length; ++i) {
+				accessors[i] = new RecordValue.Accessor(fields.get(i).second(), shape);
+				matchers[i] = compile(fields.get(i).first(), declarations, named);
+			}
+			return new Record(t, accessors, matchers);
+		} else if (t instanceof Type.Union) {
+			ArrayList<TypeMatcher> bounds = new ArrayList<TypeMatcher>();
+			for (Type b : ((Type.Union) t).getType_list()) {
+				bounds.add(compile(b, declarations, named));
+			}
+			return new Union(t, bounds.toArray(new TypeMatcher[bounds.size()]));
+		}
+		throw new RuntimeException("unknown cast type");
+	}
+
+	private static final class Null extends TypeMatcher {
+		public Null(Type type) {
+			super(type);
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			return o == null;
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			return false;
+		}
+	}
+
+	private static final class Primitive extends TypeMatcher {
+		private final Class<?> kind;
+
+		public Primitive(Type type, Class<?> kind) {
+			super(type);
+			this.kind = kind;
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			return kind.isInstance(o);
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			return kind == c;
+		}
+	}
+
+	/**
+	 * Matches a named type. The body is resolved after construction, since a
+	 * type may be defined in terms of itself. A name which does not refer to a
+	 * type declaration matches nothing.
+	 */
+	private static final class Named extends TypeMatcher {
+		private TypeMatcher body;
+
+		public Named(Type type) {
+			super(type);
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			return body != null && body.matches(o);
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			// NOTE: a recursive type must pass through an array or record
+			// before reaching itself, and neither accepts a primitive.
+			return body != null && body.accepts(c);
+		}
+	}
+
+	private static final class Array extends TypeMatcher {
+		private final TypeMatcher element;
+
+		public Array(Type type, TypeMatcher element) {
+			super(type);
+			this.element = element;
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			if (!(o instanceof ArrayValue)) {
+				return false;
+			}
+			ArrayValue a = (ArrayValue) o;
+			if (a.size() == 0 || a.matched() == this) {
+				return true;
+			}
+			Class<?> c = a.elementClass();
+			if (c != null) {
+				return element.accepts(c);
+			}
+			for (int i = 0; i != a.size(); ++i) {
+				if (!element.matches(a.get(i))) {
+					return false;
+				}
+			}
+			a.setMatched(this);
+			return true;
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			return false;
+		}
+	}
+
+	/**
+	 * Matches a record type. As for field accesses, a record need only have
+	 * the fields of the type, and a field which is absent is treated as
+	 * <code>null</code>.
+	 */
+	private static final class Record extends TypeMatcher {
+		private final RecordValue.Accessor[] fields;
+		private final TypeMatcher[] matchers;
+
+		public Record(Type type, RecordValue.Accessor[] fields, TypeMatcher[] matchers) {
+			super(type);
+			this.fields = fields;
+			this.matchers = matchers;
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			if (!(o instanceof RecordValue)) {
+				return false;
+			}
+			RecordValue r = (RecordValue) o;
+			for (int i = 0; i != fields.length; ++i) {
+				if (!matchers[i].matches(fields[i].get(r))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			return false;
+		}
+	}
+
+	private static final class Union extends TypeMatcher {
+		private final TypeMatcher[] bounds;
+
+		public Union(Type type, TypeMatcher[] bounds) {
+			super(type);
+			this.bounds = bounds;
+		}
+
+		@Override
+		public boolean matches(Object o) {
+			for (int i = 0; i != bounds.length; ++i) {
+				if (bounds[i].matches(o)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		protected boolean accepts(Class<?> c) {
+			for (int i = 0; i != bounds.length; ++i) {
+				if (bounds[i].accepts(c)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
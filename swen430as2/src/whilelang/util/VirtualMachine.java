@@ -0,0 +1,365 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import static whilelang.util.BytecodeFile.*;
+
+import java.io.PrintStream;
+import java.util.Collections;
+
+
+/**
+ * <p>
+ * Executes a While program which has been lowered into register-based bytecode
+ * by the <code>BytecodeWriter</code>. Each function activation holds its
+ * registers in a single array, and instructions are dispatched from a single
+ * loop over the function's code array. The observable behaviour is identical
+ * to that of the <code>Interpreter</code>.
+ * </p>
+ * <p>
+ * Invocations do not consume any Java stack. Instead, each activation is
+ * allocated on the heap and linked to the activation of its caller, and the
+ * dispatch loop simply switches between them. Thus, the depth of recursion is
+ * bounded only by the available memory. Tail calls replace the current
+ * activation with that of their target, and so run in constant space.
+ * </p>
+ */
+public class VirtualMachine {
+	/**
+	 * The stream to which print instructions write.
+	 */
+	private final PrintStream out;
+
+	public VirtualMachine() {
+		this(System.out);
+	}
+
+	public VirtualMachine(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Execute a given bytecode file. Since neither the virtual machine nor the
+	 * file is modified by execution, any number of threads may run the same
+	 * file at once.
+	 *
+	 * @param bf
+	 */
+	public void run(BytecodeFile bf) {
+		// Pick the main method (if one exits) and execute it
+		BytecodeFile.Function main = bf.function("main");
+		if (main != null) {
+			execute(bf, main, new Object[0]);
+		} else {
+			out.println("Cannot find a main() function");
+		}
+	}
+
+	/**
+	 * Execute a given function with the given argument values, along with any
+	 * functions it invokes.
+	 *
+	 * @param file
+	 *            Bytecode file containing the function.
+	 * @param function
+	 *            Function to execute.
+	 * @param arguments
+	 *            Array of argument values.
+	 */
+	private Object execute(BytecodeFile file, BytecodeFile.Function function, Object[] arguments) {
+		final Object[] constants = file.constants;
+		Frame frame = new Frame(function, arguments, null);
+		Object[] r = frame.registers;
+		int[] code = function.code;
+		int pc = 0;
+		while (true) {
+			switch (code[pc]) {
+			case CONST:
+				r[code[pc + 1]] = constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case MOVE:
+				r[code[pc + 1]] = r[code[pc + 2]];
+				pc += 3;
+				break;
+			case CLONE:
+				r[code[pc + 1]] = Interpreter.copy(r[code[pc + 2]]);
+				pc += 3;
+				break;
+			case IADD:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] + (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case ISUB:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] - (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IMUL:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] * (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IDIV:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] / (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IREM:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] % (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IADDI:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] + code[pc + 3];
+				pc += 4;
+				break;
+			case INEG:
+				r[code[pc + 1]] = -(Integer) r[code[pc + 2]];
+				pc += 3;
+				break;
+			case ILT:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] < (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case ILE:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] <= (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IGT:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] > (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case IGE:
+				r[code[pc + 1]] = (Integer) r[code[pc + 2]] >= (Integer) r[code[pc + 3]];
+				pc += 4;
+				break;
+			case EQ:
+				r[code[pc + 1]] = equals(r[code[pc + 2]], r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case NE:
+				r[code[pc + 1]] = !equals(r[code[pc + 2]], r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case NOT:
+				r[code[pc + 1]] = !(Boolean) r[code[pc + 2]];
+				pc += 3;
+				break;
+			case IS:
+				r[code[pc + 1]] = ((TypeMatcher) constants[code[pc + 3]]).matches(r[code[pc + 2]]);
+				pc += 4;
+				break;
+			case CAST: {
+				Object o = r[code[pc + 2]];
+				TypeMatcher type = (TypeMatcher) constants[code[pc + 3]];
+				if (!type.matches(o)) {
+					throw new RuntimeException("cannot cast: " + o + " to" + type);
+				}
+				r[code[pc + 1]] = o;
+				pc += 4;
+				break;
+			}
+			case LENGTH:
+				r[code[pc + 1]] = ((ArrayValue) r[code[pc + 2]]).size();
+				pc += 3;
+				break;
+			case INDEX:
+				r[code[pc + 1]] = ((ArrayValue) r[code[pc + 2]]).get((Integer) r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case SETINDEX:
+				((ArrayValue) r[code[pc + 1]]).set((Integer) r[code[pc + 2]], r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case FIELD:
+				r[code[pc + 1]] = ((RecordValue.Accessor) constants[code[pc + 3]]).get((RecordValue) r[code[pc + 2]]);
+				pc += 4;
+				break;
+			case SETFIELD:
+				((RecordValue.Accessor) constants[code[pc + 2]]).put((RecordValue) r[code[pc + 1]], r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case NEWARRAY: {
+				int n = code[pc + 2];
+				int first = code[pc + 3];
+				Object[] ls = new Object[n];
+				System.arraycopy(r, first, ls, 0, n);
+				r[code[pc + 1]] = new ArrayValue(ls);
+				pc += 4;
+				break;
+			}
+			case GENARRAY: {
+				Object value = r[code[pc + 2]];
+				int size = (Integer) r[code[pc + 3]];
+				r[code[pc + 1]] = ArrayValue.generate(value, size);
+				pc += 4;
+				break;
+			}
+			case NEWRECORD:
+				r[code[pc + 1]] = ((RecordValue.Template) constants[code[pc + 2]]).create(r, code[pc + 3]);
+				pc += 4;
+				break;
+			case STRING: {
+				String s = (String) constants[code[pc + 2]];
+				int[] list = new int[s.length()];
+				for (int i = 0; i != list.length; ++i) {
+					list[i] = s.charAt(i);
+				}
+				r[code[pc + 1]] = new ArrayValue(list);
+				pc += 3;
+				break;
+			}
+			case CALL: {
+				BytecodeFile.Function target = file.functions[code[pc + 2]];
+				Object[] values = new Object[code[pc + 3]];
+				System.arraycopy(r, code[pc + 4], values, 0, values.length);
+				// Suspend this activation until the target returns
+				frame.pc = pc + 5;
+				frame.result = code[pc + 1];
+				frame = new Frame(target, values, frame);
+				r = frame.registers;
+				code = target.code;
+				pc = 0;
+				break;
+			}
+			case TAILCALL: {
+				BytecodeFile.Function target = file.functions[code[pc + 1]];
+				Object[] values = new Object[code[pc + 2]];
+				System.arraycopy(r, code[pc + 3], values, 0, values.length);
+				// The target returns directly to this activation's caller
+				frame = new Frame(target, values, frame.caller);
+				r = frame.registers;
+				code = target.code;
+				pc = 0;
+				break;
+			}
+			case RETURNNZ:
+			case RETURN:
+			case RETURNV: {
+				if (code[pc] == RETURNNZ && r[code[pc + 1]] == null) {
+					// Nothing to return, so continue with this activation
+					pc += 2;
+					break;
+				}
+				Object value = code[pc] == RETURNV ? Collections.EMPTY_SET : r[code[pc + 1]];
+				frame = frame.caller;
+				if (frame == null) {
+					return value;
+				}
+				// Resume the caller
+				r = frame.registers;
+				code = frame.function.code;
+				pc = frame.pc;
+				r[frame.result] = value;
+				break;
+			}
+			case GOTO:
+				pc = code[pc + 1];
+				break;
+			case IFTRUE:
+				pc = (Boolean) r[code[pc + 1]] ? code[pc + 2] : pc + 3;
+				break;
+			case IFFALSE:
+				pc = (Boolean) r[code[pc + 1]] ? pc + 3 : code[pc + 2];
+				break;
+			case IFILT:
+				pc = (Integer) r[code[pc + 1]] < (Integer) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFILE:
+				pc = (Integer) r[code[pc + 1]] <= (Integer) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFIGT:
+				pc = (Integer) r[code[pc + 1]] > (Integer) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFIGE:
+				pc = (Integer) r[code[pc + 1]] >= (Integer) r[code[pc + 2]] ? code[pc + 3] : pc + 4;
+				break;
+			case IFEQ:
+				pc = equals(r[code[pc + 1]], r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case IFNE:
+				pc = equals(r[code[pc + 1]], r[code[pc + 2]]) ? pc + 4 : code[pc + 3];
+				break;
+			case SWITCH:
+				pc += 3 + 2 * ((SwitchTable) constants[code[pc + 2]]).lookup(r[code[pc + 1]]);
+				break;
+			case PRINT:
+				out.println(Interpreter.toString(r[code[pc + 1]]));
+				pc += 2;
+				break;
+			case ASSERT:
+				if (!(Boolean) r[code[pc + 1]]) {
+					throw new RuntimeException("assertion failure");
+				}
+				pc += 2;
+				break;
+			case PACK: {
+				Object[] ls = new Object[code[pc + 2]];
+				System.arraycopy(r, code[pc + 3], ls, 0, ls.length);
+				r[code[pc + 1]] = ArrayValue.pack(ls);
+				pc += 4;
+				break;
+			}
+			case INDEXREF:
+				r[code[pc + 1]] = ((ArrayValue) r[code[pc + 2]]).getMutable((Integer) r[code[pc + 3]]);
+				pc += 4;
+				break;
+			case FIELDREF:
+				r[code[pc + 1]] = ((RecordValue.Accessor) constants[code[pc + 3]]).getMutable((RecordValue) r[code[pc + 2]]);
+				pc += 4;
+				break;
+			default:
+				throw new RuntimeException("unknown opcode encountered (" + code[pc] + ")");
+			}
+		}
+	}
+
+	/**
+	 * An activation of a function, which holds its registers and (whilst it is
+	 * suspended in a call) the point at which it will resume.
+	 */
+	private static final class Frame {
+		private final BytecodeFile.Function function;
+		private final Object[] registers;
+		private final Frame caller;
+		/**
+		 * The instruction to resume from after the pending call returns.
+		 */
+		private int pc;
+		/**
+		 * The register receiving the result of the pending call.
+		 */
+		private int result;
+
+		public Frame(BytecodeFile.Function function, Object[] arguments, Frame caller) {
+			if (function.arity != arguments.length) {
+				throw new RuntimeException(
+						"invalid number of arguments supplied to execution of function \"" + function.name + "\"");
+			}
+			this.function = function;
+			this.registers = new Object[function.registers];
+			this.caller = caller;
+			System.arraycopy(arguments, 0, registers, 0, arguments.length);
+		}
+	}
+
+	private static boolean equals(Object lhs, Object rhs) {
+		if (lhs == null || rhs == null) {
+			return lhs == rhs;
+		}
+		return lhs.equals(rhs);
+	}
+}
@@ -0,0 +1,108 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.ArrayValue;
+import whilelang.util.ClosureInterpreter;
+import whilelang.util.Interpreter;
+import whilelang.util.Memoizer;
+import whilelang.util.SyntaxError;
+
+public class MemoizerTests {
+	private static final String WHILE_SRC_DIR = "test_files/valid/".replace('/', File.separatorChar);
+
+	private static final Object METHOD = new Object();
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		Memoizer memoizer = new Memoizer(2);
+		Memoizer.Key one = key(memoizer, 1);
+		Memoizer.Key two = key(memoizer, 2);
+		Memoizer.Key three = key(memoizer, 3);
+		memoizer.put(one, 1);
+		memoizer.put(two, 2);
+		// Use the first, so the second is now the least recently used
+		assertEquals(1, memoizer.get(one));
+		memoizer.put(three, 3);
+		assertSame(Memoizer.MISS, memoizer.get(two));
+		assertEquals(1, memoizer.get(one));
+		assertEquals(3, memoizer.get(three));
+	}
+
+	@Test
+	public void copiesResults() {
+		Memoizer memoizer = new Memoizer();
+		Memoizer.Key key = key(memoizer, 1);
+		ArrayValue result = new ArrayValue(new int[] { 1, 2 });
+		memoizer.put(key, result);
+		// Updating the result after it was cached does not affect the cache
+		result.set(0, 3);
+		ArrayValue cached = (ArrayValue) memoizer.get(key);
+		assertEquals(new ArrayValue(new int[] { 1, 2 }), cached);
+		// Nor does updating a result taken from the cache
+		cached.set(0, 3);
+		assertEquals(new ArrayValue(new int[] { 1, 2 }), memoizer.get(key));
+	}
+
+	@Test
+	public void copiesArguments() {
+		Memoizer memoizer = new Memoizer();
+		ArrayValue argument = new ArrayValue(new int[] { 1, 2 });
+		memoizer.put(memoizer.key(METHOD, new Object[] { argument }), 3);
+		// Updating the argument after the invocation does not affect its key
+		argument.set(0, 3);
+		assertSame(Memoizer.MISS, memoizer.get(memoizer.key(METHOD, new Object[] { argument })));
+		Object[] original = new Object[] { new ArrayValue(new int[] { 1, 2 }) };
+		assertEquals(3, memoizer.get(memoizer.key(METHOD, original)));
+	}
+
+	@Test
+	public void interpreter() throws IOException {
+		WhileFile ast = compile("Memoize_Valid_1");
+		Memoizer memoizer = new Memoizer();
+		new Interpreter(memoizer).run(ast);
+		assertHits(memoizer);
+	}
+
+	@Test
+	public void closures() throws IOException {
+		WhileFile ast = compile("Memoize_Valid_1");
+		Memoizer memoizer = new Memoizer();
+		new ClosureInterpreter(memoizer).run(ast);
+		assertHits(memoizer);
+	}
+
+	private static Memoizer.Key key(Memoizer memoizer, int argument) {
+		return memoizer.key(METHOD, new Object[] { argument });
+	}
+
+	/**
+	 * Check that a run of the memoized program hit the cache exactly where it
+	 * should, by reading the summary it reports.
+	 *
+	 * @param memoizer
+	 */
+	private static void assertHits(Memoizer memoizer) {
+		// NOTE: main() is also pure, so its invocation is a miss
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		memoizer.report(new PrintStream(bytes, true));
+		assertEquals("memoize: 3 hits, 5 misses, 0 evictions (37.5% hit rate)", bytes.toString().trim());
+	}
+
+	private static WhileFile compile(String testname) throws IOException {
+		try {
+			return new WhileCompiler(WHILE_SRC_DIR + testname + ".while").compile();
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		}
+	}
+}
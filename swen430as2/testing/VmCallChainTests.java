@@ -0,0 +1,109 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeWriter;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.BytecodeFile;
+import whilelang.util.SyntaxError;
+import whilelang.util.VirtualMachine;
+
+public class VmCallChainTests {
+	/**
+	 * The number of methods in the chain.
+	 */
+	private static final int LENGTH = 20000;
+
+	/**
+	 * The Java stack given to the virtual machine, which is far too small for
+	 * one Java frame per call in the chain.
+	 */
+	private static final long STACK = 128 * 1024;
+
+	/**
+	 * Every other call in the chain is a tail call.
+	 */
+	@Test
+	public void mixed() throws Throwable {
+		runTest(2);
+	}
+
+	/**
+	 * No call in the chain is a tail call, so each leaves its activation
+	 * suspended on the frame stack.
+	 */
+	@Test
+	public void nested() throws Throwable {
+		runTest(LENGTH + 1);
+	}
+
+	/**
+	 * Every call in the chain is a tail call.
+	 */
+	@Test
+	public void tail() throws Throwable {
+		runTest(1);
+	}
+
+	/**
+	 * Generate a chain of methods, where each calls the next, and run it on the
+	 * virtual machine in a thread with a small stack. Since a method cannot
+	 * call itself, the chain is made from distinct methods, declared from last
+	 * to first. This should not produce any exceptions.
+	 *
+	 * @param period
+	 *            Every call whose position is a multiple of this is a tail
+	 *            call.
+	 * @throws Throwable
+	 */
+	private void runTest(int period) throws Throwable {
+		StringBuilder source = new StringBuilder();
+		source.append("int f" + (LENGTH - 1) + "(int x) {\n    return x;\n}\n\n");
+		for (int i = LENGTH - 2; i >= 0; --i) {
+			source.append("int f" + i + "(int x) {\n");
+			if (i % period == 0) {
+				source.append("    return f" + (i + 1) + "(x + 1);\n");
+			} else {
+				source.append("    int y = f" + (i + 1) + "(x + 1);\n");
+				source.append("    return y;\n");
+			}
+			source.append("}\n\n");
+		}
+		source.append("void main() {\n    assert f0(0) == " + (LENGTH - 1) + ";\n}\n");
+		final BytecodeFile bf = compile(source.toString());
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					new VirtualMachine().run(bf);
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		}, "vm", STACK);
+		thread.start();
+		thread.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	private static BytecodeFile compile(String source) throws IOException {
+		File file = File.createTempFile("chain", ".while");
+		try {
+			Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+			WhileFile ast = new WhileCompiler(file.getPath()).compile();
+			return new BytecodeWriter().write(ast);
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		} finally {
+			file.delete();
+		}
+	}
+}
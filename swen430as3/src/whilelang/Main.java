@@ -38,6 +38,9 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		boolean verbose = false;
+		boolean tiered = false;
+		int threshold = JitCompiler.DEFAULT_THRESHOLD;
+		File cache = null;
 		int fileArgsBegin = 0;
 
 		for (int i = 0; i != args.length; ++i) {
@@ -51,6 +54,12 @@ public class Main {
 					System.exit(0);
 				} else if (arg.equals("-verbose")) {
 					verbose = true;
+				} else if (arg.equals("-tiered")) {
+					tiered = true;
+				} else if (arg.equals("-threshold") && i + 1 < args.length) {
+					threshold = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-cache") && i + 1 < args.length) {
+					cache = new File(args[++i]);
 				} else {
 					throw new RuntimeException("Unknown option: " + args[i]);
 				}
@@ -61,7 +70,7 @@ public class Main {
 
 		for (int i = fileArgsBegin; i != args.length; ++i) {
 			String filename = args[i];
-			if(!compileAndExecute(filename,verbose)) {
+			if(!compileAndExecute(filename,verbose,tiered,threshold,cache)) {
 				System.exit(-1);
 			}
 		}
@@ -76,18 +85,36 @@ public class Main {
 	 * @param verbose
 	 *            Flag indicating whether or not to print out detailed
 	 *            information when an error occurs.
+	 * @param tiered
+	 *            Flag indicating whether to interpret the program, compiling
+	 *            methods into JVM bytecode only once they become hot.
+	 * @param threshold
+	 *            The number of invocations and loop iterations after which a
+	 *            method becomes hot.
+	 * @param cache
+	 *            Directory in which checked trees are cached, or
+	 *            <code>null</code> to always compile from source.
 	 * @return
 	 */
-	public static boolean compileAndExecute(String sourceFilename, boolean verbose) {
+	public static boolean compileAndExecute(String sourceFilename, boolean verbose, boolean tiered, int threshold,
+			File cache) {
 		try {			
 
-			WhileCompiler compiler = new WhileCompiler(sourceFilename);
+			WhileCompiler compiler = cache == null ? new WhileCompiler(sourceFilename)
+					: new WhileCompiler(sourceFilename, cache);
 
 			// First, compile the source file
 			WhileFile ast = compiler.compile();
+			if (compiler.isCached()) {
+				System.err.printf("Loaded %s from cache in %.3fms (full compile took %.3fms)%n", sourceFilename,
+						compiler.getLoadTime() / 1e6, compiler.getCompileTime() / 1e6);
+			}
 			
 			// Second, execute it!
-			//new Interpreter().run(ast);
+			if (tiered) {
+				new Interpreter(new JitCompiler(ast, threshold)).run(ast);
+				return true;
+			}
 			
 			String classFilename = sourceFilename.replace(".while", ".class");
 			new ClassFileWriter(classFilename).write(ast);
@@ -125,7 +152,10 @@ public class Main {
 	public static void usage() {
 		String[][] info = { 
 				{ "version", "Print version information" },
-				{ "verbose", "Print detailed information on what the compiler is doing" } 
+				{ "verbose", "Print detailed information on what the compiler is doing" },
+				{ "tiered", "Interpret programs, compiling methods to JVM bytecode once they become hot" },
+				{ "threshold <n>", "Compile a method after n invocations and loop iterations (with -tiered)" },
+				{ "cache <dir>", "Cache checked syntax trees in dir, and reuse them when the source is unchanged" } 
 				};
 
 		System.out.println("usage: wlc <options> <source-files>");
@@ -55,6 +55,51 @@ public interface Attribute {
 			this.end = end;
 		}
 
+		/**
+		 * Construct a source attribute from its packed form (see
+		 * <code>pack()</code>).
+		 *
+		 * @param position
+		 */
+		public Source(long position) {
+			this(start(position), end(position));
+		}
+
+		/**
+		 * Get the packed form of this attribute.
+		 *
+		 * @return
+		 */
+		public long pack() {
+			return pack(start, end);
+		}
+
+		/**
+		 * The packed form of an unknown position. This is the same as that of a
+		 * position whose start and end are both <code>-1</code>.
+		 */
+		public static final long NONE = -1L;
+
+		/**
+		 * Pack a position into a single <code>long</code>, such that the start
+		 * is held in the upper half and the end in the lower.
+		 *
+		 * @param start
+		 * @param end
+		 * @return
+		 */
+		public static long pack(int start, int end) {
+			return ((long) start << 32) | (end & 0xFFFFFFFFL);
+		}
+
+		public static int start(long position) {
+			return (int) (position >> 32);
+		}
+
+		public static int end(long position) {
+			return (int) position;
+		}
+
 		@Override
 		public String toString() {
 			return "@" + start + ":" + end;
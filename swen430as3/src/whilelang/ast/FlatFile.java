@@ -0,0 +1,814 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import whilelang.util.Pair;
+import whilelang.util.SyntacticElement;
+
+/**
+ * <p>
+ * A flat encoding of a <code>WhileFile</code>, in which the nodes of the tree
+ * are held in a handful of contiguous arrays rather than as individual
+ * objects. Every node (including every declaration, parameter, statement,
+ * case, expression and type) is identified by its index. For each node, the
+ * encoding holds its kind, its operands, its (packed) source position and the
+ * type attached to it (if any). The operands of a node are held together
+ * within a single shared array, and are either the indices of other nodes
+ * (<code>-1</code> for an absent node), or indices into the pools of strings
+ * and constants.
+ * </p>
+ * <p>
+ * Nodes are numbered in pre-order, such that a node comes before (and is
+ * close to) its children. A sequence of nodes (such as the body of a loop) is
+ * represented by a <code>LIST</code> node, whose operands are its elements.
+ * Types are shared as in the tree itself: a type object attached to several
+ * nodes is encoded only once.
+ * </p>
+ * <p>
+ * The compiler does not build this encoding itself, since its passes walk the
+ * tree and holding both would only cost memory. It is built on request by
+ * <code>flatten()</code>, such as when comparing two trees for equality.
+ * </p>
+ * <p>
+ * The encoding is walked through its accessors, such as <code>kind()</code>
+ * and <code>child()</code>, which never construct a node. The operands of each
+ * kind of node are as follows, where <code>name</code> is an index into the
+ * pool of strings, and the rest are nodes unless stated otherwise:
+ * </p>
+ *
+ * <pre>
+ * FILE                 [declarations]
+ * LIST                 [element*]
+ * FIELD                [name, value or type]
+ * TYPE_DECL            [name, type]
+ * METHOD_DECL          [name, return type, parameters, body]
+ * PARAMETER            [name, type]
+ * ASSERT, PRINT        [expr]
+ * RETURN               [expr]
+ * ASSIGN               [lhs, rhs]
+ * WHILE                [condition, body]
+ * FOR                  [declaration, condition, increment, body]
+ * IF_ELSE              [condition, true branch, false branch]
+ * BREAK, CONTINUE      []
+ * SWITCH               [expr, cases]
+ * CASE                 [value, body]
+ * VARIABLE_DECLARATION [name, type, initialiser]
+ * VARIABLE             [name]
+ * LITERAL              [constant]
+ * BINARY               [operator, lhs, rhs]
+ * INDEX_OF             [source, index]
+ * UNARY                [operator, expr]
+ * ARRAY_GENERATOR      [value, size]
+ * ARRAY_INITIALISER    [arguments]
+ * RECORD_ACCESS        [name, source]
+ * RECORD_CONSTRUCTOR   [fields]
+ * INVOKE               [name, arguments]
+ * VOID, BOOL, INT      []
+ * NAMED                [name]
+ * ARRAY                [element]
+ * RECORD               [fields]
+ * </pre>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class FlatFile {
+	public static final int FILE = 0;
+	public static final int LIST = 1;
+	public static final int FIELD = 2;
+	// Declarations
+	public static final int TYPE_DECL = 3;
+	public static final int METHOD_DECL = 4;
+	public static final int PARAMETER = 5;
+	// Statements
+	public static final int ASSERT = 6;
+	public static final int PRINT = 7;
+	public static final int ASSIGN = 8;
+	public static final int RETURN = 9;
+	public static final int WHILE = 10;
+	public static final int FOR = 11;
+	public static final int IF_ELSE = 12;
+	public static final int BREAK = 13;
+	public static final int CONTINUE = 14;
+	public static final int SWITCH = 15;
+	public static final int CASE = 16;
+	public static final int VARIABLE_DECLARATION = 17;
+	// Expressions
+	public static final int VARIABLE = 18;
+	public static final int LITERAL = 19;
+	public static final int BINARY = 20;
+	public static final int INDEX_OF = 21;
+	public static final int UNARY = 22;
+	public static final int ARRAY_GENERATOR = 23;
+	public static final int ARRAY_INITIALISER = 24;
+	public static final int RECORD_ACCESS = 25;
+	public static final int RECORD_CONSTRUCTOR = 26;
+	public static final int INVOKE = 27;
+	// Types
+	public static final int VOID = 28;
+	public static final int BOOL = 29;
+	public static final int INT = 30;
+	public static final int NAMED = 31;
+	public static final int ARRAY = 32;
+	public static final int RECORD = 33;
+
+	/**
+	 * The name of the file from which the tree was parsed.
+	 */
+	public final String filename;
+
+	/**
+	 * The kind of each node, and the index of its first operand in
+	 * <code>operands</code>. The operands of node <code>n</code> end where
+	 * those of node <code>n+1</code> begin.
+	 */
+	private final int[] kinds;
+	private final int[] offsets;
+	private final int[] operands;
+
+	/**
+	 * The source position of each node (see
+	 * <code>Attribute.Source.pack()</code>), and the node of the type attached
+	 * to it (or <code>-1</code>).
+	 */
+	private final long[] positions;
+	private final int[] types;
+
+	private final String[] strings;
+	private final Object[] constants;
+
+	private FlatFile(String filename, int[] kinds, int[] offsets, int[] operands, long[] positions, int[] types,
+			String[] strings, Object[] constants) {
+		this.filename = filename;
+		this.kinds = kinds;
+		this.offsets = offsets;
+		this.operands = operands;
+		this.positions = positions;
+		this.types = types;
+		this.strings = strings;
+		this.constants = constants;
+	}
+
+	/**
+	 * Get the number of nodes.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return kinds.length;
+	}
+
+	/**
+	 * Get the root node, which is always the <code>FILE</code> node.
+	 *
+	 * @return
+	 */
+	public int root() {
+		return 0;
+	}
+
+	/**
+	 * Get the list of declarations in the file.
+	 *
+	 * @return
+	 */
+	public int declarations() {
+		return child(root(), 0);
+	}
+
+	public int kind(int node) {
+		return kinds[node];
+	}
+
+	/**
+	 * Get the number of operands of a given node. For a <code>LIST</code>
+	 * node, this is the number of its elements.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int size(int node) {
+		return offsets[node + 1] - offsets[node];
+	}
+
+	/**
+	 * Get a given operand of a node. This is the index of a node (or
+	 * <code>-1</code>), unless the layout for the kind of node says
+	 * otherwise.
+	 *
+	 * @param node
+	 * @param i
+	 * @return
+	 */
+	public int child(int node, int i) {
+		return operands[offsets[node] + i];
+	}
+
+	/**
+	 * Get the name of a node whose first operand is a name (such as a
+	 * declaration, variable or field).
+	 *
+	 * @param node
+	 * @return
+	 */
+	public String name(int node) {
+		return strings[child(node, 0)];
+	}
+
+	/**
+	 * Get the value of a <code>LITERAL</code> node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public Object value(int node) {
+		return constants[child(node, 0)];
+	}
+
+	/**
+	 * Get the operator of a <code>BINARY</code> node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public Expr.BOp binaryOp(int node) {
+		return BOPS[child(node, 0)];
+	}
+
+	/**
+	 * Get the operator of a <code>UNARY</code> node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public Expr.UOp unaryOp(int node) {
+		return UOPS[child(node, 0)];
+	}
+
+	/**
+	 * Get the source position of a given node, packed as for
+	 * <code>Attribute.Source.pack()</code>.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public long position(int node) {
+		return positions[node];
+	}
+
+	/**
+	 * Get the (type) node attached to a given node by the type checker, or
+	 * <code>-1</code> if there is none.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int type(int node) {
+		return types[node];
+	}
+
+	private static final Expr.BOp[] BOPS = Expr.BOp.values();
+	private static final Expr.UOp[] UOPS = Expr.UOp.values();
+
+	/**
+	 * Encode a given tree.
+	 *
+	 * @param wf
+	 * @return
+	 */
+	public static FlatFile flatten(WhileFile wf) {
+		return new Builder().build(wf);
+	}
+
+	/**
+	 * Construct the tree which this encodes, such that it can be given to
+	 * those passes which walk the tree itself.
+	 *
+	 * @return
+	 */
+	public WhileFile expand() {
+		return new Expander().expand();
+	}
+
+	/**
+	 * Encodes a tree into arrays, which grow as needed and are trimmed once
+	 * the tree is complete.
+	 */
+	private static final class Builder {
+		private int[] kinds = new int[64];
+		private int[] offsets = new int[65];
+		private int[] operands = new int[128];
+		private long[] positions = new long[64];
+		private int[] types = new int[64];
+		private int size;
+		private int operandsSize;
+
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private final HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+		private final ArrayList<Object> constants = new ArrayList<Object>();
+		private final IdentityHashMap<Type, Integer> typeNodes = new IdentityHashMap<Type, Integer>();
+
+		public FlatFile build(WhileFile wf) {
+			int file = node(FILE, 1, null);
+			set(file, 0, declarations(wf.declarations));
+			offsets[size] = operandsSize;
+			return new FlatFile(wf.filename, Arrays.copyOf(kinds, size), Arrays.copyOf(offsets, size + 1),
+					Arrays.copyOf(operands, operandsSize), Arrays.copyOf(positions, size), Arrays.copyOf(types, size),
+					strings.toArray(new String[strings.size()]), constants.toArray());
+		}
+
+		private int declarations(List<WhileFile.Decl> decls) {
+			int list = node(LIST, decls.size(), null);
+			for (int i = 0; i != decls.size(); ++i) {
+				set(list, i, declaration(decls.get(i)));
+			}
+			return list;
+		}
+
+		private int declaration(WhileFile.Decl decl) {
+			if (decl instanceof WhileFile.TypeDecl) {
+				WhileFile.TypeDecl td = (WhileFile.TypeDecl) decl;
+				int node = node(TYPE_DECL, 2, td);
+				set(node, 0, string(td.getName()));
+				set(node, 1, type(td.getType()));
+				return node;
+			} else {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) decl;
+				int node = node(METHOD_DECL, 4, md);
+				set(node, 0, string(md.getName()));
+				set(node, 1, type(md.getRet()));
+				List<WhileFile.Parameter> parameters = md.getParameters();
+				int list = node(LIST, parameters.size(), null);
+				for (int i = 0; i != parameters.size(); ++i) {
+					WhileFile.Parameter p = parameters.get(i);
+					int parameter = node(PARAMETER, 2, p);
+					set(parameter, 0, string(p.getName()));
+					set(parameter, 1, type(p.getType()));
+					set(list, i, parameter);
+				}
+				set(node, 2, list);
+				set(node, 3, stmts(md.getBody()));
+				return node;
+			}
+		}
+
+		private int stmts(List<Stmt> stmts) {
+			int list = node(LIST, stmts.size(), null);
+			for (int i = 0; i != stmts.size(); ++i) {
+				set(list, i, stmt(stmts.get(i)));
+			}
+			return list;
+		}
+
+		private int stmt(Stmt stmt) {
+			int node;
+			if (stmt == null) {
+				return -1;
+			} else if (stmt instanceof Stmt.Assert) {
+				node = node(ASSERT, 1, stmt);
+				set(node, 0, expr(((Stmt.Assert) stmt).getExpr()));
+			} else if (stmt instanceof Stmt.Print) {
+				node = node(PRINT, 1, stmt);
+				set(node, 0, expr(((Stmt.Print) stmt).getExpr()));
+			} else if (stmt instanceof Stmt.Assign) {
+				Stmt.Assign s = (Stmt.Assign) stmt;
+				node = node(ASSIGN, 2, stmt);
+				set(node, 0, expr(s.getLhs()));
+				set(node, 1, expr(s.getRhs()));
+			} else if (stmt instanceof Stmt.Return) {
+				node = node(RETURN, 1, stmt);
+				set(node, 0, expr(((Stmt.Return) stmt).getExpr()));
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				node = node(WHILE, 2, stmt);
+				set(node, 0, expr(s.getCondition()));
+				set(node, 1, stmts(s.getBody()));
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				node = node(FOR, 4, stmt);
+				set(node, 0, stmt(s.getDeclaration()));
+				set(node, 1, expr(s.getCondition()));
+				set(node, 2, stmt(s.getIncrement()));
+				set(node, 3, stmts(s.getBody()));
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				node = node(IF_ELSE, 3, stmt);
+				set(node, 0, expr(s.getCondition()));
+				set(node, 1, stmts(s.getTrueBranch()));
+				set(node, 2, stmts(s.getFalseBranch()));
+			} else if (stmt instanceof Stmt.Break) {
+				node = node(BREAK, 0, stmt);
+			} else if (stmt instanceof Stmt.Continue) {
+				node = node(CONTINUE, 0, stmt);
+			} else if (stmt instanceof Stmt.Switch) {
+				Stmt.Switch s = (Stmt.Switch) stmt;
+				node = node(SWITCH, 2, stmt);
+				set(node, 0, expr(s.getExpr()));
+				List<Stmt.Case> cases = s.getCases();
+				int list = node(LIST, cases.size(), null);
+				for (int i = 0; i != cases.size(); ++i) {
+					Stmt.Case c = cases.get(i);
+					int n = node(CASE, 2, c);
+					set(n, 0, expr(c.getValue()));
+					set(n, 1, stmts(c.getBody()));
+					set(list, i, n);
+				}
+				set(node, 1, list);
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+				node = node(VARIABLE_DECLARATION, 3, stmt);
+				set(node, 0, string(s.getName()));
+				set(node, 1, type(s.getType()));
+				set(node, 2, expr(s.getExpr()));
+			} else if (stmt instanceof Expr.Invoke) {
+				return expr((Expr) stmt);
+			} else {
+				throw new IllegalArgumentException("unknown statement encountered (" + stmt + ")");
+			}
+			return node;
+		}
+
+		private int exprs(List<Expr> exprs) {
+			int list = node(LIST, exprs.size(), null);
+			for (int i = 0; i != exprs.size(); ++i) {
+				set(list, i, expr(exprs.get(i)));
+			}
+			return list;
+		}
+
+		private int expr(Expr expr) {
+			int node;
+			if (expr == null) {
+				return -1;
+			} else if (expr instanceof Expr.Variable) {
+				node = node(VARIABLE, 1, expr);
+				set(node, 0, string(((Expr.Variable) expr).getName()));
+			} else if (expr instanceof Expr.Literal) {
+				node = node(LITERAL, 1, expr);
+				set(node, 0, constants.size());
+				constants.add(((Expr.Literal) expr).getValue());
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				node = node(BINARY, 3, expr);
+				set(node, 0, e.getOp().ordinal());
+				set(node, 1, expr(e.getLhs()));
+				set(node, 2, expr(e.getRhs()));
+			} else if (expr instanceof Expr.IndexOf) {
+				Expr.IndexOf e = (Expr.IndexOf) expr;
+				node = node(INDEX_OF, 2, expr);
+				set(node, 0, expr(e.getSource()));
+				set(node, 1, expr(e.getIndex()));
+			} else if (expr instanceof Expr.Unary) {
+				Expr.Unary e = (Expr.Unary) expr;
+				node = node(UNARY, 2, expr);
+				set(node, 0, e.getOp().ordinal());
+				set(node, 1, expr(e.getExpr()));
+			} else if (expr instanceof Expr.ArrayGenerator) {
+				Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+				node = node(ARRAY_GENERATOR, 2, expr);
+				set(node, 0, expr(e.getValue()));
+				set(node, 1, expr(e.getSize()));
+			} else if (expr instanceof Expr.ArrayInitialiser) {
+				node = node(ARRAY_INITIALISER, 1, expr);
+				set(node, 0, exprs(((Expr.ArrayInitialiser) expr).getArguments()));
+			} else if (expr instanceof Expr.RecordAccess) {
+				Expr.RecordAccess e = (Expr.RecordAccess) expr;
+				node = node(RECORD_ACCESS, 2, expr);
+				set(node, 0, string(e.getName()));
+				set(node, 1, expr(e.getSource()));
+			} else if (expr instanceof Expr.RecordConstructor) {
+				List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr).getFields();
+				node = node(RECORD_CONSTRUCTOR, 1, expr);
+				int list = node(LIST, fields.size(), null);
+				for (int i = 0; i != fields.size(); ++i) {
+					Pair<String, Expr> field = fields.get(i);
+					int n = node(FIELD, 2, null);
+					set(n, 0, string(field.first()));
+					set(n, 1, expr(field.second()));
+					set(list, i, n);
+				}
+				set(node, 0, list);
+			} else if (expr instanceof Expr.Invoke) {
+				Expr.Invoke e = (Expr.Invoke) expr;
+				node = node(INVOKE, 2, expr);
+				set(node, 0, string(e.getName()));
+				set(node, 1, exprs(e.getArguments()));
+			} else {
+				throw new IllegalArgumentException("unknown expression encountered (" + expr + ")");
+			}
+			Attribute.Type attr = expr.attribute(Attribute.Type.class);
+			if (attr != null) {
+				// NOTE: the arrays may grow whilst the type is encoded
+				int type = type(attr.type);
+				types[node] = type;
+			}
+			return node;
+		}
+
+		/**
+		 * Encode a type, or return the node of the same type already encoded.
+		 *
+		 * @param type
+		 * @return
+		 */
+		private int type(Type type) {
+			Integer index = typeNodes.get(type);
+			int node;
+			if (type == null) {
+				return -1;
+			} else if (index != null) {
+				return index;
+			} else if (type instanceof Type.Void) {
+				node = node(VOID, 0, type);
+			} else if (type instanceof Type.Bool) {
+				node = node(BOOL, 0, type);
+			} else if (type instanceof Type.Int) {
+				node = node(INT, 0, type);
+			} else if (type instanceof Type.Named) {
+				node = node(NAMED, 1, type);
+				set(node, 0, string(((Type.Named) type).getName()));
+			} else if (type instanceof Type.Array) {
+				node = node(ARRAY, 1, type);
+				set(node, 0, type(((Type.Array) type).getElement()));
+			} else if (type instanceof Type.Record) {
+				List<Pair<Type, String>> fields = ((Type.Record) type).getFields();
+				node = node(RECORD, 1, type);
+				int list = node(LIST, fields.size(), null);
+				for (int i = 0; i != fields.size(); ++i) {
+					Pair<Type, String> field = fields.get(i);
+					int n = node(FIELD, 2, null);
+					set(n, 0, string(field.second()));
+					set(n, 1, type(field.first()));
+					set(list, i, n);
+				}
+				set(node, 0, list);
+			} else {
+				throw new IllegalArgumentException("unknown type encountered (" + type + ")");
+			}
+			typeNodes.put(type, node);
+			return node;
+		}
+
+		private int string(String s) {
+			Integer index = stringIndices.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				stringIndices.put(s, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Allocate a node with a given number of operands, which are filled in
+		 * by <code>set()</code> once its children have been encoded.
+		 *
+		 * @param kind
+		 * @param arity
+		 * @param element
+		 *            The element from which the position is taken, or
+		 *            <code>null</code> if there is none.
+		 * @return
+		 */
+		private int node(int kind, int arity, SyntacticElement element) {
+			if (size + 1 == kinds.length) {
+				int capacity = kinds.length * 2;
+				kinds = Arrays.copyOf(kinds, capacity);
+				offsets = Arrays.copyOf(offsets, capacity + 1);
+				positions = Arrays.copyOf(positions, capacity);
+				types = Arrays.copyOf(types, capacity);
+			}
+			if (operandsSize + arity > operands.length) {
+				operands = Arrays.copyOf(operands, Math.max(operands.length * 2, operandsSize + arity));
+			}
+			int node = size++;
+			kinds[node] = kind;
+			offsets[node] = operandsSize;
+			positions[node] = element == null ? Attribute.Source.NONE : element.position();
+			types[node] = -1;
+			operandsSize += arity;
+			return node;
+		}
+
+		private void set(int node, int i, int operand) {
+			operands[offsets[node] + i] = operand;
+		}
+	}
+
+	/**
+	 * Constructs the tree which an encoding represents.
+	 */
+	private final class Expander {
+		/**
+		 * The type constructed for each type node, such that types shared in
+		 * the encoding are shared in the tree.
+		 */
+		private final Type[] typeObjects = new Type[kinds.length];
+
+		public WhileFile expand() {
+			int list = declarations();
+			ArrayList<WhileFile.Decl> decls = new ArrayList<WhileFile.Decl>(size(list));
+			for (int i = 0; i != size(list); ++i) {
+				decls.add(declaration(child(list, i)));
+			}
+			return new WhileFile(filename, decls);
+		}
+
+		private WhileFile.Decl declaration(int node) {
+			if (kind(node) == TYPE_DECL) {
+				return new WhileFile.TypeDecl(type(child(node, 1)), name(node), source(node));
+			} else {
+				int list = child(node, 2);
+				ArrayList<WhileFile.Parameter> parameters = new ArrayList<WhileFile.Parameter>(size(list));
+				for (int i = 0; i != size(list); ++i) {
+					int p = child(list, i);
+					parameters.add(new WhileFile.Parameter(type(child(p, 1)), name(p), source(p)));
+				}
+				return new WhileFile.MethodDecl(name(node), type(child(node, 1)), parameters, stmts(child(node, 3)),
+						source(node));
+			}
+		}
+
+		private List<Stmt> stmts(int list) {
+			ArrayList<Stmt> stmts = new ArrayList<Stmt>(size(list));
+			for (int i = 0; i != size(list); ++i) {
+				stmts.add(stmt(child(list, i)));
+			}
+			return stmts;
+		}
+
+		private Stmt stmt(int node) {
+			if (node < 0) {
+				return null;
+			}
+			switch (kind(node)) {
+			case ASSERT:
+				return new Stmt.Assert(expr(child(node, 0)), source(node));
+			case PRINT:
+				return new Stmt.Print(expr(child(node, 0)), source(node));
+			case ASSIGN:
+				return new Stmt.Assign((Expr.LVal) expr(child(node, 0)), expr(child(node, 1)), source(node));
+			case RETURN:
+				return new Stmt.Return(expr(child(node, 0)), source(node));
+			case WHILE:
+				return new Stmt.While(expr(child(node, 0)), stmts(child(node, 1)), source(node));
+			case FOR:
+				return new Stmt.For((Stmt.VariableDeclaration) stmt(child(node, 0)), expr(child(node, 1)),
+						stmt(child(node, 2)), stmts(child(node, 3)), source(node));
+			case IF_ELSE:
+				return new Stmt.IfElse(expr(child(node, 0)), stmts(child(node, 1)), stmts(child(node, 2)),
+						source(node));
+			case BREAK:
+				return new Stmt.Break(source(node));
+			case CONTINUE:
+				return new Stmt.Continue(source(node));
+			case SWITCH: {
+				int list = child(node, 1);
+				ArrayList<Stmt.Case> cases = new ArrayList<Stmt.Case>(size(list));
+				for (int i = 0; i != size(list); ++i) {
+					int c = child(list, i);
+					cases.add(new Stmt.Case((Expr.Literal) expr(child(c, 0)), stmts(child(c, 1)), source(c)));
+				}
+				return new Stmt.Switch(expr(child(node, 0)), cases, source(node));
+			}
+			case VARIABLE_DECLARATION:
+				return new Stmt.VariableDeclaration(type(child(node, 1)), name(node), expr(child(node, 2)),
+						source(node));
+			case INVOKE:
+				return (Expr.Invoke) expr(node);
+			default:
+				throw new IllegalArgumentException("invalid statement node (" + kind(node) + ")");
+			}
+		}
+
+		private List<Expr> exprs(int list) {
+			ArrayList<Expr> exprs = new ArrayList<Expr>(size(list));
+			for (int i = 0; i != size(list); ++i) {
+				exprs.add(expr(child(list, i)));
+			}
+			return exprs;
+		}
+
+		private Expr expr(int node) {
+			Expr expr;
+			if (node < 0) {
+				return null;
+			}
+			switch (kind(node)) {
+			case VARIABLE:
+				expr = new Expr.Variable(name(node), source(node));
+				break;
+			case LITERAL:
+				expr = new Expr.Literal(value(node), source(node));
+				break;
+			case BINARY:
+				expr = new Expr.Binary(binaryOp(node), expr(child(node, 1)), expr(child(node, 2)), source(node));
+				break;
+			case INDEX_OF:
+				expr = new Expr.IndexOf(expr(child(node, 0)), expr(child(node, 1)), source(node));
+				break;
+			case UNARY:
+				expr = new Expr.Unary(unaryOp(node), expr(child(node, 1)), source(node));
+				break;
+			case ARRAY_GENERATOR:
+				expr = new Expr.ArrayGenerator(expr(child(node, 0)), expr(child(node, 1)), source(node));
+				break;
+			case ARRAY_INITIALISER:
+				expr = new Expr.ArrayInitialiser(exprs(child(node, 0)), source(node));
+				break;
+			case RECORD_ACCESS:
+				expr = new Expr.RecordAccess(expr(child(node, 1)), name(node), source(node));
+				break;
+			case RECORD_CONSTRUCTOR: {
+				int list = child(node, 0);
+				ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>(size(list));
+				for (int i = 0; i != size(list); ++i) {
+					int field = child(list, i);
+					fields.add(new Pair<String, Expr>(name(field), expr(child(field, 1))));
+				}
+				expr = new Expr.RecordConstructor(fields, source(node));
+				break;
+			}
+			case INVOKE:
+				expr = new Expr.Invoke(name(node), exprs(child(node, 1)), source(node));
+				break;
+			default:
+				throw new IllegalArgumentException("invalid expression node (" + kind(node) + ")");
+			}
+			if (types[node] >= 0) {
+				expr.attributes().add(new Attribute.Type(type(types[node])));
+			}
+			return expr;
+		}
+
+		private Type type(int node) {
+			if (node < 0) {
+				return null;
+			} else if (typeObjects[node] != null) {
+				return typeObjects[node];
+			}
+			Type type;
+			switch (kind(node)) {
+			case VOID:
+				type = new Type.Void(source(node));
+				break;
+			case BOOL:
+				type = new Type.Bool(source(node));
+				break;
+			case INT:
+				type = new Type.Int(source(node));
+				break;
+			case NAMED:
+				type = new Type.Named(name(node), source(node));
+				break;
+			case ARRAY:
+				type = new Type.Array(type(child(node, 0)), source(node));
+				break;
+			case RECORD: {
+				int list = child(node, 0);
+				ArrayList<Pair<Type, String>> fields = new ArrayList<Pair<Type, String>>(size(list));
+				for (int i = 0; i != size(list); ++i) {
+					int field = child(list, i);
+					fields.add(new Pair<Type, String>(type(child(field, 1)), name(field)));
+				}
+				type = new Type.Record(fields, source(node));
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("invalid type node (" + kind(node) + ")");
+			}
+			typeObjects[node] = type;
+			return type;
+		}
+
+		private Attribute[] source(int node) {
+			long position = positions[node];
+			if (position == Attribute.Source.NONE) {
+				return new Attribute[0];
+			}
+			return new Attribute[] { new Attribute.Source(position) };
+		}
+	}
+}
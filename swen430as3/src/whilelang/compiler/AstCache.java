@@ -0,0 +1,848 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+import whilelang.util.SyntacticElement;
+
+/**
+ * <p>
+ * Caches the checked Abstract Syntax Tree of each While file compiled, so that
+ * compiling the same source again need not lex, parse or check it. Entries are
+ * kept in a directory, one file per source, named by a hash of the source
+ * text. Hence, an entry can never be stale: changing the source changes the
+ * name under which its entry would be found.
+ * </p>
+ * <p>
+ * Each entry is a compact binary encoding of the tree, including the source
+ * and type attributes of every node. Integers are written in a variable-length
+ * form (since most counts and differences between positions are small), and
+ * every distinct string or type is written only once and thereafter referred
+ * to by its index.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class AstCache {
+	/**
+	 * Identifies a file as an entry in the cache.
+	 */
+	private static final int MAGIC = 0x57484C41;
+
+	/**
+	 * The version of the encoding. This must be changed whenever the encoding
+	 * (or the tree being encoded) changes, such that older entries are ignored.
+	 */
+	private static final int VERSION = 2;
+
+	private final File directory;
+
+	/**
+	 * Construct a cache whose entries are kept in a given directory, which is
+	 * created when the first entry is stored if it does not already exist.
+	 *
+	 * @param directory
+	 */
+	public AstCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * The tree loaded from an entry in the cache, along with how long it
+	 * originally took to compile.
+	 */
+	public static final class Entry {
+		public final WhileFile ast;
+		public final long compileTime;
+
+		public Entry(WhileFile ast, long compileTime) {
+			this.ast = ast;
+			this.compileTime = compileTime;
+		}
+	}
+
+	/**
+	 * Load the tree for a given source from the cache, or return
+	 * <code>null</code> if there is no (readable) entry for it. An entry which
+	 * cannot be read is removed, such that it is replaced when the source is
+	 * next compiled.
+	 *
+	 * @param filename
+	 *            The name of the source file, which is given to the tree.
+	 * @param source
+	 *            The contents of the source file.
+	 * @return
+	 */
+	public Entry load(String filename, byte[] source) {
+		File file = entry(source);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long compileTime = in.readLong();
+			WhileFile ast = new Reader(in).read(filename);
+			return new Entry(ast, compileTime);
+		} catch (IOException e) {
+			// A truncated entry is treated as missing
+			file.delete();
+			return null;
+		} catch (RuntimeException e) {
+			// As is a corrupt one, or one written by an encoding which differs
+			// without a change of version
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store the tree for a given source in the cache. The entry is written to
+	 * a temporary file first, and then moved into place, such that a
+	 * concurrent load never sees a partial entry.
+	 *
+	 * @param source
+	 *            The contents of the source file.
+	 * @param ast
+	 *            The checked tree for the source.
+	 * @param compileTime
+	 *            How long it took to compile the tree (in nanoseconds).
+	 * @throws IOException
+	 */
+	public void store(byte[] source, WhileFile ast, long compileTime) throws IOException {
+		File file = entry(source);
+		directory.mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(compileTime);
+				new Writer(out).write(ast);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Determine the file holding the entry for a given source.
+	 *
+	 * @param source
+	 * @return
+	 */
+	private File entry(byte[] source) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(source);
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b & 0xFF));
+			}
+			return new File(directory, name.append(".ast").toString());
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Tags identifying each kind of node in the encoding. Zero is reserved for
+	// null, which is permitted wherever a node is optional.
+	private static final int NULL = 0;
+	private static final int TYPE_DECL = 1;
+	private static final int METHOD_DECL = 2;
+
+	private static final int ASSERT = 1;
+	private static final int PRINT = 2;
+	private static final int ASSIGN = 3;
+	private static final int RETURN = 4;
+	private static final int WHILE = 5;
+	private static final int FOR = 6;
+	private static final int IF_ELSE = 7;
+	private static final int BREAK = 8;
+	private static final int CONTINUE = 9;
+	private static final int SWITCH = 10;
+	private static final int VARIABLE_DECLARATION = 11;
+	private static final int INVOKE = 12;
+
+	private static final int VARIABLE = 13;
+	private static final int LITERAL = 14;
+	private static final int BINARY = 15;
+	private static final int INDEX_OF = 16;
+	private static final int UNARY = 17;
+	private static final int ARRAY_GENERATOR = 18;
+	private static final int ARRAY_INITIALISER = 19;
+	private static final int RECORD_ACCESS = 20;
+	private static final int RECORD_CONSTRUCTOR = 21;
+
+	private static final int VOID = 1;
+	private static final int BOOL = 2;
+	private static final int INT = 3;
+	private static final int NAMED = 4;
+	private static final int ARRAY = 5;
+	private static final int RECORD = 6;
+	private static final int TYPE_REFERENCE = 7;
+
+	private static final int SOURCE = 1;
+	private static final int TYPE = 2;
+
+	private static final int BOOLEAN_VALUE = 1;
+	private static final int INTEGER_VALUE = 2;
+	private static final int CHARACTER_VALUE = 3;
+	private static final int STRING_VALUE = 4;
+	private static final int LIST_VALUE = 5;
+	private static final int RECORD_VALUE = 6;
+
+	/**
+	 * Encodes a tree onto a stream.
+	 */
+	private static final class Writer {
+		private final DataOutputStream out;
+		private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+		private final IdentityHashMap<Type, Integer> types = new IdentityHashMap<Type, Integer>();
+
+		/**
+		 * The start of the last source attribute written. Each start is written
+		 * relative to the last, and each end relative to its start, since
+		 * these differences are mostly small even when positions are not.
+		 */
+		private int position;
+
+		public Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		public void write(WhileFile wf) throws IOException {
+			writeInt(wf.declarations.size());
+			for (WhileFile.Decl d : wf.declarations) {
+				if (d instanceof WhileFile.TypeDecl) {
+					WhileFile.TypeDecl td = (WhileFile.TypeDecl) d;
+					writeInt(TYPE_DECL);
+					write(td.getType());
+					writeString(td.getName());
+				} else {
+					WhileFile.MethodDecl md = (WhileFile.MethodDecl) d;
+					writeInt(METHOD_DECL);
+					writeString(md.getName());
+					write(md.getRet());
+					writeInt(md.getParameters().size());
+					for (WhileFile.Parameter p : md.getParameters()) {
+						write(p.getType());
+						writeString(p.getName());
+						writeAttributes(p);
+					}
+					writeStmts(md.getBody());
+				}
+				writeAttributes(d);
+			}
+		}
+
+		private void writeStmts(List<Stmt> stmts) throws IOException {
+			writeInt(stmts.size());
+			for (Stmt s : stmts) {
+				write(s);
+			}
+		}
+
+		private void write(Stmt stmt) throws IOException {
+			if (stmt == null) {
+				writeInt(NULL);
+				return;
+			} else if (stmt instanceof Stmt.Assert) {
+				writeInt(ASSERT);
+				write(((Stmt.Assert) stmt).getExpr());
+			} else if (stmt instanceof Stmt.Print) {
+				writeInt(PRINT);
+				write(((Stmt.Print) stmt).getExpr());
+			} else if (stmt instanceof Stmt.Assign) {
+				Stmt.Assign s = (Stmt.Assign) stmt;
+				writeInt(ASSIGN);
+				write(s.getLhs());
+				write(s.getRhs());
+			} else if (stmt instanceof Stmt.Return) {
+				writeInt(RETURN);
+				write(((Stmt.Return) stmt).getExpr());
+			} else if (stmt instanceof Stmt.While) {
+				Stmt.While s = (Stmt.While) stmt;
+				writeInt(WHILE);
+				write(s.getCondition());
+				writeStmts(s.getBody());
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				writeInt(FOR);
+				write(s.getDeclaration());
+				write(s.getCondition());
+				write(s.getIncrement());
+				writeStmts(s.getBody());
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				writeInt(IF_ELSE);
+				write(s.getCondition());
+				writeStmts(s.getTrueBranch());
+				writeStmts(s.getFalseBranch());
+			} else if (stmt instanceof Stmt.Break) {
+				writeInt(BREAK);
+			} else if (stmt instanceof Stmt.Continue) {
+				writeInt(CONTINUE);
+			} else if (stmt instanceof Stmt.Switch) {
+				Stmt.Switch s = (Stmt.Switch) stmt;
+				writeInt(SWITCH);
+				write(s.getExpr());
+				writeInt(s.getCases().size());
+				for (Stmt.Case c : s.getCases()) {
+					write(c.getValue());
+					writeStmts(c.getBody());
+					writeAttributes(c);
+				}
+			} else if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+				writeInt(VARIABLE_DECLARATION);
+				write(s.getType());
+				writeString(s.getName());
+				write(s.getExpr());
+			} else if (stmt instanceof Expr.Invoke) {
+				write((Expr) stmt);
+				return;
+			} else {
+				throw new IllegalArgumentException("unknown statement encountered (" + stmt + ")");
+			}
+			writeAttributes(stmt);
+		}
+
+		private void write(Expr expr) throws IOException {
+			if (expr == null) {
+				writeInt(NULL);
+				return;
+			} else if (expr instanceof Expr.Variable) {
+				writeInt(VARIABLE);
+				writeString(((Expr.Variable) expr).getName());
+			} else if (expr instanceof Expr.Literal) {
+				writeInt(LITERAL);
+				writeValue(((Expr.Literal) expr).getValue());
+			} else if (expr instanceof Expr.Binary) {
+				Expr.Binary e = (Expr.Binary) expr;
+				writeInt(BINARY);
+				writeInt(e.getOp().ordinal());
+				write(e.getLhs());
+				write(e.getRhs());
+			} else if (expr instanceof Expr.IndexOf) {
+				Expr.IndexOf e = (Expr.IndexOf) expr;
+				writeInt(INDEX_OF);
+				write(e.getSource());
+				write(e.getIndex());
+			} else if (expr instanceof Expr.Unary) {
+				Expr.Unary e = (Expr.Unary) expr;
+				writeInt(UNARY);
+				writeInt(e.getOp().ordinal());
+				write(e.getExpr());
+			} else if (expr instanceof Expr.ArrayGenerator) {
+				Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+				writeInt(ARRAY_GENERATOR);
+				write(e.getValue());
+				write(e.getSize());
+			} else if (expr instanceof Expr.ArrayInitialiser) {
+				Expr.ArrayInitialiser e = (Expr.ArrayInitialiser) expr;
+				writeInt(ARRAY_INITIALISER);
+				writeExprs(e.getArguments());
+			} else if (expr instanceof Expr.RecordAccess) {
+				Expr.RecordAccess e = (Expr.RecordAccess) expr;
+				writeInt(RECORD_ACCESS);
+				write(e.getSource());
+				writeString(e.getName());
+			} else if (expr instanceof Expr.RecordConstructor) {
+				Expr.RecordConstructor e = (Expr.RecordConstructor) expr;
+				writeInt(RECORD_CONSTRUCTOR);
+				writeInt(e.getFields().size());
+				for (Pair<String, Expr> field : e.getFields()) {
+					writeString(field.first());
+					write(field.second());
+				}
+			} else if (expr instanceof Expr.Invoke) {
+				Expr.Invoke e = (Expr.Invoke) expr;
+				writeInt(INVOKE);
+				writeString(e.getName());
+				writeExprs(e.getArguments());
+			} else {
+				throw new IllegalArgumentException("unknown expression encountered (" + expr + ")");
+			}
+			writeAttributes(expr);
+		}
+
+		private void writeExprs(List<Expr> exprs) throws IOException {
+			writeInt(exprs.size());
+			for (Expr e : exprs) {
+				write(e);
+			}
+		}
+
+		/**
+		 * Write a type, or the index of the same type already written. Types
+		 * are commonly shared, since the type checker attaches the declared
+		 * type of a variable to every use of it.
+		 *
+		 * @param type
+		 * @throws IOException
+		 */
+		private void write(Type type) throws IOException {
+			Integer index = types.get(type);
+			if (type == null) {
+				writeInt(NULL);
+				return;
+			} else if (index != null) {
+				writeInt(TYPE_REFERENCE);
+				writeInt(index);
+				return;
+			} else if (type instanceof Type.Void) {
+				writeInt(VOID);
+			} else if (type instanceof Type.Bool) {
+				writeInt(BOOL);
+			} else if (type instanceof Type.Int) {
+				writeInt(INT);
+			} else if (type instanceof Type.Named) {
+				writeInt(NAMED);
+				writeString(((Type.Named) type).getName());
+			} else if (type instanceof Type.Array) {
+				writeInt(ARRAY);
+				write(((Type.Array) type).getElement());
+			} else if (type instanceof Type.Record) {
+				List<Pair<Type, String>> fields = ((Type.Record) type).getFields();
+				writeInt(RECORD);
+				writeInt(fields.size());
+				for (Pair<Type, String> field : fields) {
+					write(field.first());
+					writeString(field.second());
+				}
+			} else {
+				throw new IllegalArgumentException("unknown type encountered (" + type + ")");
+			}
+			writeAttributes(type);
+			// NOTE: numbered after its components, as when read
+			types.put(type, types.size());
+		}
+
+		@SuppressWarnings("unchecked")
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				writeInt(NULL);
+			} else if (value instanceof Boolean) {
+				writeInt(BOOLEAN_VALUE);
+				writeInt((Boolean) value ? 1 : 0);
+			} else if (value instanceof Integer) {
+				writeInt(INTEGER_VALUE);
+				writeInt((Integer) value);
+			} else if (value instanceof Character) {
+				writeInt(CHARACTER_VALUE);
+				writeInt((Character) value);
+			} else if (value instanceof String) {
+				writeInt(STRING_VALUE);
+				writeString((String) value);
+			} else if (value instanceof List) {
+				List<Object> list = (List<Object>) value;
+				writeInt(LIST_VALUE);
+				writeInt(list.size());
+				for (Object v : list) {
+					writeValue(v);
+				}
+			} else if (value instanceof Map) {
+				Map<String, Object> record = (Map<String, Object>) value;
+				writeInt(RECORD_VALUE);
+				writeInt(record.size());
+				for (Map.Entry<String, Object> field : record.entrySet()) {
+					writeString(field.getKey());
+					writeValue(field.getValue());
+				}
+			} else {
+				throw new IllegalArgumentException("unknown constant encountered (" + value + ")");
+			}
+		}
+
+		private void writeAttributes(SyntacticElement element) throws IOException {
+			List<Attribute> attributes = element.attributes();
+			long source = element.position();
+			if (source == Attribute.Source.NONE) {
+				writeInt(attributes.size());
+			} else {
+				int start = Attribute.Source.start(source);
+				writeInt(attributes.size() + 1);
+				writeInt(SOURCE);
+				writeInt(start - position);
+				writeInt(Attribute.Source.end(source) - start);
+				position = start;
+			}
+			for (Attribute a : attributes) {
+				if (a instanceof Attribute.Type) {
+					writeInt(TYPE);
+					write(((Attribute.Type) a).type);
+				} else {
+					throw new IllegalArgumentException("unknown attribute encountered (" + a + ")");
+				}
+			}
+		}
+
+		/**
+		 * Write a string, or the index of an identical string already written.
+		 *
+		 * @param s
+		 * @throws IOException
+		 */
+		private void writeString(String s) throws IOException {
+			Integer index = strings.get(s);
+			if (index != null) {
+				writeInt(index + 1);
+			} else {
+				strings.put(s, strings.size());
+				writeInt(0);
+				out.writeUTF(s);
+			}
+		}
+
+		/**
+		 * Write an integer in as few bytes as possible, such that those of
+		 * small magnitude (whether positive or negative) take only one.
+		 *
+		 * @param i
+		 * @throws IOException
+		 */
+		private void writeInt(int i) throws IOException {
+			int v = (i << 1) ^ (i >> 31);
+			while ((v & ~0x7F) != 0) {
+				out.writeByte((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.writeByte(v);
+		}
+	}
+
+	/**
+	 * Decodes a tree from a stream.
+	 */
+	private static final class Reader {
+		private final DataInputStream in;
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private final ArrayList<Type> types = new ArrayList<Type>();
+		private int position;
+
+		public Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		public WhileFile read(String filename) throws IOException {
+			int n = readInt();
+			ArrayList<WhileFile.Decl> declarations = new ArrayList<WhileFile.Decl>(n);
+			for (int i = 0; i != n; ++i) {
+				int tag = readInt();
+				if (tag == TYPE_DECL) {
+					Type type = readType();
+					String name = readString();
+					declarations.add(new WhileFile.TypeDecl(type, name, readAttributes()));
+				} else if (tag == METHOD_DECL) {
+					String name = readString();
+					Type ret = readType();
+					int m = readInt();
+					ArrayList<WhileFile.Parameter> parameters = new ArrayList<WhileFile.Parameter>(m);
+					for (int j = 0; j != m; ++j) {
+						Type type = readType();
+						String pname = readString();
+						parameters.add(new WhileFile.Parameter(type, pname, readAttributes()));
+					}
+					List<Stmt> body = readStmts();
+					declarations.add(new WhileFile.MethodDecl(name, ret, parameters, body, readAttributes()));
+				} else {
+					throw new IOException("invalid declaration tag (" + tag + ")");
+				}
+			}
+			return new WhileFile(filename, declarations);
+		}
+
+		private List<Stmt> readStmts() throws IOException {
+			int n = readInt();
+			ArrayList<Stmt> stmts = new ArrayList<Stmt>(n);
+			for (int i = 0; i != n; ++i) {
+				stmts.add(readStmt());
+			}
+			return stmts;
+		}
+
+		private Stmt readStmt() throws IOException {
+			int tag = readInt();
+			switch (tag) {
+			case NULL:
+				return null;
+			case ASSERT:
+				return new Stmt.Assert(readExpr(), readAttributes());
+			case PRINT:
+				return new Stmt.Print(readExpr(), readAttributes());
+			case ASSIGN: {
+				Expr.LVal lhs = (Expr.LVal) readExpr();
+				Expr rhs = readExpr();
+				return new Stmt.Assign(lhs, rhs, readAttributes());
+			}
+			case RETURN:
+				return new Stmt.Return(readExpr(), readAttributes());
+			case WHILE: {
+				Expr condition = readExpr();
+				List<Stmt> body = readStmts();
+				return new Stmt.While(condition, body, readAttributes());
+			}
+			case FOR: {
+				Stmt.VariableDeclaration declaration = (Stmt.VariableDeclaration) readStmt();
+				Expr condition = readExpr();
+				Stmt increment = readStmt();
+				List<Stmt> body = readStmts();
+				return new Stmt.For(declaration, condition, increment, body, readAttributes());
+			}
+			case IF_ELSE: {
+				Expr condition = readExpr();
+				List<Stmt> trueBranch = readStmts();
+				List<Stmt> falseBranch = readStmts();
+				return new Stmt.IfElse(condition, trueBranch, falseBranch, readAttributes());
+			}
+			case BREAK:
+				return new Stmt.Break(readAttributes());
+			case CONTINUE:
+				return new Stmt.Continue(readAttributes());
+			case SWITCH: {
+				Expr expr = readExpr();
+				int n = readInt();
+				ArrayList<Stmt.Case> cases = new ArrayList<Stmt.Case>(n);
+				for (int i = 0; i != n; ++i) {
+					Expr.Literal value = (Expr.Literal) readExpr();
+					List<Stmt> body = readStmts();
+					cases.add(new Stmt.Case(value, body, readAttributes()));
+				}
+				return new Stmt.Switch(expr, cases, readAttributes());
+			}
+			case VARIABLE_DECLARATION: {
+				Type type = readType();
+				String name = readString();
+				Expr expr = readExpr();
+				return new Stmt.VariableDeclaration(type, name, expr, readAttributes());
+			}
+			case INVOKE:
+				return (Expr.Invoke) readExpr(tag);
+			default:
+				throw new IOException("invalid statement tag (" + tag + ")");
+			}
+		}
+
+		private Expr readExpr() throws IOException {
+			return readExpr(readInt());
+		}
+
+		private Expr readExpr(int tag) throws IOException {
+			switch (tag) {
+			case NULL:
+				return null;
+			case VARIABLE:
+				return new Expr.Variable(readString(), readAttributes());
+			case LITERAL:
+				return new Expr.Literal(readValue(), readAttributes());
+			case BINARY: {
+				Expr.BOp op = Expr.BOp.values()[readInt()];
+				Expr lhs = readExpr();
+				Expr rhs = readExpr();
+				return new Expr.Binary(op, lhs, rhs, readAttributes());
+			}
+			case INDEX_OF: {
+				Expr source = readExpr();
+				Expr index = readExpr();
+				return new Expr.IndexOf(source, index, readAttributes());
+			}
+			case UNARY: {
+				Expr.UOp op = Expr.UOp.values()[readInt()];
+				return new Expr.Unary(op, readExpr(), readAttributes());
+			}
+			case ARRAY_GENERATOR: {
+				Expr value = readExpr();
+				Expr size = readExpr();
+				return new Expr.ArrayGenerator(value, size, readAttributes());
+			}
+			case ARRAY_INITIALISER:
+				return new Expr.ArrayInitialiser(readExprs(), readAttributes());
+			case RECORD_ACCESS: {
+				Expr source = readExpr();
+				return new Expr.RecordAccess(source, readString(), readAttributes());
+			}
+			case RECORD_CONSTRUCTOR: {
+				int n = readInt();
+				ArrayList<Pair<String, Expr>> fields = new ArrayList<Pair<String, Expr>>(n);
+				for (int i = 0; i != n; ++i) {
+					String name = readString();
+					fields.add(new Pair<String, Expr>(name, readExpr()));
+				}
+				return new Expr.RecordConstructor(fields, readAttributes());
+			}
+			case INVOKE: {
+				String name = readString();
+				return new Expr.Invoke(name, readExprs(), readAttributes());
+			}
+			default:
+				throw new IOException("invalid expression tag (" + tag + ")");
+			}
+		}
+
+		private List<Expr> readExprs() throws IOException {
+			int n = readInt();
+			ArrayList<Expr> exprs = new ArrayList<Expr>(n);
+			for (int i = 0; i != n; ++i) {
+				exprs.add(readExpr());
+			}
+			return exprs;
+		}
+
+		private Type readType() throws IOException {
+			int tag = readInt();
+			Type type;
+			switch (tag) {
+			case NULL:
+				return null;
+			case TYPE_REFERENCE:
+				return types.get(readInt());
+			case VOID:
+				type = new Type.Void(readAttributes());
+				break;
+			case BOOL:
+				type = new Type.Bool(readAttributes());
+				break;
+			case INT:
+				type = new Type.Int(readAttributes());
+				break;
+			case NAMED:
+				type = new Type.Named(readString(), readAttributes());
+				break;
+			case ARRAY:
+				type = new Type.Array(readType(), readAttributes());
+				break;
+			case RECORD: {
+				int n = readInt();
+				ArrayList<Pair<Type, String>> fields = new ArrayList<Pair<Type, String>>(n);
+				for (int i = 0; i != n; ++i) {
+					Type field = readType();
+					fields.add(new Pair<Type, String>(field, readString()));
+				}
+				type = new Type.Record(fields, readAttributes());
+				break;
+			}
+			default:
+				throw new IOException("invalid type tag (" + tag + ")");
+			}
+			types.add(type);
+			return type;
+		}
+
+		private Object readValue() throws IOException {
+			int tag = readInt();
+			switch (tag) {
+			case NULL:
+				return null;
+			case BOOLEAN_VALUE:
+				return readInt() != 0;
+			case INTEGER_VALUE:
+				return readInt();
+			case CHARACTER_VALUE:
+				return (char) readInt();
+			case STRING_VALUE:
+				return readString();
+			case LIST_VALUE: {
+				int n = readInt();
+				ArrayList<Object> list = new ArrayList<Object>(n);
+				for (int i = 0; i != n; ++i) {
+					list.add(readValue());
+				}
+				return list;
+			}
+			case RECORD_VALUE: {
+				int n = readInt();
+				HashMap<String, Object> record = new HashMap<String, Object>();
+				for (int i = 0; i != n; ++i) {
+					String name = readString();
+					record.put(name, readValue());
+				}
+				return record;
+			}
+			default:
+				throw new IOException("invalid constant tag (" + tag + ")");
+			}
+		}
+
+		private Attribute[] readAttributes() throws IOException {
+			Attribute[] attributes = new Attribute[readInt()];
+			for (int i = 0; i != attributes.length; ++i) {
+				int tag = readInt();
+				if (tag == SOURCE) {
+					int start = position + readInt();
+					attributes[i] = new Attribute.Source(start, start + readInt());
+					position = start;
+				} else if (tag == TYPE) {
+					attributes[i] = new Attribute.Type(readType());
+				} else {
+					throw new IOException("invalid attribute tag (" + tag + ")");
+				}
+			}
+			return attributes;
+		}
+
+		private String readString() throws IOException {
+			int index = readInt();
+			if (index == 0) {
+				String s = in.readUTF();
+				strings.add(s);
+				return s;
+			}
+			return strings.get(index - 1);
+		}
+
+		private int readInt() throws IOException {
+			int v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.readUnsignedByte();
+				v |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+}
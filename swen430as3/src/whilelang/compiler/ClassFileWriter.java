@@ -13,6 +13,7 @@ import jasm.lang.Modifier;
 
 import whilelang.ast.*;
 import whilelang.util.Pair;
+import whilelang.util.RecordValue;
 
 import static jasm.lang.Bytecode.InvokeMode.STATIC;
 import static jasm.lang.Bytecode.InvokeMode.VIRTUAL;
@@ -44,6 +45,20 @@ public class ClassFileWriter {
 	 */
 	private HashMap<String,JvmType.Function> methodTypes;
 
+	/**
+	 * Maps each array literal which has been hoisted into a static field to
+	 * the name of that field. Literals are identified by their element type,
+	 * whether they are strings and their contents, so that identical literals
+	 * share a single field.
+	 */
+	private HashMap<List<Object>,String> literals;
+
+	/**
+	 * The static initialiser, which builds the value of every hoisted literal
+	 * when the class is loaded.
+	 */
+	private ArrayList<Bytecode> initialiser;
+
 	/**
 	 * Construct a ClassFileWriter which will compile a given WhileFile into a
 	 * JVM class file of the given name.
@@ -52,13 +67,53 @@ public class ClassFileWriter {
 	 * @throws FileNotFoundException
 	 */
 	public ClassFileWriter(String classFile) throws FileNotFoundException {
-		writer = new jasm.io.ClassFileWriter(new FileOutputStream(classFile));
+		this(new FileOutputStream(classFile));
+	}
+
+	/**
+	 * Construct a ClassFileWriter which will write the JVM class file it
+	 * generates to a given stream (e.g. so that it can be loaded without
+	 * first being written to disk).
+	 *
+	 * @param output
+	 */
+	public ClassFileWriter(OutputStream output) {
+		writer = new jasm.io.ClassFileWriter(output);
 		declaredTypes = new HashMap<String,Type>();
 		methodTypes = new HashMap<String,JvmType.Function>();
+		literals = new HashMap<List<Object>,String>();
+		initialiser = new ArrayList<Bytecode>();
 	}
 
 	public void write(WhileFile sourceFile) throws IOException {
 		String moduleName = new File(sourceFile.filename).getName().replace(".while","");
+		// Now, we need to write out all methods defined in the WhileFile. We
+		// don't need to worry about other forms of declaration though, as they
+		// have no meaning on the JVM.
+		List<WhileFile.MethodDecl> methods = new ArrayList<WhileFile.MethodDecl>();
+		for(WhileFile.Decl d : sourceFile.declarations) {
+			if(d instanceof WhileFile.MethodDecl) {
+				methods.add((WhileFile.MethodDecl) d);
+			}
+		}
+		write(sourceFile, moduleName, methods);
+	}
+
+	/**
+	 * Write a class of a given name which contains only some of the methods
+	 * declared in a given WhileFile. Every method invoked by those given must
+	 * also be included.
+	 *
+	 * @param sourceFile
+	 *            The file declaring the methods.
+	 * @param className
+	 *            The name of the class to generate.
+	 * @param methods
+	 *            The methods to translate.
+	 * @throws IOException
+	 */
+	public void write(WhileFile sourceFile, String className, List<WhileFile.MethodDecl> methods)
+			throws IOException {
 		// Modifiers for class
 		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PUBLIC, Modifier.ACC_FINAL);
 		// List of interfaces implemented by class
@@ -66,26 +121,37 @@ public class ClassFileWriter {
 		// Base class for this class
 		JvmType.Clazz superClass = JvmTypes.JAVA_LANG_OBJECT;
 		// The class name for this class
-		JvmType.Clazz owner = new JvmType.Clazz(moduleName);
+		JvmType.Clazz owner = new JvmType.Clazz(className);
 		// Create the class!
 		ClassFile cf = new ClassFile(CLASS_VERSION, owner, superClass, implemented, modifiers);
 		// Add an attribute to the generated class file which indicates the
 		// source file from which it was generated. This is useful for getting
 		// better error messages out of the JVM.
 		cf.attributes().add(new SourceFile(sourceFile.filename));
-		// Now, we need to write out all methods defined in the WhileFile. We
-		// don't need to worry about other forms of declaration though, as they
-		// have no meaning on the JVM.
+		// Add every declared type to the map of declared types, and determine
+		// the type of every method, so that each may refer to those declared
+		// after it.
 		for(WhileFile.Decl d : sourceFile.declarations) {
-			if(d instanceof WhileFile.MethodDecl) {
-				ClassFile.Method m = translate((WhileFile.MethodDecl) d, owner);
-				cf.methods().add(m);
-			} else if(d instanceof WhileFile.TypeDecl) {
-				// Add the type to the map of declared types
+			if(d instanceof WhileFile.TypeDecl) {
 				WhileFile.TypeDecl td = (WhileFile.TypeDecl) d;
 				declaredTypes.put(td.getName(), td.getType());
 			}
 		}
+		for(WhileFile.MethodDecl md : methods) {
+			constructMethodType(md);
+		}
+		for(WhileFile.MethodDecl md : methods) {
+			cf.methods().add(translate(md, owner));
+		}
+		// Add a static field for every literal which was hoisted, along with
+		// the static initialiser which builds them.
+		if(!literals.isEmpty()) {
+			List<Modifier> fieldModifiers = Arrays.asList(Modifier.ACC_PRIVATE, Modifier.ACC_STATIC, Modifier.ACC_FINAL);
+			for(String field : literals.values()) {
+				cf.fields().add(new ClassFile.Field(field, JAVA_UTIL_ARRAYLIST, fieldModifiers));
+			}
+			cf.methods().add(translateInitialiser());
+		}
 		// Finally, write the generated classfile to disk
 		writer.write(cf);
 	}
@@ -121,6 +187,23 @@ public class ClassFileWriter {
 		return cm;
 	}
 
+	/**
+	 * Construct the static initialiser for the class, which consists of the
+	 * code accumulated for building hoisted literals.
+	 *
+	 * @return
+	 */
+	private ClassFile.Method translateInitialiser() {
+		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_STATIC);
+		JvmType.Function ft = new JvmType.Function(JvmTypes.VOID);
+		ClassFile.Method cm = new ClassFile.Method("<clinit>", ft, modifiers);
+		initialiser.add(new Bytecode.Return(null));
+		jasm.attributes.Code code = new jasm.attributes.Code(initialiser,
+				Collections.<jasm.attributes.Code.Handler>emptyList(), cm);
+		cm.attributes().add(code);
+		return cm;
+	}
+
 	/**
 	 * Translate a list of statements in the While language into a series of
 	 * bytecodes which implement their behaviour. The result indicates whether
@@ -182,8 +265,14 @@ public class ClassFileWriter {
 		String label = freshLabel();
 		translate(stmt.getExpr(), context, bytecodes);
 		bytecodes.add(new Bytecode.If(IfMode.NE, label));
-		// If the assertion fails, through runtime exception
-		constructObject(JvmTypes.JAVA_LANG_RUNTIMEEXCEPTION, bytecodes);
+		// If the assertion fails, throw the same runtime exception as the
+		// interpreter does
+		JvmType.Clazz exception = JvmTypes.JAVA_LANG_RUNTIMEEXCEPTION;
+		bytecodes.add(new Bytecode.New(exception));
+		bytecodes.add(new Bytecode.Dup(exception));
+		bytecodes.add(new Bytecode.LoadConst("assertion failure"));
+		JvmType.Function ftype = new JvmType.Function(JvmTypes.VOID, JvmTypes.JAVA_LANG_STRING);
+		bytecodes.add(new Bytecode.Invoke(exception, "<init>", ftype, Bytecode.InvokeMode.SPECIAL));
 		bytecodes.add(new Bytecode.Throw());
 		bytecodes.add(new Bytecode.Label(label));
 	}
@@ -501,14 +590,10 @@ public class ClassFileWriter {
 		}else if(lhs instanceof Expr.RecordAccess){
 			Expr.RecordAccess access = (Expr.RecordAccess)lhs;
 
-			//put map on stack
+			//put record on stack
 			translate(access.getSource(),context,bytecodes);
 
-			putInHashMap(access.getName(),rhs,context,bytecodes);
-			//load the rhs
-			translate(rhs, context, bytecodes);
-			cloneAsNecessary(rhsType,bytecodes);
-
+			putInRecord(fieldIndex(access),rhs,context,bytecodes);
 
 		} else {
 			throw new IllegalArgumentException("unknown lval encountered: "+lhs.toString());
@@ -614,16 +699,15 @@ public class ClassFileWriter {
 	}
 
 	/**
-	 * Create an array, returns the register index
-	 * @return
+	 * Create a record whose fields are declared in the given order, leaving it
+	 * on top of the stack. The fields are not initialised.
 	 */
-	private int createHashMap(Context context,List<Bytecode> bytecodes){
-		constructObject(JAVA_UTIL_HASHMAP,bytecodes);
-
-		String name = freshLabel()+"_hashmap";
-		int reg_index = context.declareRegister(name);
-		bytecodes.add(new Bytecode.Store(reg_index,JAVA_UTIL_HASHMAP));
-		return reg_index;
+	private void createRecord(List<String> fields,List<Bytecode> bytecodes){
+		bytecodes.add(new Bytecode.New(WHILELANG_RECORD));
+		bytecodes.add(new Bytecode.Dup(WHILELANG_RECORD));
+		bytecodes.add(new Bytecode.LoadConst(RecordValue.shapeOf(fields.toArray(new String[fields.size()]))));
+		JvmType.Function ftype = new JvmType.Function(JvmTypes.VOID, JvmTypes.JAVA_LANG_STRING);
+		bytecodes.add(new Bytecode.Invoke(WHILELANG_RECORD, "<init>", ftype, Bytecode.InvokeMode.SPECIAL));
 	}
 
 	private void putInArray(Expr e,int array_reg_index,Context context,List<Bytecode> bytecodes){
@@ -692,7 +776,7 @@ public class ClassFileWriter {
 
 
 		//if an array or record
-		if(lhs_type == JAVA_UTIL_ARRAYLIST || rhs_type == JAVA_UTIL_ARRAYLIST || lhs_type == JAVA_UTIL_HASHMAP || rhs_type == JAVA_UTIL_HASHMAP){
+		if(lhs_type == JAVA_UTIL_ARRAYLIST || rhs_type == JAVA_UTIL_ARRAYLIST || lhs_type == WHILELANG_RECORD || rhs_type == WHILELANG_RECORD){
 			//only attempt comparison if of same type
 			if(lhs_type != rhs_type){
 				switch (expr.getOp()){
@@ -755,42 +839,29 @@ public class ClassFileWriter {
 		}
 
 		if(t instanceof Type.Array){
-			if(value instanceof String) {//i.e "HELLO"
-				String s = (String) value;
-				ArrayList<Expr> arr_args = new ArrayList<>();
-				ArrayList<Attribute> char_attributes = new ArrayList<>();
-				char_attributes.add(new Attribute.Type(new Type.Int()));
-				for (char c : s.toCharArray()) {
-					Expr expr_c = new Expr.Literal(c, char_attributes);
-					arr_args.add(expr_c);
-				}
-
-				Expr arr = new Expr.ArrayInitialiser(arr_args, new Attribute.Type(new Type.Array(new Type.Int())));
-				translate(arr, context, bytecodes);
-			}else if(value instanceof List){//i.e [1]
-				Type element_type = ((Type.Array) t).getElement();
-				int array_reg_index = createArray(context,bytecodes);
-				//convert to expr, put in array
-				for(Object o:(List)value){
-					putObjectInArray(o,element_type,array_reg_index,bytecodes);
-				}
-				bytecodes.add(new Bytecode.Load(array_reg_index, JAVA_UTIL_ARRAYLIST));
+			String field = literalField(value, (Type.Array) t, context);
+			if(field != null) {
+				// Clone the hoisted value, since the array may be updated
+				bytecodes.add(new Bytecode.GetField(context.getEnclosingClass(), field, JAVA_UTIL_ARRAYLIST,
+						Bytecode.FieldMode.STATIC));
+				cloneAsNecessary(JAVA_UTIL_ARRAYLIST, bytecodes);
+			} else {
+				translateArrayLiteral(value, (Type.Array) t, context, bytecodes);
 			}
-
 		}else if(t instanceof Type.Record){
 			if(value instanceof Map) {
-				//map name to type
-				HashMap<String,Type> name_to_type = new HashMap<>();
-				for(Pair<Type,String> p : ((Type.Record) t).getFields()){
-					name_to_type.put(p.second(),p.first());
+				//fields are laid out in the order of the record type
+				List<Pair<Type,String>> fields = ((Type.Record) t).getFields();
+				List<String> names = new ArrayList<>();
+				for(Pair<Type,String> p : fields){
+					names.add(p.second());
 				}
 
-				int map_reg_index = createHashMap(context, bytecodes);
-				for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
-					String name = entry.getKey();
-					putObjectInHashMap(name,entry.getValue(),name_to_type.get(name),map_reg_index,bytecodes);
+				createRecord(names, bytecodes);
+				for (int i = 0; i != fields.size(); ++i) {
+					Pair<Type,String> p = fields.get(i);
+					putObjectInRecord(i,((Map<String, Object>) value).get(p.second()),p.first(),bytecodes);
 				}
-				bytecodes.add(new Bytecode.Load(map_reg_index, JAVA_UTIL_HASHMAP));
 
 			}else{
 				throw new RuntimeException("unknown value of record type");
@@ -803,6 +874,71 @@ public class ClassFileWriter {
 
 	}
 
+	/**
+	 * Construct the value of an array literal, leaving it on top of the stack.
+	 * This is either a string or a list of element values.
+	 */
+	private void translateArrayLiteral(Object value, Type.Array t, Context context, List<Bytecode> bytecodes) {
+		if(value instanceof String) {//i.e "HELLO"
+			String s = (String) value;
+			ArrayList<Expr> arr_args = new ArrayList<>();
+			ArrayList<Attribute> char_attributes = new ArrayList<>();
+			char_attributes.add(new Attribute.Type(new Type.Int()));
+			for (char c : s.toCharArray()) {
+				Expr expr_c = new Expr.Literal(c, char_attributes);
+				arr_args.add(expr_c);
+			}
+
+			Expr arr = new Expr.ArrayInitialiser(arr_args, new Attribute.Type(new Type.Array(new Type.Int())));
+			translate(arr, context, bytecodes);
+		}else if(value instanceof List){//i.e [1]
+			Type element_type = t.getElement();
+			int array_reg_index = createArray(context,bytecodes);
+			//convert to expr, put in array
+			for(Object o:(List)value){
+				putObjectInArray(o,element_type,array_reg_index,bytecodes);
+			}
+			bytecodes.add(new Bytecode.Load(array_reg_index, JAVA_UTIL_ARRAYLIST));
+		}
+	}
+
+	/**
+	 * Get the static field holding the value of a given array literal, hoisting
+	 * the literal into a new field if no identical literal has been seen
+	 * before. Only literals whose elements are primitive can be hoisted, since
+	 * cloning the field only makes a shallow copy.
+	 *
+	 * @param value
+	 *            Either a string or a list of element values.
+	 * @param t
+	 *            The array type of the literal.
+	 * @param context
+	 *            The current translation context
+	 * @return The name of the field, or null if the literal cannot be hoisted.
+	 */
+	private String literalField(Object value, Type.Array t, Context context) {
+		if(value instanceof List) {
+			for(Object o : (List) value) {
+				if(o instanceof List || o instanceof Map) {
+					return null;
+				}
+			}
+		}
+		// NOTE: a string and an array can print the same (e.g. "[1]" and [1]),
+		// so the key holds the contents themselves rather than their text.
+		List<Object> key = Arrays.asList(t.getElement().toString(), value instanceof String, value);
+		String field = literals.get(key);
+		if(field == null) {
+			field = freshLabel() + "$literal";
+			Context initContext = new Context(context.getEnclosingClass(), new HashMap<String,Integer>());
+			translateArrayLiteral(value, t, initContext, initialiser);
+			initialiser.add(new Bytecode.PutField(context.getEnclosingClass(), field, JAVA_UTIL_ARRAYLIST,
+					Bytecode.FieldMode.STATIC));
+			literals.put(key, field);
+		}
+		return field;
+	}
+
 	public void putObjectInArray(Object o,Type t,int array_reg_index,List<Bytecode> bytecodes){
 
 		//get array
@@ -857,16 +993,12 @@ public class ClassFileWriter {
 	}
 
 	private void translate(Expr.RecordAccess expr, Context context, List<Bytecode> bytecodes) {
-		//get hashmap
+		//get record
 		translate(expr.getSource(),context,bytecodes);
-		//put string
-		bytecodes.add(new Bytecode.LoadConst(expr.getName()));
-		//get method
-		JvmType.Function boxMethodType =
-				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, JvmTypes.JAVA_LANG_OBJECT);
-
-		//add object to array
-		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_HASHMAP, "get", boxMethodType,VIRTUAL));
+		//load field from its slot
+		bytecodes.add(new Bytecode.GetField(WHILELANG_RECORD, "values", OBJECT_ARRAY, Bytecode.FieldMode.NONSTATIC));
+		bytecodes.add(new Bytecode.LoadConst(fieldIndex(expr)));
+		bytecodes.add(new Bytecode.ArrayLoad(OBJECT_ARRAY));
 
 		//cast to expected type
 		Attribute.Type attr = expr.attribute(Attribute.Type.class);
@@ -875,9 +1007,32 @@ public class ClassFileWriter {
 
 	}
 
-	private void putInHashMap(String name, Expr value,Context context,List<Bytecode> bytecodes){
-		//put String on stack
-		bytecodes.add(new Bytecode.LoadConst(name));
+	/**
+	 * Determine the slot of the field read or written by a given record access.
+	 * Since the fields of a record type are a prefix of those of its subtypes,
+	 * this is the same for any record the source may evaluate to.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private int fieldIndex(Expr.RecordAccess expr) {
+		Type t = expr.getSource().attribute(Attribute.Type.class).type;
+		while(t instanceof Type.Named){
+			t = this.declaredTypes.get(((Type.Named) t).getName());
+		}
+		List<Pair<Type,String>> fields = ((Type.Record) t).getFields();
+		for(int i=0;i!=fields.size();++i) {
+			if(fields.get(i).second().equals(expr.getName())) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown field encountered: " + expr.getName());
+	}
+
+	private void putInRecord(int index, Expr value,Context context,List<Bytecode> bytecodes){
+		//get fields of record on stack
+		bytecodes.add(new Bytecode.GetField(WHILELANG_RECORD, "values", OBJECT_ARRAY, Bytecode.FieldMode.NONSTATIC));
+		bytecodes.add(new Bytecode.LoadConst(index));
 		//put val on stack
 		translate(value,context,bytecodes);
 		Attribute.Type attr = value.attribute(Attribute.Type.class);
@@ -886,42 +1041,35 @@ public class ClassFileWriter {
 		boxAsNecessary(t,bytecodes);
 		cloneAsNecessary(toJvmType(t),bytecodes);
 
-		JvmType.Function boxMethodType =
-				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, JvmTypes.JAVA_LANG_OBJECT,JvmTypes.JAVA_LANG_OBJECT);
-
-		//add object to array
-		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_HASHMAP, "put", boxMethodType,VIRTUAL));
-		//pop
-		bytecodes.add(new Bytecode.Pop(JvmTypes.JAVA_LANG_OBJECT));
+		//store in slot
+		bytecodes.add(new Bytecode.ArrayStore(OBJECT_ARRAY));
 	}
 
-	private void putObjectInHashMap(String name, Object value,Type t,int map_reg_index,List<Bytecode> bytecodes){
-		bytecodes.add(new Bytecode.Load(map_reg_index, JAVA_UTIL_HASHMAP));
-		//put String on stack
-		bytecodes.add(new Bytecode.LoadConst(name));
+	private void putObjectInRecord(int index, Object value,Type t,List<Bytecode> bytecodes){
+		//get fields of record on top of stack
+		bytecodes.add(new Bytecode.Dup(WHILELANG_RECORD));
+		bytecodes.add(new Bytecode.GetField(WHILELANG_RECORD, "values", OBJECT_ARRAY, Bytecode.FieldMode.NONSTATIC));
+		bytecodes.add(new Bytecode.LoadConst(index));
 		//put val on stack
 		bytecodes.add(new Bytecode.LoadConst(value));
 		boxAsNecessary(t,bytecodes);
 
-
-		JvmType.Function boxMethodType =
-				new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT, JvmTypes.JAVA_LANG_OBJECT,JvmTypes.JAVA_LANG_OBJECT);
-
-		//add object to array
-		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_HASHMAP, "put", boxMethodType,VIRTUAL));
-		//pop
-		bytecodes.add(new Bytecode.Pop(JvmTypes.JAVA_LANG_OBJECT));
+		//store in slot
+		bytecodes.add(new Bytecode.ArrayStore(OBJECT_ARRAY));
 	}
 
 	private void translate(Expr.RecordConstructor expr, Context context, List<Bytecode> bytecodes) {
-		int map_reg_index = createHashMap(context,bytecodes);
+		//fields are laid out in the order given, which matches the record type
+		List<String> names = new ArrayList<>();
 		for (Pair<String, Expr> field : expr.getFields()) {
-			//get map
-			bytecodes.add(new Bytecode.Load(map_reg_index, JAVA_UTIL_HASHMAP));
-			putInHashMap(field.first(),field.second(),context,bytecodes);
+			names.add(field.first());
+		}
+		createRecord(names,bytecodes);
+		for (int i = 0; i != names.size(); ++i) {
+			//get record, leaving it on top of stack
+			bytecodes.add(new Bytecode.Dup(WHILELANG_RECORD));
+			putInRecord(i,expr.getFields().get(i).second(),context,bytecodes);
 		}
-		//leave on top of array
-		bytecodes.add(new Bytecode.Load(map_reg_index, JAVA_UTIL_HASHMAP));
 
 	}
 
@@ -1068,7 +1216,7 @@ public class ClassFileWriter {
 
 	/**
 	 * The element on the top of the stack has been read out of a compound data
-	 * structure, such as an ArrayList or HashMap representing an array or
+	 * structure, such as an ArrayList or RecordValue representing an array or
 	 * record. This value has type Object, and we want to convert it into its
 	 * correct form. At a minimum, this requires casting it into the expected
 	 * type. This may also require unboxing the element if it is representing a
@@ -1218,7 +1366,7 @@ public class ClassFileWriter {
 		} else if(t instanceof Type.Array) {
 			return JAVA_UTIL_ARRAYLIST;
 		} else if(t instanceof Type.Record) {
-			return JAVA_UTIL_HASHMAP;
+			return WHILELANG_RECORD;
 		} else {
 			throw new IllegalArgumentException("Unknown type encountered: " + t);
 		}
@@ -1241,7 +1389,7 @@ public class ClassFileWriter {
 		} else if(t instanceof Type.Array) {
 			return JAVA_UTIL_ARRAYLIST;
 		} else if(t instanceof Type.Record) {
-			return JAVA_UTIL_HASHMAP;
+			return WHILELANG_RECORD;
 		} else {
 			throw new IllegalArgumentException("Unknown type encountered: " + t);
 		}
@@ -1250,7 +1398,8 @@ public class ClassFileWriter {
 	// A few helpful constants not defined in JvmTypes
 	private static final JvmType.Clazz JAVA_UTIL_LIST = new JvmType.Clazz("java.util","List");
 	private static final JvmType.Clazz JAVA_UTIL_ARRAYLIST = new JvmType.Clazz("java.util","ArrayList");
-	private static final JvmType.Clazz JAVA_UTIL_HASHMAP = new JvmType.Clazz("java.util","HashMap");
+	private static final JvmType.Clazz WHILELANG_RECORD = new JvmType.Clazz("whilelang.util","RecordValue");
+	private static final JvmType.Array OBJECT_ARRAY = new JvmType.Array(JvmTypes.JAVA_LANG_OBJECT);
 	private static final JvmType.Clazz JAVA_UTIL_COLLECTION = new JvmType.Clazz("java.util","Collection");
 	private static final JvmType.Clazz JAVA_UTIL_COLLECTIONS = new JvmType.Clazz("java.util","Collections");
 
@@ -50,9 +50,19 @@ public class DefiniteAssignment {
 	 * @param wf The source file to be checked.
 	 */
 	public void check(WhileFile wf) {
+		check(wf, wf.declarations);
+	}
+
+	/**
+	 * Check only some of the declarations in a given file.
+	 *
+	 * @param wf
+	 * @param declarations
+	 */
+	public void check(WhileFile wf, List<WhileFile.Decl> declarations) {
 		this.file = wf;
 
-		for (WhileFile.Decl declaration : wf.declarations) {
+		for (WhileFile.Decl declaration : declarations) {
 			if (declaration instanceof WhileFile.MethodDecl) {
 				check((WhileFile.MethodDecl) declaration);
 			}
@@ -0,0 +1,549 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import whilelang.ast.Attribute;
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.util.Pair;
+import whilelang.util.SyntacticElement;
+import whilelang.util.SyntaxError;
+
+/**
+ * <p>
+ * Compiles a While file repeatedly as it is edited, redoing only the work
+ * affected by each edit. The file is divided into its declarations without
+ * parsing them (see <code>Parser.split()</code>), and each is compared with
+ * the declaration of the same name when the file was last compiled. A
+ * declaration is then either:
+ * </p>
+ * <ul>
+ * <li>Parsed and checked again, if its text has changed, or if any type or
+ * method it refers to has been added, removed, moved to the other side of it,
+ * or has had its signature changed.</li>
+ * <li>Type checked again (but not parsed), if it refers to a method which is
+ * parsed again. Although the signature of that method is the same, the types
+ * of expressions invoking it are taken from its new tree.</li>
+ * <li>Otherwise, reused as it is, along with the types of its expressions.</li>
+ * </ul>
+ * <p>
+ * A declaration whose text is unchanged may still have moved within the file,
+ * in which case the source position of every element in its tree is updated.
+ * Hence, the tree returned by one compilation shares declarations with that
+ * returned by the next, and should not be used once the file is compiled
+ * again. Should any type declaration change, or the file fail to divide or to
+ * parse, the file is compiled in full. Either way, the tree produced (or the
+ * error reported) is the same as for <code>WhileCompiler</code>.
+ * </p>
+ * <p>
+ * Code is not generated here, since a class is written by the
+ * <code>ClassFileWriter</code> as a whole (e.g. its literals are shared
+ * between methods).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class IncrementalCompiler {
+	private final String filename;
+
+	/**
+	 * The declarations of the file when it was last compiled successfully, or
+	 * <code>null</code> if it has not been.
+	 */
+	private List<Summary> previous;
+
+	/**
+	 * How many declarations were parsed, and how many type checked, by the
+	 * last compilation.
+	 */
+	private int parsed;
+	private int checked;
+
+	public IncrementalCompiler(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Compile the file as it is now, reusing what is unaffected by any edits
+	 * since it was last compiled.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public WhileFile compile() throws IOException {
+		Lexer lexer = new Lexer(filename);
+		TokenStream tokens = new TokenStream(lexer);
+		Parser parser = new Parser(filename, tokens);
+		List<Summary> current = null;
+		try {
+			List<Parser.Declared> extents = parser.split();
+			if (extents != null) {
+				current = summarise(lexer, tokens, extents);
+			}
+			WhileFile ast = null;
+			if (previous != null && current != null) {
+				ast = recompile(parser, extents, current);
+			}
+			if (ast == null) {
+				// NOTE: no token has been discarded, so the file can be parsed
+				// from the start.
+				ast = parser.read();
+				new TypeChecker().check(ast);
+				new UnreachableCode().check(ast);
+				new DefiniteAssignment().check(ast);
+				parsed = ast.declarations.size();
+				checked = parsed;
+			}
+			previous = attach(current, ast);
+			return ast;
+		} catch (SyntaxError e) {
+			e.setLineIndex(lexer.lines());
+			throw e;
+		}
+	}
+
+	/**
+	 * Attach each declaration of a compiled file to its summary.
+	 *
+	 * @param summaries
+	 * @param ast
+	 * @return The summaries, or <code>null</code> if they do not match the
+	 *         declarations (i.e. the file was not divided correctly).
+	 */
+	private static List<Summary> attach(List<Summary> summaries, WhileFile ast) {
+		if (summaries == null || summaries.size() != ast.declarations.size()) {
+			return null;
+		}
+		for (int i = 0; i != summaries.size(); ++i) {
+			Summary s = summaries.get(i);
+			WhileFile.Decl decl = ast.declarations.get(i);
+			if (!decl.name().equals(s.name) || (decl instanceof WhileFile.TypeDecl) != s.isType) {
+				return null;
+			}
+			s.decl = decl;
+		}
+		return summaries;
+	}
+
+	/**
+	 * Get how many declarations were parsed by the last compilation.
+	 *
+	 * @return
+	 */
+	public int getParsed() {
+		return parsed;
+	}
+
+	/**
+	 * Get how many declarations were type checked by the last compilation
+	 * (including those parsed).
+	 *
+	 * @return
+	 */
+	public int getChecked() {
+		return checked;
+	}
+
+	/**
+	 * Compile the file reusing the declarations unaffected since it was last
+	 * compiled.
+	 *
+	 * @return The file, or <code>null</code> if it must be compiled in full.
+	 */
+	private WhileFile recompile(Parser parser, List<Parser.Declared> extents, List<Summary> current) {
+		HashMap<String,Summary> methods = new HashMap<String,Summary>();
+		HashMap<String,Summary> types = new HashMap<String,Summary>();
+		HashMap<String,Summary> previousMethods = new HashMap<String,Summary>();
+		HashMap<String,Summary> previousTypes = new HashMap<String,Summary>();
+		if (!index(current, methods, types) || !index(previous, previousMethods, previousTypes)
+				|| !sameTypes(current, previous)) {
+			return null;
+		}
+		// First, determine which declarations can be kept. The types of
+		// expressions may refer to the trees of type declarations, so these
+		// must all be kept.
+		WhileFile.Decl[] decls = new WhileFile.Decl[current.size()];
+		boolean[] kept = new boolean[decls.length];
+		for (int i = 0; i != decls.length; ++i) {
+			Summary s = current.get(i);
+			Summary p = s.isType ? previousTypes.get(s.name) : previousMethods.get(s.name);
+			if (p != null && p.text.equals(s.text)
+					&& sameReferences(s, p, methods, types, previousMethods, previousTypes)) {
+				decls[i] = p.decl;
+				kept[i] = true;
+			} else if (s.isType) {
+				return null;
+			}
+		}
+		// Second, determine which are to be checked. This includes those which
+		// invoke any method to be parsed.
+		boolean[] check = new boolean[decls.length];
+		for (int i = 0; i != decls.length; ++i) {
+			check[i] = decls[i] == null;
+			for (String name : current.get(i).references) {
+				Summary callee = methods.get(name);
+				if (callee != null && decls[callee.declaration] == null) {
+					check[i] = true;
+				}
+			}
+		}
+		// Third, parse those not kept
+		WhileFile ast = parser.read(extents, decls, null);
+		if (ast == null) {
+			return null;
+		}
+		// Fourth, move those kept to where they are now
+		ArrayList<WhileFile.Decl> parse = new ArrayList<WhileFile.Decl>();
+		ArrayList<WhileFile.Decl> recheck = new ArrayList<WhileFile.Decl>();
+		for (int i = 0; i != decls.length; ++i) {
+			Summary s = current.get(i);
+			if (!kept[i]) {
+				parse.add(decls[i]);
+			} else {
+				Summary p = s.isType ? previousTypes.get(s.name) : previousMethods.get(s.name);
+				if (s.start != p.start) {
+					move(decls[i], s.start - p.start);
+					p.start = s.start;
+				}
+			}
+			if (check[i]) {
+				recheck.add(decls[i]);
+			}
+		}
+		// Finally, check them
+		try {
+			new TypeChecker().check(ast, recheck);
+			new UnreachableCode().check(ast, parse);
+			new DefiniteAssignment().check(ast, parse);
+		} catch (SyntaxError e) {
+			// NOTE: some of the declarations kept may have been checked again
+			// before the error, so they cannot be kept next time.
+			previous = null;
+			throw e;
+		}
+		parsed = parse.size();
+		checked = recheck.size();
+		return ast;
+	}
+
+	/**
+	 * Construct the summary of each declaration in the file.
+	 *
+	 * @param lexer
+	 * @param tokens
+	 * @param extents
+	 * @return
+	 */
+	private static List<Summary> summarise(Lexer lexer, TokenStream tokens, List<Parser.Declared> extents) {
+		ArrayList<Summary> summaries = new ArrayList<Summary>();
+		for (Parser.Declared extent : extents) {
+			Summary s = new Summary(extent.name, extent.isType, extent.declaration);
+			s.start = tokens.start(extent.from);
+			s.text = lexer.text(s.start, tokens.end(extent.to - 1));
+			s.signature = lexer.text(s.start, tokens.end(extent.body - 1));
+			for (int i = extent.from; i != extent.to; ++i) {
+				if (tokens.kind(i) == Lexer.IDENTIFIER) {
+					s.references.add(tokens.text(i));
+				}
+			}
+			summaries.add(s);
+		}
+		return summaries;
+	}
+
+	/**
+	 * Map the methods and types of a file by name.
+	 *
+	 * @return False if any name is declared twice.
+	 */
+	private static boolean index(List<Summary> summaries, HashMap<String,Summary> methods,
+			HashMap<String,Summary> types) {
+		for (Summary s : summaries) {
+			HashMap<String,Summary> declared = s.isType ? types : methods;
+			if (declared.put(s.name, s) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check that the type declarations of two versions of the file are the
+	 * same, and in the same order.
+	 *
+	 * @return
+	 */
+	private static boolean sameTypes(List<Summary> current, List<Summary> previous) {
+		ArrayList<String> currentTypes = new ArrayList<String>();
+		ArrayList<String> previousTypes = new ArrayList<String>();
+		for (Summary s : current) {
+			if (s.isType) {
+				currentTypes.add(s.text);
+			}
+		}
+		for (Summary s : previous) {
+			if (s.isType) {
+				previousTypes.add(s.text);
+			}
+		}
+		return currentTypes.equals(previousTypes);
+	}
+
+	/**
+	 * Check that every type and method referred to by a declaration is the
+	 * same as it was. That is, it is declared (or not) on the same side of the
+	 * declaration, and a method has the same signature.
+	 *
+	 * @param s
+	 *            The declaration now.
+	 * @param p
+	 *            The same declaration when last compiled.
+	 * @return
+	 */
+	private static boolean sameReferences(Summary s, Summary p, HashMap<String,Summary> methods,
+			HashMap<String,Summary> types, HashMap<String,Summary> previousMethods,
+			HashMap<String,Summary> previousTypes) {
+		for (String name : s.references) {
+			Summary method = methods.get(name);
+			Summary previousMethod = previousMethods.get(name);
+			if (!sameSide(method, s, previousMethod, p)) {
+				return false;
+			} else if (method != null && previousMethod != null
+					&& !method.signature.equals(previousMethod.signature)) {
+				return false;
+			} else if (!sameSide(types.get(name), s, previousTypes.get(name), p)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a given declaration is before another in the file now
+	 * exactly when it was before it when last compiled. A missing declaration
+	 * is never before.
+	 *
+	 * @return
+	 */
+	private static boolean sameSide(Summary decl, Summary s, Summary previousDecl, Summary p) {
+		boolean before = decl != null && decl.declaration < s.declaration;
+		boolean previouslyBefore = previousDecl != null && previousDecl.declaration < p.declaration;
+		return before == previouslyBefore;
+	}
+
+	// =========================================================================
+	// Moving
+	// =========================================================================
+
+	/**
+	 * Move every element in the tree of a given declaration by a given number
+	 * of characters. The types attached to expressions are not moved, since
+	 * they either have no position or belong to the tree of some declaration.
+	 *
+	 * @param decl
+	 * @param delta
+	 */
+	private static void move(WhileFile.Decl decl, int delta) {
+		shift(decl, delta);
+		if (decl instanceof WhileFile.TypeDecl) {
+			move(((WhileFile.TypeDecl) decl).getType(), delta);
+		} else {
+			WhileFile.MethodDecl md = (WhileFile.MethodDecl) decl;
+			move(md.getRet(), delta);
+			for (WhileFile.Parameter p : md.getParameters()) {
+				shift(p, delta);
+				move(p.getType(), delta);
+			}
+			move(md.getBody(), delta);
+		}
+	}
+
+	private static void move(List<Stmt> stmts, int delta) {
+		for (Stmt stmt : stmts) {
+			move(stmt, delta);
+		}
+	}
+
+	private static void move(Stmt stmt, int delta) {
+		if (stmt == null) {
+			return;
+		} else if (stmt instanceof Expr.Invoke) {
+			move((Expr) stmt, delta);
+			return;
+		}
+		shift(stmt, delta);
+		if (stmt instanceof Stmt.Assert) {
+			move(((Stmt.Assert) stmt).getExpr(), delta);
+		} else if (stmt instanceof Stmt.Print) {
+			move(((Stmt.Print) stmt).getExpr(), delta);
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			move(s.getLhs(), delta);
+			move(s.getRhs(), delta);
+		} else if (stmt instanceof Stmt.Return) {
+			move(((Stmt.Return) stmt).getExpr(), delta);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			move(s.getCondition(), delta);
+			move(s.getBody(), delta);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			move(s.getDeclaration(), delta);
+			move(s.getCondition(), delta);
+			move(s.getIncrement(), delta);
+			move(s.getBody(), delta);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			move(s.getCondition(), delta);
+			move(s.getTrueBranch(), delta);
+			move(s.getFalseBranch(), delta);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			move(s.getExpr(), delta);
+			for (Stmt.Case c : s.getCases()) {
+				shift(c, delta);
+				move(c.getValue(), delta);
+				move(c.getBody(), delta);
+			}
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Stmt.VariableDeclaration s = (Stmt.VariableDeclaration) stmt;
+			move(s.getType(), delta);
+			move(s.getExpr(), delta);
+		}
+	}
+
+	private static void move(Expr expr, int delta) {
+		if (expr == null) {
+			return;
+		}
+		shift(expr, delta);
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			move(e.getLhs(), delta);
+			move(e.getRhs(), delta);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			move(e.getSource(), delta);
+			move(e.getIndex(), delta);
+		} else if (expr instanceof Expr.Unary) {
+			move(((Expr.Unary) expr).getExpr(), delta);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			move(e.getValue(), delta);
+			move(e.getSize(), delta);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				move(e, delta);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			move(((Expr.RecordAccess) expr).getSource(), delta);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String,Expr> field : ((Expr.RecordConstructor) expr).getFields()) {
+				move(field.second(), delta);
+			}
+		} else if (expr instanceof Expr.Invoke) {
+			for (Expr e : ((Expr.Invoke) expr).getArguments()) {
+				move(e, delta);
+			}
+		}
+	}
+
+	private static void move(Type type, int delta) {
+		if (type == null) {
+			return;
+		}
+		shift(type, delta);
+		if (type instanceof Type.Array) {
+			move(((Type.Array) type).getElement(), delta);
+		} else if (type instanceof Type.Record) {
+			for (Pair<Type,String> field : ((Type.Record) type).getFields()) {
+				move(field.first(), delta);
+			}
+		}
+	}
+
+	/**
+	 * Move a single element, if it has a position.
+	 *
+	 * @param element
+	 * @param delta
+	 */
+	private static void shift(SyntacticElement element, int delta) {
+		long position = element.position();
+		if (position != Attribute.Source.NONE) {
+			int start = Attribute.Source.start(position) + delta;
+			int end = Attribute.Source.end(position) + delta;
+			((SyntacticElement.Impl) element).setPosition(Attribute.Source.pack(start, end));
+		}
+	}
+
+	/**
+	 * Summarises a declaration in a version of the file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Summary {
+		private final String name;
+		private final boolean isType;
+
+		/**
+		 * The position of the declaration in the file.
+		 */
+		private final int declaration;
+
+		/**
+		 * The offset of its first character.
+		 */
+		private int start;
+
+		/**
+		 * Its text and, for a method, the text of its signature (i.e.
+		 * everything before its body).
+		 */
+		private String text;
+		private String signature;
+
+		/**
+		 * Every identifier in the declaration, which includes the type or
+		 * method named by every reference to one.
+		 */
+		private final HashSet<String> references = new HashSet<String>();
+
+		/**
+		 * The tree of the declaration, once compiled.
+		 */
+		private WhileFile.Decl decl;
+
+		public Summary(String name, boolean isType, int declaration) {
+			this.name = name;
+			this.isType = isType;
+			this.declaration = declaration;
+		}
+	}
+}
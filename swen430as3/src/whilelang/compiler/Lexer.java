@@ -18,16 +18,22 @@
 
 package whilelang.compiler;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import whilelang.util.LineIndex;
 import whilelang.util.SyntaxError;
 
 /**
@@ -39,31 +45,88 @@ import whilelang.util.SyntaxError;
 public class Lexer {
 
 	private String filename;
-	private StringBuffer input;
+
+	/**
+	 * The characters of the input, of which only the first <code>length</code>
+	 * are used. These are exactly the characters of the source file, such that
+	 * the position of every token is its offset within the file.
+	 */
+	private char[] input;
+	private int length;
 	private int pos;
 
+	/**
+	 * The extent and value of the token most recently scanned by
+	 * <code>scanToken()</code>.
+	 */
+	private int tokenStart;
+	private int tokenEnd;
+	private int tokenValue;
+	private String tokenString;
+
+	/**
+	 * The index of the lines of the input, once built.
+	 */
+	private LineIndex lines;
+
+	/**
+	 * Construct a lexer for a given source file. The file is mapped into
+	 * memory, rather than read through a stream, and decoded in a single pass.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
 	public Lexer(String filename) throws IOException {
-		this(new InputStreamReader(new FileInputStream(filename), "UTF8"));
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			setInput(decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+		}
 		this.filename = filename;
 	}
 
 	public Lexer(InputStream instream) throws IOException {
-		this(new InputStreamReader(instream, "UTF8"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = instream.read(buf)) != -1) {
+			bytes.write(buf, 0, len);
+		}
+		setInput(decode(ByteBuffer.wrap(bytes.toByteArray())));
 	}
 
 	public Lexer(Reader reader) throws IOException {
-		BufferedReader in = new BufferedReader(reader);
-
-		StringBuffer text = new StringBuffer();
-		String tmp;
-		while ((tmp = in.readLine()) != null) {
-			text.append(tmp);
-			text.append("\n");
+		char[] text = new char[8192];
+		int len;
+		length = 0;
+		while ((len = reader.read(text, length, text.length - length)) != -1) {
+			length += len;
+			if (length == text.length) {
+				text = Arrays.copyOf(text, text.length * 2);
+			}
 		}
-
 		input = text;
 	}
 
+	/**
+	 * Decode the bytes of a source file as UTF8. As for an
+	 * <code>InputStreamReader</code>, malformed input is replaced rather than
+	 * reported.
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 */
+	private static CharBuffer decode(ByteBuffer bytes) throws IOException {
+		return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE).decode(bytes);
+	}
+
+	private void setInput(CharBuffer chars) {
+		// NOTE: a decoded buffer is always backed by an array from its start,
+		// so this need not be copied.
+		input = chars.array();
+		length = chars.limit();
+	}
+
 	/**
 	 * Scan all characters from the input stream and generate a corresponding
 	 * list of tokens, whilst discarding all whitespace and comments.
@@ -73,49 +136,221 @@ public class Lexer {
 	public List<Token> scan() {
 		ArrayList<Token> tokens = new ArrayList<Token>();
 		pos = 0;
+		Token token;
+		do {
+			token = next();
+			tokens.add(token);
+		} while (!(token instanceof EndOfStream));
+		return tokens;
+	}
 
-		while (pos < input.length()) {
-			char c = input.charAt(pos);
+	/**
+	 * Scan the next token from the input stream, whilst discarding any
+	 * whitespace and comments before it. Once the input is exhausted, every
+	 * call returns an <code>EndOfStream</code> token.
+	 *
+	 * @return
+	 */
+	public Token next() {
+		int kind = scanToken();
+		switch (kind) {
+		case INTEGER:
+			return new Int(tokenValue, text(tokenStart, tokenEnd), tokenStart);
+		case IDENTIFIER:
+			return new Identifier(text(tokenStart, tokenEnd), tokenStart);
+		case KEYWORD:
+			return new Keyword(keywords[tokenValue], tokenStart);
+		case OPERATOR:
+			return operator(tokenValue, tokenStart);
+		case STRING:
+			return new Strung(tokenString, text(tokenStart, tokenEnd), tokenStart);
+		case CHARACTER:
+			return new Char((char) tokenValue, text(tokenStart, tokenEnd), tokenStart);
+		default:
+			return new EndOfStream(tokenStart);
+		}
+	}
 
-			if (Character.isDigit(c)) {
-				tokens.add(scanNumericConstant());
-			} else if (c == '"') {
-				tokens.add(scanStringConstant());
-			} else if (c == '\'') {
-				tokens.add(scanCharacterConstant());
-			} else if (c == '/' && (pos + 1) < input.length() && input.charAt(pos + 1) == '/') {
+	/**
+	 * <p>
+	 * Scan the next token from the input stream, as for <code>next()</code>,
+	 * but without constructing an object for it. Instead, the kind of token
+	 * is returned, whilst its extent and value are left to be read through
+	 * <code>tokenStart()</code>, <code>tokenEnd()</code>,
+	 * <code>tokenValue()</code> and <code>tokenString()</code>. This allows
+	 * tokens to be consumed as they are needed (see <code>TokenStream</code>),
+	 * without allocating anything for most of them.
+	 * </p>
+	 * <p>
+	 * The value of an integer or character is its value, whilst that of a
+	 * keyword or operator is its index in <code>keywords</code> or
+	 * <code>operators</code>. Only a string has a string value.
+	 * </p>
+	 *
+	 * @return
+	 */
+	public int scanToken() {
+		tokenString = null;
+		while (pos < length) {
+			int start = pos;
+			int state = match();
+			if (state < 0) {
+				if (TRANSITIONS[START * CLASSES + classOf(input[start])] >= 0) {
+					// A prefix of an operator, such as '&'
+					syntaxError("LX05", "unknown operator encountered: " + input[start]);
+				}
+				syntaxError("LX01", "syntax error");
+			}
+			int kind = KINDS[state];
+			switch (kind) {
+			case INTEGER:
+				tokenValue = scanNumericConstant(start);
+				break;
+			case KEYWORD:
+			case OPERATOR:
+				tokenValue = INDICES[state];
+				break;
+			case STRING:
+				pos = start;
+				tokenString = scanString();
+				break;
+			case CHARACTER:
+				pos = start;
+				tokenValue = scanCharacter();
+				break;
+			case LINE_COMMENT:
+				pos = start;
 				scanLineComment();
-			} else if (c == '/' && (pos + 1) < input.length() && input.charAt(pos + 1) == '*') {
+				continue;
+			case BLOCK_COMMENT:
+				pos = start;
 				scanBlockComment();
-			} else if (isOperatorStart(c)) {
-				tokens.add(scanOperator());
-			} else if (Character.isJavaIdentifierStart(c)) {
-				tokens.add(scanIdentifier());
-			} else if (Character.isWhitespace(c)) {
-				skipWhitespace();
-			} else {
-				syntaxError("LX01", "syntax error");
+				continue;
+			case WHITESPACE:
+				continue;
 			}
+			tokenStart = start;
+			tokenEnd = pos - 1;
+			return kind;
 		}
+		tokenStart = pos;
+		tokenEnd = pos - 1;
+		return END;
+	}
 
-		tokens.add(new EndOfStream(pos));
+	/**
+	 * Get the offset of the first character of the token most recently
+	 * scanned.
+	 *
+	 * @return
+	 */
+	public int tokenStart() {
+		return tokenStart;
+	}
 
-		return tokens;
+	/**
+	 * Get the offset of the last character of the token most recently
+	 * scanned.
+	 *
+	 * @return
+	 */
+	public int tokenEnd() {
+		return tokenEnd;
+	}
+
+	public int tokenValue() {
+		return tokenValue;
+	}
+
+	public String tokenString() {
+		return tokenString;
 	}
 
 	/**
-	 * Scan a numeric constant. That is a sequence of digits which gives an
-	 * integer constant.
+	 * Get the index of the lines of the input, building it the first time this
+	 * is called.
 	 *
 	 * @return
 	 */
-	public Token scanNumericConstant() {
-		int start = pos;
-		while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
-			pos = pos + 1;
+	public LineIndex lines() {
+		if (lines == null) {
+			lines = new LineIndex(input, length);
+		}
+		return lines;
+	}
+
+	/**
+	 * Get the text between two offsets (inclusive) of the input.
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public String text(int start, int end) {
+		return new String(input, start, end - start + 1);
+	}
+
+	/**
+	 * Check whether the text between two offsets (inclusive) of the input is
+	 * a given string, without constructing the text.
+	 *
+	 * @param start
+	 * @param end
+	 * @param text
+	 * @return
+	 */
+	public boolean matches(int start, int end, String text) {
+		if (end - start + 1 != text.length()) {
+			return false;
 		}
-		int r = new BigInteger(input.substring(start, pos)).intValue();
-		return new Int(r, input.substring(start, pos), start);
+		for (int i = 0; i != text.length(); ++i) {
+			if (input[start + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Run the automaton from the current index, leaving the index just after
+	 * the longest sequence of characters which it accepts. This returns the
+	 * state reached after that sequence, or <code>-1</code> (and leaves the
+	 * index unchanged) if no sequence is accepted.
+	 *
+	 * @return
+	 */
+	private int match() {
+		int state = START;
+		int accepted = -1;
+		int end = pos;
+		for (int i = pos; i < length; ++i) {
+			state = TRANSITIONS[state * CLASSES + classOf(input[i])];
+			if (state < 0) {
+				break;
+			} else if (KINDS[state] != NONE) {
+				accepted = state;
+				end = i + 1;
+			}
+		}
+		pos = end;
+		return accepted;
+	}
+
+	/**
+	 * Determine the value of the numeric constant from the sequence of digits which the
+	 * automaton has just matched. As for <code>BigInteger.intValue()</code>,
+	 * a constant too large for an <code>int</code> keeps only its low-order
+	 * bits.
+	 *
+	 * @param start
+	 * @return
+	 */
+	private int scanNumericConstant(int start) {
+		int r = 0;
+		for (int i = start; i != pos; ++i) {
+			r = r * 10 + Character.digit(input[i], 10);
+		}
+		return r;
 	}
 
 	/**
@@ -128,11 +363,24 @@ public class Lexer {
 	 */
 	public Token scanCharacterConstant() {
 		int start = pos;
+		char c = scanCharacter();
+		return new Char(c, new String(input, start, pos - start), start);
+	}
+
+	/**
+	 * Scan a character constant, as for <code>scanCharacterConstant()</code>,
+	 * but returning only its value.
+	 *
+	 * @return
+	 */
+	private char scanCharacter() {
 		pos++;
-		char c = input.charAt(pos++);
+		checkNotEnd("LX02", "unexpected end-of-character");
+		char c = input[pos++];
 		if (c == '\\') {
 			// escape code
-			switch (input.charAt(pos++)) {
+			checkNotEnd("LX02", "unexpected end-of-character");
+			switch (input[pos++]) {
 			case 't':
 				c = '\t';
 				break;
@@ -143,21 +391,34 @@ public class Lexer {
 				syntaxError("LX04", "unrecognised escape character", pos);
 			}
 		}
-		if (input.charAt(pos) != '\'') {
+		checkNotEnd("LX02", "unexpected end-of-character");
+		if (input[pos] != '\'') {
 			syntaxError("LX02", "unexpected end-of-character", pos);
 		}
 		pos = pos + 1;
-		return new Char(c, input.substring(start, pos), start);
+		return c;
 	}
 
 	public Token scanStringConstant() {
+		int start = pos;
+		String string = scanString();
+		return new Strung(string, new String(input, start, pos - start), start);
+	}
+
+	/**
+	 * Scan a string constant, as for <code>scanStringConstant()</code>, but
+	 * returning only its value.
+	 *
+	 * @return
+	 */
+	private String scanString() {
 		int start = pos;
 		pos++;
-		while (pos < input.length()) {
-			char c = input.charAt(pos);
+		while (pos < length) {
+			char c = input[pos];
 			if (c == '"') {
-				String v = input.substring(start, ++pos);
-				return new Strung(parseString(v), v, start);
+				pos = pos + 1;
+				return parseString(new String(input, start, pos - start));
 			}
 			pos = pos + 1;
 		}
@@ -221,126 +482,292 @@ public class Lexer {
 		return v;
 	}
 
-	static final char[] opStarts = { ',', '(', ')', '[', ']', '{', '}', '+', '-',
-		'*', '/', '%', '!', '=', '<', '>', ':', ';', '&', '|', '.' };
+	/**
+	 * The keywords of the language. These are recognised by the automaton as
+	 * it scans, rather than by comparing each identifier against them.
+	 */
+	public static final String[] keywords = { "true", "false", "void", "int", "bool", "if",
+			"switch", "case", "default", "break","continue","while", "else", "is", "for", "assert", "print", "return", "type" };
 
-	public boolean isOperatorStart(char c) {
-		for (char o : opStarts) {
-			if (c == o) {
-				return true;
+	/**
+	 * The operators of the language. The token constructed for each is
+	 * determined by its index (see <code>operator()</code>).
+	 */
+	private static final String[] operators = { ".", ",", ";", ":", "|", "||", "(", ")", "[", "]", "{", "}", "+",
+			"-", "*", "&&", "/", "%", "!", "!=", "=", "==", "<", "<=", ">", ">=" };
+
+	/**
+	 * Get the index of a given operator in <code>operators</code>, which is
+	 * the value given to its tokens by <code>scanToken()</code>.
+	 *
+	 * @param text
+	 * @return The index, or <code>-1</code> if there is no such operator.
+	 */
+	public static int indexOfOperator(String text) {
+		for (int i = 0; i != operators.length; ++i) {
+			if (operators[i].equals(text)) {
+				return i;
 			}
 		}
-		return false;
-	}
-
-	public Token scanOperator() {
-		char c = input.charAt(pos);
-
-		if (c == '.') {
-			return new Dot(pos++);
-		} else if (c == ',') {
-			return new Comma(pos++);
-		} else if (c == ';') {
-			return new SemiColon(pos++);
-		} else if (c == ':') {
-			return new Colon(pos++);
-		} else if (c == '|') {
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '|') {
-				pos += 2;
-				return new LogicalOr("||", pos - 2);
-			} else {
-				return new Bar(pos++);
-			}
-		} else if (c == '(') {
-			return new LeftBrace(pos++);
-		} else if (c == ')') {
-			return new RightBrace(pos++);
-		} else if (c == '[') {
-			return new LeftSquare(pos++);
-		} else if (c == ']') {
-			return new RightSquare(pos++);
-		} else if (c == '{') {
-			return new LeftCurly(pos++);
-		} else if (c == '}') {
-			return new RightCurly(pos++);
-		} else if (c == '+') {
-			return new Plus(pos++);
-		} else if (c == '-') {
-			return new Minus(pos++);
-		} else if (c == '*') {
-			return new Star(pos++);
-		} else if (c == '&' && (pos + 1) < input.length()
-				&& input.charAt(pos + 1) == '&') {
-			pos += 2;
-			return new LogicalAnd("&&", pos - 2);
-		} else if (c == '/') {
-			return new RightSlash(pos++);
-		} else if (c == '%') {
-			return new Percent(pos++);
-		} else if (c == '!') {
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				return new NotEquals("!=", pos - 2);
-			} else {
-				return new Shreak(pos++);
+		return -1;
+	}
+
+	/**
+	 * Get the number of operators, which bounds their indices.
+	 *
+	 * @return
+	 */
+	public static int operatorCount() {
+		return operators.length;
+	}
+
+	/**
+	 * Construct the token for a given operator.
+	 *
+	 * @param index
+	 *            The index of the operator in <code>operators</code>.
+	 * @param start
+	 * @return
+	 */
+	private static Token operator(int index, int start) {
+		switch (index) {
+		case 0:
+			return new Dot(start);
+		case 1:
+			return new Comma(start);
+		case 2:
+			return new SemiColon(start);
+		case 3:
+			return new Colon(start);
+		case 4:
+			return new Bar(start);
+		case 5:
+			return new LogicalOr("||", start);
+		case 6:
+			return new LeftBrace(start);
+		case 7:
+			return new RightBrace(start);
+		case 8:
+			return new LeftSquare(start);
+		case 9:
+			return new RightSquare(start);
+		case 10:
+			return new LeftCurly(start);
+		case 11:
+			return new RightCurly(start);
+		case 12:
+			return new Plus(start);
+		case 13:
+			return new Minus(start);
+		case 14:
+			return new Star(start);
+		case 15:
+			return new LogicalAnd("&&", start);
+		case 16:
+			return new RightSlash(start);
+		case 17:
+			return new Percent(start);
+		case 18:
+			return new Shreak(start);
+		case 19:
+			return new NotEquals("!=", start);
+		case 20:
+			return new Equals(start);
+		case 21:
+			return new EqualsEquals(start);
+		case 22:
+			return new LeftAngle(start);
+		case 23:
+			return new LessEquals("<=", start);
+		case 24:
+			return new RightAngle(start);
+		default:
+			return new GreaterEquals(">=", start);
+		}
+	}
+
+	// The kinds of token accepted by each state of the automaton. Strings,
+	// characters and comments are only recognised by their opening
+	// characters, since their bodies are scanned separately. Those kinds
+	// which are not skipped are also the kinds of token returned by
+	// scanToken(), along with END at the end of the input.
+	private static final int NONE = 0;
+	private static final int WHITESPACE = 1;
+	public static final int INTEGER = 2;
+	public static final int IDENTIFIER = 3;
+	public static final int KEYWORD = 4;
+	public static final int OPERATOR = 5;
+	public static final int STRING = 6;
+	public static final int CHARACTER = 7;
+	private static final int LINE_COMMENT = 8;
+	private static final int BLOCK_COMMENT = 9;
+	public static final int END = 10;
+
+	// The classes into which characters are divided. Every ASCII character is
+	// its own class, whilst all others are classified by their properties.
+	private static final int OTHER_DIGIT = 128;
+	private static final int OTHER_IDENTIFIER_START = 129;
+	private static final int OTHER_IDENTIFIER_PART = 130;
+	private static final int OTHER_WHITESPACE = 131;
+	private static final int OTHER = 132;
+	private static final int CLASSES = 133;
+
+	private static final int START = 0;
+
+	/**
+	 * The state reached from each state on each class of character, or
+	 * <code>-1</code> if there is none, indexed by
+	 * <code>state * CLASSES + class</code>.
+	 */
+	private static final int[] TRANSITIONS;
+
+	/**
+	 * The kind of token accepted by each state and, for keywords and
+	 * operators, its index in <code>keywords</code> or
+	 * <code>operators</code>.
+	 */
+	private static final int[] KINDS;
+	private static final int[] INDICES;
+
+	private static int classOf(char c) {
+		if (c < 128) {
+			return c;
+		} else if (Character.isDigit(c)) {
+			return OTHER_DIGIT;
+		} else if (Character.isJavaIdentifierStart(c)) {
+			return OTHER_IDENTIFIER_START;
+		} else if (Character.isJavaIdentifierPart(c)) {
+			return OTHER_IDENTIFIER_PART;
+		} else if (Character.isWhitespace(c)) {
+			return OTHER_WHITESPACE;
+		} else {
+			return OTHER;
+		}
+	}
+
+	static {
+		Automaton a = new Automaton();
+		a.state(NONE, 0);
+		int whitespace = a.state(WHITESPACE, 0);
+		int integer = a.state(INTEGER, 0);
+		int identifier = a.state(IDENTIFIER, 0);
+		for (int c = 0; c != CLASSES; ++c) {
+			if (c < 128 ? Character.isWhitespace(c) : c == OTHER_WHITESPACE) {
+				a.transition(START, c, whitespace);
+				a.transition(whitespace, c, whitespace);
 			}
-		} else if (c == '=') {
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				return new EqualsEquals(pos - 2);
-			} else {
-				return new Equals(pos++);
+			if (c < 128 ? Character.isDigit(c) : c == OTHER_DIGIT) {
+				a.transition(START, c, integer);
+				a.transition(integer, c, integer);
 			}
-		} else if (c == '<') {
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				return new LessEquals("<=", pos - 2);
-			} else {
-				return new LeftAngle(pos++);
+			if (c < 128 ? Character.isJavaIdentifierPart(c) : c != OTHER_WHITESPACE && c != OTHER) {
+				a.transition(identifier, c, identifier);
 			}
-		} else if (c == '>') {
-			if ((pos + 1) < input.length() && input.charAt(pos + 1) == '=') {
-				pos += 2;
-				return new GreaterEquals(">=", pos - 2);
-			} else {
-				return new RightAngle(pos++);
+		}
+		for (int i = 0; i != operators.length; ++i) {
+			a.add(operators[i], OPERATOR, i);
+		}
+		a.add("\"", STRING, 0);
+		a.add("'", CHARACTER, 0);
+		a.add("//", LINE_COMMENT, 0);
+		a.add("/*", BLOCK_COMMENT, 0);
+		for (int i = 0; i != keywords.length; ++i) {
+			a.add(keywords[i], KEYWORD, i);
+		}
+		// Every prefix of a keyword is an identifier, as is every extension of
+		// one. Hence, the states for keywords fall back to the identifier
+		// state on any character which does not continue a keyword.
+		a.complete(START, identifier);
+		for (String keyword : keywords) {
+			int state = START;
+			for (int i = 0; i != keyword.length(); ++i) {
+				state = a.rows.get(state)[keyword.charAt(i)];
+				a.complete(state, identifier);
 			}
 		}
-
-		syntaxError("LX05", "unknown operator encountered: " + c);
-		return null;
+		TRANSITIONS = new int[a.rows.size() * CLASSES];
+		KINDS = new int[a.rows.size()];
+		INDICES = new int[a.rows.size()];
+		for (int i = 0; i != a.rows.size(); ++i) {
+			System.arraycopy(a.rows.get(i), 0, TRANSITIONS, i * CLASSES, CLASSES);
+			KINDS[i] = a.kinds.get(i);
+			INDICES[i] = a.indices.get(i);
+		}
 	}
 
-	public static final String[] keywords = { "true", "false", "void", "int", "bool", "if",
-			"switch", "case", "default", "break","continue","while", "else", "is", "for", "assert", "print", "return", "type" };
+	/**
+	 * Accumulates the states of the automaton as it is constructed.
+	 */
+	private static final class Automaton {
+		private final ArrayList<int[]> rows = new ArrayList<int[]>();
+		private final ArrayList<Integer> kinds = new ArrayList<Integer>();
+		private final ArrayList<Integer> indices = new ArrayList<Integer>();
+
+		/**
+		 * Create a new state, which accepts a given kind of token, and has no
+		 * transitions.
+		 */
+		public int state(int kind, int index) {
+			int[] row = new int[CLASSES];
+			Arrays.fill(row, -1);
+			rows.add(row);
+			kinds.add(kind);
+			indices.add(index);
+			return rows.size() - 1;
+		}
 
-	public Token scanIdentifier() {
-		int start = pos;
-		while (pos < input.length()
-				&& Character.isJavaIdentifierPart(input.charAt(pos))) {
-			pos++;
+		public void transition(int from, int c, int to) {
+			rows.get(from)[c] = to;
 		}
-		String text = input.substring(start, pos);
 
-		// now, check for keywords
-		for (String keyword : keywords) {
-			if (keyword.equals(text)) {
-				return new Keyword(text, start);
+		/**
+		 * Add the states needed to accept a given sequence of (ASCII)
+		 * characters from the start state, as a given kind of token.
+		 */
+		public void add(String text, int kind, int index) {
+			int state = START;
+			for (int i = 0; i != text.length(); ++i) {
+				int next = rows.get(state)[text.charAt(i)];
+				if (next < 0) {
+					next = state(NONE, 0);
+					transition(state, text.charAt(i), next);
+				}
+				state = next;
 			}
+			kinds.set(state, kind);
+			indices.set(state, index);
 		}
 
-		// otherwise, must be identifier
-		return new Identifier(text, start);
+		/**
+		 * Make a state within a keyword accept an identifier (unless it
+		 * accepts the keyword itself), and continue to the identifier state
+		 * on every other identifier character. The start state differs only
+		 * in that identifiers must begin with an identifier start character.
+		 */
+		public void complete(int state, int identifier) {
+			int[] row = rows.get(state);
+			for (int c = 0; c != CLASSES; ++c) {
+				boolean accepted = state == START
+						? (c < 128 ? Character.isJavaIdentifierStart(c) : c == OTHER_IDENTIFIER_START)
+						: (c < 128 ? Character.isJavaIdentifierPart(c) : c != OTHER_WHITESPACE && c != OTHER);
+				if (accepted && row[c] < 0) {
+					row[c] = identifier;
+				}
+			}
+			if (state != START && kinds.get(state) == NONE) {
+				kinds.set(state, IDENTIFIER);
+			}
+		}
 	}
 
 	public void scanLineComment() {
-		while (pos < input.length() && input.charAt(pos) != '\n') {
+		while (pos < length && input[pos] != '\n') {
 			pos++;
 		}
 	}
 
 	public void scanBlockComment() {
-		while((pos+1) < input.length() && (input.charAt(pos) != '*' || input.charAt(pos+1) != '/')) {
+		while((pos+1) < length && (input[pos] != '*' || input[pos+1] != '/')) {
 			pos++;
 		}
 		pos++;
@@ -349,15 +776,15 @@ public class Lexer {
 	}
 
 	/**
-	 * Skip over any whitespace at the current index position in the input
-	 * string.
+	 * Raise a syntax error with a given message if the current index is at the
+	 * end of the input (at which point the input array may hold junk).
 	 *
-	 * @param tokens
+	 * @param code
+	 * @param msg
 	 */
-	public void skipWhitespace() {
-		while (pos < input.length()
-				&& Character.isWhitespace(input.charAt(pos))) {
-			pos++;
+	private void checkNotEnd(String code, String msg) {
+		if (pos >= length) {
+			syntaxError(code, msg, length - 1);
 		}
 	}
 
@@ -25,6 +25,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import whilelang.ast.Attribute;
 import whilelang.ast.Expr;
@@ -34,35 +36,6 @@ import whilelang.ast.WhileFile;
 import whilelang.ast.WhileFile.Decl;
 import whilelang.ast.WhileFile.Parameter;
 import whilelang.ast.WhileFile.TypeDecl;
-import whilelang.compiler.Lexer.Bar;
-import whilelang.compiler.Lexer.Dot;
-import whilelang.compiler.Lexer.EndOfStream;
-import whilelang.compiler.Lexer.Equals;
-import whilelang.compiler.Lexer.EqualsEquals;
-import whilelang.compiler.Lexer.GreaterEquals;
-import whilelang.compiler.Lexer.Identifier;
-import whilelang.compiler.Lexer.Int;
-import whilelang.compiler.Lexer.Keyword;
-import whilelang.compiler.Lexer.LeftAngle;
-import whilelang.compiler.Lexer.LeftBrace;
-import whilelang.compiler.Lexer.LeftCurly;
-import whilelang.compiler.Lexer.LeftSquare;
-import whilelang.compiler.Lexer.LessEquals;
-import whilelang.compiler.Lexer.LogicalAnd;
-import whilelang.compiler.Lexer.LogicalOr;
-import whilelang.compiler.Lexer.Minus;
-import whilelang.compiler.Lexer.NotEquals;
-import whilelang.compiler.Lexer.Percent;
-import whilelang.compiler.Lexer.Plus;
-import whilelang.compiler.Lexer.RightAngle;
-import whilelang.compiler.Lexer.RightBrace;
-import whilelang.compiler.Lexer.RightCurly;
-import whilelang.compiler.Lexer.RightSlash;
-import whilelang.compiler.Lexer.RightSquare;
-import whilelang.compiler.Lexer.SemiColon;
-import whilelang.compiler.Lexer.Shreak;
-import whilelang.compiler.Lexer.Star;
-import whilelang.compiler.Lexer.Strung;
 import whilelang.compiler.Lexer.Token;
 import whilelang.util.Pair;
 import whilelang.util.SyntaxError;
@@ -70,16 +43,45 @@ import whilelang.util.SyntaxError;
 public class Parser {
 
 	private String filename;
-	private ArrayList<Token> tokens;
-	private HashMap<String,WhileFile.MethodDecl> userDefinedMethods;
-	private HashSet<String> userDefinedTypes;
+	private TokenStream tokens;
+
+	/**
+	 * The methods and types declared in the file so far, mapped to their
+	 * declarations. When declarations are parsed in parallel, these hold
+	 * every declaration in the file from the start, and so only those before
+	 * the declaration being parsed are visible to it.
+	 */
+	private HashMap<String,Declared> userDefinedMethods;
+	private HashMap<String,Declared> userDefinedTypes;
+
+	/**
+	 * The position in the file of the declaration being parsed.
+	 */
+	private int declaration;
 	private int index;
 
+	/**
+	 * The offset of the last character of the most recently matched token.
+	 * Source attributes are built from offsets, rather than token indices,
+	 * since a token may be discarded from the stream once it is matched.
+	 */
+	private int previous;
+
 	public Parser(String filename, List<Token> tokens) {
+		this(filename, new TokenStream(tokens));
+	}
+
+	public Parser(String filename, TokenStream tokens) {
+		this(filename, tokens, new HashMap<String,Declared>(), new HashMap<String,Declared>(), 0);
+	}
+
+	private Parser(String filename, TokenStream tokens, HashMap<String,Declared> userDefinedMethods,
+			HashMap<String,Declared> userDefinedTypes, int declaration) {
 		this.filename = filename;
-		this.tokens = new ArrayList<Token>(tokens);
-		this.userDefinedMethods = new HashMap<String,WhileFile.MethodDecl>();
-		this.userDefinedTypes = new HashSet<String>();
+		this.tokens = tokens;
+		this.userDefinedMethods = userDefinedMethods;
+		this.userDefinedTypes = userDefinedTypes;
+		this.declaration = declaration;
 	}
 
 	/**
@@ -91,22 +93,276 @@ public class Parser {
 	public WhileFile read() {
 		ArrayList<Decl> decls = new ArrayList<Decl>();
 
-		while (!(tokens.get(index) instanceof EndOfStream)) {
-			Token t = tokens.get(index);
-			if (t instanceof Keyword) {
-				if (t.text.equals("type")) {
-					decls.add(parseTypeDeclaration());
-				} else {
-					decls.add(parseMethodDeclaration());
-				}
+		while (tokens.kind(index) != Lexer.END) {
+			declaration = decls.size();
+			Decl decl = parseDeclaration();
+			if (decl instanceof TypeDecl) {
+				userDefinedTypes.put(decl.name(), new Declared(decl.name(), true, declaration, 0));
 			} else {
-				decls.add(parseMethodDeclaration());
+				int parameters = ((WhileFile.MethodDecl) decl).getParameters().size();
+				userDefinedMethods.put(decl.name(), new Declared(decl.name(), false, declaration, parameters));
 			}
+			decls.add(decl);
 		}
 
 		return new WhileFile(filename, decls);
 	}
 
+	/**
+	 * <p>
+	 * Parse a given source file as for <code>read()</code>, but with each
+	 * declaration parsed as a separate task in a given pool. The file is
+	 * first divided at the start of each declaration, noting the type or
+	 * method it declares, so that every declaration can be parsed knowing
+	 * which types and methods are declared before it.
+	 * </p>
+	 * <p>
+	 * The division looks only at the tokens beginning each declaration and at
+	 * the braces of each method body. Should it turn out to be wrong, or
+	 * should any declaration fail to parse, the file is parsed again in
+	 * order. Hence, the tree produced (or the error reported) is always the
+	 * same as for <code>read()</code>.
+	 * </p>
+	 *
+	 * @param pool
+	 * @return
+	 */
+	public WhileFile read(ForkJoinPool pool) {
+		List<Declared> extents = split();
+		if (extents != null) {
+			WhileFile wf = read(extents, new Decl[extents.size()], pool);
+			if (wf != null) {
+				return wf;
+			}
+		}
+		// NOTE: no token has been discarded, so the file can be parsed again
+		// from the start.
+		return read();
+	}
+
+	/**
+	 * Parse the declarations with given extents (see <code>split()</code>)
+	 * each on its own, except for those already given. This is used both to
+	 * parse declarations in parallel, and to parse only those which have
+	 * changed since the file was last compiled.
+	 *
+	 * @param extents
+	 * @param decls
+	 *            The declaration for each extent, or <code>null</code> for
+	 *            those to be parsed. This is filled in as they are parsed.
+	 * @param pool
+	 *            The pool in which declarations are parsed, or
+	 *            <code>null</code> to parse them in order.
+	 * @return The file, or <code>null</code> if any declaration did not parse
+	 *         on its own, or does not match its extent.
+	 */
+	WhileFile read(List<Declared> extents, Decl[] decls, ForkJoinPool pool) {
+		HashMap<String,Declared> methods = new HashMap<String,Declared>();
+		HashMap<String,Declared> types = new HashMap<String,Declared>();
+		for (Declared extent : extents) {
+			HashMap<String,Declared> declared = extent.isType ? types : methods;
+			if (!declared.containsKey(extent.name)) {
+				declared.put(extent.name, extent);
+			}
+		}
+		if (pool != null) {
+			pool.invoke(new ParseTask(extents, methods, types, decls, 0, decls.length));
+		} else {
+			for (int i = 0; i != decls.length; ++i) {
+				if (decls[i] == null) {
+					decls[i] = parseDeclaration(extents.get(i), methods, types);
+					if (decls[i] == null) {
+						return null;
+					}
+				}
+			}
+		}
+		if (matches(decls, extents)) {
+			return new WhileFile(filename, Arrays.asList(decls));
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Divide the file into its declarations, without parsing them. This
+	 * relies on each declaration beginning with either the keyword
+	 * <code>type</code> or the return type of a method, and on each method
+	 * ending with the brace which closes its body.
+	 *
+	 * @return The extent of each declaration in order, or <code>null</code>
+	 *         if the file could not be divided.
+	 */
+	List<Declared> split() {
+		try {
+			return divide();
+		} catch (SyntaxError e) {
+			// NOTE: the lexer has failed, but parsing in order may fail
+			// before reaching this point.
+			return null;
+		}
+	}
+
+	private List<Declared> divide() {
+		ArrayList<Declared> extents = new ArrayList<Declared>();
+		int i = 0;
+		while (tokens.kind(i) != Lexer.END) {
+			Declared extent;
+			if (tokens.kind(i) == Lexer.KEYWORD && tokens.is(i, "type")) {
+				// TypeDecl ::= 'type' Ident 'is' Type
+				if (tokens.kind(i + 1) != Lexer.IDENTIFIER || !tokens.is(i + 2, "is")) {
+					return null;
+				}
+				extent = new Declared(tokens.text(i + 1), true, extents.size(), 0);
+				extent.from = i;
+				i = skipType(i + 3);
+				extent.body = i;
+			} else {
+				// MethodDecl ::= Type Ident '(' Parameters ')' '{' Stmt* '}'
+				int from = i;
+				i = skipType(i);
+				if (i < 0 || tokens.kind(i) != Lexer.IDENTIFIER || !tokens.is(i + 1, "(")) {
+					return null;
+				}
+				String name = tokens.text(i);
+				i = i + 2;
+				// Parameters are separated by the commas outside record types
+				int parameters = tokens.is(i, ")") ? 0 : 1;
+				int depth = 0;
+				while (depth > 0 || !tokens.is(i, ")")) {
+					if (tokens.kind(i) == Lexer.END) {
+						return null;
+					} else if (tokens.is(i, "{")) {
+						depth = depth + 1;
+					} else if (tokens.is(i, "}")) {
+						depth = depth - 1;
+					} else if (depth == 0 && tokens.is(i, ",")) {
+						parameters = parameters + 1;
+					}
+					i = i + 1;
+				}
+				if (!tokens.is(i + 1, "{")) {
+					return null;
+				}
+				extent = new Declared(name, false, extents.size(), parameters);
+				extent.from = from;
+				extent.body = i + 1;
+				i = skipBraces(i + 1);
+			}
+			if (i < 0) {
+				return null;
+			}
+			extent.to = i;
+			extents.add(extent);
+		}
+		return extents;
+	}
+
+	/**
+	 * Find the end of the type beginning at a given token, without parsing
+	 * it.
+	 *
+	 * @param i
+	 * @return The index of the token after the type, or <code>-1</code> if
+	 *         there is no type there.
+	 */
+	private int skipType(int i) {
+		if (tokens.is(i, "{")) {
+			i = skipBraces(i);
+		} else if (tokens.kind(i) == Lexer.KEYWORD || tokens.kind(i) == Lexer.IDENTIFIER) {
+			i = i + 1;
+		} else {
+			return -1;
+		}
+		while (i >= 0 && tokens.is(i, "[")) {
+			if (!tokens.is(i + 1, "]")) {
+				return -1;
+			}
+			i = i + 2;
+		}
+		return i;
+	}
+
+	/**
+	 * Find the brace closing the one at a given token.
+	 *
+	 * @param i
+	 * @return The index of the token after the closing brace, or
+	 *         <code>-1</code> if there is none.
+	 */
+	private int skipBraces(int i) {
+		int depth = 0;
+		do {
+			if (tokens.kind(i) == Lexer.END) {
+				return -1;
+			} else if (tokens.is(i, "{")) {
+				depth = depth + 1;
+			} else if (tokens.is(i, "}")) {
+				depth = depth - 1;
+			}
+			i = i + 1;
+		} while (depth > 0);
+		return i;
+	}
+
+	/**
+	 * Parse the declaration with a given extent (see <code>split()</code>)
+	 * on its own, knowing all the types and methods declared in the file.
+	 *
+	 * @return The declaration, or <code>null</code> if it does not parse on
+	 *         its own.
+	 */
+	private Decl parseDeclaration(Declared extent, HashMap<String,Declared> methods, HashMap<String,Declared> types) {
+		Parser parser = new Parser(filename, tokens.slice(extent.from, extent.to), methods, types,
+				extent.declaration);
+		try {
+			Decl decl = parser.parseDeclaration();
+			if (parser.tokens.kind(parser.index) == Lexer.END) {
+				return decl;
+			}
+		} catch (SyntaxError e) {
+			// NOTE: the error is reported when the file is parsed again in
+			// order, since it may have been caused by an earlier declaration.
+		}
+		return null;
+	}
+
+	/**
+	 * Check that every declaration parsed on its own declares what its extent
+	 * says it does. Otherwise, the declarations after it were parsed with the
+	 * wrong types and methods in scope.
+	 *
+	 * @param decls
+	 * @param extents
+	 * @return
+	 */
+	private static boolean matches(Decl[] decls, List<Declared> extents) {
+		for (int i = 0; i != decls.length; ++i) {
+			Decl decl = decls[i];
+			Declared extent = extents.get(i);
+			if (decl == null || !decl.name().equals(extent.name)) {
+				return false;
+			} else if (decl instanceof WhileFile.MethodDecl
+					&& ((WhileFile.MethodDecl) decl).getParameters().size() != extent.parameters) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a type or method declaration.
+	 *
+	 * @return
+	 */
+	private Decl parseDeclaration() {
+		if (tokens.kind(index) == Lexer.KEYWORD && tokens.is(index, "type")) {
+			return parseTypeDeclaration();
+		} else {
+			return parseMethodDeclaration();
+		}
+	}
+
 	/**
 	 * Parse a type declaration of the following form:
 	 *
@@ -116,20 +372,19 @@ public class Parser {
 	 *
 	 * @return
 	 */
-	private Decl parseTypeDeclaration() {
-		int start = index;
+	private TypeDecl parseTypeDeclaration() {
+		int start = position();
 		matchKeyword("type");
 
-		Identifier name = matchIdentifier();
-		if(userDefinedTypes.contains(name.text)) {
-			syntaxError("PR03", "type already declared",name);
+		String name = matchIdentifier();
+		if(isUserDefinedType(name)) {
+			syntaxError("PR03", "type already declared", index - 1);
 		}
 		matchKeyword("is");
 
 		Type t = parseType();
-		int end = index;
-		userDefinedTypes.add(name.text);
-		return new TypeDecl(t, name.text, sourceAttr(start, end - 1));
+		int end = previous;
+		return new TypeDecl(t, name, sourceAttr(start, end));
 	}
 
 	/**
@@ -144,12 +399,12 @@ public class Parser {
 	 * @return
 	 */
 	private WhileFile.MethodDecl parseMethodDeclaration() {
-		int start = index;
+		int start = position();
 
 		Type returnType = parseType();
-		Identifier name = matchIdentifier();
-		if(userDefinedMethods.containsKey(name.text)) {
-			syntaxError("PR03", "method already declared",name);
+		String name = matchIdentifier();
+		if(getUserDefinedMethod(name) != null) {
+			syntaxError("PR03", "method already declared", index - 1);
 		}
 
 		Context context = new Context();
@@ -158,28 +413,26 @@ public class Parser {
 		// Now build up the parameter types
 		List<Parameter> parameters = new ArrayList<Parameter>();
 		boolean firstTime = true;
-		while (!(tokens.get(index) instanceof RightBrace)) {
+		while (!tokens.is(index, ")")) {
 			if (!firstTime) {
 				match(",");
 			}
 			firstTime = false;
-			int parameterStart = index;
+			int parameterStart = position();
 			Type parameterType = parseType();
-			Identifier parameterName = matchIdentifier();
-			if(context.isDeclared(parameterName.text)) {
-				syntaxError("PR03", "parameter " + parameterName.text + " already declared",parameterName);
+			String parameterName = matchIdentifier();
+			if(context.isDeclared(parameterName)) {
+				syntaxError("PR03", "parameter " + parameterName + " already declared", index - 1);
 			} else {
-				context.declare(parameterName.text);
+				context.declare(parameterName);
 			}
-			parameters.add(new Parameter(parameterType, parameterName.text, sourceAttr(parameterStart, index - 1)));
+			parameters.add(new Parameter(parameterType, parameterName, sourceAttr(parameterStart)));
 
 		}
 
 		match(")");
 		List<Stmt> stmts = parseStatementBlock(context);
-		WhileFile.MethodDecl m = new WhileFile.MethodDecl(name.text, returnType, parameters, stmts, sourceAttr(start, index - 1));
-		userDefinedMethods.put(name.text,m);
-		return m;
+		return new WhileFile.MethodDecl(name, returnType, parameters, stmts, sourceAttr(start));
 	}
 
 	/**
@@ -195,7 +448,7 @@ public class Parser {
 		match("{");
 
 		ArrayList<Stmt> stmts = new ArrayList<Stmt>();
-		while (!(tokens.get(index) instanceof RightCurly)) {
+		while (!tokens.is(index, "}")) {
 			stmts.add(parseStatement(context));
 		}
 
@@ -211,14 +464,13 @@ public class Parser {
 	 */
 	private Stmt parseStatement(Context context) {
 		checkNotEof();
-		Token token = tokens.get(index);
-		if (token.text.equals("if")) {
+		if (tokens.is(index, "if")) {
 			return parseIfStmt(context);
-		} else if (token.text.equals("while")) {
+		} else if (tokens.is(index, "while")) {
 			return parseWhileStmt(context);
-		} else if (token.text.equals("for")) {
+		} else if (tokens.is(index, "for")) {
 			return parseForStmt(context);
-		} else if (token.text.equals("switch")) {
+		} else if (tokens.is(index, "switch")) {
 			return parseSwitchStmt(context);
 		} else {
 			Stmt stmt = parseUnitStatement(context);
@@ -235,27 +487,29 @@ public class Parser {
 	 */
 	private Stmt parseUnitStatement(Context context) {
 		checkNotEof();
-		Token token = tokens.get(index);
 		Stmt stmt;
-		if (token.text.equals("assert")) {
+		if (tokens.is(index, "assert")) {
 			return parseAssertStmt(context);
-		} else if (token.text.equals("print")) {
+		} else if (tokens.is(index, "print")) {
 			return parsePrintStmt(context);
-		} else if (token.text.equals("return")) {
+		} else if (tokens.is(index, "return")) {
 			return parseReturnStmt(context);
-		} else if (token.text.equals("break")) {
+		} else if (tokens.is(index, "break")) {
 			return parseBreakStmt(context);
-		} else if (token.text.equals("continue")) {
+		} else if (tokens.is(index, "continue")) {
 			return parseContinueStmt(context);
-		} else if ((index + 1) < tokens.size() && tokens.get(index + 1) instanceof LeftBrace) {
+		} else if (tokens.is(index + 1, "(")) {
 			// must be a method invocation
 			return parseInvokeExprOrStmt(context);
 		} else if (isTypeAhead(index)) {
 			return parseVariableDeclaration(context);
 		} else {
-			// invocation or assignment
+			// invocation or assignment. In the latter case, the left-hand
+			// side must be parsed again, so its tokens must be kept.
 			int start = index;
+			tokens.mark(start);
 			Expr t = parseExpr(context);
+			tokens.unmark();
 			if (t instanceof Expr.Invoke) {
 				stmt = (Expr.Invoke) t;
 			} else {
@@ -276,19 +530,18 @@ public class Parser {
 	 * @return
 	 */
 	private boolean isTypeAhead(int index) {
-		if (index >= tokens.size()) {
+		if (tokens.isPastEnd(index)) {
 			return false;
 		}
-		Token lookahead = tokens.get(index);
-		if (lookahead instanceof Keyword) {
-			return lookahead.text.equals("null") || lookahead.text.equals("bool") || lookahead.text.equals("int")
-					|| lookahead.text.equals("char") || lookahead.text.equals("string");
-		} else if (lookahead instanceof Identifier) {
-			Identifier id = (Identifier) lookahead;
-			return userDefinedTypes.contains(id.text);
-		} else if (lookahead instanceof LeftCurly) {
+		int kind = tokens.kind(index);
+		if (kind == Lexer.KEYWORD) {
+			return tokens.is(index, "null") || tokens.is(index, "bool") || tokens.is(index, "int")
+					|| tokens.is(index, "char") || tokens.is(index, "string");
+		} else if (kind == Lexer.IDENTIFIER) {
+			return isUserDefinedType(tokens.text(index));
+		} else if (tokens.is(index, "{")) {
 			return isTypeAhead(index + 1);
-		} else if (lookahead instanceof LeftSquare) {
+		} else if (tokens.is(index, "[")) {
 			return isTypeAhead(index + 1);
 		}
 
@@ -305,12 +558,12 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt.Assert parseAssertStmt(Context context) {
-		int start = index;
+		int start = position();
 		// Every assert statement begins with the assert keyword!
 		matchKeyword("assert");
 		Expr e = parseExpr(context);
 		// Done.
-		return new Stmt.Assert(e, sourceAttr(start, index - 1));
+		return new Stmt.Assert(e, sourceAttr(start));
 	}
 	
 	/**
@@ -323,12 +576,12 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt.Print parsePrintStmt(Context context) {
-		int start = index;
+		int start = position();
 		// Every print statement begins with the print keyword!
 		matchKeyword("print");
 		Expr e = parseExpr(context);
 		// Done.
-		return new Stmt.Print(e, sourceAttr(start, index - 1));
+		return new Stmt.Print(e, sourceAttr(start));
 	}
 
 	/**
@@ -346,15 +599,15 @@ public class Parser {
 	 */
 	private Stmt parseAssignStmt(Context context) {
 		// standard assignment
-		int start = index;
+		int start = position();
 		Expr lhs = parseExpr(context);
 		if (!(lhs instanceof Expr.LVal)) {
 			syntaxError("PR10", "expecting lval, found " + lhs + ".", lhs);
 		}
 		match("=");
 		Expr rhs = parseExpr(context);
-		int end = index;
-		return new Stmt.Assign((Expr.LVal) lhs, rhs, sourceAttr(start, end - 1));
+		int end = previous;
+		return new Stmt.Assign((Expr.LVal) lhs, rhs, sourceAttr(start, end));
 	}
 
 	/**
@@ -367,25 +620,25 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt.VariableDeclaration parseVariableDeclaration(Context context) {
-		int start = index;
+		int start = position();
 		// Every variable declaration consists of a declared type and variable
 		// name.
 		Type type = parseType();
-		Identifier id = matchIdentifier();
-		if(context.isDeclared(id.text)) {
-			syntaxError("PR03", "variable " + id.text + " alread declared",id);
+		String id = matchIdentifier();
+		if(context.isDeclared(id)) {
+			syntaxError("PR03", "variable " + id + " alread declared", index - 1);
 		} else {
-			context.declare(id.text);
+			context.declare(id);
 		}
 		// A variable declaration may optionally be assigned an initialiser
 		// expression.
 		Expr initialiser = null;
-		if (tokens.get(index) instanceof Equals) {
+		if (tokens.is(index, "=")) {
 			match("=");
 			initialiser = parseExpr(context);
 		}
 		// Done.
-		return new Stmt.VariableDeclaration(type, id.text, initialiser, sourceAttr(start, index - 1));
+		return new Stmt.VariableDeclaration(type, id, initialiser, sourceAttr(start));
 	}
 
 	/**
@@ -402,19 +655,19 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt parseIfStmt(Context context) {
-		int start = index;
+		int start = position();
 		matchKeyword("if");
 		match("(");
 		Expr c = parseExpr(context);
 		match(")");
-		int end = index;
+		int end = previous;
 		List<Stmt> tblk = parseStatementBlock(context.clone());
 		List<Stmt> fblk = Collections.emptyList();
 
-		if (tokens.get(index).text.equals("else")) {
+		if (tokens.is(index, "else")) {
 			matchKeyword("else");
 
-			if (tokens.get(index).text.equals("if")) {
+			if (tokens.is(index, "if")) {
 				Stmt if2 = parseIfStmt(context);
 				fblk = new ArrayList<Stmt>();
 				fblk.add(if2);
@@ -423,7 +676,7 @@ public class Parser {
 			}
 		}
 
-		return new Stmt.IfElse(c, tblk, fblk, sourceAttr(start, end - 1));
+		return new Stmt.IfElse(c, tblk, fblk, sourceAttr(start, end));
 	}
 
 	/**
@@ -436,16 +689,16 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt.Return parseReturnStmt(Context context) {
-		int start = index;
+		int start = position();
 		// Every return statement begins with the return keyword!
 		matchKeyword("return");
 		Expr e = null;
 		// A return statement may optionally have a return expression.
-		if (!(tokens.get(index) instanceof SemiColon)) {
+		if (!tokens.is(index, ";")) {
 			e = parseExpr(context);
 		}
 		// Done.
-		return new Stmt.Return(e, sourceAttr(start, index - 1));
+		return new Stmt.Return(e, sourceAttr(start));
 	}
 
 	/**
@@ -458,14 +711,14 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt parseWhileStmt(Context context) {
-		int start = index;
+		int start = position();
 		matchKeyword("while");
 		match("(");
 		Expr condition = parseExpr(context);
 		match(")");
-		int end = index;
+		int end = previous;
 		List<Stmt> blk = parseStatementBlock(context.setInLoop().clone());
-		return new Stmt.While(condition, blk, sourceAttr(start, end - 1));
+		return new Stmt.While(condition, blk, sourceAttr(start, end));
 	}
 
 	/**
@@ -478,7 +731,7 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt parseForStmt(Context context) {
-		int start = index;
+		int start = position();
 		matchKeyword("for");
 		match("(");
 		Stmt.VariableDeclaration declaration = parseVariableDeclaration(context);
@@ -486,11 +739,11 @@ public class Parser {
 		Expr condition = parseExpr(context);
 		match(";");
 		Stmt increment = parseUnitStatement(context);
-		int end = index;
+		int end = previous;
 		match(")");
 		List<Stmt> blk = parseStatementBlock(context.setInLoop().clone());
 
-		return new Stmt.For(declaration, condition, increment, blk, sourceAttr(start, end - 1));
+		return new Stmt.For(declaration, condition, increment, blk, sourceAttr(start, end));
 	}
 
 	/**
@@ -507,35 +760,35 @@ public class Parser {
 	 * @return
 	 */
 	private Stmt parseSwitchStmt(Context context) {
-		int start = index;
+		int start = position();
 		matchKeyword("switch");
 		match("(");
 		Expr expr = parseExpr(context);
 		match(")");
-		int end = index;
+		int end = previous;
 		match("{");
 		List<Stmt.Case> cases = parseSwitchCases(context.setInSwitch());
 		match("}");
 
-		return new Stmt.Switch(expr, cases, sourceAttr(start, end - 1));
+		return new Stmt.Switch(expr, cases, sourceAttr(start, end));
 	}
 
 	private Stmt parseBreakStmt(Context context) {
-		int start = index;
-		Keyword k = matchKeyword("break");
+		int start = position();
+		matchKeyword("break");
 		if(!context.inLoop() && !context.inSwitch()) {
-			syntaxError("PR09", "break outside switch or loop",k);
+			syntaxError("PR09", "break outside switch or loop", index - 1);
 		}
-		return new Stmt.Break(sourceAttr(start, index - 1));
+		return new Stmt.Break(sourceAttr(start));
 	}
 
 	private Stmt parseContinueStmt(Context context) {
-		int start = index;
-		Keyword k = matchKeyword("continue");
+		int start = position();
+		matchKeyword("continue");
 		if(!context.inLoop()) {
-			syntaxError("PR09", "continue outside of loop",k);
+			syntaxError("PR09", "continue outside of loop", index - 1);
 		}
-		return new Stmt.Continue(sourceAttr(start, index - 1));
+		return new Stmt.Continue(sourceAttr(start));
 	}
 	/**
 	 * Parse the list of zero or more case blocks which make up a switch
@@ -547,11 +800,10 @@ public class Parser {
 		ArrayList<Stmt.Case> cases = new ArrayList<Stmt.Case>();
 		HashSet<Object> values = new HashSet<Object>();
 
-		while(!(tokens.get(index) instanceof RightCurly)) {
-			int start = index;
+		while(!tokens.is(index, "}")) {
+			int start = position();
 			Expr.Literal value;
-			Token lookahead = tokens.get(index);
-			if(lookahead.text.equals("case")) {
+			if(tokens.is(index, "case")) {
 				// This is a case block
 				matchKeyword("case");
 				value = parseConstant();
@@ -567,14 +819,14 @@ public class Parser {
 				match(":");
 				value = null;
 			}
-			int end = index;
+			int end = previous;
 			// Parse the case body
 			ArrayList<Stmt> body = new ArrayList<Stmt>();
-			while (!(tokens.get(index) instanceof RightCurly)
-					&& !(tokens.get(index).text.equals("case")) && !(tokens.get(index).text.equals("default"))) {
+			while (!tokens.is(index, "}")
+					&& !tokens.is(index, "case") && !tokens.is(index, "default")) {
 				body.add(parseStatement(context));
 			}
-			cases.add(new Stmt.Case(value, body, sourceAttr(start,end-1)));
+			cases.add(new Stmt.Case(value, body, sourceAttr(start, end)));
 		}
 		return cases;
 	}
@@ -582,7 +834,7 @@ public class Parser {
 	private Expr.Literal parseConstant() {
 		Expr e = parseExpr(new Context());
 		Object constant = parseConstant(e);
-		return new Expr.Literal(constant,e.attributes());
+		return new Expr.Literal(constant,e.attribute(Attribute.Source.class));
 	}
 
 	private Object parseConstant(Expr e) {
@@ -609,117 +861,141 @@ public class Parser {
 		}
 	}
 
-	private Expr parseExpr(Context context) {
-		checkNotEof();
-		int start = index;
-		Expr c1 = parseRelationalExpr(context);
-		if (tokens.get(index) instanceof LogicalAnd) {
-			match("&&");
-			Expr c2 = parseExpr(context);
-			return new Expr.Binary(Expr.BOp.AND, c1, c2, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof LogicalOr) {
-			match("||");
-			Expr c2 = parseExpr(context);
-			return new Expr.Binary(Expr.BOp.OR, c1, c2, sourceAttr(start, index - 1));
-		}
-		return c1;
-	}
-
-	private Expr parseRelationalExpr(Context context) {
-		int start = index;
-
-		Expr lhs = parseAdditiveExpr(context);
-
-		if (tokens.get(index) instanceof LessEquals) {
-			match("<=");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.LTEQ, lhs, rhs, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof LeftAngle) {
-			match("<");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.LT, lhs, rhs, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof GreaterEquals) {
-			match(">=");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.GTEQ, lhs, rhs, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof RightAngle) {
-			match(">");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.GT, lhs, rhs, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof EqualsEquals) {
-			match("==");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.EQ, lhs, rhs, sourceAttr(start, index - 1));
-		} else if (tokens.get(index) instanceof NotEquals) {
-			match("!=");
-			Expr rhs = parseAdditiveExpr(context);
-			return new Expr.Binary(Expr.BOp.NEQ, lhs, rhs, sourceAttr(start, index - 1));
-		} else {
-			return lhs;
+	/**
+	 * The associativity of a binary operator. A non-associative operator,
+	 * such as <code>&lt;</code>, cannot be chained with another of the same
+	 * precedence (e.g. <code>a &lt; b &lt; c</code> is not an expression).
+	 */
+	private enum Associativity {
+		LEFT, RIGHT, NONE
+	}
+
+	/**
+	 * An entry in the binding-power table for binary operators.
+	 */
+	private static final class Infix {
+		private final Expr.BOp kind;
+		private final int power;
+		private final Associativity associativity;
+
+		private Infix(Expr.BOp kind, int power, Associativity associativity) {
+			this.kind = kind;
+			this.power = power;
+			this.associativity = associativity;
 		}
 	}
 
-	private Expr parseAdditiveExpr(Context context) {
-		int start = index;
-		Expr lhs = parseMultplicativeExpr(context);
+	// The binding powers of the binary operators. Higher powers bind more
+	// tightly, and zero admits every operator.
+	private static final int LOGICAL = 1;
+	private static final int RELATIONAL = 2;
+	private static final int ADDITIVE = 3;
+	private static final int MULTIPLICATIVE = 4;
 
-		while (isAdditiveOperator(tokens.get(index))) {
-			Expr.BOp kind = getBinaryOperator(tokens.get(index));
-			// Match operator
-			match("+","-");
-			// Parse right-hand side
-			Expr rhs = parseMultplicativeExpr(context);
-			// Construct additive node
-			lhs = new Expr.Binary(kind, lhs, rhs, sourceAttr(start, index - 1));
-		}
+	/**
+	 * The binary operators, indexed by the value of their tokens (see
+	 * <code>Lexer.indexOfOperator()</code>). Operators which are not binary
+	 * have no entry. Adding a binary operator requires only an entry here
+	 * (and one in <code>Expr.BOp</code>).
+	 */
+	private static final Infix[] infixes = new Infix[Lexer.operatorCount()];
 
-		return lhs;
+	private static void infix(String operator, Expr.BOp kind, int power, Associativity associativity) {
+		infixes[Lexer.indexOfOperator(operator)] = new Infix(kind, power, associativity);
 	}
 
-	private boolean isAdditiveOperator(Token token) {
-		return token instanceof Plus || token instanceof Minus;
+	static {
+		infix("&&", Expr.BOp.AND, LOGICAL, Associativity.RIGHT);
+		infix("||", Expr.BOp.OR, LOGICAL, Associativity.RIGHT);
+		infix("<=", Expr.BOp.LTEQ, RELATIONAL, Associativity.NONE);
+		infix("<", Expr.BOp.LT, RELATIONAL, Associativity.NONE);
+		infix(">=", Expr.BOp.GTEQ, RELATIONAL, Associativity.NONE);
+		infix(">", Expr.BOp.GT, RELATIONAL, Associativity.NONE);
+		infix("==", Expr.BOp.EQ, RELATIONAL, Associativity.NONE);
+		infix("!=", Expr.BOp.NEQ, RELATIONAL, Associativity.NONE);
+		infix("+", Expr.BOp.ADD, ADDITIVE, Associativity.LEFT);
+		infix("-", Expr.BOp.SUB, ADDITIVE, Associativity.LEFT);
+		infix("*", Expr.BOp.MUL, MULTIPLICATIVE, Associativity.LEFT);
+		infix("/", Expr.BOp.DIV, MULTIPLICATIVE, Associativity.LEFT);
+		infix("%", Expr.BOp.REM, MULTIPLICATIVE, Associativity.LEFT);
 	}
 
-	private Expr parseMultplicativeExpr(Context context) {
-		int start = index;
+	/**
+	 * Get the binary operator at a given token, if there is one.
+	 *
+	 * @param token
+	 * @return The operator's entry in the table, or <code>null</code>.
+	 */
+	private Infix getInfix(int token) {
+		if (tokens.kind(token) == Lexer.OPERATOR) {
+			return infixes[tokens.value(token)];
+		} else {
+			return null;
+		}
+	}
+
+	private Expr parseExpr(Context context) {
+		return parseExpr(context, 0);
+	}
+
+	/**
+	 * <p>
+	 * Parse an expression made up of index terms joined by binary operators
+	 * whose binding power is at least a given minimum. This climbs the table
+	 * of binding powers, rather than descending through a method for each
+	 * level of precedence.
+	 * </p>
+	 * <p>
+	 * The right-hand side of each operator is parsed with a minimum power
+	 * which admits only operators binding more tightly than it or, for a
+	 * right-associative operator, as tightly. Thereafter, an operator can
+	 * only continue the expression if it binds more loosely than the last one
+	 * or, for a left-associative operator, as loosely. Anything else is left
+	 * for the caller, where it will be reported as unexpected.
+	 * </p>
+	 *
+	 * @param context
+	 * @param power
+	 *            The minimum binding power of an operator in the expression.
+	 * @return
+	 */
+	private Expr parseExpr(Context context, int power) {
+		checkNotEof();
+		int start = position();
 		Expr lhs = parseIndexTerm(context);
+		int last = Integer.MAX_VALUE;
+		Infix op = getInfix(index);
 
-		while (isMultiplicativeOperator(tokens.get(index))) {
-			Expr.BOp kind = getBinaryOperator(tokens.get(index));
-			// match operator
-			match("*","/","%");
+		while (op != null && op.power >= power
+				&& (op.power < last || (op.power == last && op.associativity == Associativity.LEFT))) {
+			advance();
 			// Parse right-hand side
-			Expr rhs = parseIndexTerm(context);
-			// Construct multiplicative node
-			lhs = new Expr.Binary(kind, lhs, rhs, sourceAttr(start, index - 1));
+			Expr rhs = parseExpr(context, op.associativity == Associativity.RIGHT ? op.power : op.power + 1);
+			// Construct binary node
+			lhs = new Expr.Binary(op.kind, lhs, rhs, sourceAttr(start));
+			last = op.power;
+			op = getInfix(index);
 		}
 
 		return lhs;
 	}
 
-	private boolean isMultiplicativeOperator(Token token) {
-		return token instanceof Star || token instanceof RightSlash || token instanceof Percent;
-	}
-
 	private Expr parseIndexTerm(Context context) {
 		checkNotEof();
-		int start = index;
+		int start = position();
 		Expr lhs = parseTerm(context);
 
-		Token lookahead = tokens.get(index);
-
-		while (lookahead instanceof LeftSquare || lookahead instanceof Dot || lookahead instanceof LeftBrace) {
-			if (lookahead instanceof LeftSquare) {
+		while (tokens.is(index, "[") || tokens.is(index, ".") || tokens.is(index, "(")) {
+			if (tokens.is(index, "[")) {
 				match("[");
-				Expr rhs = parseAdditiveExpr(context);
+				Expr rhs = parseExpr(context, ADDITIVE);
 				match("]");
-				lhs = new Expr.IndexOf(lhs, rhs, sourceAttr(start, index - 1));
+				lhs = new Expr.IndexOf(lhs, rhs, sourceAttr(start));
 			} else {
 				match(".");
-				String name = matchIdentifier().text;
-				lhs = new Expr.RecordAccess(lhs, name, sourceAttr(start, index - 1));
+				String name = matchIdentifier();
+				lhs = new Expr.RecordAccess(lhs, name, sourceAttr(start));
 			}
-			lookahead = tokens.get(index);
 		}
 
 		return lhs;
@@ -728,142 +1004,135 @@ public class Parser {
 	private Expr parseTerm(Context context) {
 		checkNotEof();
 
-		int start = index;
-		Token token = tokens.get(index);
+		int start = position();
+		int kind = tokens.kind(index);
 
-		if (token instanceof LeftBrace) {
+		if (tokens.is(index, "(")) {
 			match("(");
 			Expr e = parseExpr(context);
 			checkNotEof();
 			match(")");
 			return e;
-		} else if ((index + 1) < tokens.size() && token instanceof Identifier
-				&& tokens.get(index + 1) instanceof LeftBrace) {
+		} else if (kind == Lexer.IDENTIFIER && tokens.is(index + 1, "(")) {
 			// must be a method invocation
 			return parseInvokeExprOrStmt(context);
-		} else if (token.text.equals("null")) {
+		} else if (tokens.is(index, "null")) {
 			matchKeyword("null");
-			return new Expr.Literal(null, sourceAttr(start, index - 1));
-		} else if (token.text.equals("true")) {
+			return new Expr.Literal(null, sourceAttr(start));
+		} else if (tokens.is(index, "true")) {
 			matchKeyword("true");
-			return new Expr.Literal(true, sourceAttr(start, index - 1));
-		} else if (token.text.equals("false")) {
+			return new Expr.Literal(true, sourceAttr(start));
+		} else if (tokens.is(index, "false")) {
 			matchKeyword("false");
-			return new Expr.Literal(false, sourceAttr(start, index - 1));
-		} else if (token instanceof Identifier) {
+			return new Expr.Literal(false, sourceAttr(start));
+		} else if (kind == Lexer.IDENTIFIER) {
 			return parseVariable(context);
-		} else if (token instanceof Lexer.Char) {
-			char val = match(Lexer.Char.class, "a character").value;
-			return new Expr.Literal(Character.valueOf(val), sourceAttr(start, index - 1)); 
-		} else if (token instanceof Int) {
-			int val = match(Int.class, "an integer").value;
-			return new Expr.Literal(val, sourceAttr(start, index - 1));
-		} else if (token instanceof Strung) {
+		} else if (kind == Lexer.CHARACTER) {
+			char val = (char) tokens.value(match(Lexer.CHARACTER, "a character"));
+			return new Expr.Literal(Character.valueOf(val), sourceAttr(start)); 
+		} else if (kind == Lexer.INTEGER) {
+			int val = tokens.value(match(Lexer.INTEGER, "an integer"));
+			return new Expr.Literal(val, sourceAttr(start));
+		} else if (kind == Lexer.STRING) {
 			return parseString();
-		} else if (token instanceof Minus) {
+		} else if (tokens.is(index, "-")) {
 			return parseNegationExpr(context);
-		} else if (token instanceof Bar) {
+		} else if (tokens.is(index, "|")) {
 			return parseArrayLengthExpr(context);
-		} else if (token instanceof LeftSquare) {
+		} else if (tokens.is(index, "[")) {
 			return parseArrayInitialiserOrGeneratorExpr(context);
-		} else if (token instanceof LeftCurly) {
+		} else if (tokens.is(index, "{")) {
 			return parseRecordInitialiserExpr(context);
-		} else if (token instanceof Shreak) {
+		} else if (tokens.is(index, "!")) {
 			match("!");
-			return new Expr.Unary(Expr.UOp.NOT, parseTerm(context), sourceAttr(start, index - 1));
+			return new Expr.Unary(Expr.UOp.NOT, parseTerm(context), sourceAttr(start));
 		}
-		syntaxError("PR11", "unrecognised term (\"" + token.text + "\")", token);
+		syntaxError("PR11", "unrecognised term (\"" + tokens.text(index) + "\")", index);
 		return null;
 	}
 
 	private Expr parseVariable(Context context) {
-		int start = index;
-		Identifier var = matchIdentifier();
-		if(context.isDeclared(var.text)) {
-			return new Expr.Variable(var.text, sourceAttr(start, index - 1));
+		int start = position();
+		String var = matchIdentifier();
+		if(context.isDeclared(var)) {
+			return new Expr.Variable(var, sourceAttr(start));
 		} else {
-			syntaxError("PR04", "unknown variable " + var.text, var);
+			syntaxError("PR04", "unknown variable " + var, index - 1);
 			return null;
 		}
 	}
 
 	private Expr parseArrayInitialiserOrGeneratorExpr(Context context) {
-		int start = index;
+		int start = position();
 		ArrayList<Expr> exprs = new ArrayList<Expr>();
 		match("[");
 		checkNotEof();
-		Token token = tokens.get(index);
 		// Check for array generator expression
-		if (!(token instanceof RightSquare)) {
+		if (!tokens.is(index, "]")) {
 			exprs.add(parseExpr(context));
 			checkNotEof();
-			token = tokens.get(index);
-			if (token instanceof SemiColon) {
+			if (tokens.is(index, ";")) {
 				// Array generator
 				match(";");
 				exprs.add(parseExpr(context));
 				checkNotEof();
 				match("]");
-				return new Expr.ArrayGenerator(exprs.get(0), exprs.get(1), sourceAttr(start, index - 1));
+				return new Expr.ArrayGenerator(exprs.get(0), exprs.get(1), sourceAttr(start));
 			} else {
 				// Array initialiser
-				while (!(token instanceof RightSquare)) {
+				while (!tokens.is(index, "]")) {
 					match(",");
 					exprs.add(parseExpr(context));
 					checkNotEof();
-					token = tokens.get(index);
 				}
 			}
 		}
 
 		match("]");
-		return new Expr.ArrayInitialiser(exprs, sourceAttr(start, index - 1));
+		return new Expr.ArrayInitialiser(exprs, sourceAttr(start));
 	}
 
 	private Expr parseRecordInitialiserExpr(Context context) {
-		int start = index;
+		int start = position();
 		match("{");
 		HashSet<String> keys = new HashSet<String>();
 		ArrayList<Pair<String, Expr>> exprs = new ArrayList<Pair<String, Expr>>();
 		checkNotEof();
-		Token token = tokens.get(index);
 		boolean firstTime = true;
-		while (!(token instanceof RightCurly)) {
+		while (!tokens.is(index, "}")) {
 			if (!firstTime) {
 				match(",");
 			}
 			firstTime = false;
 
 			checkNotEof();
-			token = tokens.get(index);
-			Identifier n = matchIdentifier();
+			String n = matchIdentifier();
 
-			if (keys.contains(n.text)) {
-				syntaxError("PR05", "duplicate tuple key", n);
+			if (keys.contains(n)) {
+				syntaxError("PR05", "duplicate tuple key", index - 1);
 			}
 
 			match(":");
 
 			Expr e = parseExpr(context);
-			exprs.add(new Pair<String, Expr>(n.text, e));
-			keys.add(n.text);
+			exprs.add(new Pair<String, Expr>(n, e));
+			keys.add(n);
 			checkNotEof();
-			token = tokens.get(index);
 		}
 		match("}");
-		return new Expr.RecordConstructor(exprs, sourceAttr(start, index - 1));
+		return new Expr.RecordConstructor(exprs, sourceAttr(start));
 	}
 
 	private Expr parseArrayLengthExpr(Context context) {
-		int start = index;
+		int start = position();
 		match("|");
 		Expr e = parseIndexTerm(context);
 		match("|");
-		return new Expr.Unary(Expr.UOp.LENGTHOF, e, sourceAttr(start, index - 1));
+		return new Expr.Unary(Expr.UOp.LENGTHOF, e, sourceAttr(start));
 	}
 
 	private Expr parseNegationExpr(Context context) {
-		int start = index;
+		int start = position();
 		match("-");
 		Expr e = parseIndexTerm(context);
 
@@ -871,23 +1140,24 @@ public class Parser {
 			Expr.Literal c = (Expr.Literal) e;
 			if (c.getValue() instanceof Integer) {
 				int bi = (Integer) c.getValue();
-				return new Expr.Literal(-bi, sourceAttr(start, index));
+				return new Expr.Literal(-bi, sourceAttr(start, tokens.end(index)));
 			}
 		}
 
-		return new Expr.Unary(Expr.UOp.NEG, e, sourceAttr(start, index));
+		return new Expr.Unary(Expr.UOp.NEG, e, sourceAttr(start, tokens.end(index)));
 	}
 
 	private Expr.Invoke parseInvokeExprOrStmt(Context context) {
-		int start = index;
-		Identifier name = matchIdentifier();
-		if(!userDefinedMethods.containsKey(name.text)) {
-			syntaxError("PR04", "unknown method " + name.text + "()",name);
+		int start = position();
+		String name = matchIdentifier();
+		Declared m = getUserDefinedMethod(name);
+		if(m == null) {
+			syntaxError("PR04", "unknown method " + name + "()", index - 1);
 		}
 		match("(");
 		boolean firstTime = true;
 		ArrayList<Expr> args = new ArrayList<Expr>();
-		while (!(tokens.get(index) instanceof RightBrace)) {
+		while (!tokens.is(index, ")")) {
 			if (!firstTime) {
 				match(",");
 			} else {
@@ -898,10 +1168,9 @@ public class Parser {
 			args.add(e);
 		}
 		match(")");
-		WhileFile.MethodDecl m = userDefinedMethods.get(name.text);
-		Expr.Invoke invoke = new Expr.Invoke(name.text, args, sourceAttr(start, index - 1));
+		Expr.Invoke invoke = new Expr.Invoke(name, args, sourceAttr(start));
 
-		if(m.getParameters().size() != args.size()) {
+		if(m.parameters != args.size()) {
 			syntaxError("PR06", "incorrect number of arguments provided",invoke);
 		}
 
@@ -909,21 +1178,21 @@ public class Parser {
 	}
 
 	private Expr parseString() {
-		int start = index;
-		String s = match(Strung.class, "a string").string;
-		return new Expr.Literal(s, sourceAttr(start, index - 1));
+		int start = position();
+		String s = tokens.string(match(Lexer.STRING, "a string"));
+		return new Expr.Literal(s, sourceAttr(start));
 	}
 
 	private Type parseType() {
-		int start = index;
+		int start = position();
 		checkNotEof();
 		// Determine base type
 		Type type = parseBaseType();
 		// Determine array level (if any)
-		while (tokens.get(index) instanceof LeftSquare) {
+		while (tokens.is(index, "[")) {
 			match("[");
 			match("]");
-			type = new Type.Array(type, sourceAttr(start, index - 1));
+			type = new Type.Array(type, sourceAttr(start));
 		}
 		// Done
 		return type;
@@ -936,26 +1205,25 @@ public class Parser {
 	 * @return
 	 */
 	private Type parseBaseType() {
-		int start = index;
-		Token token = tokens.get(index);
-		if (token.text.equals("int")) {
+		int start = position();
+		if (tokens.is(index, "int")) {
 			matchKeyword("int");
-			return new Type.Int(sourceAttr(start, index - 1));
-		} else if (token.text.equals("void")) {
+			return new Type.Int(sourceAttr(start));
+		} else if (tokens.is(index, "void")) {
 			matchKeyword("void");
-			return new Type.Void(sourceAttr(start, index - 1));
-		} else if (token.text.equals("bool")) {
+			return new Type.Void(sourceAttr(start));
+		} else if (tokens.is(index, "bool")) {
 			matchKeyword("bool");
-			return new Type.Bool(sourceAttr(start, index - 1));
-		} else if (token instanceof LeftCurly) {
+			return new Type.Bool(sourceAttr(start));
+		} else if (tokens.is(index, "{")) {
 			// record type
 			return parseRecordType();
 		} else {
-			Identifier id = matchIdentifier();
-			if(userDefinedTypes.contains(id.text)) {
-				return new Type.Named(id.text, sourceAttr(start, index - 1));
+			String id = matchIdentifier();
+			if(isUserDefinedType(id)) {
+				return new Type.Named(id, sourceAttr(start));
 			} else {
-				syntaxError("PR04", "unknown type " + id.text,id);
+				syntaxError("PR04", "unknown type " + id, index - 1);
 				return null;
 			}
 		}
@@ -973,138 +1241,248 @@ public class Parser {
 	 * @return
 	 */
 	private Type.Record parseRecordType() {
-		int start = index;
+		int start = position();
 		match("{");
 		// The fields set tracks the field names we've already seen
 		HashSet<String> fields = new HashSet<String>();
 		ArrayList<Pair<Type,String>> types = new ArrayList<Pair<Type,String>>();
 
-		Token token = tokens.get(index);
 		boolean firstTime = true;
-		while (!(token instanceof RightCurly)) {
+		while (!tokens.is(index, "}")) {
 			if (!firstTime) {
 				match(",");
 			}
 			firstTime = false;
 			checkNotEof();
 
-			token = tokens.get(index);
 			Type type = parseType();
-			Identifier n = matchIdentifier();
+			String n = matchIdentifier();
 
-			if (fields.contains(n.text)) {
-				syntaxError("PR05", "duplicate field", n);
+			if (fields.contains(n)) {
+				syntaxError("PR05", "duplicate field", index - 1);
 			}
-			types.add(new Pair<Type,String>(type,n.text));
-			fields.add(n.text);
+			types.add(new Pair<Type,String>(type,n));
+			fields.add(n);
 			checkNotEof();
-			token = tokens.get(index);
 		}
 		match("}");
-		return new Type.Record(types, sourceAttr(start, index - 1));
+		return new Type.Record(types, sourceAttr(start));
 	}
 
 	/**
-	 * Convert a given token into a binary operator kind.
+	 * Check whether a given type is declared before the declaration being
+	 * parsed.
 	 *
-	 * @param token
+	 * @param name
+	 * @return
+	 */
+	private boolean isUserDefinedType(String name) {
+		Declared t = userDefinedTypes.get(name);
+		return t != null && t.declaration < declaration;
+	}
+
+	/**
+	 * Get the given method, if it is declared before the declaration being
+	 * parsed.
+	 *
+	 * @param name
 	 * @return
 	 */
-	private Expr.BOp getBinaryOperator(Token token) {
-		if(token instanceof Plus) {
-			return Expr.BOp.ADD;
-		} else if(token instanceof Minus) {
-			return Expr.BOp.SUB;
-		} else if(token instanceof Star) {
-			return Expr.BOp.MUL;
-		} else if(token instanceof RightSlash) {
-			return Expr.BOp.DIV;
-		} else if(token instanceof Percent) {
-			return Expr.BOp.REM;
+	private Declared getUserDefinedMethod(String name) {
+		Declared m = userDefinedMethods.get(name);
+		if (m != null && m.declaration < declaration) {
+			return m;
 		} else {
-			throw new IllegalArgumentException("invalid binary operator '" + token + "'");
+			return null;
 		}
 	}
 
 	private void checkNotEof() {
-		if (index >= tokens.size()) {
-			throw new SyntaxError("PR02", "unexpected end-of-file", filename, index - 1, index - 1);
+		if (tokens.isPastEnd(index)) {
+			throw new SyntaxError("PR02", "unexpected end-of-file", filename, previous, previous);
 		}
 		return;
 	}
 
-	private Token match(String op) {
+	private void match(String op) {
 		checkNotEof();
-		Token t = tokens.get(index);
-		if (!t.text.equals(op)) {
-			syntaxError("PR01", "expecting '" + op + "', found '" + t.text + "'", t);
+		if (!tokens.is(index, op)) {
+			syntaxError("PR01", "expecting '" + op + "', found '" + tokens.text(index) + "'", index);
 		}
-		index = index + 1;
-		return t;
+		advance();
 	}
 
-	private Token match(String... ops) {
+	private void match(String... ops) {
 		checkNotEof();
-		Token t = tokens.get(index);
 		for (String op : ops) {
-			if (t.text.equals(op)) {
-				index = index + 1;
-				return t;
+			if (tokens.is(index, op)) {
+				advance();
+				return;
 			}
 		}
-		syntaxError("PR01", "expecting one of " + Arrays.toString(ops) + ", found '" + t.text + "'", t);
-		return null; // deadcode
+		syntaxError("PR01", "expecting one of " + Arrays.toString(ops) + ", found '" + tokens.text(index) + "'", index);
 	}
 
-	@SuppressWarnings("unchecked")
-	private <T extends Token> T match(Class<T> c, String name) {
+	/**
+	 * Match a token of a given kind (see <code>Lexer.scanToken()</code>),
+	 * returning its index.
+	 *
+	 * @param kind
+	 * @param name
+	 * @return
+	 */
+	private int match(int kind, String name) {
 		checkNotEof();
-		Token t = tokens.get(index);
-		if (!c.isInstance(t)) {
-			syntaxError("PR01", "expecting " + name + ", found '" + t.text + "'", t);
+		if (tokens.kind(index) != kind) {
+			syntaxError("PR01", "expecting " + name + ", found '" + tokens.text(index) + "'", index);
 		}
-		index = index + 1;
-		return (T) t;
+		advance();
+		return index - 1;
 	}
 
-	private Identifier matchIdentifier() {
+	private String matchIdentifier() {
 		checkNotEof();
-		Token t = tokens.get(index);
-		if (t instanceof Identifier) {
-			Identifier i = (Identifier) t;
-			index = index + 1;
-			return i;
+		if (tokens.kind(index) == Lexer.IDENTIFIER) {
+			String text = tokens.text(index);
+			advance();
+			return text;
 		}
-		syntaxError("PR01", "identifier expected", t);
+		syntaxError("PR01", "identifier expected", index);
 		return null; // unreachable.
 	}
 
-	private Keyword matchKeyword(String keyword) {
+	private void matchKeyword(String keyword) {
 		checkNotEof();
-		Token t = tokens.get(index);
-		if (t instanceof Keyword) {
-			if (t.text.equals(keyword)) {
-				index = index + 1;
-				return (Keyword) t;
-			}
+		if (tokens.kind(index) == Lexer.KEYWORD && tokens.is(index, keyword)) {
+			advance();
+			return;
 		}
-		syntaxError("PR01", "keyword " + keyword + " expected.", t);
-		return null;
+		syntaxError("PR01", "keyword " + keyword + " expected.", index);
+	}
+
+	/**
+	 * Move past the current token. Only this token (which may be needed to
+	 * report an error) and those after it are needed from then on, unless
+	 * tokens are marked.
+	 */
+	private void advance() {
+		previous = tokens.end(index);
+		index = index + 1;
+		tokens.discard(index - 1);
+	}
+
+	/**
+	 * Get the offset of the first character of the current token.
+	 *
+	 * @return
+	 */
+	private int position() {
+		return tokens.start(index);
+	}
+
+	/**
+	 * Construct a source attribute spanning from a given offset to the end of
+	 * the most recently matched token.
+	 *
+	 * @param start
+	 * @return
+	 */
+	private Attribute.Source sourceAttr(int start) {
+		return new Attribute.Source(start, previous);
 	}
 
 	private Attribute.Source sourceAttr(int start, int end) {
-		Token t1 = tokens.get(start);
-		Token t2 = tokens.get(end);
-		return new Attribute.Source(t1.start, t2.end());
+		return new Attribute.Source(start, end);
 	}
 
 	private void syntaxError(String code, String msg, Expr e) {
-		Attribute.Source loc = e.attribute(Attribute.Source.class);
-		throw new SyntaxError(code, msg, filename, loc.start, loc.end);
+		long position = e.position();
+		throw new SyntaxError(code, msg, filename, Attribute.Source.start(position), Attribute.Source.end(position));
+	}
+
+	/**
+	 * Raise a syntax error at the token with a given index, which must not
+	 * have been discarded.
+	 */
+	private void syntaxError(String code, String msg, int token) {
+		throw new SyntaxError(code, msg, filename, tokens.start(token), tokens.end(token));
+	}
+
+	/**
+	 * Records a type or method declared in the file.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	static class Declared {
+		final String name;
+		final boolean isType;
+
+		/**
+		 * The position of the declaration in the file.
+		 */
+		final int declaration;
+
+		/**
+		 * The number of parameters of a method.
+		 */
+		final int parameters;
+
+		/**
+		 * The tokens of the declaration, from the first up to (but not
+		 * including) the last, when found by <code>split()</code>. For a
+		 * method, the body begins at the token <code>body</code>, whilst for
+		 * a type this is the same as <code>to</code>.
+		 */
+		int from;
+		int body;
+		int to;
+
+		public Declared(String name, boolean isType, int declaration, int parameters) {
+			this.name = name;
+			this.isType = isType;
+			this.declaration = declaration;
+			this.parameters = parameters;
+		}
 	}
 
-	private void syntaxError(String code, String msg, Token t) {
-		throw new SyntaxError(code, msg, filename, t.start, t.start + t.text.length() - 1);
+	/**
+	 * Parses a range of the declarations in a file, by dividing it in two
+	 * until each task has a single declaration.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Declared> extents;
+		private final HashMap<String,Declared> methods;
+		private final HashMap<String,Declared> types;
+		private final Decl[] decls;
+		private final int from;
+		private final int to;
+
+		public ParseTask(List<Declared> extents, HashMap<String,Declared> methods,
+				HashMap<String,Declared> types, Decl[] decls, int from, int to) {
+			this.extents = extents;
+			this.methods = methods;
+			this.types = types;
+			this.decls = decls;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ParseTask(extents, methods, types, decls, from, middle),
+						new ParseTask(extents, methods, types, decls, middle, to));
+			} else if (to > from && decls[from] == null) {
+				decls[from] = parseDeclaration(extents.get(from), methods, types);
+			}
+		}
 	}
 
 	/**
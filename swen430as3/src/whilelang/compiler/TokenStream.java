@@ -0,0 +1,404 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.compiler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import whilelang.compiler.Lexer.EndOfStream;
+import whilelang.compiler.Lexer.Token;
+
+/**
+ * <p>
+ * A stream of tokens which are scanned only when they are first needed. Tokens
+ * are numbered in order from zero, and those which may still be needed are
+ * kept in a ring buffer. Tokens before a given index are dropped from the
+ * buffer once the consumer declares that it has finished with them (see
+ * <code>discard()</code>), unless they have been marked for backtracking (see
+ * <code>mark()</code>). Hence, the buffer need only be large enough to hold the
+ * lookahead (and backtracking) of the consumer, rather than the whole file.
+ * </p>
+ * <p>
+ * No object is constructed for a token. Instead, the buffer holds the kind
+ * (see <code>Lexer.scanToken()</code>), extent and value of each token in
+ * parallel arrays, and the text of a token is only constructed when asked for
+ * (from the source held by the lexer). Once the input is exhausted, every
+ * token from the end onwards is the same <code>END</code> token.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class TokenStream {
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The lexer from which tokens are scanned, or <code>null</code> if they
+	 * come from a list already scanned.
+	 */
+	private final Lexer lexer;
+	private final Iterator<Token> iterator;
+
+	/**
+	 * The tokens currently held, where the token at index <code>i</code> (for
+	 * <code>first &lt;= i &lt; first + count</code>) is held in slot
+	 * <code>i & mask</code> of each array. The capacity of the buffer is
+	 * always a power of two.
+	 */
+	private int[] kinds = new int[INITIAL_CAPACITY];
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private int[] ends = new int[INITIAL_CAPACITY];
+	private int[] values = new int[INITIAL_CAPACITY];
+
+	/**
+	 * The value of each string token and, for tokens which come from a list,
+	 * the text of each token. Otherwise, these slots are <code>null</code>.
+	 */
+	private String[] strings = new String[INITIAL_CAPACITY];
+	private String[] texts = new String[INITIAL_CAPACITY];
+
+	private int mask = INITIAL_CAPACITY - 1;
+	private int first;
+	private int count;
+
+	/**
+	 * The index before which no token may be discarded, or <code>-1</code> if
+	 * there is no mark.
+	 */
+	private int mark = -1;
+
+	/**
+	 * The index of the <code>END</code> token, once it has been reached, or
+	 * <code>-1</code> before then.
+	 */
+	private int end = -1;
+
+	/**
+	 * Construct a stream which scans tokens from a given lexer as they are
+	 * needed.
+	 *
+	 * @param lexer
+	 */
+	public TokenStream(Lexer lexer) {
+		this.lexer = lexer;
+		this.iterator = null;
+	}
+
+	/**
+	 * Construct a stream over a given list of tokens, which must end with an
+	 * <code>EndOfStream</code> token (as produced by <code>Lexer.scan()</code>).
+	 *
+	 * @param tokens
+	 */
+	public TokenStream(List<Token> tokens) {
+		this.lexer = null;
+		this.iterator = tokens.iterator();
+	}
+
+	/**
+	 * Construct an empty stream with a given capacity, which must be a power
+	 * of two.
+	 *
+	 * @param lexer
+	 * @param capacity
+	 */
+	private TokenStream(Lexer lexer, int capacity) {
+		this.lexer = lexer;
+		this.iterator = null;
+		this.kinds = new int[capacity];
+		this.starts = new int[capacity];
+		this.ends = new int[capacity];
+		this.values = new int[capacity];
+		this.strings = new String[capacity];
+		this.texts = new String[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Construct a stream holding a copy of the tokens from one index up to
+	 * (but not including) another, followed by an <code>END</code> token in
+	 * place of the last. The tokens are numbered afresh from zero. None of
+	 * them may have been discarded, and they must already have been scanned
+	 * (e.g. by looking at the last). Hence, this stream is not changed, and
+	 * several slices of it can be taken at once on different threads.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public TokenStream slice(int from, int to) {
+		int count = to - from + 1;
+		TokenStream slice = new TokenStream(lexer, Integer.highestOneBit(count) << 1);
+		for (int i = 0; i != count; ++i) {
+			int slot = slot(from + i);
+			slice.kinds[i] = kinds[slot];
+			slice.starts[i] = starts[slot];
+			slice.ends[i] = ends[slot];
+			slice.values[i] = values[slot];
+			slice.strings[i] = strings[slot];
+			slice.texts[i] = texts[slot];
+		}
+		slice.kinds[count - 1] = Lexer.END;
+		slice.count = count;
+		slice.end = count - 1;
+		return slice;
+	}
+
+	/**
+	 * Get the kind of the token at a given index (see
+	 * <code>Lexer.scanToken()</code>). This must not be before any token
+	 * already discarded.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int kind(int index) {
+		// NOTE: the slot must be found before the array is read, since
+		// finding it may replace the array with a larger one.
+		int slot = slot(index);
+		return kinds[slot];
+	}
+
+	/**
+	 * Get the offset of the first character of the token at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int start(int index) {
+		int slot = slot(index);
+		return starts[slot];
+	}
+
+	/**
+	 * Get the offset of the last character of the token at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int end(int index) {
+		int slot = slot(index);
+		return ends[slot];
+	}
+
+	/**
+	 * Get the value of the token at a given index. For an integer or
+	 * character this is its value, whilst for a keyword or operator it is its
+	 * index (see <code>Lexer.scanToken()</code>).
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int value(int index) {
+		int slot = slot(index);
+		return values[slot];
+	}
+
+	/**
+	 * Get the value of the string token at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String string(int index) {
+		int slot = slot(index);
+		return strings[slot];
+	}
+
+	/**
+	 * Get the text of the token at a given index. This is constructed afresh
+	 * on every call.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String text(int index) {
+		int slot = slot(index);
+		if (lexer == null) {
+			return texts[slot];
+		} else {
+			return lexer.text(starts[slot], ends[slot]);
+		}
+	}
+
+	/**
+	 * Check whether the text of the token at a given index is a given string,
+	 * without constructing its text.
+	 *
+	 * @param index
+	 * @param text
+	 * @return
+	 */
+	public boolean is(int index, String text) {
+		int slot = slot(index);
+		if (lexer == null) {
+			return texts[slot].equals(text);
+		} else {
+			return lexer.matches(starts[slot], ends[slot], text);
+		}
+	}
+
+	/**
+	 * Check whether a given index is beyond the end of the stream. That is, if
+	 * it comes after the <code>END</code> token.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public boolean isPastEnd(int index) {
+		slot(index);
+		return end >= 0 && index > end;
+	}
+
+	/**
+	 * Declare that no token before a given index will be needed again. Those
+	 * tokens are discarded, unless they are marked.
+	 *
+	 * @param index
+	 */
+	public void discard(int index) {
+		if (mark >= 0 && mark < index) {
+			index = mark;
+		}
+		while (first < index && count > 0) {
+			strings[first & mask] = null;
+			texts[first & mask] = null;
+			first = first + 1;
+			count = count - 1;
+		}
+	}
+
+	/**
+	 * Mark a given index, such that no token from there on is discarded until
+	 * the mark is cleared. This allows the consumer to return to that token
+	 * later.
+	 *
+	 * @param index
+	 */
+	public void mark(int index) {
+		mark = index;
+	}
+
+	/**
+	 * Clear the mark (if any).
+	 */
+	public void unmark() {
+		mark = -1;
+	}
+
+	/**
+	 * Determine the slot holding the token at a given index, scanning tokens
+	 * up to that index if necessary. Every index beyond the end of the stream
+	 * is held in the slot of the <code>END</code> token.
+	 *
+	 * @param index
+	 * @return
+	 */
+	private int slot(int index) {
+		if (index < first) {
+			throw new IllegalArgumentException("token " + index + " already discarded");
+		}
+		while (index >= first + count) {
+			if (end >= 0) {
+				return end & mask;
+			}
+			if (count == kinds.length) {
+				grow();
+			}
+			int slot = (first + count) & mask;
+			if (lexer != null) {
+				kinds[slot] = lexer.scanToken();
+				starts[slot] = lexer.tokenStart();
+				ends[slot] = lexer.tokenEnd();
+				values[slot] = lexer.tokenValue();
+				strings[slot] = lexer.tokenString();
+			} else {
+				read(iterator.next(), slot);
+			}
+			if (kinds[slot] == Lexer.END) {
+				end = first + count;
+			}
+			count = count + 1;
+		}
+		return index & mask;
+	}
+
+	/**
+	 * Fill a given slot from a token which has already been constructed.
+	 *
+	 * @param token
+	 * @param slot
+	 */
+	private void read(Token token, int slot) {
+		if (token instanceof Lexer.Int) {
+			kinds[slot] = Lexer.INTEGER;
+			values[slot] = ((Lexer.Int) token).value;
+		} else if (token instanceof Lexer.Char) {
+			kinds[slot] = Lexer.CHARACTER;
+			values[slot] = ((Lexer.Char) token).value;
+		} else if (token instanceof Lexer.Strung) {
+			kinds[slot] = Lexer.STRING;
+			strings[slot] = ((Lexer.Strung) token).string;
+		} else if (token instanceof Lexer.Identifier) {
+			kinds[slot] = Lexer.IDENTIFIER;
+		} else if (token instanceof Lexer.Keyword) {
+			kinds[slot] = Lexer.KEYWORD;
+			values[slot] = Arrays.asList(Lexer.keywords).indexOf(token.text);
+		} else if (token instanceof EndOfStream) {
+			kinds[slot] = Lexer.END;
+		} else {
+			kinds[slot] = Lexer.OPERATOR;
+			values[slot] = Lexer.indexOfOperator(token.text);
+		}
+		starts[slot] = token.start;
+		ends[slot] = token.end();
+		texts[slot] = token.text;
+	}
+
+	/**
+	 * Double the capacity of the buffer, keeping every token in the slot for
+	 * its index.
+	 */
+	private void grow() {
+		int capacity = kinds.length * 2;
+		int[] nkinds = new int[capacity];
+		int[] nstarts = new int[capacity];
+		int[] nends = new int[capacity];
+		int[] nvalues = new int[capacity];
+		String[] nstrings = new String[capacity];
+		String[] ntexts = new String[capacity];
+		int nmask = capacity - 1;
+		for (int i = first; i != first + count; ++i) {
+			nkinds[i & nmask] = kinds[i & mask];
+			nstarts[i & nmask] = starts[i & mask];
+			nends[i & nmask] = ends[i & mask];
+			nvalues[i & nmask] = values[i & mask];
+			nstrings[i & nmask] = strings[i & mask];
+			ntexts[i & nmask] = texts[i & mask];
+		}
+		kinds = nkinds;
+		starts = nstarts;
+		ends = nends;
+		values = nvalues;
+		strings = nstrings;
+		texts = ntexts;
+		mask = nmask;
+	}
+}
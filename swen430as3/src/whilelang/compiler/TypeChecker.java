@@ -51,6 +51,17 @@ public class TypeChecker {
 	private HashMap<String,WhileFile.TypeDecl> types;
 
 	public void check(WhileFile wf) {
+		check(wf, wf.declarations);
+	}
+
+	/**
+	 * Check only some of the declarations in a given file, against the types
+	 * and methods declared throughout it.
+	 *
+	 * @param wf
+	 * @param declarations
+	 */
+	public void check(WhileFile wf, List<WhileFile.Decl> declarations) {
 		this.file = wf;
 		this.methods = new HashMap<String,WhileFile.MethodDecl>();
 		this.types = new HashMap<String,WhileFile.TypeDecl>();
@@ -65,7 +76,7 @@ public class TypeChecker {
 			}
 		}
 
-		for(WhileFile.Decl declaration : wf.declarations) {
+		for(WhileFile.Decl declaration : declarations) {
 			if(declaration instanceof WhileFile.TypeDecl) {
 				check((WhileFile.TypeDecl) declaration);
 			} else if(declaration instanceof WhileFile.MethodDecl) {
@@ -242,8 +253,16 @@ public class TypeChecker {
 		}
 
 		// Save the type attribute so that subsequent compiler stages can use it
-		// without having to recalculate it from scratch.
-		expr.attributes().add(new Attribute.Type(type));
+		// without having to recalculate it from scratch. This replaces the type
+		// from any earlier check of the same tree.
+		List<Attribute> attributes = expr.attributes();
+		for (int i = 0; i != attributes.size(); ++i) {
+			if (attributes.get(i) instanceof Attribute.Type) {
+				attributes.remove(i);
+				break;
+			}
+		}
+		attributes.add(new Attribute.Type(type));
 
 		return type;
 	}
@@ -20,8 +20,11 @@ package whilelang.compiler;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
 
 import whilelang.ast.WhileFile;
+import whilelang.util.SyntaxError;
 
 /**
  * Encapsulates the process for compiling a While file into its Abstract Syntac
@@ -33,27 +36,128 @@ import whilelang.ast.WhileFile;
  */
 public class WhileCompiler {
 	private File srcFile;
+
+	/**
+	 * The cache of checked trees, or <code>null</code> if none is used.
+	 */
+	private AstCache cache;
+
+	/**
+	 * How long it took to compile the file in full, and to load it from the
+	 * cache (in nanoseconds). The latter is negative unless the file was found
+	 * in the cache.
+	 */
+	private long compileTime;
+	private long loadTime = -1;
+
+	/**
+	 * The pool in which declarations are parsed in parallel, or
+	 * <code>null</code> if they are parsed in order.
+	 */
+	private ForkJoinPool pool;
 	
 	public WhileCompiler(String filename) {
 		this.srcFile = new File(filename);
 	}
+
+	/**
+	 * Construct a compiler which first looks for the checked tree of the file
+	 * in a given cache directory, and stores it there when it is not found.
+	 *
+	 * @param filename
+	 * @param cacheDir
+	 */
+	public WhileCompiler(String filename, File cacheDir) {
+		this(filename);
+		this.cache = new AstCache(cacheDir);
+	}
 	
+	/**
+	 * Parse the declarations of the file in parallel, using a given pool (see
+	 * <code>Parser.read(ForkJoinPool)</code>).
+	 *
+	 * @param pool
+	 */
+	public void setParallelParsing(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
 	public WhileFile compile() throws IOException {
+		if(cache == null) {
+			return compileSource();
+		}
+		byte[] source = Files.readAllBytes(srcFile.toPath());
+		long start = System.nanoTime();
+		AstCache.Entry entry = cache.load(srcFile.getPath(), source);
+		if(entry != null) {
+			loadTime = System.nanoTime() - start;
+			compileTime = entry.compileTime;
+			return entry.ast;
+		}
+		start = System.nanoTime();
+		WhileFile ast = compileSource();
+		compileTime = System.nanoTime() - start;
+		try {
+			cache.store(source, ast, compileTime);
+		} catch(IOException e) {
+			// NOTE: failing to store the tree only means it must be compiled
+			// again next time.
+		}
+		return ast;
+	}
+
+	/**
+	 * Determine whether the last compilation loaded the file from the cache.
+	 *
+	 * @return
+	 */
+	public boolean isCached() {
+		return loadTime >= 0;
+	}
+
+	/**
+	 * Get how long it took to compile the file in full (in nanoseconds). When
+	 * the file was loaded from the cache, this is the time recorded when it was
+	 * stored.
+	 *
+	 * @return
+	 */
+	public long getCompileTime() {
+		return compileTime;
+	}
+
+	/**
+	 * Get how long it took to load the file from the cache (in nanoseconds).
+	 *
+	 * @return
+	 */
+	public long getLoadTime() {
+		return loadTime;
+	}
+
+	private WhileFile compileSource() throws IOException {
 		// First, lexing and parsing
 		Lexer lexer = new Lexer(srcFile.getPath());
-		Parser parser = new Parser(srcFile.getPath(), lexer.scan());
-		WhileFile ast = parser.read();
+		try {
+			Parser parser = new Parser(srcFile.getPath(), new TokenStream(lexer));
+			WhileFile ast = pool == null ? parser.read() : parser.read(pool);
 
-		// Second, type checking
-		new TypeChecker().check(ast);
+			// Second, type checking
+			new TypeChecker().check(ast);
 
-		// Third, unreachable code
-		new UnreachableCode().check(ast);
+			// Third, unreachable code
+			new UnreachableCode().check(ast);
 
-		// Fourth, definite assignment
-		new DefiniteAssignment().check(ast);
-		
-		// Done
-		return ast;
+			// Fourth, definite assignment
+			new DefiniteAssignment().check(ast);
+
+			// Done
+			return ast;
+		} catch (SyntaxError e) {
+			// The lexer still holds the source, so the error can be reported
+			// from it rather than by reading the file again.
+			e.setLineIndex(lexer.lines());
+			throw e;
+		}
 	}
 }
@@ -0,0 +1,132 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+import whilelang.util.JitCompiler;
+import whilelang.util.SyntaxError;
+
+@RunWith(Parameterized.class)
+public class CachedValidTests {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+	private static final File CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "wlc-cache-tests");
+
+	private final String testName;
+
+	public CachedValidTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		// Sort the result by filename
+		Collections.sort(testcases, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return ((String) o1[0]).compareTo((String) o2[0]);
+			}
+		});
+		return testcases;
+	}
+
+	@Test
+	public void valid() throws IOException {
+		runTest(this.testName);
+	}
+
+	@Test
+	public void corrupt() throws IOException {
+		runCorruptTest(this.testName);
+	}
+
+	/**
+	 * Compile a given source file twice through a cache, and then run the
+	 * interpreter over the tree loaded from the cache. Every method is compiled
+	 * into JVM bytecode as well, since this depends on the type attributes
+	 * surviving the cache. This should not produce any exceptions.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runTest(String testname) throws IOException {
+		try {
+			String filename = WHILE_SRC_DIR + testname + ".while";
+			new WhileCompiler(filename, CACHE_DIR).compile();
+			WhileCompiler compiler = new WhileCompiler(filename, CACHE_DIR);
+			WhileFile ast = compiler.compile();
+			assertTrue(compiler.isCached());
+			new Interpreter(new JitCompiler(ast, 1)).run(ast);
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		}
+	}
+
+	/**
+	 * Compile a given source file through a cache, overwrite the tree encoded
+	 * in its entry, and then compile it again. The corrupt entry should be
+	 * treated as missing, so the file is compiled in full and the entry
+	 * replaced. This should not produce any exceptions.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runCorruptTest(String testname) throws IOException {
+		try {
+			String filename = WHILE_SRC_DIR + testname + ".while";
+			// Use a directory of its own, so the only entry is for this file
+			File directory = new File(CACHE_DIR, testname);
+			new WhileCompiler(filename, directory).compile();
+			for (File entry : directory.listFiles()) {
+				try (RandomAccessFile out = new RandomAccessFile(entry, "rw")) {
+					// Keep the magic number, version and compile time. Each byte
+					// after that decodes as a whole (negative) integer, so the
+					// entry is read in full but makes no sense.
+					byte[] garbage = new byte[(int) out.length() - 16];
+					Arrays.fill(garbage, (byte) 0x7F);
+					out.seek(16);
+					out.write(garbage);
+				}
+			}
+			WhileCompiler compiler = new WhileCompiler(filename, directory);
+			WhileFile ast = compiler.compile();
+			assertFalse(compiler.isCached());
+			new Interpreter().run(ast);
+			compiler = new WhileCompiler(filename, directory);
+			compiler.compile();
+			assertTrue(compiler.isCached());
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import whilelang.ast.FlatFile;
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+import whilelang.util.JitCompiler;
+import whilelang.util.SyntaxError;
+
+@RunWith(Parameterized.class)
+public class FlatValidTests {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+
+	private final String testName;
+
+	public FlatValidTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		// Sort the result by filename
+		Collections.sort(testcases, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return ((String) o1[0]).compareTo((String) o2[0]);
+			}
+		});
+		return testcases;
+	}
+
+	@Test
+	public void valid() throws IOException {
+		runTest(this.testName);
+	}
+
+	/**
+	 * Compile a given source file, flatten its tree and then run the
+	 * interpreter over the tree expanded from that. Every method is compiled
+	 * into JVM bytecode as well, since this depends on the type attributes
+	 * surviving the encoding. Flattening the expanded tree must give the same
+	 * encoding again. This should not produce any exceptions.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runTest(String testname) throws IOException {
+		try {
+			String filename = WHILE_SRC_DIR + testname + ".while";
+			FlatFile flat = FlatFile.flatten(new WhileCompiler(filename).compile());
+			WhileFile ast = flat.expand();
+			assertSame(flat, FlatFile.flatten(ast));
+			new Interpreter(new JitCompiler(ast, 1)).run(ast);
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		}
+	}
+
+	/**
+	 * Check that two encodings are the same, by walking them in parallel.
+	 *
+	 * @param expected
+	 * @param actual
+	 */
+	static void assertSame(FlatFile expected, FlatFile actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int node = 0; node != expected.size(); ++node) {
+			int kind = expected.kind(node);
+			assertEquals(kind, actual.kind(node));
+			assertEquals(expected.size(node), actual.size(node));
+			assertEquals(expected.position(node), actual.position(node));
+			assertEquals(expected.type(node), actual.type(node));
+			switch (kind) {
+			case FlatFile.LITERAL:
+				assertEquals(expected.value(node), actual.value(node));
+				break;
+			case FlatFile.FIELD:
+			case FlatFile.TYPE_DECL:
+			case FlatFile.METHOD_DECL:
+			case FlatFile.PARAMETER:
+			case FlatFile.VARIABLE_DECLARATION:
+			case FlatFile.VARIABLE:
+			case FlatFile.RECORD_ACCESS:
+			case FlatFile.INVOKE:
+			case FlatFile.NAMED:
+				assertEquals(expected.name(node), actual.name(node));
+				for (int i = 1; i < expected.size(node); ++i) {
+					assertEquals(expected.child(node, i), actual.child(node, i));
+				}
+				break;
+			default:
+				for (int i = 0; i != expected.size(node); ++i) {
+					assertEquals(expected.child(node, i), actual.child(node, i));
+				}
+			}
+		}
+	}
+}
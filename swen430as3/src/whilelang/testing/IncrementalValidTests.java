@@ -0,0 +1,142 @@
+package whilelang.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import whilelang.ast.FlatFile;
+import whilelang.ast.WhileFile;
+import whilelang.compiler.IncrementalCompiler;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+import whilelang.util.SyntaxError;
+
+@RunWith(Parameterized.class)
+public class IncrementalValidTests {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+
+	/**
+	 * A method declared at the start of the file, which moves every other
+	 * declaration without changing it.
+	 */
+	private static final String PREFIX = "void incremental() {\n}\n\n";
+
+	/**
+	 * The start of the body of the first method, where a comment is inserted
+	 * to change its text.
+	 */
+	private static final Pattern BODY = Pattern.compile("\\)\\s*\\{");
+
+	private final String testName;
+
+	public IncrementalValidTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		// Sort the result by filename
+		Collections.sort(testcases, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return ((String) o1[0]).compareTo((String) o2[0]);
+			}
+		});
+		return testcases;
+	}
+
+	@Test
+	public void valid() throws IOException {
+		runTest(this.testName);
+	}
+
+	/**
+	 * Compile a given source file, and then compile it again after each of a
+	 * series of edits. After each edit, the tree must be the same as that from
+	 * compiling the edited file in full (as compared by its flat encoding), and
+	 * only the declarations affected must be parsed. Finally, the interpreter
+	 * is run over the last tree. This should not produce any exceptions.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runTest(String testname) throws IOException {
+		File original = new File(WHILE_SRC_DIR + testname + ".while");
+		String source = new String(Files.readAllBytes(original.toPath()), StandardCharsets.UTF_8);
+		File file = File.createTempFile(testname, ".while");
+		try {
+			write(file, source);
+			IncrementalCompiler compiler = new IncrementalCompiler(file.getPath());
+			WhileFile ast = compiler.compile();
+			int declarations = ast.declarations.size();
+			// First, move every declaration
+			write(file, PREFIX + source);
+			ast = compile(compiler, file);
+			assertEquals(1, compiler.getParsed());
+			// Second, change the first method, which is the one just added
+			Matcher m = BODY.matcher(source);
+			m.find();
+			String edited = source.substring(0, m.end()) + " /* edited */" + source.substring(m.end());
+			write(file, PREFIX + edited);
+			ast = compile(compiler, file);
+			assertEquals(1, compiler.getParsed());
+			// Third, remove the first method again
+			write(file, edited);
+			ast = compile(compiler, file);
+			assertEquals(0, compiler.getParsed());
+			assertEquals(declarations, ast.declarations.size());
+			new Interpreter().run(ast);
+		} catch (SyntaxError e) {
+			e.outputSourceError(System.err);
+			throw e;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Compile a file incrementally, and check the result against compiling it
+	 * in full.
+	 *
+	 * @param compiler
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static WhileFile compile(IncrementalCompiler compiler, File file) throws IOException {
+		WhileFile ast = compiler.compile();
+		WhileFile expected = new WhileCompiler(file.getPath()).compile();
+		FlatValidTests.assertSame(FlatFile.flatten(expected), FlatFile.flatten(ast));
+		return ast;
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,98 @@
+package whilelang.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import whilelang.ast.FlatFile;
+import whilelang.ast.WhileFile;
+import whilelang.compiler.Lexer;
+import whilelang.compiler.Parser;
+import whilelang.compiler.TokenStream;
+import whilelang.util.SyntaxError;
+
+@RunWith(Parameterized.class)
+public class ParallelParsingTests {
+	private static final String WHILE_SRC_DIR = "tests/".replace('/', File.separatorChar);
+
+	private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+	private final String testName;
+
+	public ParallelParsingTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases, both valid and invalid.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<>();
+		addTestCases(new File(WHILE_SRC_DIR), "", testcases);
+		// Sort the result by filename
+		Collections.sort(testcases, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				return ((String) o1[0]).compareTo((String) o2[0]);
+			}
+		});
+		return testcases;
+	}
+
+	private static void addTestCases(File dir, String prefix, ArrayList<Object[]> testcases) {
+		for (File f : dir.listFiles()) {
+			String name = f.getName();
+			if (f.isDirectory()) {
+				addTestCases(f, prefix + name + File.separator, testcases);
+			} else if (name.endsWith(".while")) {
+				// Get rid of ".while" extension
+				testcases.add(new Object[] { prefix + name.substring(0, name.length() - 6) });
+			}
+		}
+	}
+
+	@Test
+	public void valid() throws IOException {
+		runTest(this.testName);
+	}
+
+	/**
+	 * Parse a given source file both in order and in parallel. Either both
+	 * must give the same tree (as compared by its flat encoding), or both must
+	 * report the same syntax error.
+	 *
+	 * @param filename
+	 * @throws IOException
+	 */
+	private void runTest(String testname) throws IOException {
+		String filename = WHILE_SRC_DIR + testname + ".while";
+		WhileFile expected;
+		try {
+			expected = new Parser(filename, new TokenStream(new Lexer(filename))).read();
+		} catch (SyntaxError e) {
+			try {
+				new Parser(filename, new TokenStream(new Lexer(filename))).read(pool);
+				fail("Expected '" + e.code() + "' but parsed successfully");
+			} catch (SyntaxError f) {
+				assertEquals(e.code(), f.code());
+				assertEquals(e.getMessage(), f.getMessage());
+				assertEquals(e.start(), f.start());
+				assertEquals(e.end(), f.end());
+			}
+			return;
+		}
+		WhileFile actual = new Parser(filename, new TokenStream(new Lexer(filename))).read(pool);
+		FlatValidTests.assertSame(FlatFile.flatten(expected), FlatFile.flatten(actual));
+	}
+}
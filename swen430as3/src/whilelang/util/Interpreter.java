@@ -23,6 +23,7 @@ import static whilelang.util.SyntaxError.internalFailure;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,6 +44,41 @@ public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
 
+	/**
+	 * The value of each string literal, which is built on its first evaluation
+	 * and then shared by all later ones. Sharing is safe because values are
+	 * always cloned before being stored (hence, before they can be updated).
+	 */
+	private IdentityHashMap<Expr.Literal, Object> literals;
+
+	/**
+	 * Compiles methods into JVM bytecode once they become hot, or
+	 * <code>null</code> if every method is interpreted.
+	 */
+	private final JitCompiler jit;
+
+	/**
+	 * The method currently being interpreted, to which loop iterations are
+	 * attributed.
+	 */
+	private WhileFile.MethodDecl method;
+
+	public Interpreter() {
+		this(null);
+	}
+
+	/**
+	 * Construct an interpreter which hands hot methods over to a given
+	 * compiler.
+	 *
+	 * @param jit
+	 *            The compiler for the file being run, or <code>null</code> to
+	 *            interpret every method.
+	 */
+	public Interpreter(JitCompiler jit) {
+		this.jit = jit;
+	}
+
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
 		declarations = new HashMap<String,WhileFile.Decl>();
@@ -50,6 +86,7 @@ public class Interpreter {
 			declarations.put(decl.name(), decl);
 		}
 		this.file = wf;
+		this.literals = new IdentityHashMap<Expr.Literal, Object>();
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
@@ -79,7 +116,15 @@ public class Interpreter {
 							+ function.getName() + "\"");
 		}
 
-		// Second, construct the stack frame in which this function will
+		// Second, run the compiled code for the function if it is hot.
+		if(jit != null) {
+			Object r = jit.invoke(function, arguments);
+			if(r != JitCompiler.INTERPRET) {
+				return r;
+			}
+		}
+
+		// Third, construct the stack frame in which this function will
 		// execute.
 		HashMap<String,Object> frame = new HashMap<String,Object>();
 		for(int i=0;i!=arguments.length;++i) {
@@ -87,8 +132,14 @@ public class Interpreter {
 			frame.put(parameter.getName(),arguments[i]);
 		}
 
-		// Third, execute the function body!
-		return execute(function.getBody(),frame);
+		// Fourth, execute the function body!
+		WhileFile.MethodDecl caller = method;
+		method = function;
+		try {
+			return execute(function.getBody(),frame);
+		} finally {
+			method = caller;
+		}
 	}
 
 	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
@@ -188,6 +239,9 @@ public class Interpreter {
 	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
 		execute(stmt.getDeclaration(),frame);
 		while((Boolean) execute(stmt.getCondition(),frame)) {
+			if(jit != null) {
+				jit.iterate(method);
+			}
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret == BREAK_CONSTANT) {
 				break;
@@ -203,6 +257,9 @@ public class Interpreter {
 
 	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
 		while((Boolean) execute(stmt.getCondition(),frame)) {
+			if(jit != null) {
+				jit.iterate(method);
+			}
 			Object ret = execute(stmt.getBody(),frame);
 			if(ret == BREAK_CONSTANT) {
 				break;
@@ -361,14 +418,25 @@ public class Interpreter {
 		// Check whether any coercions required
 		if(o instanceof Character) {
 			char c = ((Character)o);
+			if(jit != null) {
+				// Compiled code holds a character as an integer (its type), so
+				// the same must be done here. Otherwise, a value would change
+				// when the method producing it is compiled.
+				return (int) c;
+			}
 			return c;
 		} else if(o instanceof String) {
-			ArrayList<Integer> list = new ArrayList<>();
-			String s = ((String)o);
-			for (char c : s.toCharArray()) {
-				list.add((int) c);
+			Object value = literals.get(expr);
+			if(value == null) {
+				ArrayList<Integer> list = new ArrayList<>();
+				String s = ((String)o);
+				for (char c : s.toCharArray()) {
+					list.add((int) c);
+				}
+				value = list;
+				literals.put(expr, value);
 			}
-			return list;
+			return value;
 		}
 		// Done
 		return o;
@@ -0,0 +1,435 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Expr;
+import whilelang.ast.Stmt;
+import whilelang.ast.Type;
+import whilelang.ast.WhileFile;
+import whilelang.compiler.ClassFileWriter;
+
+/**
+ * <p>
+ * Compiles the methods of a While file into JVM bytecode while they are being
+ * interpreted, once they are found to be hot. A method becomes hot when the
+ * number of times it has been invoked, plus the number of loop iterations
+ * executed within it, reaches a given threshold. Thereafter, every invocation
+ * of the method from the interpreter runs the compiled code instead.
+ * </p>
+ * <p>
+ * A hot method is compiled together with every method it may (transitively)
+ * invoke, since compiled code can only invoke compiled code. Each such group
+ * is written as a fresh class by the <code>ClassFileWriter</code>, and loaded
+ * without being written to disk. Any method which prints, which the
+ * <code>ClassFileWriter</code> cannot translate, simply remains interpreted,
+ * as do those which invoke it.
+ * </p>
+ * <p>
+ * Compiled code represents records as <code>RecordValue</code>s, whose fields
+ * are laid out in the order of their static type, whilst the interpreter uses
+ * <code>HashMap</code>s. Hence, values are converted when passing between the
+ * two. A method which is already executing when it becomes hot continues to be
+ * interpreted until it returns.
+ * </p>
+ */
+public final class JitCompiler {
+	/**
+	 * The threshold used when none is given.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/**
+	 * Returned from <code>invoke()</code> when a method must be interpreted.
+	 */
+	public static final Object INTERPRET = new Object();
+
+	private final WhileFile file;
+	private final int threshold;
+	private final HashMap<String, WhileFile.Decl> declarations = new HashMap<String, WhileFile.Decl>();
+
+	/**
+	 * The profile of every method executed so far.
+	 */
+	private final IdentityHashMap<WhileFile.MethodDecl, Profile> profiles = new IdentityHashMap<WhileFile.MethodDecl, Profile>();
+
+	/**
+	 * Loads every class compiled for the file.
+	 */
+	private final Loader loader = new Loader();
+
+	/**
+	 * The number of classes compiled so far, used to give each a unique name.
+	 */
+	private int classes;
+
+	/**
+	 * Construct a compiler for the methods of a given (type checked and
+	 * resolved) While file.
+	 *
+	 * @param file
+	 * @param threshold
+	 *            The number of invocations and loop iterations after which a
+	 *            method is compiled.
+	 */
+	public JitCompiler(WhileFile file, int threshold) {
+		this.file = file;
+		this.threshold = threshold;
+		for (WhileFile.Decl decl : file.declarations) {
+			declarations.put(decl.name(), decl);
+		}
+	}
+
+	/**
+	 * Record one iteration of a loop within a given method, compiling it if it
+	 * has become hot.
+	 *
+	 * @param method
+	 */
+	public void iterate(WhileFile.MethodDecl method) {
+		count(method);
+	}
+
+	/**
+	 * Record an invocation of a given method, compiling it if it has become
+	 * hot. If the method has been compiled, then the compiled code is executed
+	 * with the given arguments and its result returned. Otherwise,
+	 * <code>INTERPRET</code> is returned and the method must be interpreted.
+	 *
+	 * @param method
+	 * @param arguments
+	 *            The argument values, as represented by the interpreter.
+	 * @return
+	 */
+	public Object invoke(WhileFile.MethodDecl method, Object[] arguments) {
+		Profile profile = count(method);
+		if (profile.compiled == null) {
+			return INTERPRET;
+		}
+		List<WhileFile.Parameter> parameters = method.getParameters();
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = toCompiled(arguments[i], parameters.get(i).getType());
+			if (values[i] == INTERPRET) {
+				return INTERPRET;
+			}
+		}
+		try {
+			return toInterpreted(profile.compiled.invoke(null, values));
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Profile count(WhileFile.MethodDecl method) {
+		Profile profile = profiles.get(method);
+		if (profile == null) {
+			profile = new Profile();
+			profiles.put(method, profile);
+		}
+		if (++profile.count >= threshold && profile.compiled == null && !profile.failed) {
+			profile.compiled = compile(method);
+			profile.failed = profile.compiled == null;
+		}
+		return profile;
+	}
+
+	/**
+	 * Compile a given method, along with every method it may invoke, and load
+	 * the result. This returns <code>null</code> if any of them prints, since
+	 * the <code>ClassFileWriter</code> cannot translate print statements. Any
+	 * other failure to translate or load them is a bug, and is not hidden.
+	 *
+	 * @param method
+	 * @return
+	 */
+	private Method compile(WhileFile.MethodDecl method) {
+		ArrayList<WhileFile.MethodDecl> methods = new ArrayList<WhileFile.MethodDecl>();
+		methods.add(method);
+		// NOTE: the list grows as invocations within it are found
+		for (int i = 0; i != methods.size(); ++i) {
+			if (prints(methods.get(i).getBody())) {
+				return null;
+			}
+			invocations(methods.get(i).getBody(), methods);
+		}
+		String name = "jit" + classes++;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new ClassFileWriter(bytes).write(file, name, methods);
+			Class<?> c = loader.define(name, bytes.toByteArray());
+			// Force the class to be initialised now, so that any problem with it
+			// is found here rather than on its first invocation.
+			Class.forName(name, true, loader);
+			for (Method m : c.getMethods()) {
+				if (m.getName().equals(method.getName()) && m.getDeclaringClass() == c) {
+					return m;
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Determine whether a given block of statements contains a print
+	 * statement.
+	 *
+	 * @param block
+	 * @return
+	 */
+	private static boolean prints(List<Stmt> block) {
+		for (Stmt stmt : block) {
+			if (prints(stmt)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean prints(Stmt stmt) {
+		if (stmt instanceof Stmt.Print) {
+			return true;
+		} else if (stmt instanceof Stmt.For) {
+			return prints(((Stmt.For) stmt).getBody());
+		} else if (stmt instanceof Stmt.While) {
+			return prints(((Stmt.While) stmt).getBody());
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return prints(s.getTrueBranch()) || prints(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.Switch) {
+			for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+				if (prints(c.getBody())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add every method invoked within a given block of statements to a given
+	 * list, unless already present.
+	 *
+	 * @param block
+	 * @param methods
+	 */
+	private void invocations(List<Stmt> block, List<WhileFile.MethodDecl> methods) {
+		for (Stmt stmt : block) {
+			invocations(stmt, methods);
+		}
+	}
+
+	private void invocations(Stmt stmt, List<WhileFile.MethodDecl> methods) {
+		if (stmt instanceof Stmt.Assert) {
+			invocations(((Stmt.Assert) stmt).getExpr(), methods);
+		} else if (stmt instanceof Stmt.Print) {
+			invocations(((Stmt.Print) stmt).getExpr(), methods);
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			invocations(s.getLhs(), methods);
+			invocations(s.getRhs(), methods);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			invocations(s.getDeclaration(), methods);
+			invocations(s.getCondition(), methods);
+			invocations(s.getIncrement(), methods);
+			invocations(s.getBody(), methods);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			invocations(s.getCondition(), methods);
+			invocations(s.getBody(), methods);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			invocations(s.getCondition(), methods);
+			invocations(s.getTrueBranch(), methods);
+			invocations(s.getFalseBranch(), methods);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			invocations(s.getExpr(), methods);
+			for (Stmt.Case c : s.getCases()) {
+				invocations(c.getBody(), methods);
+			}
+		} else if (stmt instanceof Stmt.Return) {
+			invocations(((Stmt.Return) stmt).getExpr(), methods);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			invocations(((Stmt.VariableDeclaration) stmt).getExpr(), methods);
+		} else if (stmt instanceof Expr.Invoke) {
+			invocations((Expr) stmt, methods);
+		}
+	}
+
+	private void invocations(Expr expr, List<WhileFile.MethodDecl> methods) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			invocations(e.getLhs(), methods);
+			invocations(e.getRhs(), methods);
+		} else if (expr instanceof Expr.Unary) {
+			invocations(((Expr.Unary) expr).getExpr(), methods);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			invocations(e.getSource(), methods);
+			invocations(e.getIndex(), methods);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			invocations(e.getValue(), methods);
+			invocations(e.getSize(), methods);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				invocations(e, methods);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			invocations(((Expr.RecordAccess) expr).getSource(), methods);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> field : ((Expr.RecordConstructor) expr).getFields()) {
+				invocations(field.second(), methods);
+			}
+		} else if (expr instanceof Expr.Invoke) {
+			Expr.Invoke e = (Expr.Invoke) expr;
+			for (Expr argument : e.getArguments()) {
+				invocations(argument, methods);
+			}
+			WhileFile.MethodDecl callee = (WhileFile.MethodDecl) declarations.get(e.getName());
+			if (!methods.contains(callee)) {
+				methods.add(callee);
+			}
+		}
+	}
+
+	/**
+	 * Convert a value from its representation in the interpreter to that in
+	 * compiled code, given its static type. This returns
+	 * <code>INTERPRET</code> if the value has no such representation (e.g. a
+	 * record with more fields than its static type, since the order of the
+	 * extra fields is unknown).
+	 *
+	 * @param value
+	 * @param type
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private Object toCompiled(Object value, Type type) {
+		while (type instanceof Type.Named) {
+			type = ((WhileFile.TypeDecl) declarations.get(((Type.Named) type).getName())).getType();
+		}
+		if (value instanceof ArrayList && type instanceof Type.Array) {
+			ArrayList<Object> list = (ArrayList<Object>) value;
+			Type element = ((Type.Array) type).getElement();
+			ArrayList<Object> r = new ArrayList<Object>(list.size());
+			for (int i = 0; i != list.size(); ++i) {
+				Object v = toCompiled(list.get(i), element);
+				if (v == INTERPRET) {
+					return INTERPRET;
+				}
+				r.add(v);
+			}
+			return r;
+		} else if (value instanceof HashMap && type instanceof Type.Record) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			List<Pair<Type, String>> fields = ((Type.Record) type).getFields();
+			if (map.size() != fields.size()) {
+				return INTERPRET;
+			}
+			String[] names = new String[fields.size()];
+			for (int i = 0; i != names.length; ++i) {
+				names[i] = fields.get(i).second();
+			}
+			RecordValue r = new RecordValue(RecordValue.shapeOf(names));
+			for (int i = 0; i != names.length; ++i) {
+				Object v = toCompiled(map.get(names[i]), fields.get(i).first());
+				if (v == INTERPRET) {
+					return INTERPRET;
+				}
+				r.values[i] = v;
+			}
+			return r;
+		}
+		return value;
+	}
+
+	/**
+	 * Convert a value from its representation in compiled code to that in the
+	 * interpreter.
+	 *
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object toInterpreted(Object value) {
+		if (value instanceof ArrayList) {
+			ArrayList<Object> list = (ArrayList<Object>) value;
+			ArrayList<Object> r = new ArrayList<Object>(list.size());
+			for (int i = 0; i != list.size(); ++i) {
+				r.add(toInterpreted(list.get(i)));
+			}
+			return r;
+		} else if (value instanceof RecordValue) {
+			RecordValue record = (RecordValue) value;
+			HashMap<String, Object> r = new HashMap<String, Object>();
+			for (int i = 0; i != record.fields.length; ++i) {
+				r.put(record.fields[i], toInterpreted(record.values[i]));
+			}
+			return r;
+		}
+		return value;
+	}
+
+	/**
+	 * The number of invocations and loop iterations executed by a method, and
+	 * the compiled code for it (if any).
+	 */
+	private static final class Profile {
+		private int count;
+		private Method compiled;
+		private boolean failed;
+	}
+
+	/**
+	 * Defines classes directly from the bytes generated for them.
+	 */
+	private static final class Loader extends ClassLoader {
+		public Loader() {
+			super(JitCompiler.class.getClassLoader());
+		}
+
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps character offsets within a source file to lines, using a table of the
+ * offset at which each line starts. The table is built in a single pass over
+ * the text, after which finding the line of any offset is a binary search.
+ * The text itself is held (but not copied), such that lines can be printed
+ * without reading the file again.
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class LineIndex {
+	private final char[] text;
+	private final int length;
+
+	/**
+	 * The offset at which each line starts. Only lines which start before the
+	 * end of the text are included. Hence, there are no lines at all in an
+	 * empty file.
+	 */
+	private final int[] starts;
+
+	/**
+	 * Construct an index over the first <code>length</code> characters of a
+	 * given array.
+	 *
+	 * @param text
+	 * @param length
+	 */
+	public LineIndex(char[] text, int length) {
+		this.text = text;
+		this.length = length;
+		int[] starts = new int[16];
+		int count = 0;
+		if (length > 0) {
+			starts[count++] = 0;
+		}
+		for (int i = 0; i < length - 1; ++i) {
+			if (text[i] == '\n') {
+				if (count == starts.length) {
+					starts = Arrays.copyOf(starts, count * 2);
+				}
+				starts[count++] = i + 1;
+			}
+		}
+		this.starts = Arrays.copyOf(starts, count);
+	}
+
+	/**
+	 * Get the text being indexed.
+	 *
+	 * @return
+	 */
+	public char[] text() {
+		return text;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Get the number of lines.
+	 *
+	 * @return
+	 */
+	public int lines() {
+		return starts.length;
+	}
+
+	/**
+	 * Get the line (numbered from one) containing a given offset. This is
+	 * zero for an offset before the first line, whilst an offset beyond the
+	 * end of the text is on the last line.
+	 *
+	 * @param offset
+	 * @return
+	 */
+	public int line(int offset) {
+		int i = Arrays.binarySearch(starts, offset);
+		// When the offset is not the start of a line, the search returns
+		// -(the number of lines starting before it) - 1.
+		return i >= 0 ? i + 1 : -(i + 1);
+	}
+
+	/**
+	 * Get the offset at which a given line starts.
+	 *
+	 * @param line
+	 * @return
+	 */
+	public int lineStart(int line) {
+		return line == 0 ? 0 : starts[line - 1];
+	}
+
+	/**
+	 * Get the offset just after a given line ends, which is after its
+	 * new-line character (if it has one).
+	 *
+	 * @param line
+	 * @return
+	 */
+	public int lineEnd(int line) {
+		if (line == 0) {
+			return 0;
+		} else if (line < starts.length) {
+			return starts[line];
+		} else {
+			return length;
+		}
+	}
+
+	/**
+	 * Get the column (numbered from one) of a given offset within its line.
+	 *
+	 * @param offset
+	 * @return
+	 */
+	public int column(int offset) {
+		return offset - lineStart(line(offset)) + 1;
+	}
+}
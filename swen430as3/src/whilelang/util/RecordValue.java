@@ -0,0 +1,162 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+//
+// Copyright 2013, David James Pearce.
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The runtime representation of a While record in code generated by the
+ * <code>ClassFileWriter</code>. Field values are held in a flat array, in the
+ * order in which the fields are declared in the static type of the record.
+ * Since record subtyping requires the fields of a supertype to be a prefix of
+ * those of its subtypes, the slot of any field is the same for every record
+ * which may flow into a given access. Hence, generated code reads and writes
+ * fields directly through <code>values</code> using constant offsets.
+ * </p>
+ * <p>
+ * The field names of a record (its shape) are interned, such that all records
+ * of the same shape share the same array of names.
+ * </p>
+ */
+public final class RecordValue implements Cloneable {
+	private static final ConcurrentHashMap<String, String[]> shapes = new ConcurrentHashMap<String, String[]>();
+
+	/**
+	 * The names of the fields in this record, in declaration order.
+	 */
+	public final String[] fields;
+
+	/**
+	 * The values of the fields in this record, in declaration order.
+	 */
+	public final Object[] values;
+
+	/**
+	 * Construct a record of a given shape, whose fields are not yet
+	 * initialised.
+	 *
+	 * @param shape
+	 *            The field names of the record in declaration order, separated
+	 *            by commas.
+	 */
+	public RecordValue(String shape) {
+		String[] fields = shapes.get(shape);
+		if (fields == null) {
+			fields = shape.isEmpty() ? new String[0] : shape.split(",");
+			String[] existing = shapes.putIfAbsent(shape, fields);
+			if (existing != null) {
+				fields = existing;
+			}
+		}
+		this.fields = fields;
+		this.values = new Object[fields.length];
+	}
+
+	private RecordValue(String[] fields, Object[] values) {
+		this.fields = fields;
+		this.values = values;
+	}
+
+	/**
+	 * Determine the shape of records whose fields are declared in a given
+	 * order.
+	 *
+	 * @param fields
+	 * @return
+	 */
+	public static String shapeOf(String... fields) {
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i != fields.length; ++i) {
+			if (i != 0) {
+				r.append(',');
+			}
+			r.append(fields[i]);
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Get the value of a given field, or <code>null</code> if this record has
+	 * no such field.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public Object get(String field) {
+		for (int i = 0; i != fields.length; ++i) {
+			if (fields[i].equals(field)) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Make a shallow copy of this record, as for <code>HashMap.clone()</code>.
+	 */
+	@Override
+	public Object clone() {
+		return new RecordValue(fields, values.clone());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof RecordValue) {
+			RecordValue r = (RecordValue) o;
+			if (fields == r.fields) {
+				return Arrays.equals(values, r.values);
+			} else if (fields.length != r.fields.length) {
+				return false;
+			}
+			// Different shapes may still have the same fields in another order
+			for (int i = 0; i != fields.length; ++i) {
+				Object v = r.get(fields[i]);
+				if (v == null || !v.equals(values[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		// NOTE: independent of field order, for consistency with equals
+		int hash = 0;
+		for (int i = 0; i != fields.length; ++i) {
+			hash += fields[i].hashCode() ^ values[i].hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		String r = "{";
+		for (int i = 0; i != fields.length; ++i) {
+			if (i != 0) {
+				r += ",";
+			}
+			r += fields[i] + ":" + values[i];
+		}
+		return r + "}";
+	}
+}
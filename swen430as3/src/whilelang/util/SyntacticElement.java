@@ -33,7 +33,8 @@ import whilelang.ast.Attribute;
 public interface SyntacticElement {
 
   /**
-   * Get the list of attributes associated with this syntactice element.
+   * Get the list of attributes associated with this syntactice element. The
+   * source attribute is not held in this list (see <code>position()</code>).
    * 
    * @return
    */
@@ -47,10 +48,26 @@ public interface SyntacticElement {
    */
   public <T extends Attribute> T attribute(Class<T> c);
 
+  /**
+   * Get the source position of this syntactic element, packed into a single
+   * long (see <code>Attribute.Source.pack()</code>), or
+   * <code>Attribute.Source.NONE</code> if it has none.
+   * 
+   * @return
+   */
+  public long position();
+
   public class Impl implements SyntacticElement {
 
     private List<Attribute> attributes;
 
+    /**
+     * The source position is held apart from the other attributes, since
+     * almost every element has one. This avoids both an attribute object and
+     * a list for most elements.
+     */
+    private long position = Attribute.Source.NONE;
+
     public Impl() {
       // I use copy on write here, since for the most part I don't expect
       // attributes to change, and hence can be safely aliased. But, when they
@@ -59,30 +76,65 @@ public interface SyntacticElement {
     }
 
     public Impl(Attribute x) {
-      attributes = new ArrayList<Attribute>();
-      attributes.add(x);
+      add(x);
     }
 
     public Impl(Collection<Attribute> attributes) {
-      this.attributes = new ArrayList<Attribute>(attributes);
+      for (Attribute x : attributes) {
+        add(x);
+      }
     }
 
     public Impl(Attribute[] attributes) {
-      this.attributes = new ArrayList<Attribute>(Arrays.asList(attributes));
+      for (Attribute x : attributes) {
+        add(x);
+      }
+    }
+
+    private void add(Attribute x) {
+      if (x instanceof Attribute.Source) {
+        position = ((Attribute.Source) x).pack();
+      } else {
+        attributes().add(x);
+      }
     }
 
     public List<Attribute> attributes() {
+      if (attributes == null) {
+        attributes = new ArrayList<Attribute>();
+      }
       return attributes;
     }
 
     @SuppressWarnings("unchecked")
     public <T extends Attribute> T attribute(Class<T> c) {
-      for (Attribute a : attributes) {
-        if (c.isInstance(a)) {
-          return (T) a;
+      if (c == Attribute.Source.class && position != Attribute.Source.NONE) {
+        return (T) new Attribute.Source(position);
+      }
+      if (attributes != null) {
+        for (Attribute a : attributes) {
+          if (c.isInstance(a)) {
+            return (T) a;
+          }
         }
       }
       return null;
     }
+
+    public long position() {
+      return position;
+    }
+
+    /**
+     * Change the source position of this element (e.g. because the text
+     * around it has been edited).
+     *
+     * @param position
+     *          The position packed into a single long (see
+     *          <code>Attribute.Source.pack()</code>).
+     */
+    public void setPosition(long position) {
+      this.position = position;
+    }
   }
 }
@@ -23,6 +23,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import whilelang.ast.Attribute;
 
@@ -39,6 +40,12 @@ public class SyntaxError extends RuntimeException {
 	private int start;
 	private int end;
 
+	/**
+	 * The index of the file in which the error arose, or <code>null</code> if
+	 * it is not known.
+	 */
+	private LineIndex lines;
+
 	/**
 	 * Identify a syntax error at a particular point in a file.
 	 * 
@@ -138,6 +145,25 @@ public class SyntaxError extends RuntimeException {
 		return end;
 	}
 
+	/**
+	 * Get the index of the file in which the error arose, if known.
+	 *
+	 * @return
+	 */
+	public LineIndex lineIndex() {
+		return lines;
+	}
+
+	/**
+	 * Set the index of the file in which the error arose. This avoids reading
+	 * the file again to report the error.
+	 *
+	 * @param lines
+	 */
+	public void setLineIndex(LineIndex lines) {
+		this.lines = lines;
+	}
+
 	/**
 	 * Output the syntax error to a given output stream.
 	 */
@@ -145,41 +171,25 @@ public class SyntaxError extends RuntimeException {
 		if(filename == null) {
 			output.println("syntax error: " + getMessage());
 		} else {
-			int line = 0;
-			int lineStart = 0;
-			int lineEnd = 0;
-			StringBuilder text = new StringBuilder();
-			try {
-				BufferedReader in = new BufferedReader(new InputStreamReader(
-						new FileInputStream(filename), "UTF-8"));
-				
-				// first, read whole file					   
-			    int len = 0;
-			    char[] buf = new char[1024]; 
-			    while((len = in.read(buf)) != -1) {
-			    	text.append(buf,0,len);	    	
-			    }
-				
-				while (lineEnd < text.length() && lineEnd <= start) {
-					lineStart = lineEnd;
-					lineEnd = parseLine(text,lineEnd);
-					line = line + 1;
+			LineIndex lines = this.lines;
+			if (lines == null) {
+				try {
+					lines = readLineIndex(filename);
+				} catch (IOException e) {
+					output.println("syntax error: " + getMessage());
+					return;
 				}
-				in.close();
-			} catch (IOException e) {
-				output.println("syntax error: " + getMessage());
-				return;
 			}
-			lineEnd = Math.min(lineEnd,text.length());
+			char[] text = lines.text();
+			int line = lines.line(start);
+			int lineStart = lines.lineStart(line);
+			int lineEnd = lines.lineEnd(line);
 			
 			output.println(filename + ":" + line + ": " + getMessage());
 			// NOTE: in the following lines I don't print characters
 			// individually. The reason for this is that it messes up the ANT
 			// task output.
-			String str = "";
-			for (int i = lineStart; i < lineEnd; ++i) {
-				str = str + text.charAt(i);
-			}
+			String str = new String(text, lineStart, lineEnd - lineStart);
 			if (str.length() > 0 && str.charAt(str.length() - 1) == '\n') {
 				output.print(str);
 			} else {
@@ -188,56 +198,64 @@ public class SyntaxError extends RuntimeException {
 				// Therefore, we need to provide one ourselves!
 				output.println(str);
 			}
-			str = "";
+			StringBuilder marker = new StringBuilder();
 			for (int i = lineStart; i < start; ++i) {
-				if (text.charAt(i) == '\t') {
-					str += "\t";
+				if (text[i] == '\t') {
+					marker.append('\t');
 				} else {
-					str += " ";
+					marker.append(' ');
 				}
 			}						
 			for (int i = start; i <= end; ++i) {
-				str += "^";
+				marker.append('^');
 			}
-			output.println(str);
+			output.println(marker);
 		} 
 	}
 
-	private static int parseLine(StringBuilder text, int index) {
-		while (index < text.length() && text.charAt(index) != '\n') {
-			index++;
+	/**
+	 * Read a given file in full, and index its lines. This is only needed when
+	 * the error was not given the index of its file.
+	 *
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	private static LineIndex readLineIndex(String filename) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename), "UTF-8"));
+		try {
+			char[] text = new char[1024];
+			int length = 0;
+			int len;
+			while ((len = in.read(text, length, text.length - length)) != -1) {
+				length += len;
+				if (length == text.length) {
+					text = Arrays.copyOf(text, text.length * 2);
+				}
+			}
+			return new LineIndex(text, length);
+		} finally {
+			in.close();
 		}
-		return index + 1;
 	}
 
 	public static final long serialVersionUID = 1l;
 
 	public static void syntaxError(String code, String msg, String filename,
 			SyntacticElement elem) {
-		int start = -1;
-		int end = -1;
-
-		Attribute.Source attr = (Attribute.Source) elem
-				.attribute(Attribute.Source.class);
-		if (attr != null) {
-			start = attr.start;
-			end = attr.end;
-		}
+		long position = elem.position();
+		int start = Attribute.Source.start(position);
+		int end = Attribute.Source.end(position);
 
 		throw new SyntaxError(code, msg, filename, start, end);
 	}
 
 	public static void syntaxError(String code, String msg, String filename,
 			SyntacticElement elem, Throwable ex) {
-		int start = -1;
-		int end = -1;
-
-		Attribute.Source attr = (Attribute.Source) elem
-				.attribute(Attribute.Source.class);
-		if (attr != null) {
-			start = attr.start;
-			end = attr.end;
-		}
+		long position = elem.position();
+		int start = Attribute.Source.start(position);
+		int end = Attribute.Source.end(position);
 
 		throw new SyntaxError(code, msg, filename, start, end, ex);
 	}
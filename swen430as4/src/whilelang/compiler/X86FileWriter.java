@@ -37,6 +37,11 @@ public class X86FileWriter {
 	 * Used for unwrapping types.
 	 */
 	private HashMap<String, WhileFile.TypeDecl> types;
+	/**
+	 * Maps the contents of each compound literal placed in the data section to
+	 * its label, so that identical literals share a single image.
+	 */
+	private HashMap<List<Long>, String> literals;
 
 	// ==========================================
 	// Constructors
@@ -77,6 +82,7 @@ public class X86FileWriter {
 
 		this.functions = new HashMap<>();
 		this.types = new HashMap<>();
+		this.literals = new HashMap<>();
 
 		for (WhileFile.Decl declaration : wf.declarations) {
 			if (declaration instanceof WhileFile.MethodDecl) {
@@ -1334,6 +1340,11 @@ public class X86FileWriter {
 	 * @param context
 	 */
 	public void translateCompoundLiteral(List<Pair<Type,Object>> literals, Location target, Context context) {
+		String label = literalLabel(literals, context);
+		if (label != null) {
+			translatePooledLiteral(label, target, context);
+			return;
+		}
 		// Construct uninitialised compound object
 		RegisterLocation base = compoundInitialiser(literals.size(), new Type.Int(), target, context);
 		// Lock base to prevent it being overwritten
@@ -1360,6 +1371,83 @@ public class X86FileWriter {
 		}
 	}
 
+	/**
+	 * Translate a compound literal whose image has been placed in the data
+	 * section. Since compounds are updated in place, the image itself can never
+	 * be exposed. Instead, it is cloned onto the heap, which replaces the word by
+	 * word initialisation of the compound with a single bulk copy.
+	 *
+	 * @param label   The label of the literal's image in the data section.
+	 * @param target  Location to store result in (either register or stack
+	 *                location)
+	 * @param context The enclosing context
+	 */
+	public void translatePooledLiteral(String label, Location target, Context context) {
+		List<Instruction> instructions = context.instructions();
+		RegisterLocation base;
+		if (target instanceof RegisterLocation) {
+			base = (RegisterLocation) target;
+		} else {
+			base = context.selectFreeRegister();
+		}
+		// Load address of image (relative to the instruction pointer)
+		instructions.add(new Instruction.AddrRegReg(Instruction.AddrRegRegOp.lea, label, HIP, base.register));
+		// Call objcpy from runtime
+		makeExternalMethodCall("objcpy", context, base.register, base.register);
+		// Copy resulting pointer to target location
+		bitwiseCopy(base, target, context);
+	}
+
+	/**
+	 * Determine the label of the image of a given compound literal in the data
+	 * section, adding the image if no identical literal has been seen before.
+	 * Only literals whose components are all primitive can be placed in the data
+	 * section, since there is no way to express a reference from one image to
+	 * another. Likewise, images are only used on 64-bit targets, as these alone
+	 * support addressing relative to the instruction pointer.
+	 *
+	 * @param literals The list of component literals
+	 * @param context  The enclosing context
+	 * @return The label of the image, or null if the literal cannot be placed in
+	 *         the data section.
+	 */
+	private String literalLabel(List<Pair<Type,Object>> literals, Context context) {
+		if (target.arch != Target.Arch.X86_64) {
+			return null;
+		}
+		// Determine the words of the image, following the layout of
+		// compoundInitialiser.
+		ArrayList<Long> words = new ArrayList<>();
+		words.add((long) literals.size());
+		for (Pair<Type,Object> ith : literals) {
+			Object value = ith.second();
+			long payload;
+			if (value instanceof Boolean) {
+				payload = ((Boolean) value) ? 1 : 0;
+			} else if (value instanceof Character) {
+				payload = (Character) value;
+			} else if (value instanceof Integer) {
+				payload = (Integer) value;
+			} else {
+				return null;
+			}
+			// tag is set unless the component type is primitive
+			words.add(isPrimitive(ith.first()) ? 0L : 1L);
+			words.add(payload);
+		}
+		String label = this.literals.get(words);
+		if (label == null) {
+			label = freshLabel();
+			List<Constant> constants = context.constants();
+			constants.add(new Constant.Quad(label, WORD_SIZE, false, words.get(0)));
+			for (int i = 1; i != words.size(); ++i) {
+				constants.add(new Constant.Quad(null, 1, false, words.get(i)));
+			}
+			this.literals.put(words, label);
+		}
+		return label;
+	}
+
 	/**
 	 * /
 	 * <p>
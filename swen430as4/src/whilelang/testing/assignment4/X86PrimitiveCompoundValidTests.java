@@ -48,6 +48,7 @@ public class X86PrimitiveCompoundValidTests extends AbstractX86ValidTests {
 			"String_Valid_11",
 			"String_Valid_13",
 			"String_Valid_15",
+			"String_Valid_19",
 			"String_Valid_6",
 			"String_Valid_7",
 			"Switch_Valid_11",
@@ -23,6 +23,7 @@ import static whilelang.util.SyntaxError.internalFailure;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -43,6 +44,13 @@ public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
 
+	/**
+	 * The value of each string literal, which is built on its first evaluation
+	 * and then shared by all later ones. Sharing is safe because values are
+	 * always cloned before being stored (hence, before they can be updated).
+	 */
+	private IdentityHashMap<Expr.Literal, Object> literals;
+
 	public void run(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
 		declarations = new HashMap<String,WhileFile.Decl>();
@@ -50,6 +58,7 @@ public class Interpreter {
 			declarations.put(decl.name(), decl);
 		}
 		this.file = wf;
+		this.literals = new IdentityHashMap<Expr.Literal, Object>();
 
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
@@ -363,12 +372,17 @@ public class Interpreter {
 			char c = ((Character)o);
 			return c;
 		} else if(o instanceof String) {
-			ArrayList<Integer> list = new ArrayList<>();
-			String s = ((String)o);
-			for (char c : s.toCharArray()) {
-				list.add((int) c);
+			Object value = literals.get(expr);
+			if(value == null) {
+				ArrayList<Integer> list = new ArrayList<>();
+				String s = ((String)o);
+				for (char c : s.toCharArray()) {
+					list.add((int) c);
+				}
+				value = list;
+				literals.put(expr, value);
 			}
-			return list;
+			return value;
 		}
 		// Done
 		return o;